@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2020. The Kathra Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *    IRT SystemX (https://www.kathra.org/)
+ *
+ */
+
+package org.kathra.sourcemanager.controller;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Local repository reachable through a file URL, filled with generated files
+ */
+public class BenchmarkRepository {
+
+    private final File folder;
+    private final int files;
+    private final int depth;
+    private final int blobSize;
+
+    /**
+     * @param files    Number of files
+     * @param depth    Number of nested folders holding the files
+     * @param blobSize Size of each file in bytes
+     */
+    public BenchmarkRepository(int files, int depth, int blobSize) throws Exception {
+        this.files = files;
+        this.depth = depth;
+        this.blobSize = blobSize;
+        this.folder = Files.createTempDirectory("KathraSourceManager_Benchmark_").toFile();
+        try (Git git = Git.init().setDirectory(folder).call()) {
+            writeFiles(folder, new Random(files));
+            git.add().addFilepattern(".").call();
+            git.commit().setAuthor("benchmark", "benchmark@kathra.org").setMessage("Generated content").call();
+            git.branchCreate().setName("dev").call();
+        }
+    }
+
+    public String getUrl() {
+        return folder.toURI().toString();
+    }
+
+    public File getFolder() {
+        return folder;
+    }
+
+    /**
+     * Write or rewrite every file under the root folder, spread across the nested folders
+     */
+    public void writeFiles(File root, Random random) throws IOException {
+        byte[] content = new byte[blobSize];
+        for (int i = 0; i < files; i++) {
+            random.nextBytes(content);
+            FileUtils.writeByteArrayToFile(new File(root, getPath(i)), content);
+        }
+    }
+
+    private String getPath(int index) {
+        StringBuilder path = new StringBuilder();
+        int bucket = index;
+        for (int level = 0; level < depth; level++) {
+            path.append("folder").append(bucket % 8).append('/');
+            bucket /= 8;
+        }
+        return path.append("file").append(index).append(".bin").toString();
+    }
+
+    public void delete() {
+        FileUtils.deleteQuietly(folder);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2020. The Kathra Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *    IRT SystemX (https://www.kathra.org/)
+ *
+ */
+
+package org.kathra.sourcemanager.controller;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.Repository;
+import org.openjdk.jmh.annotations.*;
+import org.zeroturnaround.zip.ZipUtil;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unpack of the archives submitted to createCommit, insertion of their entries as blobs, and application of an
+ * archive identical to the branch head to its worktree.
+ *
+ * Run with: mvn -P benchmarks test-compile exec:exec -Djmh.args=ContentBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ContentBenchmark {
+
+    @Param({"100", "1000"})
+    public int files;
+
+    @Param({"1", "4"})
+    public int depth;
+
+    @Param({"1024", "65536"})
+    public int blobSize;
+
+    private BenchmarkRepository repository;
+    private File folder;
+    private File archive;
+    private Repository objects;
+    private int runs;
+
+    @Setup(Level.Trial)
+    public void createContent() throws Exception {
+        repository = new BenchmarkRepository(files, depth, blobSize);
+        folder = Files.createTempDirectory("KathraSourceManager_BenchmarkContent_").toFile();
+        archive = new File(folder, "content.zip");
+        ZipUtil.pack(repository.getFolder(), archive, name -> name.startsWith(".git/") ? null : name);
+        objects = Git.init().setBare(true).setDirectory(new File(folder, "objects.git")).call().getRepository();
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteOutputs() {
+        File[] outputs = folder.listFiles(f -> f.getName().startsWith("unpacked"));
+        if (outputs != null) {
+            for (File output : outputs) {
+                FileUtils.deleteQuietly(output);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteContent() {
+        objects.close();
+        repository.delete();
+        FileUtils.deleteQuietly(folder);
+    }
+
+    @Benchmark
+    public File unpack() {
+        File target = new File(folder, "unpacked" + runs++);
+        ZipUtil.unpack(archive, target);
+        return target;
+    }
+
+    @Benchmark
+    public List<String> applyUnchanged() throws Exception {
+        try (Git git = Git.open(repository.getFolder())) {
+            return new CommitContent(archive, null, true, true).applyTo(git.getRepository(), repository.getFolder());
+        }
+    }
+
+    @Benchmark
+    public NavigableMap<String, ObjectId> insert() throws Exception {
+        try (ObjectInserter inserter = objects.newObjectInserter()) {
+            NavigableMap<String, ObjectId> blobs = new CommitContent(archive, null, true, false).insert(objects, inserter);
+            inserter.flush();
+            return blobs;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2020. The Kathra Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *    IRT SystemX (https://www.kathra.org/)
+ *
+ */
+
+package org.kathra.sourcemanager.controller;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
+import org.kathra.sourcemanager.Config;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Clone and commit through GitService against a local repository.
+ *
+ * Run with: mvn -P benchmarks test-compile exec:exec -Djmh.args=GitServiceBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GitServiceBenchmark {
+
+    @Param({"100", "1000"})
+    public int files;
+
+    @Param({"1", "4"})
+    public int depth;
+
+    @Param({"1024", "65536"})
+    public int blobSize;
+
+    private BenchmarkRepository repository;
+    private File workingFolders;
+    private GitService gitService;
+    private GitService mirrorGitService;
+    private int clones;
+
+    @Setup(Level.Trial)
+    public void createRepository() throws Exception {
+        repository = new BenchmarkRepository(files, depth, blobSize);
+        workingFolders = Files.createTempDirectory("KathraSourceManager_BenchmarkClones_").toFile();
+        gitService = new GitService(new Config() {
+            @Override
+            public boolean isGitMirrorEnabled() {
+                return false;
+            }
+        });
+        File mirrorFolder = new File(workingFolders, "mirrors");
+        mirrorGitService = new GitService(new Config() {
+            @Override
+            public boolean isGitMirrorEnabled() {
+                return true;
+            }
+
+            @Override
+            public String getGitMirrorFolder() {
+                return mirrorFolder.getAbsolutePath();
+            }
+        });
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteClones() {
+        File[] clonesFolders = workingFolders.listFiles(f -> f.getName().startsWith("clone"));
+        if (clonesFolders != null) {
+            for (File clone : clonesFolders) {
+                FileUtils.deleteQuietly(clone);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteRepository() {
+        repository.delete();
+        FileUtils.deleteQuietly(workingFolders);
+    }
+
+    @Benchmark
+    public Git cloneProject() throws Exception {
+        try (Git git = gitService.cloneProject(null, "project", "dev", nextWorkingFolder(), null, repository.getUrl(), true)) {
+            return git;
+        }
+    }
+
+    @Benchmark
+    public Git cloneProjectFromMirror() throws Exception {
+        try (Git git = mirrorGitService.cloneProject(1, "project", "dev", nextWorkingFolder(), null, repository.getUrl(), true)) {
+            return git;
+        }
+    }
+
+    private File nextWorkingFolder() {
+        return new File(workingFolders, "clone" + clones++);
+    }
+
+    /**
+     * A clone of the repository with every file rewritten, ready to be staged and committed
+     */
+    @State(Scope.Thread)
+    public static class ModifiedWorktree {
+        private File folder;
+        private Git git;
+        private final Random random = new Random();
+
+        @Setup(Level.Invocation)
+        public void modify(GitServiceBenchmark benchmark) throws Exception {
+            folder = Files.createTempDirectory("KathraSourceManager_BenchmarkCommit_").toFile();
+            git = Git.cloneRepository().setURI(benchmark.repository.getUrl()).setBranch("dev").setDirectory(folder).call();
+            benchmark.repository.writeFiles(folder, random);
+        }
+
+        @TearDown(Level.Invocation)
+        public void delete() {
+            git.close();
+            FileUtils.deleteQuietly(folder);
+        }
+    }
+
+    @Benchmark
+    public Object createCommit(ModifiedWorktree worktree) throws Exception {
+        return gitService.createCommit(worktree.git, "benchmark", "Benchmark commit");
+    }
+}
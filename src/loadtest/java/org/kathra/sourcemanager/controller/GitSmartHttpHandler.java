@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2020. The Kathra Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *    IRT SystemX (https://www.kathra.org/)
+ *
+ */
+
+package org.kathra.sourcemanager.controller;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.PacketLineOut;
+import org.eclipse.jgit.transport.ReceivePack;
+import org.eclipse.jgit.transport.RefAdvertiser;
+import org.eclipse.jgit.transport.UploadPack;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Stateless smart HTTP git protocol of the {@link GitlabStandIn}, serving clones and pushes of its repositories
+ * at the http_url_to_repo of their project.
+ */
+public class GitSmartHttpHandler implements HttpHandler {
+
+    private static final String UPLOAD_PACK = "git-upload-pack";
+    private static final String RECEIVE_PACK = "git-receive-pack";
+    private static final String INFO_REFS = "/info/refs";
+
+    private static final Logger logger = Logger.getLogger(GitSmartHttpHandler.class.getName());
+
+    private final GitlabStandIn standIn;
+
+    public GitSmartHttpHandler(GitlabStandIn standIn) {
+        this.standIn = standIn;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (standIn.injectFaults()) {
+                exchange.sendResponseHeaders(502, -1);
+                return;
+            }
+            String path = exchange.getRequestURI().getPath();
+            String service;
+            String repositoryPath;
+            boolean advertisement = path.endsWith(INFO_REFS);
+            if (advertisement) {
+                service = exchange.getRequestURI().getQuery() == null ? "" : exchange.getRequestURI().getQuery().replace("service=", "");
+                repositoryPath = path.substring(0, path.length() - INFO_REFS.length());
+            } else {
+                service = path.substring(path.lastIndexOf('/') + 1);
+                repositoryPath = path.substring(0, path.lastIndexOf('/'));
+            }
+            Repository repository = repositoryPath.endsWith(".git")
+                    ? standIn.getRepository(repositoryPath.substring(1, repositoryPath.length() - ".git".length()))
+                    : null;
+            if (repository == null || !(service.equals(UPLOAD_PACK) || service.equals(RECEIVE_PACK))) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            if (advertisement) {
+                advertise(exchange, repository, service);
+            } else {
+                serve(exchange, repository, service);
+            }
+        } catch (Exception e) {
+            logger.error("GitLab stand-in failed to serve " + exchange.getRequestURI(), e);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void advertise(HttpExchange exchange, Repository repository, String service) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/x-" + service + "-advertisement");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream out = exchange.getResponseBody()) {
+            PacketLineOut pckOut = new PacketLineOut(out);
+            pckOut.writeString("# service=" + service + "\n");
+            pckOut.end();
+            RefAdvertiser.PacketLineOutRefAdvertiser advertiser = new RefAdvertiser.PacketLineOutRefAdvertiser(pckOut);
+            if (service.equals(UPLOAD_PACK)) {
+                UploadPack uploadPack = new UploadPack(repository);
+                uploadPack.setBiDirectionalPipe(false);
+                uploadPack.sendAdvertisedRefs(advertiser);
+            } else {
+                ReceivePack receivePack = new ReceivePack(repository);
+                receivePack.setBiDirectionalPipe(false);
+                receivePack.sendAdvertisedRefs(advertiser);
+            }
+        }
+    }
+
+    private void serve(HttpExchange exchange, Repository repository, String service) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            in = new GZIPInputStream(in);
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/x-" + service + "-result");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0);
+        try (InputStream body = in; OutputStream out = exchange.getResponseBody()) {
+            if (service.equals(UPLOAD_PACK)) {
+                UploadPack uploadPack = new UploadPack(repository);
+                uploadPack.setBiDirectionalPipe(false);
+                uploadPack.upload(body, out, null);
+            } else {
+                ReceivePack receivePack = new ReceivePack(repository);
+                receivePack.setBiDirectionalPipe(false);
+                receivePack.receive(body, out, null);
+            }
+        }
+    }
+}
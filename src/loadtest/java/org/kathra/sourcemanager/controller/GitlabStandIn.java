@@ -0,0 +1,734 @@
+/*
+ * Copyright (c) 2020. The Kathra Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *    IRT SystemX (https://www.kathra.org/)
+ *
+ */
+
+package org.kathra.sourcemanager.controller;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process stand-in of the GitLab server, for load tests that cannot run against a real instance.
+ * It serves, from memory, the REST endpoints used by {@link GitlabService} and {@link SourceManagerController}
+ * (users, impersonation tokens, groups, projects, branches, tags, commits, files, trees, members and deploy keys),
+ * and the smart HTTP git protocol on bare repositories created in a temporary folder.
+ * Every request can be delayed and failed on purpose, see {@link #setLatency(long, long)} and {@link #setErrorRate(double)}.
+ */
+public class GitlabStandIn {
+
+    public static final String API = "/api/v4";
+
+    private static final Logger logger = Logger.getLogger(GitlabStandIn.class.getName());
+
+    static class User {
+        final int id;
+        final String username;
+        final List<JSONObject> impersonationTokens = new ArrayList<>();
+
+        User(int id, String username) {
+            this.id = id;
+            this.username = username;
+        }
+    }
+
+    static class Group {
+        final int id;
+        final String path;
+        final String fullPath;
+        final Integer parentId;
+        final Map<Integer, Integer> members = new LinkedHashMap<>();
+
+        Group(int id, String path, String fullPath, Integer parentId) {
+            this.id = id;
+            this.path = path;
+            this.fullPath = fullPath;
+            this.parentId = parentId;
+        }
+    }
+
+    static class Project {
+        final int id;
+        final String name;
+        final Group namespace;
+        final Repository repository;
+        final Map<Integer, Integer> members = new LinkedHashMap<>();
+        final List<Integer> deployKeys = new ArrayList<>();
+
+        Project(int id, String name, Group namespace, Repository repository) {
+            this.id = id;
+            this.name = name;
+            this.namespace = namespace;
+            this.repository = repository;
+        }
+
+        String getPathWithNamespace() {
+            return namespace.fullPath + "/" + name;
+        }
+    }
+
+    private final AtomicInteger ids = new AtomicInteger(1);
+    private final Map<String, User> users = new HashMap<>();
+    private final Map<Integer, Group> groups = new LinkedHashMap<>();
+    private final Map<Integer, Project> projects = new LinkedHashMap<>();
+    private final Map<Integer, JSONObject> deployKeys = new LinkedHashMap<>();
+
+    private final File repositoriesFolder;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final String url;
+
+    private volatile long latencyMs;
+    private volatile long latencyJitterMs;
+    private volatile double errorRate;
+
+    /**
+     * @param port    Port to listen on, 0 for any free port
+     * @param threads Number of requests served concurrently
+     */
+    public GitlabStandIn(int port, int threads) throws IOException {
+        repositoriesFolder = Files.createTempDirectory("KathraSourceManager_GitlabStandIn_").toFile();
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "GitlabStandIn");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext(API + "/", this::handleApi);
+        server.createContext("/", new GitSmartHttpHandler(this));
+        url = "http://localhost:" + server.getAddress().getPort();
+    }
+
+    public GitlabStandIn start() {
+        server.start();
+        logger.info("GitLab stand-in listening on " + url + ", repositories in " + repositoriesFolder);
+        return this;
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+        synchronized (this) {
+            projects.values().forEach(project -> project.repository.close());
+            projects.clear();
+        }
+        FileUtils.deleteQuietly(repositoriesFolder);
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Delay every request by latencyMs plus a random part up to jitterMs
+     */
+    public void setLatency(long latencyMs, long jitterMs) {
+        this.latencyMs = latencyMs;
+        this.latencyJitterMs = jitterMs;
+    }
+
+    /**
+     * Answer this ratio of requests, between 0 and 1, with a 502 instead of serving them
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Create a group and its missing parents, as an administrator would before opening the service
+     */
+    public synchronized int createGroup(String fullPath) {
+        Group parent = null;
+        StringBuilder current = new StringBuilder();
+        for (String path : fullPath.split("/")) {
+            current.append(current.length() == 0 ? "" : "/").append(path);
+            Group group = findGroup(current.toString());
+            if (group == null) {
+                group = new Group(ids.getAndIncrement(), path, current.toString(), parent == null ? null : parent.id);
+                groups.put(group.id, group);
+            }
+            parent = group;
+        }
+        return parent.id;
+    }
+
+    public synchronized int createDeployKey(String title, String key) {
+        JSONObject deployKey = new JSONObject()
+                .put("id", ids.getAndIncrement())
+                .put("title", title)
+                .put("key", key)
+                .put("created_at", now());
+        deployKeys.put(deployKey.getInt("id"), deployKey);
+        return deployKey.getInt("id");
+    }
+
+    /**
+     * Repository served at a git http path such as /group/project.git
+     *
+     * @return the repository, null if no project exists at this path
+     */
+    synchronized Repository getRepository(String pathWithNamespace) {
+        Project project = findProject(pathWithNamespace);
+        return project == null ? null : project.repository;
+    }
+
+    /**
+     * Wait for the configured latency
+     *
+     * @return true if the request must fail
+     */
+    boolean injectFaults() {
+        long delay = latencyMs + (latencyJitterMs > 0 ? ThreadLocalRandom.current().nextLong(latencyJitterMs + 1) : 0);
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate;
+    }
+
+    private void handleApi(HttpExchange exchange) throws IOException {
+        try {
+            if (injectFaults()) {
+                send(exchange, 502, new JSONObject().put("message", "502 Injected failure"));
+                return;
+            }
+            String rawPath = exchange.getRequestURI().getRawPath().substring(API.length() + 1);
+            List<String> segments = new ArrayList<>();
+            for (String segment : rawPath.split("/")) {
+                segments.add(decode(segment));
+            }
+            Map<String, String> params = readParameters(exchange);
+            Object response;
+            synchronized (this) {
+                response = route(exchange.getRequestMethod(), segments, params);
+            }
+            if (response instanceof byte[]) {
+                exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+                exchange.sendResponseHeaders(200, ((byte[]) response).length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write((byte[]) response);
+                }
+            } else if (response == null) {
+                send(exchange, 404, new JSONObject().put("message", "404 Not found"));
+            } else {
+                send(exchange, "POST".equals(exchange.getRequestMethod()) ? 201 : 200, response);
+            }
+        } catch (StandInException e) {
+            send(exchange, e.status, e.body);
+        } catch (Exception e) {
+            logger.error("GitLab stand-in failed to serve " + exchange.getRequestURI(), e);
+            send(exchange, 500, new JSONObject().put("message", "500 " + e.getMessage()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static class StandInException extends Exception {
+        private final int status;
+        private final JSONObject body;
+
+        StandInException(int status, Object message) {
+            super(String.valueOf(message));
+            this.status = status;
+            this.body = new JSONObject().put("message", message);
+        }
+    }
+
+    private Object route(String method, List<String> s, Map<String, String> params) throws Exception {
+        String resource = s.get(0);
+        int size = s.size();
+        if (resource.equals("user") && size == 1) {
+            return toJson(getUser(params.get("sudo")));
+        } else if (resource.equals("users") && size == 3 && s.get(2).equals("impersonation_tokens")) {
+            User user = users.values().stream().filter(u -> String.valueOf(u.id).equals(s.get(1))).findFirst().orElse(null);
+            if (user == null) {
+                return null;
+            }
+            if (method.equals("POST")) {
+                JSONObject token = new JSONObject()
+                        .put("id", ids.getAndIncrement())
+                        .put("name", params.get("name"))
+                        .put("token", "standin-" + user.username + "-" + ids.getAndIncrement())
+                        .put("revoked", false)
+                        .put("active", true)
+                        .put("scopes", new JSONArray(Arrays.asList("api", "read_user")));
+                user.impersonationTokens.add(token);
+                return token;
+            }
+            return new JSONArray(user.impersonationTokens);
+        } else if (resource.equals("deploy_keys") && size == 1) {
+            return page(new ArrayList<>(deployKeys.values()), params);
+        } else if (resource.equals("groups")) {
+            return routeGroup(method, s, params);
+        } else if (resource.equals("projects")) {
+            return routeProject(method, s, params);
+        }
+        return null;
+    }
+
+    private Object routeGroup(String method, List<String> s, Map<String, String> params) throws Exception {
+        if (s.size() == 1) {
+            if (method.equals("POST")) {
+                Integer parentId = params.containsKey("parent_id") ? Integer.valueOf(params.get("parent_id")) : null;
+                Group parent = parentId == null ? null : groups.get(parentId);
+                String fullPath = (parent == null ? "" : parent.fullPath + "/") + params.get("path");
+                if (findGroup(fullPath) != null) {
+                    throw new StandInException(400, new JSONObject().put("path", new JSONArray().put("has already been taken")));
+                }
+                return toJson(groups.get(createGroup(fullPath)));
+            }
+            List<Object> all = new ArrayList<>();
+            groups.values().forEach(group -> all.add(toJson(group)));
+            return page(all, params);
+        }
+        Group group = s.get(1).matches("\\d+") ? groups.get(Integer.valueOf(s.get(1))) : findGroup(s.get(1));
+        if (group == null) {
+            return null;
+        } else if (s.size() == 2) {
+            return toJson(group);
+        } else if (s.get(2).equals("projects")) {
+            List<Object> groupProjects = new ArrayList<>();
+            projects.values().stream().filter(p -> p.namespace == group).forEach(p -> groupProjects.add(toJson(p)));
+            return page(groupProjects, params);
+        } else if (s.get(2).equals("members")) {
+            return routeMembers(method, s, params, group.members);
+        }
+        return null;
+    }
+
+    private Object routeProject(String method, List<String> s, Map<String, String> params) throws Exception {
+        if (s.size() == 1 && method.equals("POST")) {
+            return toJson(createProject(params.get("name"), Integer.valueOf(params.get("namespace_id"))));
+        }
+        Project project = s.size() > 1 && s.get(1).matches("\\d+") ? projects.get(Integer.valueOf(s.get(1))) : findProject(s.get(1));
+        if (project == null) {
+            return null;
+        } else if (s.size() == 2) {
+            if (method.equals("DELETE")) {
+                deleteProject(project);
+                return new JSONObject().put("message", "202 Accepted");
+            }
+            return toJson(project);
+        } else if (s.get(2).equals("members")) {
+            return routeMembers(method, s, params, project.members);
+        } else if (s.get(2).equals("deploy_keys")) {
+            if (s.size() == 3 && method.equals("POST")) {
+                int keyId = createDeployKey(params.get("title"), params.get("key"));
+                project.deployKeys.add(keyId);
+                return deployKeys.get(keyId);
+            } else if (s.size() == 5 && s.get(4).equals("enable")) {
+                JSONObject deployKey = deployKeys.get(Integer.valueOf(s.get(3)));
+                if (deployKey != null && !project.deployKeys.contains(deployKey.getInt("id"))) {
+                    project.deployKeys.add(deployKey.getInt("id"));
+                }
+                return deployKey;
+            }
+            List<Object> enabled = new ArrayList<>();
+            project.deployKeys.forEach(id -> enabled.add(deployKeys.get(id)));
+            return page(enabled, params);
+        } else if (s.get(2).equals("repository") && s.size() > 3) {
+            return routeRepository(method, s.subList(3, s.size()), params, project.repository);
+        }
+        return null;
+    }
+
+    private Object routeRepository(String method, List<String> s, Map<String, String> params, Repository repository) throws Exception {
+        switch (s.get(0)) {
+            case "branches":
+                if (method.equals("POST")) {
+                    return createBranch(repository, params.get("branch"), params.get("ref"));
+                } else if (s.size() > 1) {
+                    Ref ref = repository.exactRef(Constants.R_HEADS + String.join("/", s.subList(1, s.size())));
+                    return ref == null ? null : toBranchJson(repository, ref);
+                }
+                List<Object> branches = new ArrayList<>();
+                for (Ref ref : repository.getRefDatabase().getRefs(Constants.R_HEADS).values()) {
+                    branches.add(toBranchJson(repository, ref));
+                }
+                return page(branches, params);
+            case "tags":
+                List<Object> tags = new ArrayList<>();
+                for (Ref ref : repository.getRefDatabase().getRefs(Constants.R_TAGS).values()) {
+                    tags.add(new JSONObject()
+                            .put("name", Repository.shortenRefName(ref.getName()))
+                            .put("commit", toCommitJson(repository, ref.getObjectId())));
+                }
+                return page(tags, params);
+            case "commits":
+                ObjectId head = repository.resolve(params.containsKey("ref_name") ? params.get("ref_name") : Constants.HEAD);
+                List<Object> commits = new ArrayList<>();
+                if (head != null) {
+                    try (RevWalk walk = new RevWalk(repository)) {
+                        walk.markStart(walk.parseCommit(head));
+                        for (RevCommit commit : walk) {
+                            commits.add(toGitlabCommitJson(commit));
+                        }
+                    }
+                }
+                return page(commits, params);
+            case "files":
+                if (s.size() != 3 || !s.get(2).equals("raw")) {
+                    return null;
+                }
+                ObjectId ref = repository.resolve(params.getOrDefault("ref", Constants.HEAD));
+                if (ref == null) {
+                    return null;
+                }
+                try (RevWalk walk = new RevWalk(repository);
+                     TreeWalk treeWalk = TreeWalk.forPath(repository, s.get(1), walk.parseCommit(ref).getTree())) {
+                    if (treeWalk == null) {
+                        return null;
+                    }
+                    ObjectLoader loader = repository.open(treeWalk.getObjectId(0));
+                    return loader.getBytes();
+                }
+            case "tree":
+                return listTree(repository, params);
+            default:
+                return null;
+        }
+    }
+
+    private Object listTree(Repository repository, Map<String, String> params) throws IOException {
+        ObjectId ref = repository.resolve(params.getOrDefault("ref", Constants.HEAD));
+        if (ref == null) {
+            return null;
+        }
+        String path = params.getOrDefault("path", "");
+        List<Object> entries = new ArrayList<>();
+        try (RevWalk walk = new RevWalk(repository); TreeWalk treeWalk = new TreeWalk(repository)) {
+            ObjectId tree = walk.parseCommit(ref).getTree();
+            if (!path.isEmpty()) {
+                try (TreeWalk folder = TreeWalk.forPath(repository, path, tree)) {
+                    if (folder == null || !folder.isSubtree()) {
+                        return null;
+                    }
+                    tree = folder.getObjectId(0);
+                }
+            }
+            treeWalk.addTree(tree);
+            boolean recursive = Boolean.valueOf(params.get("recursive"));
+            while (treeWalk.next()) {
+                FileMode mode = treeWalk.getFileMode(0);
+                entries.add(new JSONObject()
+                        .put("id", treeWalk.getObjectId(0).name())
+                        .put("name", treeWalk.getNameString())
+                        .put("type", mode == FileMode.TREE ? "tree" : mode == FileMode.GITLINK ? "commit" : "blob")
+                        .put("path", path.isEmpty() ? treeWalk.getPathString() : path + "/" + treeWalk.getPathString())
+                        .put("mode", String.format("%06o", mode.getBits())));
+                if (recursive && treeWalk.isSubtree()) {
+                    treeWalk.enterSubtree();
+                }
+            }
+        }
+        return page(entries, params);
+    }
+
+    private Object routeMembers(String method, List<String> s, Map<String, String> params, Map<Integer, Integer> members) throws StandInException {
+        if (method.equals("POST")) {
+            Integer userId = Integer.valueOf(params.get("user_id"));
+            if (members.containsKey(userId)) {
+                throw new StandInException(409, "Member already exists");
+            }
+            members.put(userId, Integer.valueOf(params.get("access_level")));
+            return toMemberJson(userId, members.get(userId));
+        } else if (method.equals("DELETE") && s.size() == 4) {
+            Integer level = members.remove(Integer.valueOf(s.get(3)));
+            return level == null ? null : new JSONObject();
+        }
+        List<Object> all = new ArrayList<>();
+        members.forEach((userId, level) -> all.add(toMemberJson(userId, level)));
+        return page(all, params);
+    }
+
+    private User getUser(String username) {
+        String name = username == null ? "root" : username;
+        return users.computeIfAbsent(name, n -> new User(ids.getAndIncrement(), n));
+    }
+
+    private Group findGroup(String fullPath) {
+        return groups.values().stream().filter(g -> g.fullPath.equalsIgnoreCase(fullPath)).findFirst().orElse(null);
+    }
+
+    private Project findProject(String pathWithNamespace) {
+        return projects.values().stream().filter(p -> p.getPathWithNamespace().equalsIgnoreCase(pathWithNamespace)).findFirst().orElse(null);
+    }
+
+    /**
+     * Create a project with a first commit on master, as GitLab does when a project is initialized with a README
+     */
+    private Project createProject(String name, int namespaceId) throws Exception {
+        Group namespace = groups.get(namespaceId);
+        if (namespace == null) {
+            throw new StandInException(404, "404 Namespace Not Found");
+        }
+        if (findProject(namespace.fullPath + "/" + name) != null) {
+            throw new StandInException(400, new JSONObject().put("name", new JSONArray().put("has already been taken")));
+        }
+        File folder = new File(repositoriesFolder, namespace.fullPath + File.separator + name + ".git");
+        Repository repository = FileRepositoryBuilder.create(folder);
+        repository.create(true);
+        try (ObjectInserter inserter = repository.newObjectInserter()) {
+            TreeFormatter tree = new TreeFormatter();
+            tree.append("README.md", FileMode.REGULAR_FILE, inserter.insert(Constants.OBJ_BLOB, ("# " + name + "\n").getBytes(StandardCharsets.UTF_8)));
+            CommitBuilder commit = new CommitBuilder();
+            PersonIdent ident = new PersonIdent("GitLab stand-in", "standin@kathra.org");
+            commit.setTreeId(inserter.insert(tree));
+            commit.setAuthor(ident);
+            commit.setCommitter(ident);
+            commit.setMessage("Initial commit");
+            ObjectId commitId = inserter.insert(commit);
+            inserter.flush();
+            RefUpdate update = repository.updateRef(Constants.R_HEADS + "master");
+            update.setNewObjectId(commitId);
+            update.update();
+        }
+        Project project = new Project(ids.getAndIncrement(), name, namespace, repository);
+        projects.put(project.id, project);
+        return project;
+    }
+
+    private void deleteProject(Project project) {
+        projects.remove(project.id);
+        project.repository.close();
+        FileUtils.deleteQuietly(project.repository.getDirectory());
+    }
+
+    private JSONObject createBranch(Repository repository, String branch, String ref) throws Exception {
+        ObjectId target = ref == null ? null : repository.resolve(ref);
+        if (target == null) {
+            throw new StandInException(400, "Invalid reference name: " + ref);
+        }
+        if (repository.exactRef(Constants.R_HEADS + branch) != null) {
+            throw new StandInException(400, "Branch already exists");
+        }
+        RefUpdate update = repository.updateRef(Constants.R_HEADS + branch);
+        update.setNewObjectId(target);
+        update.update();
+        return toBranchJson(repository, repository.exactRef(Constants.R_HEADS + branch));
+    }
+
+    private JSONObject toJson(User user) {
+        return new JSONObject()
+                .put("id", user.id)
+                .put("username", user.username)
+                .put("name", user.username)
+                .put("email", user.username + "@kathra.org")
+                .put("state", "active");
+    }
+
+    private JSONObject toJson(Group group) {
+        JSONObject json = new JSONObject()
+                .put("id", group.id)
+                .put("name", group.path)
+                .put("path", group.path)
+                .put("full_name", group.fullPath)
+                .put("full_path", group.fullPath)
+                .put("web_url", url + "/groups/" + group.fullPath);
+        if (group.parentId != null) {
+            json.put("parent_id", group.parentId);
+        }
+        return json;
+    }
+
+    private JSONObject toJson(Project project) {
+        String path = project.getPathWithNamespace();
+        return new JSONObject()
+                .put("id", project.id)
+                .put("name", project.name)
+                .put("path", project.name)
+                .put("path_with_namespace", path)
+                .put("default_branch", "master")
+                .put("http_url_to_repo", url + "/" + path + ".git")
+                .put("ssh_url_to_repo", "git@localhost:" + path + ".git")
+                .put("web_url", url + "/" + path)
+                .put("created_at", now())
+                .put("namespace", new JSONObject()
+                        .put("id", project.namespace.id)
+                        .put("name", project.namespace.path)
+                        .put("path", project.namespace.path)
+                        .put("full_path", project.namespace.fullPath)
+                        .put("kind", "group"));
+    }
+
+    private JSONObject toMemberJson(Integer userId, Integer accessLevel) {
+        User user = users.values().stream().filter(u -> u.id == userId).findFirst().orElse(new User(userId, "user" + userId));
+        return toJson(user).put("access_level", accessLevel);
+    }
+
+    private JSONObject toBranchJson(Repository repository, Ref ref) throws IOException {
+        return new JSONObject()
+                .put("name", Repository.shortenRefName(ref.getName()))
+                .put("protected", false)
+                .put("merged", false)
+                .put("commit", toCommitJson(repository, ref.getObjectId()));
+    }
+
+    private JSONObject toCommitJson(Repository repository, ObjectId id) throws IOException {
+        try (RevWalk walk = new RevWalk(repository)) {
+            return toGitlabCommitJson(walk.parseCommit(id));
+        }
+    }
+
+    private JSONObject toGitlabCommitJson(RevCommit commit) {
+        JSONArray parents = new JSONArray();
+        for (RevCommit parent : commit.getParents()) {
+            parents.put(parent.getName());
+        }
+        String date = format(commit.getAuthorIdent().getWhen());
+        return new JSONObject()
+                .put("id", commit.getName())
+                .put("short_id", commit.abbreviate(8).name())
+                .put("title", commit.getShortMessage())
+                .put("message", commit.getFullMessage())
+                .put("author_name", commit.getAuthorIdent().getName())
+                .put("author_email", commit.getAuthorIdent().getEmailAddress())
+                .put("committer_name", commit.getCommitterIdent().getName())
+                .put("committer_email", commit.getCommitterIdent().getEmailAddress())
+                .put("created_at", date)
+                .put("authored_date", date)
+                .put("committed_date", date)
+                .put("parent_ids", parents);
+    }
+
+    /**
+     * Slice a collection as GitLab paginates it, pages past the last one are empty
+     */
+    private JSONArray page(List<?> items, Map<String, String> params) {
+        int perPage = Math.min(100, Integer.valueOf(params.getOrDefault("per_page", "20")));
+        int page = Math.max(1, Integer.valueOf(params.getOrDefault("page", "1")));
+        int from = Math.min(items.size(), (page - 1) * perPage);
+        return new JSONArray(items.subList(from, Math.min(items.size(), from + perPage)));
+    }
+
+    /**
+     * Query string, form and JSON body parameters, merged
+     */
+    private Map<String, String> readParameters(HttpExchange exchange) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        parseForm(exchange.getRequestURI().getRawQuery(), params);
+        String body = IOUtils.toString(exchange.getRequestBody(), StandardCharsets.UTF_8);
+        if (body.trim().startsWith("{")) {
+            JSONObject json = new JSONObject(body);
+            for (String key : json.keySet()) {
+                if (!json.isNull(key)) {
+                    params.put(key, String.valueOf(json.get(key)));
+                }
+            }
+        } else {
+            parseForm(body, params);
+        }
+        return params;
+    }
+
+    private void parseForm(String form, Map<String, String> params) throws UnsupportedEncodingException {
+        if (form == null || form.isEmpty()) {
+            return;
+        }
+        for (String pair : form.split("&")) {
+            int i = pair.indexOf('=');
+            if (i > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, i), "UTF-8"), URLDecoder.decode(pair.substring(i + 1), "UTF-8"));
+            }
+        }
+    }
+
+    private static String decode(String value) throws UnsupportedEncodingException {
+        return URLDecoder.decode(value.replace("+", "%2B"), "UTF-8");
+    }
+
+    private static void send(HttpExchange exchange, int status, Object body) throws IOException {
+        byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static String now() {
+        return format(new Date());
+    }
+
+    private static String format(Date date) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX", Locale.ROOT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(date);
+    }
+
+    /**
+     * Serve a stand-in on its own, to point a running source manager at it:
+     * java GitlabStandIn [port] [latencyMs] [errorRate]
+     */
+    public static void main(String[] args) throws Exception {
+        GitlabStandIn standIn = new GitlabStandIn(args.length > 0 ? Integer.valueOf(args[0]) : 18080, 64);
+        standIn.setLatency(args.length > 1 ? Long.valueOf(args[1]) : 0, 0);
+        standIn.setErrorRate(args.length > 2 ? Double.valueOf(args[2]) : 0);
+        standIn.createGroup(new org.kathra.sourcemanager.Config().getKathraRootGroup());
+        standIn.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(standIn::stop));
+        Thread.currentThread().join();
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2020. The Kathra Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *    IRT SystemX (https://www.kathra.org/)
+ *
+ */
+
+package org.kathra.sourcemanager.controller;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.kathra.core.model.SourceRepository;
+import org.kathra.sourcemanager.Config;
+import org.kathra.utils.Session;
+
+import javax.activation.FileDataSource;
+import java.io.File;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load test of the source manager against a {@link GitlabStandIn}, replaying a weighted mix of
+ * createSourceRepository, createCommit, getFile and getBranches from concurrent callers,
+ * then reporting the throughput and latency percentiles of each operation.
+ *
+ * The stand-in listens on the port of KATHRA_SOURCEMANAGER_GITLAB_URL, options are given as key=value arguments:
+ * threads, duration (seconds), warmup (seconds), repositories (seeded before the run), fileSize (bytes),
+ * latency and jitter (milliseconds added by the stand-in to each request), errors (ratio of requests failed by the stand-in)
+ * and mix, the weights of the operations, e.g. mix=create:1,commit:4,file:10,branches:10
+ */
+public class LoadTestDriver {
+
+    private static final Logger logger = Logger.getLogger(LoadTestDriver.class.getName());
+
+    private static final String BRANCH = "dev";
+
+    interface Operation {
+        void run(LoadTestDriver driver) throws Exception;
+    }
+
+    /**
+     * Latencies of an operation, kept in full so that percentiles are exact
+     */
+    static class Recorder {
+        private long[] latencies = new long[1024];
+        private int count;
+        private int errors;
+        private String lastError;
+
+        synchronized void record(long nanos) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = nanos;
+        }
+
+        synchronized void error(Exception e) {
+            errors++;
+            lastError = e.getClass().getSimpleName() + ": " + e.getMessage();
+        }
+
+        synchronized void reset() {
+            count = 0;
+            errors = 0;
+            lastError = null;
+        }
+
+        synchronized String report(String name, double seconds) {
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            return String.format("%-10s %8d %7d %9.1f %9.1f %9.1f %9.1f %9.1f%s", name, count, errors, count / seconds,
+                    percentile(sorted, 0.50), percentile(sorted, 0.95), percentile(sorted, 0.99), percentile(sorted, 1),
+                    lastError == null ? "" : "   last error: " + lastError);
+        }
+
+        private static double percentile(long[] sorted, double percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile * sorted.length) - 1;
+            return sorted[Math.max(0, index)] / 1_000_000.0;
+        }
+    }
+
+    private final SourceManagerController controller;
+    private final String folder;
+    private final int fileSize;
+    private final List<String> repositories = new CopyOnWriteArrayList<>();
+    private final AtomicInteger repositoryCount = new AtomicInteger();
+    private final Map<String, Operation> operations = new LinkedHashMap<>();
+    private final Map<String, Recorder> recorders = new LinkedHashMap<>();
+
+    LoadTestDriver(SourceManagerController controller, String folder, int fileSize) {
+        this.controller = controller;
+        this.folder = folder;
+        this.fileSize = fileSize;
+        operations.put("create", LoadTestDriver::createRepository);
+        operations.put("commit", LoadTestDriver::createCommit);
+        operations.put("file", LoadTestDriver::getFile);
+        operations.put("branches", LoadTestDriver::getBranches);
+        operations.keySet().forEach(name -> recorders.put(name, new Recorder()));
+    }
+
+    private void createRepository() throws Exception {
+        String path = folder + "/repository-" + repositoryCount.incrementAndGet();
+        controller.createSourceRepository(new SourceRepository().name(path.substring(path.lastIndexOf('/') + 1)).path(path), null);
+        repositories.add(path);
+    }
+
+    private void createCommit() throws Exception {
+        File file = Files.createTempFile("KathraSourceManager_LoadTest_", ".txt").toFile();
+        try {
+            byte[] content = new byte[fileSize];
+            ThreadLocalRandom.current().nextBytes(content);
+            FileUtils.writeByteArrayToFile(file, content);
+            String filepath = "generated/file-" + ThreadLocalRandom.current().nextInt(100) + ".bin";
+            controller.createCommit(pickRepository(), BRANCH, new FileDataSource(file), filepath, false, null, false);
+        } finally {
+            FileUtils.deleteQuietly(file);
+        }
+    }
+
+    private void getFile() throws Exception {
+        FileDataSource file = controller.getFile(pickRepository(), BRANCH, "README.md");
+        try (InputStream in = file.getInputStream()) {
+            while (in.read() != -1) {
+                // the whole content is read, as a client would
+            }
+        }
+    }
+
+    private void getBranches() throws Exception {
+        controller.getBranches(pickRepository());
+    }
+
+    private String pickRepository() {
+        return repositories.get(ThreadLocalRandom.current().nextInt(repositories.size()));
+    }
+
+    /**
+     * Run the weighted mix of operations from each thread until the deadline
+     */
+    void run(Map<String, Integer> mix, int threads, long durationMs) throws InterruptedException {
+        List<String> weighted = new ArrayList<>();
+        mix.forEach((name, weight) -> {
+            if (!operations.containsKey(name)) {
+                throw new IllegalArgumentException("Unknown operation " + name + ", expected one of " + operations.keySet());
+            }
+            for (int i = 0; i < weight; i++) {
+                weighted.add(name);
+            }
+        });
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMs);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++) {
+            executor.execute(() -> {
+                while (System.nanoTime() < deadline) {
+                    String name = weighted.get(ThreadLocalRandom.current().nextInt(weighted.size()));
+                    Recorder recorder = recorders.get(name);
+                    long start = System.nanoTime();
+                    try {
+                        operations.get(name).run(this);
+                        recorder.record(System.nanoTime() - start);
+                    } catch (Exception e) {
+                        recorder.error(e);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(durationMs + TimeUnit.MINUTES.toMillis(5), TimeUnit.MILLISECONDS);
+    }
+
+    void report(double seconds) {
+        System.out.println(String.format("%-10s %8s %7s %9s %9s %9s %9s %9s", "operation", "count", "errors", "ops/s", "p50 ms", "p95 ms", "p99 ms", "max ms"));
+        int total = 0;
+        for (Map.Entry<String, Recorder> entry : recorders.entrySet()) {
+            System.out.println(entry.getValue().report(entry.getKey(), seconds));
+            total += entry.getValue().count;
+        }
+        System.out.println(String.format("%-10s %8d %7s %9.1f", "total", total, "", total / seconds));
+    }
+
+    void resetRecorders() {
+        recorders.values().forEach(Recorder::reset);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put("threads", "8");
+        options.put("duration", "60");
+        options.put("warmup", "10");
+        options.put("repositories", "20");
+        options.put("fileSize", "4096");
+        options.put("latency", "0");
+        options.put("jitter", "0");
+        options.put("errors", "0");
+        options.put("mix", "create:1,commit:4,file:10,branches:10");
+        for (String arg : args) {
+            int i = arg.indexOf('=');
+            if (i < 1 || !options.containsKey(arg.substring(0, i))) {
+                throw new IllegalArgumentException("Unknown option " + arg + ", expected key=value with key in " + options.keySet());
+            }
+            options.put(arg.substring(0, i), arg.substring(i + 1));
+        }
+        Map<String, Integer> mix = new LinkedHashMap<>();
+        for (String weight : options.get("mix").split(",")) {
+            String[] nameAndWeight = weight.split(":");
+            mix.put(nameAndWeight[0].trim(), Integer.valueOf(nameAndWeight[1].trim()));
+        }
+
+        Config config = new Config();
+        GitlabStandIn standIn = new GitlabStandIn(Math.max(0, URI.create(config.getGitlabUrl()).getPort()), 64);
+        standIn.createGroup(config.getKathraRootGroup());
+        standIn.start();
+        try {
+            GitlabService gitlabService = new GitlabService(standIn.getUrl(), config.getGitlabApiToken(), new Session().callerName("loadtest").id("loadtest"));
+            String folder = config.getKathraRootGroup() + "/loadtest/run-" + System.currentTimeMillis();
+            LoadTestDriver driver = new LoadTestDriver(new SourceManagerController(gitlabService), folder, Integer.valueOf(options.get("fileSize")));
+
+            logger.info("Seeding " + options.get("repositories") + " repositories in " + folder);
+            for (int i = 0; i < Integer.valueOf(options.get("repositories")); i++) {
+                driver.createRepository();
+            }
+
+            // faults only apply to the measured run, the seeding must succeed
+            standIn.setLatency(Long.valueOf(options.get("latency")), Long.valueOf(options.get("jitter")));
+            standIn.setErrorRate(Double.valueOf(options.get("errors")));
+            int threads = Integer.valueOf(options.get("threads"));
+            long warmupMs = TimeUnit.SECONDS.toMillis(Long.valueOf(options.get("warmup")));
+            if (warmupMs > 0) {
+                logger.info("Warming up for " + options.get("warmup") + "s");
+                driver.run(mix, threads, warmupMs);
+                driver.resetRecorders();
+            }
+            logger.info("Running " + mix + " from " + threads + " threads for " + options.get("duration") + "s, options " + options);
+            long start = System.nanoTime();
+            driver.run(mix, threads, TimeUnit.SECONDS.toMillis(Long.valueOf(options.get("duration"))));
+            driver.report((System.nanoTime() - start) / 1e9);
+        } finally {
+            standIn.stop();
+        }
+        System.exit(0);
+    }
+}
@@ -22,6 +22,8 @@ package org.kathra.sourcemanager;
 
 import org.kathra.utils.ConfigManager;
 
+import java.io.File;
+
 public class Config extends ConfigManager {
 
     private final String password;
@@ -34,6 +36,53 @@ public class Config extends ConfigManager {
     private String keycloakHost;
     private String resourceManager;
 
+    private boolean gitMirrorEnabled;
+    private String gitMirrorFolder;
+    private long gitMirrorMaxSizeMb;
+    private long gitMirrorMaxIdleMinutes;
+    private String gitMirrorJanitorDelay;
+    private boolean directCommitEnabled;
+    private long userCredentialsTtlSeconds;
+    private long userCredentialsNegativeTtlSeconds;
+    private int userCredentialsMaxEntries;
+    private int projectCacheMaxEntries;
+    private long projectCacheTtlSeconds;
+    private long projectCacheNegativeTtlSeconds;
+    private long groupCacheTtlSeconds;
+    private long projectAccessTtlSeconds;
+    private int managementPort;
+    private String gitlabSystemHookToken;
+    private String deployKeyIndexRefreshDelay;
+    private int deployKeyThreads;
+    private long deployKeyUnknownTtlSeconds;
+    private int gitlabInitialConcurrency;
+    private int gitlabMaxConcurrency;
+    private int gitlabCircuitFailures;
+    private long gitlabCircuitOpenSeconds;
+    private long gitlabTimeoutSeconds;
+    private int gitMaxConcurrentOperations;
+    private int gitMaxQueuedOperations;
+    private long gitQueueTimeoutSeconds;
+    private int restMaxConcurrentOperations;
+    private int restMaxQueuedOperations;
+    private long restQueueTimeoutSeconds;
+    private String workingAreaFolder;
+    private long workingAreaMaxSizeMb;
+    private long workingAreaMaxLeaseMinutes;
+    private String workingAreaJanitorDelay;
+    private String workingAreaUsageDelay;
+    private int archiveMaxEntries;
+    private long archiveMaxSizeMb;
+    private int archiveInsertThreads;
+    private boolean unchangedPrecheckEnabled;
+    private long branchQueueTimeoutSeconds;
+    private int pushReplays;
+    private long commitBatchWindowMs;
+    private int commitBatchMaxSize;
+    private long refSnapshotTtlSeconds;
+    private int provisioningThreads;
+    private long seedInMemoryMaxSizeMb;
+
     public Config() {
         gitlabUrl = getProperty("KATHRA_SOURCEMANAGER_GITLAB_URL", "https://git.dev-irtsysx.fr");
         deleteFolderAfterGit = Boolean.valueOf(getProperty("KATHRA_SOURCEMANAGER_DELETE_FOLDER_AFTER_GIT", "true"));
@@ -46,6 +95,53 @@ public class Config extends ConfigManager {
         keycloakHost = getProperty("KEYCLOAK_AUTH_URL", "") .replace("http://", "")
                 .replace("https://", "")
                 .replace("/aut.*", "");
+
+        gitMirrorEnabled = Boolean.valueOf(getProperty("KATHRA_SOURCEMANAGER_GIT_MIRROR_ENABLED", "false"));
+        gitMirrorFolder = getProperty("KATHRA_SOURCEMANAGER_GIT_MIRROR_FOLDER", System.getProperty("java.io.tmpdir") + File.separator + "KathraSourceManager_Mirrors");
+        gitMirrorMaxSizeMb = Long.valueOf(getProperty("KATHRA_SOURCEMANAGER_GIT_MIRROR_MAX_SIZE_MB", "2048"));
+        gitMirrorMaxIdleMinutes = Long.valueOf(getProperty("KATHRA_SOURCEMANAGER_GIT_MIRROR_MAX_IDLE_MINUTES", "1440"));
+        gitMirrorJanitorDelay = getProperty("KATHRA_SOURCEMANAGER_GIT_MIRROR_JANITOR_DELAY", "5m");
+        directCommitEnabled = Boolean.valueOf(getProperty("KATHRA_SOURCEMANAGER_DIRECT_COMMIT_ENABLED", "false"));
+        userCredentialsTtlSeconds = Long.valueOf(getProperty("KATHRA_SOURCEMANAGER_USER_CREDENTIALS_TTL_SECONDS", "3600"));
+        userCredentialsNegativeTtlSeconds = Long.valueOf(getProperty("KATHRA_SOURCEMANAGER_USER_CREDENTIALS_NEGATIVE_TTL_SECONDS", "30"));
+        userCredentialsMaxEntries = Integer.valueOf(getProperty("KATHRA_SOURCEMANAGER_USER_CREDENTIALS_MAX_ENTRIES", "10000"));
+        projectCacheMaxEntries = Integer.valueOf(getProperty("KATHRA_SOURCEMANAGER_PROJECT_CACHE_MAX_ENTRIES", "10000"));
+        projectCacheTtlSeconds = Long.valueOf(getProperty("KATHRA_SOURCEMANAGER_PROJECT_CACHE_TTL_SECONDS", "600"));
+        projectCacheNegativeTtlSeconds = Long.valueOf(getProperty("KATHRA_SOURCEMANAGER_PROJECT_CACHE_NEGATIVE_TTL_SECONDS", "30"));
+        groupCacheTtlSeconds = Long.valueOf(getProperty("KATHRA_SOURCEMANAGER_GROUP_CACHE_TTL_SECONDS", "600"));
+        projectAccessTtlSeconds = Long.valueOf(getProperty("KATHRA_SOURCEMANAGER_PROJECT_ACCESS_TTL_SECONDS", "60"));
+        managementPort = Integer.valueOf(getProperty("KATHRA_SOURCEMANAGER_MANAGEMENT_PORT", "0"));
+        gitlabSystemHookToken = getProperty("KATHRA_SOURCEMANAGER_GITLAB_SYSTEM_HOOK_TOKEN", "");
+        deployKeyIndexRefreshDelay = getProperty("KATHRA_SOURCEMANAGER_DEPLOY_KEY_INDEX_REFRESH_DELAY", "5m");
+        deployKeyThreads = Integer.valueOf(getProperty("KATHRA_SOURCEMANAGER_DEPLOY_KEY_THREADS", "4"));
+        deployKeyUnknownTtlSeconds = Long.valueOf(getProperty("KATHRA_SOURCEMANAGER_DEPLOY_KEY_UNKNOWN_TTL_SECONDS", "60"));
+        gitlabInitialConcurrency = Integer.valueOf(getProperty("KATHRA_SOURCEMANAGER_GITLAB_INITIAL_CONCURRENCY", "20"));
+        gitlabMaxConcurrency = Integer.valueOf(getProperty("KATHRA_SOURCEMANAGER_GITLAB_MAX_CONCURRENCY", "100"));
+        gitlabCircuitFailures = Integer.valueOf(getProperty("KATHRA_SOURCEMANAGER_GITLAB_CIRCUIT_FAILURES", "10"));
+        gitlabCircuitOpenSeconds = Long.valueOf(getProperty("KATHRA_SOURCEMANAGER_GITLAB_CIRCUIT_OPEN_SECONDS", "30"));
+        gitlabTimeoutSeconds = Long.valueOf(getProperty("KATHRA_SOURCEMANAGER_GITLAB_TIMEOUT_SECONDS", "60"));
+        gitMaxConcurrentOperations = Integer.valueOf(getProperty("KATHRA_SOURCEMANAGER_GIT_MAX_CONCURRENT_OPERATIONS", "8"));
+        gitMaxQueuedOperations = Integer.valueOf(getProperty("KATHRA_SOURCEMANAGER_GIT_MAX_QUEUED_OPERATIONS", "32"));
+        gitQueueTimeoutSeconds = Long.valueOf(getProperty("KATHRA_SOURCEMANAGER_GIT_QUEUE_TIMEOUT_SECONDS", "30"));
+        restMaxConcurrentOperations = Integer.valueOf(getProperty("KATHRA_SOURCEMANAGER_REST_MAX_CONCURRENT_OPERATIONS", "50"));
+        restMaxQueuedOperations = Integer.valueOf(getProperty("KATHRA_SOURCEMANAGER_REST_MAX_QUEUED_OPERATIONS", "100"));
+        restQueueTimeoutSeconds = Long.valueOf(getProperty("KATHRA_SOURCEMANAGER_REST_QUEUE_TIMEOUT_SECONDS", "10"));
+        workingAreaFolder = getProperty("KATHRA_SOURCEMANAGER_WORKING_AREA_FOLDER", System.getProperty("java.io.tmpdir"));
+        workingAreaMaxSizeMb = Long.valueOf(getProperty("KATHRA_SOURCEMANAGER_WORKING_AREA_MAX_SIZE_MB", "4096"));
+        workingAreaMaxLeaseMinutes = Long.valueOf(getProperty("KATHRA_SOURCEMANAGER_WORKING_AREA_MAX_LEASE_MINUTES", "60"));
+        workingAreaJanitorDelay = getProperty("KATHRA_SOURCEMANAGER_WORKING_AREA_JANITOR_DELAY", "5m");
+        workingAreaUsageDelay = getProperty("KATHRA_SOURCEMANAGER_WORKING_AREA_USAGE_DELAY", "5s");
+        archiveMaxEntries = Integer.valueOf(getProperty("KATHRA_SOURCEMANAGER_ARCHIVE_MAX_ENTRIES", "50000"));
+        archiveMaxSizeMb = Long.valueOf(getProperty("KATHRA_SOURCEMANAGER_ARCHIVE_MAX_SIZE_MB", "1024"));
+        archiveInsertThreads = Integer.valueOf(getProperty("KATHRA_SOURCEMANAGER_ARCHIVE_INSERT_THREADS", String.valueOf(Runtime.getRuntime().availableProcessors())));
+        unchangedPrecheckEnabled = Boolean.valueOf(getProperty("KATHRA_SOURCEMANAGER_UNCHANGED_PRECHECK_ENABLED", "false"));
+        branchQueueTimeoutSeconds = Long.valueOf(getProperty("KATHRA_SOURCEMANAGER_BRANCH_QUEUE_TIMEOUT_SECONDS", "120"));
+        pushReplays = Integer.valueOf(getProperty("KATHRA_SOURCEMANAGER_PUSH_REPLAYS", "3"));
+        commitBatchWindowMs = Long.valueOf(getProperty("KATHRA_SOURCEMANAGER_COMMIT_BATCH_WINDOW_MS", "0"));
+        commitBatchMaxSize = Integer.valueOf(getProperty("KATHRA_SOURCEMANAGER_COMMIT_BATCH_MAX_SIZE", "20"));
+        refSnapshotTtlSeconds = Long.valueOf(getProperty("KATHRA_SOURCEMANAGER_REF_SNAPSHOT_TTL_SECONDS", "10"));
+        provisioningThreads = Integer.valueOf(getProperty("KATHRA_SOURCEMANAGER_PROVISIONING_THREADS", "8"));
+        seedInMemoryMaxSizeMb = Long.valueOf(getProperty("KATHRA_SOURCEMANAGER_SEED_IN_MEMORY_MAX_SIZE_MB", "64"));
     }
 
     public String getGitlabUrl() {
@@ -83,4 +179,188 @@ public class Config extends ConfigManager {
     public String getDelaySchedule() {
         return "30s";
     }
+
+    public boolean isGitMirrorEnabled() {
+        return gitMirrorEnabled;
+    }
+
+    public String getGitMirrorFolder() {
+        return gitMirrorFolder;
+    }
+
+    public long getGitMirrorMaxSizeMb() {
+        return gitMirrorMaxSizeMb;
+    }
+
+    public long getGitMirrorMaxIdleMinutes() {
+        return gitMirrorMaxIdleMinutes;
+    }
+
+    public String getGitMirrorJanitorDelay() {
+        return gitMirrorJanitorDelay;
+    }
+
+    public boolean isDirectCommitEnabled() {
+        return directCommitEnabled;
+    }
+
+    public long getUserCredentialsTtlSeconds() {
+        return userCredentialsTtlSeconds;
+    }
+
+    public long getUserCredentialsNegativeTtlSeconds() {
+        return userCredentialsNegativeTtlSeconds;
+    }
+
+    public int getUserCredentialsMaxEntries() {
+        return userCredentialsMaxEntries;
+    }
+
+    public int getProjectCacheMaxEntries() {
+        return projectCacheMaxEntries;
+    }
+
+    public long getProjectCacheTtlSeconds() {
+        return projectCacheTtlSeconds;
+    }
+
+    public long getProjectCacheNegativeTtlSeconds() {
+        return projectCacheNegativeTtlSeconds;
+    }
+
+    public long getGroupCacheTtlSeconds() {
+        return groupCacheTtlSeconds;
+    }
+
+    public long getProjectAccessTtlSeconds() {
+        return projectAccessTtlSeconds;
+    }
+
+    public int getManagementPort() {
+        return managementPort;
+    }
+
+    public String getGitlabSystemHookToken() {
+        return gitlabSystemHookToken;
+    }
+
+    public String getDeployKeyIndexRefreshDelay() {
+        return deployKeyIndexRefreshDelay;
+    }
+
+    public int getDeployKeyThreads() {
+        return deployKeyThreads;
+    }
+
+    public long getDeployKeyUnknownTtlSeconds() {
+        return deployKeyUnknownTtlSeconds;
+    }
+
+    public int getGitlabInitialConcurrency() {
+        return gitlabInitialConcurrency;
+    }
+
+    public int getGitlabMaxConcurrency() {
+        return gitlabMaxConcurrency;
+    }
+
+    public int getGitlabCircuitFailures() {
+        return gitlabCircuitFailures;
+    }
+
+    public long getGitlabCircuitOpenSeconds() {
+        return gitlabCircuitOpenSeconds;
+    }
+
+    public long getGitlabTimeoutSeconds() {
+        return gitlabTimeoutSeconds;
+    }
+
+    public int getGitMaxConcurrentOperations() {
+        return gitMaxConcurrentOperations;
+    }
+
+    public int getGitMaxQueuedOperations() {
+        return gitMaxQueuedOperations;
+    }
+
+    public long getGitQueueTimeoutSeconds() {
+        return gitQueueTimeoutSeconds;
+    }
+
+    public int getRestMaxConcurrentOperations() {
+        return restMaxConcurrentOperations;
+    }
+
+    public int getRestMaxQueuedOperations() {
+        return restMaxQueuedOperations;
+    }
+
+    public long getRestQueueTimeoutSeconds() {
+        return restQueueTimeoutSeconds;
+    }
+
+    public String getWorkingAreaFolder() {
+        return workingAreaFolder;
+    }
+
+    public long getWorkingAreaMaxSizeMb() {
+        return workingAreaMaxSizeMb;
+    }
+
+    public long getWorkingAreaMaxLeaseMinutes() {
+        return workingAreaMaxLeaseMinutes;
+    }
+
+    public String getWorkingAreaJanitorDelay() {
+        return workingAreaJanitorDelay;
+    }
+
+    public String getWorkingAreaUsageDelay() {
+        return workingAreaUsageDelay;
+    }
+
+    public int getArchiveMaxEntries() {
+        return archiveMaxEntries;
+    }
+
+    public long getArchiveMaxSizeMb() {
+        return archiveMaxSizeMb;
+    }
+
+    public int getArchiveInsertThreads() {
+        return archiveInsertThreads;
+    }
+
+    public boolean isUnchangedPrecheckEnabled() {
+        return unchangedPrecheckEnabled;
+    }
+
+    public long getBranchQueueTimeoutSeconds() {
+        return branchQueueTimeoutSeconds;
+    }
+
+    public int getPushReplays() {
+        return pushReplays;
+    }
+
+    public long getCommitBatchWindowMs() {
+        return commitBatchWindowMs;
+    }
+
+    public int getCommitBatchMaxSize() {
+        return commitBatchMaxSize;
+    }
+
+    public long getRefSnapshotTtlSeconds() {
+        return refSnapshotTtlSeconds;
+    }
+
+    public int getProvisioningThreads() {
+        return provisioningThreads;
+    }
+
+    public long getSeedInMemoryMaxSizeMb() {
+        return seedInMemoryMaxSizeMb;
+    }
 }
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2020. The Kathra Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *    IRT SystemX (https://www.kathra.org/)
+ *
+ */
+
+package org.kathra.sourcemanager.controller;
+
+import org.kathra.sourcemanager.Config;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounds the operations served at once. Git operations, holding a working folder, connections and a thread for a whole
+ * clone or push, have their own pool so that operations only calling the GitLab API are never starved by them.
+ * Operations past the bound of their pool wait in a queue until a deadline, and are refused with a 429 when the queue
+ * is full or the deadline is reached.
+ */
+public class AdmissionController {
+
+    public static class Pool {
+        private final String name;
+        private final int maxConcurrent;
+        private final int maxQueued;
+        private final long queueTimeoutMs;
+        private final Semaphore permits;
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicLong rejected = new AtomicLong();
+        // smoothed time an operation holds its permit, to tell refused callers when to come back
+        private volatile double holdMs = 1000;
+
+        public Pool(String name, int maxConcurrent, int maxQueued, long queueTimeoutSeconds) {
+            this.name = name;
+            this.maxConcurrent = Math.max(1, maxConcurrent);
+            this.maxQueued = Math.max(0, maxQueued);
+            this.queueTimeoutMs = TimeUnit.SECONDS.toMillis(queueTimeoutSeconds);
+            this.permits = new Semaphore(this.maxConcurrent, true);
+        }
+
+        /**
+         * Wait for a free slot, the permit must be closed once the operation is over
+         *
+         * @throws TooManyRequestsException if the queue is full or no slot was freed before the deadline
+         */
+        public Permit acquire() throws TooManyRequestsException, InterruptedException {
+            // a timed acquisition honors the fairness, queued callers are served first
+            if (permits.tryAcquire(0, TimeUnit.MILLISECONDS)) {
+                return new Permit(this);
+            }
+            if (queued.incrementAndGet() > maxQueued) {
+                queued.decrementAndGet();
+                throw reject(maxQueued + " already queued");
+            }
+            try {
+                if (!permits.tryAcquire(queueTimeoutMs, TimeUnit.MILLISECONDS)) {
+                    throw reject("no slot freed within " + queueTimeoutMs / 1000 + " s");
+                }
+            } finally {
+                queued.decrementAndGet();
+            }
+            return new Permit(this);
+        }
+
+        private TooManyRequestsException reject(String reason) {
+            rejected.incrementAndGet();
+            long retryAfterSeconds = Math.max(1, (long) Math.ceil(holdMs * (queued.get() + 1) / maxConcurrent / 1000));
+            return new TooManyRequestsException("Too many " + name + " operations in progress, " + reason, retryAfterSeconds);
+        }
+
+        private void release(long heldMs) {
+            holdMs += (heldMs - holdMs) * 0.1;
+            permits.release();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getInUse() {
+            return maxConcurrent - permits.availablePermits();
+        }
+
+        public int getQueued() {
+            return queued.get();
+        }
+
+        public long getRejected() {
+            return rejected.get();
+        }
+    }
+
+    public static class Permit implements AutoCloseable {
+        private final Pool pool;
+        private final long acquiredAt = System.currentTimeMillis();
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(Pool pool) {
+            this.pool = pool;
+        }
+
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) {
+                pool.release(System.currentTimeMillis() - acquiredAt);
+            }
+        }
+    }
+
+    private static AdmissionController instance;
+
+    private final Pool git;
+    private final Pool rest;
+
+    public static synchronized AdmissionController getInstance() {
+        if (instance == null) {
+            Config config = new Config();
+            instance = new AdmissionController(
+                    new Pool("git", config.getGitMaxConcurrentOperations(), config.getGitMaxQueuedOperations(), config.getGitQueueTimeoutSeconds()),
+                    new Pool("rest", config.getRestMaxConcurrentOperations(), config.getRestMaxQueuedOperations(), config.getRestQueueTimeoutSeconds()));
+        }
+        return instance;
+    }
+
+    public AdmissionController(Pool git, Pool rest) {
+        this.git = git;
+        this.rest = rest;
+        Metrics metrics = Metrics.getInstance();
+        for (Pool pool : new Pool[]{git, rest}) {
+            metrics.gauge("sourcemanager_admission_in_use", pool::getInUse, "pool", pool.getName());
+            metrics.gauge("sourcemanager_admission_queued", pool::getQueued, "pool", pool.getName());
+            metrics.gauge("sourcemanager_admission_rejected", pool::getRejected, "pool", pool.getName());
+        }
+    }
+
+    /**
+     * Pool of the operations cloning, fetching or pushing, or downloading files to disk
+     */
+    public Pool getGit() {
+        return git;
+    }
+
+    /**
+     * Pool of the operations only calling the GitLab API
+     */
+    public Pool getRest() {
+        return rest;
+    }
+}
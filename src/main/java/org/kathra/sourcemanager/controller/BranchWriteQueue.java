@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2020. The Kathra Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *    IRT SystemX (https://www.kathra.org/)
+ *
+ */
+
+
+package org.kathra.sourcemanager.controller;
+
+import org.kathra.sourcemanager.Config;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs the writes to a branch one after the other, in arrival order, while writes to different branches run in parallel.
+ * Commits to the same branch would otherwise all clone the same head, and all but one be refused on push.
+ * A write waiting for longer than the queue timeout is refused with a 429.
+ */
+public class BranchWriteQueue {
+
+    private static class Queue {
+        private final ReentrantLock lock = new ReentrantLock(true);
+        // writes running or waiting, the queue is dropped when none is left
+        private int writes;
+    }
+
+    private static BranchWriteQueue instance;
+
+    private final long timeoutMs;
+    private final ConcurrentHashMap<String, Queue> queues = new ConcurrentHashMap<>();
+
+    public static synchronized BranchWriteQueue getInstance() {
+        if (instance == null) {
+            instance = new BranchWriteQueue(new Config().getBranchQueueTimeoutSeconds());
+        }
+        return instance;
+    }
+
+    public BranchWriteQueue(long timeoutSeconds) {
+        this.timeoutMs = TimeUnit.SECONDS.toMillis(timeoutSeconds);
+        Metrics metrics = Metrics.getInstance();
+        metrics.gauge("sourcemanager_branch_queues", queues::size);
+        metrics.gauge("sourcemanager_branch_queued_writes", this::getWaiting);
+    }
+
+    /**
+     * Run the write once the previous writes to the branch are over
+     *
+     * @throws TooManyRequestsException if the previous writes didn't end before the queue timeout
+     */
+    public <T> T run(String repository, String branch, Callable<T> write) throws Exception {
+        String key = repository + '\u0000' + branch;
+        Queue queue = queues.compute(key, (k, existing) -> {
+            Queue q = existing != null ? existing : new Queue();
+            q.writes++;
+            return q;
+        });
+        try {
+            if (!queue.lock.tryLock(timeoutMs, TimeUnit.MILLISECONDS)) {
+                throw new TooManyRequestsException("Too many commits queued on branch " + branch + " of " + repository, Math.max(1, timeoutMs / 1000));
+            }
+            try {
+                return write.call();
+            } finally {
+                queue.lock.unlock();
+            }
+        } finally {
+            queues.computeIfPresent(key, (k, q) -> --q.writes == 0 ? null : q);
+        }
+    }
+
+    public int getWaiting() {
+        int waiting = 0;
+        for (Queue queue : queues.values()) {
+            waiting += queue.lock.getQueueLength();
+        }
+        return waiting;
+    }
+}
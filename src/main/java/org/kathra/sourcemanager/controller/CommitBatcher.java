@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2020. The Kathra Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *    IRT SystemX (https://www.kathra.org/)
+ *
+ */
+
+
+package org.kathra.sourcemanager.controller;
+
+import org.apache.log4j.Logger;
+import org.kathra.core.model.SourceRepositoryCommit;
+import org.kathra.sourcemanager.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gathers the commits submitted to a branch within a batching window, so that they are written on top of each other
+ * as a chain of commits sent in a single push. The first commit of a batch waits for the window, or for the batch
+ * to be full, then writes the whole batch, the others wait for their own result.
+ */
+public class CommitBatcher {
+
+    private static final Logger logger = Logger.getLogger(CommitBatcher.class.getName());
+
+    private static CommitBatcher instance;
+
+    /**
+     * Content committed in a batch, with its own result: the commit, null when it doesn't change the branch,
+     * or the error of this content only, or of the whole batch
+     */
+    public static class PendingCommit {
+        private final CommitContent content;
+        private final String tag;
+        private final CompletableFuture<SourceRepositoryCommit> result = new CompletableFuture<>();
+
+        public PendingCommit(CommitContent content, String tag) {
+            this.content = content;
+            this.tag = tag;
+        }
+
+        public CommitContent getContent() {
+            return content;
+        }
+
+        public String getTag() {
+            return tag;
+        }
+
+        public boolean isDone() {
+            return result.isDone();
+        }
+
+        public void complete(SourceRepositoryCommit commit) {
+            result.complete(commit);
+        }
+
+        public void fail(Exception e) {
+            result.completeExceptionally(e);
+        }
+
+        /**
+         * @return the commit once the batch is written, null when the content doesn't change the branch
+         */
+        public SourceRepositoryCommit get() throws Exception {
+            try {
+                return result.get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
+    }
+
+    public interface BatchWriter {
+        /**
+         * Write the batch, completing the commits written or failed, the others are taken as unchanged
+         */
+        void write(List<PendingCommit> batch) throws Exception;
+    }
+
+    private static class Batch {
+        private final PendingCommit first;
+        private final List<PendingCommit> pending = new ArrayList<>();
+        private final int maxSize;
+        private boolean closed;
+
+        Batch(PendingCommit first, int maxSize) {
+            this.first = first;
+            this.maxSize = maxSize;
+            pending.add(first);
+        }
+
+        synchronized boolean add(PendingCommit commit) {
+            if (closed || pending.size() >= maxSize) {
+                return false;
+            }
+            pending.add(commit);
+            if (pending.size() >= maxSize) {
+                notifyAll();
+            }
+            return true;
+        }
+
+        synchronized List<PendingCommit> awaitAndClose(long windowMs) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(windowMs);
+            long remaining;
+            while (pending.size() < maxSize && (remaining = deadline - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return close();
+        }
+
+        synchronized List<PendingCommit> close() {
+            closed = true;
+            return new ArrayList<>(pending);
+        }
+    }
+
+    private final long windowMs;
+    private final int maxSize;
+    private final ConcurrentHashMap<String, Batch> batches = new ConcurrentHashMap<>();
+
+    /**
+     * @return null when batching is disabled, it only applies to the commits written without worktree
+     */
+    public static synchronized CommitBatcher getInstance() {
+        Config config = new Config();
+        if (instance == null && config.getCommitBatchWindowMs() > 0 && config.isDirectCommitEnabled()) {
+            instance = new CommitBatcher(config.getCommitBatchWindowMs(), config.getCommitBatchMaxSize());
+        }
+        return instance;
+    }
+
+    public CommitBatcher(long windowMs, int maxSize) {
+        this.windowMs = windowMs;
+        this.maxSize = Math.max(1, maxSize);
+        Metrics.getInstance().gauge("sourcemanager_commit_batches_open", batches::size);
+    }
+
+    /**
+     * Add the commit to the open batch of the key, or open a new one and write it once the window is over
+     *
+     * @param key the branch, and the caller whose credentials push the batch
+     * @return the commit, null when the content doesn't change the branch
+     */
+    public SourceRepositoryCommit submit(String key, PendingCommit commit, BatchWriter writer) throws Exception {
+        Batch batch = batches.compute(key, (k, open) -> open != null && open.add(commit) ? open : new Batch(commit, maxSize));
+        if (batch.first == commit) {
+            try {
+                List<PendingCommit> pending;
+                try {
+                    pending = batch.awaitAndClose(windowMs);
+                } finally {
+                    batches.remove(key, batch);
+                }
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Writing a batch of " + pending.size() + " commits");
+                }
+                writer.write(pending);
+            } catch (Exception e) {
+                batch.close().forEach(p -> p.fail(e));
+            } finally {
+                batch.close().forEach(p -> p.complete(null));
+            }
+        }
+        return commit.get();
+    }
+}
@@ -0,0 +1,465 @@
+/*
+ * Copyright (c) 2020. The Kathra Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *    IRT SystemX (https://www.kathra.org/)
+ *
+ */
+
+package org.kathra.sourcemanager.controller;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.kathra.sourcemanager.Config;
+import org.kathra.utils.ApiException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Content submitted to createCommit, written as blobs straight into an object database, or applied to a worktree.
+ * Archives are read once, their entries hashed and deflated by parallel workers, within bounds on the number
+ * of entries and on the uncompressed size enforced while they are read.
+ */
+public class CommitContent {
+
+    public static final int PAYLOAD_TOO_LARGE = 413;
+
+    // below this many entries, the archive is inserted by the calling thread only
+    private static final int PARALLEL_MIN_ENTRIES = 16;
+    // entries up to this size are hashed and written from memory, larger ones are read twice when changed
+    private static final long IN_MEMORY_ENTRY_SIZE = FileUtils.ONE_MB;
+
+    private static final Config config = new Config();
+
+    private static final ExecutorService INSERTERS = Executors.newFixedThreadPool(Math.max(1, config.getArchiveInsertThreads()), runnable -> {
+        Thread thread = new Thread(runnable, "CommitContent-insert");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Reading past a bound of the archive, turned into a 413 once out of the inserters
+     */
+    private static class LimitExceededException extends IOException {
+        LimitExceededException(String message) {
+            super(message);
+        }
+    }
+
+    private final File file;
+    private final String path;
+    private final boolean uncompress;
+    private final boolean replaceRepositoryContent;
+    private int maxEntries = config.getArchiveMaxEntries();
+    private long maxBytes = config.getArchiveMaxSizeMb() * FileUtils.ONE_MB;
+
+    /**
+     * @param file                     File to commit, or zip archive to commit the entries of
+     * @param folderPath               The folder in which a single file has to be commited, ignored for zip archives
+     * @param uncompress               Commit the entries of the zip archive instead of the file itself
+     * @param replaceRepositoryContent Remove every existing path not provided by this content
+     */
+    public CommitContent(File file, String folderPath, boolean uncompress, boolean replaceRepositoryContent) {
+        this(file, file.getName(), folderPath, uncompress, replaceRepositoryContent);
+    }
+
+    /**
+     * @param fileName Name the single file is commited with, so that an upload doesn't need to be renamed
+     */
+    public CommitContent(File file, String fileName, String folderPath, boolean uncompress, boolean replaceRepositoryContent) {
+        this.file = file;
+        this.uncompress = uncompress;
+        this.replaceRepositoryContent = replaceRepositoryContent;
+        String folder = folderPath == null ? "" : folderPath.replaceAll("^/+|/+$", "");
+        this.path = folder.isEmpty() ? fileName : folder + "/" + fileName;
+    }
+
+    /**
+     * Override the configured bounds of the archive
+     */
+    CommitContent limits(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        return this;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public boolean isUncompress() {
+        return uncompress;
+    }
+
+    public boolean isReplaceRepositoryContent() {
+        return replaceRepositoryContent;
+    }
+
+    /**
+     * Insert every file of this content as a blob, archive entries are spread over inserters of the repository
+     * flushed before returning, the single file goes through the given inserter
+     *
+     * @return blob ids by repository path, sorted by path
+     * @throws ApiException 413 if the archive has too many entries or is too large once uncompressed
+     */
+    public NavigableMap<String, ObjectId> insert(Repository repository, ObjectInserter inserter) throws IOException, ApiException {
+        NavigableMap<String, ObjectId> blobs = new TreeMap<>();
+        if (!uncompress) {
+            try (InputStream in = new FileInputStream(file)) {
+                blobs.put(path, inserter.insert(Constants.OBJ_BLOB, file.length(), in));
+            }
+            return blobs;
+        }
+        try (ZipFile zip = new ZipFile(file)) {
+            List<ZipEntry> entries = listEntries(zip);
+            AtomicInteger next = new AtomicInteger();
+            AtomicLong bytes = new AtomicLong();
+            int workers = Math.min(config.getArchiveInsertThreads(), entries.size() / PARALLEL_MIN_ENTRIES);
+            List<Future<NavigableMap<String, ObjectId>>> results = new ArrayList<>();
+            for (int i = 0; i < workers; i++) {
+                results.add(INSERTERS.submit(() -> {
+                    try (ObjectInserter workerInserter = repository.newObjectInserter()) {
+                        NavigableMap<String, ObjectId> inserted = insertEntries(zip, entries, next, bytes, workerInserter);
+                        workerInserter.flush();
+                        return inserted;
+                    }
+                }));
+            }
+            // the calling thread works too, the archive is inserted even when every worker is busy elsewhere
+            try {
+                blobs.putAll(insertEntries(zip, entries, next, bytes, inserter));
+            } finally {
+                // no worker takes new entries once the calling thread failed
+                next.set(entries.size());
+                for (Future<NavigableMap<String, ObjectId>> result : results) {
+                    blobs.putAll(getResult(result));
+                }
+            }
+        } catch (LimitExceededException e) {
+            throw new ApiException(PAYLOAD_TOO_LARGE, e.getMessage());
+        }
+        return blobs;
+    }
+
+    /**
+     * @return the folder listing the branch files this content is compared with, null for the whole branch
+     */
+    public String getComparedFolder() {
+        if (uncompress || replaceRepositoryContent) {
+            return null;
+        }
+        int index = path.lastIndexOf('/');
+        return index < 0 ? "" : path.substring(0, index);
+    }
+
+    /**
+     * Tell from the blob ids of the branch files whether committing this content would change nothing,
+     * the content is hashed without being written
+     *
+     * @param branchFiles blob ids by path of the files of the branch, under {@link #getComparedFolder()}
+     * @throws ApiException 413 if the archive has too many entries or is too large once uncompressed
+     */
+    public boolean isUnchanged(Map<String, ObjectId> branchFiles) throws IOException, ApiException {
+        ObjectInserter.Formatter formatter = new ObjectInserter.Formatter();
+        if (!uncompress) {
+            if (replaceRepositoryContent && branchFiles.size() != 1) {
+                return false;
+            }
+            try (InputStream in = new FileInputStream(file)) {
+                return formatter.idFor(Constants.OBJ_BLOB, file.length(), in).equals(branchFiles.get(path));
+            }
+        }
+        try (ZipFile zip = new ZipFile(file)) {
+            List<ZipEntry> entries = listEntries(zip);
+            if (replaceRepositoryContent && entries.size() != branchFiles.size()) {
+                return false;
+            }
+            AtomicLong bytes = new AtomicLong();
+            for (ZipEntry entry : entries) {
+                ObjectId branchBlobId = branchFiles.get(toRepositoryPath(entry.getName()));
+                if (branchBlobId == null) {
+                    return false;
+                }
+                try (InputStream in = limit(zip.getInputStream(entry), bytes)) {
+                    ObjectId blobId = entry.getSize() < 0
+                            ? formatter.idFor(Constants.OBJ_BLOB, IOUtils.toByteArray(in))
+                            : formatter.idFor(Constants.OBJ_BLOB, entry.getSize(), in);
+                    if (!blobId.equals(branchBlobId)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        } catch (LimitExceededException e) {
+            throw new ApiException(PAYLOAD_TOO_LARGE, e.getMessage());
+        }
+    }
+
+    /**
+     * Update the worktree of a checked out branch to this content, comparing each path by blob id with HEAD:
+     * only the files added or changed are written and, when the content replaces the repository, the files of HEAD
+     * it doesn't provide are deleted. Untouched files keep the stat data of the index, git doesn't read them again.
+     *
+     * @return the paths added, changed or removed, sorted
+     * @throws ApiException 413 if the archive has too many entries or is too large once uncompressed
+     */
+    public List<String> applyTo(Repository repository, File worktree) throws IOException, ApiException {
+        Map<String, ObjectId> head = readHead(repository);
+        List<String> changes = new ArrayList<>();
+        ObjectInserter.Formatter formatter = new ObjectInserter.Formatter();
+        if (!uncompress) {
+            if (replaceRepositoryContent) {
+                removeOthers(worktree, head, Collections.singleton(path), changes);
+            }
+            ObjectId blobId;
+            try (InputStream in = new FileInputStream(file)) {
+                blobId = formatter.idFor(Constants.OBJ_BLOB, file.length(), in);
+            }
+            if (!blobId.equals(head.get(path))) {
+                changes.addAll(prepareTarget(worktree, path, head));
+                FileUtils.copyFile(file, new File(worktree, path));
+                changes.add(path);
+            }
+            Collections.sort(changes);
+            return changes;
+        }
+        try (ZipFile zip = new ZipFile(file)) {
+            Map<String, ZipEntry> entries = new HashMap<>();
+            for (ZipEntry entry : listEntries(zip)) {
+                entries.put(toRepositoryPath(entry.getName()), entry);
+            }
+            // removed first, so that a file of the content can replace a folder of HEAD
+            if (replaceRepositoryContent) {
+                removeOthers(worktree, head, entries.keySet(), changes);
+            }
+            AtomicLong bytes = new AtomicLong();
+            for (Map.Entry<String, ZipEntry> entry : entries.entrySet()) {
+                long size = entry.getValue().getSize();
+                if (size <= IN_MEMORY_ENTRY_SIZE) {
+                    byte[] data;
+                    try (InputStream in = limit(zip.getInputStream(entry.getValue()), bytes)) {
+                        data = IOUtils.toByteArray(in);
+                    }
+                    if (!formatter.idFor(Constants.OBJ_BLOB, data).equals(head.get(entry.getKey()))) {
+                        changes.addAll(prepareTarget(worktree, entry.getKey(), head));
+                        FileUtils.writeByteArrayToFile(new File(worktree, entry.getKey()), data);
+                        changes.add(entry.getKey());
+                    }
+                    continue;
+                }
+                // large entries are hashed as they stream, then read again only if changed
+                ObjectId blobId;
+                try (InputStream in = limit(zip.getInputStream(entry.getValue()), bytes)) {
+                    blobId = formatter.idFor(Constants.OBJ_BLOB, size, in);
+                }
+                if (!blobId.equals(head.get(entry.getKey()))) {
+                    changes.addAll(prepareTarget(worktree, entry.getKey(), head));
+                    try (InputStream in = zip.getInputStream(entry.getValue())) {
+                        FileUtils.copyInputStreamToFile(in, new File(worktree, entry.getKey()));
+                    }
+                    changes.add(entry.getKey());
+                }
+            }
+        } catch (LimitExceededException e) {
+            throw new ApiException(PAYLOAD_TOO_LARGE, e.getMessage());
+        }
+        Collections.sort(changes);
+        return changes;
+    }
+
+    /**
+     * @return blob ids of the files of HEAD by path, empty for an unborn branch
+     */
+    private static Map<String, ObjectId> readHead(Repository repository) throws IOException {
+        Map<String, ObjectId> files = new HashMap<>();
+        ObjectId headTree = repository.resolve(Constants.HEAD + "^{tree}");
+        if (headTree == null) {
+            return files;
+        }
+        try (TreeWalk treeWalk = new TreeWalk(repository)) {
+            treeWalk.addTree(headTree);
+            treeWalk.setRecursive(true);
+            while (treeWalk.next()) {
+                files.put(treeWalk.getPathString(), treeWalk.getObjectId(0));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Delete the files of HEAD not provided by the content, and the folders left empty
+     */
+    private static void removeOthers(File worktree, Map<String, ObjectId> head, Set<String> kept, List<String> changes) throws IOException {
+        for (String headPath : head.keySet()) {
+            if (kept.contains(headPath)) {
+                continue;
+            }
+            File removed = new File(worktree, headPath);
+            FileUtils.deleteQuietly(removed);
+            changes.add(headPath);
+            for (File parent = removed.getParentFile(); !parent.equals(worktree) && parent.delete(); parent = parent.getParentFile()) {
+                // File.delete only removes empty folders
+            }
+        }
+    }
+
+    /**
+     * Make room for a file of the content, replacing a folder or a file of HEAD in its way
+     *
+     * @return the paths of HEAD deleted, to be staged as removed
+     */
+    private static List<String> prepareTarget(File worktree, String path, Map<String, ObjectId> head) throws IOException {
+        List<String> removed = new ArrayList<>();
+        File target = new File(worktree, path);
+        if (target.isDirectory()) {
+            String folder = path + "/";
+            for (String headPath : head.keySet()) {
+                if (headPath.startsWith(folder) && new File(worktree, headPath).exists()) {
+                    removed.add(headPath);
+                }
+            }
+            FileUtils.deleteDirectory(target);
+        }
+        for (int index = path.lastIndexOf('/'); index > 0; index = path.lastIndexOf('/', index - 1)) {
+            String parentPath = path.substring(0, index);
+            File parent = new File(worktree, parentPath);
+            if (parent.isFile()) {
+                FileUtils.forceDelete(parent);
+                if (head.containsKey(parentPath)) {
+                    removed.add(parentPath);
+                }
+                break;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @return the file entries of the archive, their paths checked
+     */
+    private List<ZipEntry> listEntries(ZipFile zip) throws ApiException {
+        if (zip.size() > maxEntries) {
+            throw new ApiException(PAYLOAD_TOO_LARGE, "Archive has " + zip.size() + " entries, no more than " + maxEntries + " are accepted");
+        }
+        List<ZipEntry> files = new ArrayList<>(zip.size());
+        Enumeration<? extends ZipEntry> entries = zip.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            if (!entry.isDirectory()) {
+                toRepositoryPath(entry.getName());
+                files.add(entry);
+            }
+        }
+        return files;
+    }
+
+    private NavigableMap<String, ObjectId> insertEntries(ZipFile zip, List<ZipEntry> entries, AtomicInteger next, AtomicLong bytes, ObjectInserter inserter) throws IOException, ApiException {
+        NavigableMap<String, ObjectId> blobs = new TreeMap<>();
+        for (int i = next.getAndIncrement(); i < entries.size(); i = next.getAndIncrement()) {
+            ZipEntry entry = entries.get(i);
+            try (InputStream in = limit(zip.getInputStream(entry), bytes)) {
+                ObjectId blobId = entry.getSize() < 0
+                        ? inserter.insert(Constants.OBJ_BLOB, IOUtils.toByteArray(in))
+                        : inserter.insert(Constants.OBJ_BLOB, entry.getSize(), in);
+                blobs.put(toRepositoryPath(entry.getName()), blobId);
+            }
+        }
+        return blobs;
+    }
+
+    /**
+     * Count the bytes read from an entry against the uncompressed size of the whole archive,
+     * sizes declared by the archive are not trusted
+     */
+    private InputStream limit(InputStream in, AtomicLong bytes) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    count(1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int read = super.read(buffer, offset, length);
+                if (read > 0) {
+                    count(read);
+                }
+                return read;
+            }
+
+            private void count(int read) throws LimitExceededException {
+                if (bytes.addAndGet(read) > maxBytes) {
+                    throw new LimitExceededException("Archive is larger than " + maxBytes / FileUtils.ONE_MB + " MB once uncompressed");
+                }
+            }
+        };
+    }
+
+    private static NavigableMap<String, ObjectId> getResult(Future<NavigableMap<String, ObjectId>> result) throws IOException, ApiException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while inserting the archive", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof ApiException) {
+                throw (ApiException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    static String toRepositoryPath(String entryName) throws ApiException {
+        String entryPath = entryName.replace('\\', '/').replaceAll("^(\\./|/)+", "");
+        for (String segment : entryPath.split("/")) {
+            if (segment.isEmpty() || segment.equals(".") || segment.equals("..") || segment.equalsIgnoreCase(Constants.DOT_GIT)) {
+                throw new ApiException(400, "Invalid path in archive: " + entryName);
+            }
+        }
+        return entryPath;
+    }
+}
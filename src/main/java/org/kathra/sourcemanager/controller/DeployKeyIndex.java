@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2020. The Kathra Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *    IRT SystemX (https://www.kathra.org/)
+ *
+ */
+
+package org.kathra.sourcemanager.controller;
+
+import com.mashape.unirest.http.HttpResponse;
+import com.mashape.unirest.http.Unirest;
+import com.mashape.unirest.http.exceptions.UnirestException;
+import org.apache.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.kathra.sourcemanager.Config;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of GitLab deploy keys ids by title.
+ * Kept warm by DeployKeyIndexScheduler, a title missing from the index reloads it, concurrent misses sharing one reload.
+ * A title still missing after the reload is remembered as unknown for a while, its next misses don't reload the index.
+ */
+public class DeployKeyIndex {
+
+    static final int PER_PAGE = 100;
+    private static final int MAX_UNKNOWN_TITLES = 1000;
+
+    private static final Logger logger = Logger.getLogger(DeployKeyIndex.class.getName());
+
+    private static DeployKeyIndex instance;
+
+    private final String gitlabUrl;
+    private final String apiToken;
+    private volatile Map<String, Integer> idsByTitle = new ConcurrentHashMap<>();
+    private final ExpiringCache<Boolean> unknownTitles;
+    // start of the last reload, in System.nanoTime() units, null before the first one
+    private Long refreshStartedAt;
+
+    public static synchronized DeployKeyIndex getInstance() {
+        if (instance == null) {
+            Config config = new Config();
+            instance = new DeployKeyIndex(config.getGitlabUrl(), config.getGitlabApiToken(), config.getDeployKeyUnknownTtlSeconds());
+        }
+        return instance;
+    }
+
+    /**
+     * @param unknownTtlSeconds time a title missing after a reload is taken as unknown without reloading the index
+     */
+    public DeployKeyIndex(String gitlabUrl, String apiToken, long unknownTtlSeconds) {
+        this.gitlabUrl = gitlabUrl;
+        this.apiToken = apiToken;
+        this.unknownTitles = new ExpiringCache<>(MAX_UNKNOWN_TITLES, unknownTtlSeconds, 0);
+    }
+
+    /**
+     * @return the id of the deploy key, null if no key has this title
+     */
+    public Integer getId(String title) throws IOException, UnirestException {
+        Integer id = idsByTitle.get(title);
+        if (id == null && unknownTitles.getIfPresent(title) == null) {
+            // a deleted key shifts the following ones to earlier pages, only a full reload is sure to find a new key
+            refreshIfStartedBefore(System.nanoTime());
+            id = idsByTitle.get(title);
+            if (id == null) {
+                unknownTitles.put(title, Boolean.TRUE);
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Reload every page, dropping deleted keys
+     */
+    public synchronized void refresh() throws IOException, UnirestException {
+        long startedAt = System.nanoTime();
+        Map<String, Integer> index = new ConcurrentHashMap<>();
+        int page = 1;
+        while (readPage(page, index) == PER_PAGE) {
+            page++;
+        }
+        idsByTitle = index;
+        refreshStartedAt = startedAt;
+        logger.debug("Deploy key index refreshed, " + index.size() + " keys");
+    }
+
+    /**
+     * Reload every page unless a reload started since the given time, which already lists the keys known then
+     */
+    private synchronized void refreshIfStartedBefore(long time) throws IOException, UnirestException {
+        if (refreshStartedAt == null || refreshStartedAt - time < 0) {
+            refresh();
+        }
+    }
+
+    private int readPage(int page, Map<String, Integer> index) throws IOException, UnirestException {
+        HttpResponse<InputStream> response = GitlabGuard.getInstance().callHttp("GET /deploy_keys", () -> Unirest.get(gitlabUrl + "/api/v4/deploy_keys")
+                .queryString("per_page", PER_PAGE)
+                .queryString("page", page)
+                .header(SourceManagerController.PRIVATE_TOKEN, apiToken)
+                .asBinary());
+        try (InputStream in = response.getRawBody()) {
+            if (response.getStatus() != 200) {
+                throw new IOException("Unable to list deploy keys, GitLab answered " + response.getStatus());
+            }
+            return readKeys(in, index);
+        }
+    }
+
+    /**
+     * Read a JSON array of keys one element at a time
+     *
+     * @return the number of keys read
+     */
+    static int readKeys(InputStream in, Map<String, Integer> index) throws IOException {
+        JSONTokener tokener = new JSONTokener(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)));
+        try {
+            if (tokener.nextClean() != '[') {
+                throw tokener.syntaxError("A JSON array of deploy keys was expected");
+            }
+            if (tokener.nextClean() == ']') {
+                return 0;
+            }
+            tokener.back();
+            int count = 0;
+            while (true) {
+                Object value = tokener.nextValue();
+                if (!(value instanceof JSONObject)) {
+                    throw tokener.syntaxError("A deploy key was expected");
+                }
+                JSONObject key = (JSONObject) value;
+                index.put(key.getString("title"), key.getInt("id"));
+                count++;
+                char separator = tokener.nextClean();
+                if (separator == ']') {
+                    return count;
+                }
+                if (separator != ',') {
+                    throw tokener.syntaxError("',' or ']' was expected");
+                }
+            }
+        } catch (JSONException e) {
+            throw new IOException("Unable to read deploy keys: " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package org.kathra.sourcemanager.controller;
+
+import org.apache.camel.builder.RouteBuilder;
+import org.kathra.sourcemanager.Config;
+
+public class DeployKeyIndexScheduler extends RouteBuilder {
+
+    @Override
+    public void configure() {
+        Config config = new Config();
+        from("scheduler://deployKeyIndex?delay=" + config.getDeployKeyIndexRefreshDelay())
+                .process(exchange -> DeployKeyIndex.getInstance().refresh());
+    }
+
+}
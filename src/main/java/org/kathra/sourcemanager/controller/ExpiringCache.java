@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2020. The Kathra Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *    IRT SystemX (https://www.kathra.org/)
+ *
+ */
+
+package org.kathra.sourcemanager.controller;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * Bounded concurrent cache with a time to live, remembering absent values for a shorter time.
+ */
+public class ExpiringCache<V> {
+
+    public interface Loader<V> {
+        /**
+         * @return the value, null if it doesn't exist
+         */
+        V load(String key) throws IOException;
+    }
+
+    private static class Entry<V> {
+        private final V value;
+        private final long expiresAt;
+
+        private Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final int maxEntries;
+    private final long ttlMs;
+    private final long negativeTtlMs;
+    private final ConcurrentHashMap<String, Entry<V>> entries = new ConcurrentHashMap<>();
+
+    public ExpiringCache(int maxEntries, long ttlSeconds, long negativeTtlSeconds) {
+        this.maxEntries = maxEntries;
+        this.ttlMs = TimeUnit.SECONDS.toMillis(ttlSeconds);
+        this.negativeTtlMs = TimeUnit.SECONDS.toMillis(negativeTtlSeconds);
+    }
+
+    /**
+     * @return the cached value, or the loaded one if missing or expired; null if the value doesn't exist
+     */
+    public V get(String key, Loader<V> loader) throws IOException {
+        Entry<V> entry = entries.get(key);
+        long now = System.currentTimeMillis();
+        if (entry != null && now < entry.expiresAt) {
+            return entry.value;
+        }
+        V value = loader.load(key);
+        put(key, value);
+        return value;
+    }
+
+    /**
+     * @return the cached value, null if missing, expired or cached as absent
+     */
+    public V getIfPresent(String key) {
+        Entry<V> entry = entries.get(key);
+        return entry != null && System.currentTimeMillis() < entry.expiresAt ? entry.value : null;
+    }
+
+    public void put(String key, V value) {
+        long ttl = value != null ? ttlMs : negativeTtlMs;
+        if (ttl <= 0) {
+            entries.remove(key);
+            return;
+        }
+        entries.put(key, new Entry<>(value, System.currentTimeMillis() + ttl));
+        if (entries.size() > maxEntries) {
+            shrink();
+        }
+    }
+
+    public void invalidate(String key) {
+        entries.remove(key);
+    }
+
+    public void invalidateIf(Predicate<String> keys) {
+        entries.keySet().removeIf(keys);
+    }
+
+    /**
+     * Replace the present values of the matching keys, keeping their expiry
+     */
+    public void updateIf(Predicate<String> keys, UnaryOperator<V> update) {
+        entries.replaceAll((key, entry) -> keys.test(key) && entry.value != null ? new Entry<>(update.apply(entry.value), entry.expiresAt) : entry);
+    }
+
+    public void invalidateAll() {
+        entries.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Drop expired entries, then the soonest to expire ones until a tenth of the capacity is free again
+     */
+    private synchronized void shrink() {
+        long now = System.currentTimeMillis();
+        entries.values().removeIf(entry -> now >= entry.expiresAt);
+        int excess = entries.size() - maxEntries * 9 / 10;
+        if (excess <= 0) {
+            return;
+        }
+        entries.entrySet().stream()
+                .sorted((a, b) -> Long.compare(a.getValue().expiresAt, b.getValue().expiresAt))
+                .limit(excess)
+                .map(Map.Entry::getKey)
+                .forEach(entries::remove);
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2020. The Kathra Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *    IRT SystemX (https://www.kathra.org/)
+ *
+ */
+
+package org.kathra.sourcemanager.controller;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Local store of bare mirrors, one per GitLab project id.
+ * Mirrors are evicted by the GitMirrorJanitor once idle for too long, or least recently used first when the store
+ * exceeds its size, unless still read by an operation or borrowed through alternates by a worktree.
+ */
+public class GitMirrorCache {
+    private static final String LAST_ACCESS_FILE = "kathra-last-access";
+    private static final String MIRROR_SUFFIX = ".git";
+
+    private static final Map<File, GitMirrorCache> caches = new ConcurrentHashMap<>();
+
+    Logger logger = Logger.getLogger(GitMirrorCache.class.getName());
+
+    private final File root;
+    private final long maxBytes;
+    private final long maxIdleMs;
+    private final ConcurrentHashMap<Integer, Mirror> mirrors = new ConcurrentHashMap<>();
+    private final AtomicLong totalBytes = new AtomicLong();
+
+    /**
+     * State of a mirror, dropped once the mirror is evicted
+     */
+    private static class Mirror {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final AtomicInteger readers = new AtomicInteger();
+        // git folders of the worktrees borrowing the mirror objects, a worktree deleted doesn't borrow them anymore
+        private final Set<File> borrowers = ConcurrentHashMap.newKeySet();
+        // size counted in the total, measured again by the janitor once the mirror is fetched
+        private long bytes;
+        private volatile boolean fetched = true;
+
+        private boolean isBorrowed() {
+            borrowers.removeIf(borrower -> !borrower.exists());
+            return readers.get() > 0 || !borrowers.isEmpty();
+        }
+    }
+
+    /**
+     * The store of the folder, shared by all the services using this folder
+     */
+    public static GitMirrorCache getInstance(File root, long maxSizeMb, long maxIdleMinutes) {
+        return caches.computeIfAbsent(root.getAbsoluteFile(), folder -> new GitMirrorCache(folder, maxSizeMb, maxIdleMinutes));
+    }
+
+    public static Collection<GitMirrorCache> getInstances() {
+        return caches.values();
+    }
+
+    public GitMirrorCache(File root, long maxSizeMb, long maxIdleMinutes) {
+        this.root = root;
+        this.maxBytes = maxSizeMb * FileUtils.ONE_MB;
+        this.maxIdleMs = TimeUnit.MINUTES.toMillis(maxIdleMinutes);
+        root.mkdirs();
+    }
+
+    public File getMirrorFolder(Integer projectId) {
+        return new File(root, projectId + MIRROR_SUFFIX);
+    }
+
+    /**
+     * Lock the mirror of the project, to be unlocked by the caller
+     */
+    public ReentrantLock lock(Integer projectId) {
+        while (true) {
+            Mirror mirror = mirrors.computeIfAbsent(projectId, id -> new Mirror());
+            mirror.lock.lock();
+            // the mirror may have been evicted while waiting, its lock isn't the one of the project anymore
+            if (mirrors.get(projectId) == mirror) {
+                return mirror.lock;
+            }
+            mirror.lock.unlock();
+        }
+    }
+
+    /**
+     * Unlock the mirror of the project locked by the caller, a locked mirror is never evicted
+     */
+    public void unlock(Integer projectId) {
+        mirrors.get(projectId).lock.unlock();
+    }
+
+    /**
+     * Keep the mirror of the project from eviction until released, the caller holds the lock of the mirror
+     */
+    public void read(Integer projectId) {
+        mirrors.get(projectId).readers.incrementAndGet();
+    }
+
+    public void release(Integer projectId) {
+        Mirror mirror = mirrors.get(projectId);
+        if (mirror != null) {
+            mirror.readers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Keep the mirror of the project from eviction as long as the git folder of the worktree exists,
+     * the caller holds the lock of the mirror
+     */
+    public void borrow(Integer projectId, File gitFolder) {
+        mirrors.get(projectId).borrowers.add(gitFolder.getAbsoluteFile());
+    }
+
+    /**
+     * Stop keeping the mirror of the project for a worktree that failed to be built, the caller holds the lock of
+     * the mirror
+     */
+    public void giveBack(Integer projectId, File gitFolder) {
+        mirrors.get(projectId).borrowers.remove(gitFolder.getAbsoluteFile());
+    }
+
+    /**
+     * Record an access to the mirror of the project, the caller holds the lock of the mirror
+     */
+    public void touch(Integer projectId) throws IOException {
+        FileUtils.touch(new File(getMirrorFolder(projectId), LAST_ACCESS_FILE));
+        Mirror mirror = mirrors.get(projectId);
+        if (mirror != null) {
+            mirror.fetched = true;
+        }
+    }
+
+    /**
+     * Bytes held by the mirrors, as measured by the last eviction
+     */
+    public long getSize() {
+        return totalBytes.get();
+    }
+
+    /**
+     * Measure the mirrors fetched since the previous eviction, then evict the mirrors neither read nor borrowed
+     * that are idle for too long or the least recently used while the store exceeds its size.
+     * Run by the janitor only, never by the operations.
+     */
+    public void evict() {
+        File[] folders = root.listFiles(f -> f.isDirectory() && f.getName().matches("\\d+\\" + MIRROR_SUFFIX));
+        if (folders == null) {
+            return;
+        }
+        List<File> candidates = new ArrayList<>();
+        for (File folder : folders) {
+            Integer projectId = getProjectId(folder);
+            Mirror mirror = mirrors.computeIfAbsent(projectId, id -> new Mirror());
+            if (!mirror.lock.tryLock()) {
+                continue;
+            }
+            try {
+                if (mirror.fetched) {
+                    mirror.fetched = false;
+                    long bytes = FileUtils.sizeOfDirectory(folder);
+                    totalBytes.addAndGet(bytes - mirror.bytes);
+                    mirror.bytes = bytes;
+                }
+            } finally {
+                mirror.lock.unlock();
+            }
+            candidates.add(folder);
+        }
+        candidates.sort(Comparator.comparingLong(this::getLastAccess));
+
+        long now = System.currentTimeMillis();
+        for (File folder : candidates) {
+            long idle = now - getLastAccess(folder);
+            if (idle <= maxIdleMs && totalBytes.get() <= maxBytes) {
+                continue;
+            }
+            Integer projectId = getProjectId(folder);
+            Mirror mirror = mirrors.get(projectId);
+            if (mirror == null || !mirror.lock.tryLock()) {
+                continue;
+            }
+            try {
+                if (mirror.isBorrowed()) {
+                    continue;
+                }
+                FileUtils.deleteDirectory(folder);
+                totalBytes.addAndGet(-mirror.bytes);
+                mirrors.remove(projectId, mirror);
+                logger.info("Git mirror for project " + projectId + " evicted (" + mirror.bytes + " bytes, idle " + idle + " ms)");
+            } catch (IOException e) {
+                logger.warn("Unable to evict git mirror " + folder + ": " + e.getMessage());
+            } finally {
+                mirror.lock.unlock();
+            }
+        }
+
+        // locks of the projects whose mirror was never created
+        for (Map.Entry<Integer, Mirror> entry : mirrors.entrySet()) {
+            Mirror mirror = entry.getValue();
+            if (!getMirrorFolder(entry.getKey()).exists() && mirror.lock.tryLock()) {
+                try {
+                    if (!mirror.isBorrowed() && !getMirrorFolder(entry.getKey()).exists()) {
+                        totalBytes.addAndGet(-mirror.bytes);
+                        mirrors.remove(entry.getKey(), mirror);
+                    }
+                } finally {
+                    mirror.lock.unlock();
+                }
+            }
+        }
+    }
+
+    int getMirrors() {
+        return mirrors.size();
+    }
+
+    boolean isBorrowed(Integer projectId) {
+        Mirror mirror = mirrors.get(projectId);
+        return mirror != null && mirror.isBorrowed();
+    }
+
+    private Integer getProjectId(File mirror) {
+        return Integer.valueOf(mirror.getName().substring(0, mirror.getName().length() - MIRROR_SUFFIX.length()));
+    }
+
+    private long getLastAccess(File mirror) {
+        File marker = new File(mirror, LAST_ACCESS_FILE);
+        return marker.exists() ? marker.lastModified() : mirror.lastModified();
+    }
+}
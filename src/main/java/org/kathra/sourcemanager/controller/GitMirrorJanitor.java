@@ -0,0 +1,15 @@
+package org.kathra.sourcemanager.controller;
+
+import org.apache.camel.builder.RouteBuilder;
+import org.kathra.sourcemanager.Config;
+
+public class GitMirrorJanitor extends RouteBuilder {
+
+    @Override
+    public void configure() {
+        Config config = new Config();
+        from("scheduler://gitMirrorJanitor?delay=" + config.getGitMirrorJanitorDelay())
+                .process(exchange -> GitMirrorCache.getInstances().forEach(GitMirrorCache::evict));
+    }
+
+}
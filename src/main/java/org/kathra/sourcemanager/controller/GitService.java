@@ -21,21 +21,41 @@
 package org.kathra.sourcemanager.controller;
 
 import org.kathra.core.model.SourceRepositoryCommit;
+import org.kathra.sourcemanager.Config;
+import org.kathra.utils.ApiException;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
 import org.eclipse.jgit.api.*;
 import org.eclipse.jgit.api.errors.GitAPIException;
-import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.internal.JGitText;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.lib.*;
 import org.eclipse.jgit.revwalk.RevCommit;
-import org.eclipse.jgit.transport.CredentialsProvider;
-import org.eclipse.jgit.transport.PushResult;
+import org.eclipse.jgit.revwalk.RevFlag;
+import org.eclipse.jgit.revwalk.RevSort;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.*;
+import org.eclipse.jgit.treewalk.TreeWalk;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.Collection;
-import java.util.UUID;
-
-import static java.util.Collections.singleton;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * @author Jérémy Guillemot <Jeremy.Guillemot@kathra.org>
@@ -44,105 +64,625 @@ public class GitService {
     Logger logger = Logger.getLogger(GitService.class.getName());
 
     public static final String GIT_REMOTE = "origin";
-    String currentWorkingDirectory = System.getProperty("java.io.tmpdir");
+    private static final DateTimeFormatter ISO_DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSXXX").withZone(ZoneOffset.UTC);
+    /**
+     * Dates of the commits of the paged listing, in ISO-8601 as given by the GitLab API
+     */
+    public static final Function<Date, String> ISO_DATES = date -> ISO_DATE_FORMAT.format(date.toInstant());
+    /**
+     * Dates of the commits of the full listing, in the format its clients always got
+     */
+    public static final Function<Date, String> LEGACY_DATES = Date::toString;
+    private static final RefSpec MIRROR_HEADS = new RefSpec("+" + Constants.R_HEADS + "*:" + Constants.R_HEADS + "*");
+    private static final RefSpec MIRROR_TAGS = new RefSpec("+" + Constants.R_TAGS + "*:" + Constants.R_TAGS + "*");
+    private static final Retrier.Operation GIT_TRANSPORT = new Retrier.Operation("git-transport", 5, 1000, 8000, 60000);
+    private GitMirrorCache mirrorCache;
+    private int pushReplays;
+    private static final Metrics metrics = Metrics.getInstance();
+    private static ExpiringCache<RefSnapshot> refSnapshotCache;
+    // set once a remote refused an atomic push, the service talks to a single GitLab server
+    static volatile boolean atomicPushUnsupported;
 
-    public Git cloneProject(String projectName, String branch, File workingFolder, CredentialsProvider cp, String projectUrl, Boolean includeTags) throws GitAPIException, InterruptedException {
+    public GitService() {
+        this(new Config());
+    }
 
-        LsRemoteCommand lsRemoteCommand = Git.lsRemoteRepository()
-                .setTags(true)
-                .setHeads(true)
-                .setCredentialsProvider(cp)
-                .setRemote(projectUrl);
-        Collection<Ref> remoteRefs = callWithRetries(lsRemoteCommand);
-        boolean branchExists = false;
-        boolean tagExists = false;
+    public GitService(Config config) {
+        pushReplays = config.getPushReplays();
+        if (config.isGitMirrorEnabled()) {
+            mirrorCache = GitMirrorCache.getInstance(new File(config.getGitMirrorFolder()), config.getGitMirrorMaxSizeMb(), config.getGitMirrorMaxIdleMinutes());
+            metrics.gauge("sourcemanager_git_mirror_bytes", mirrorCache::getSize);
+        }
+    }
 
-        for (Ref remoteRef : remoteRefs) {
-            if (remoteRef.getName().equals("refs/heads/" + branch)) {
-                branchExists = true;
-                break;
-            } else if (includeTags && remoteRef.getName().equals("refs/tags/" + branch)) {
-                tagExists = true;
-                break;
-            }
+    public Git cloneProject(Integer projectId, String projectName, String branch, File workingFolder, CredentialsProvider cp, String projectUrl, Boolean includeTags) throws GitAPIException, InterruptedException, IOException {
+        if (mirrorCache != null && projectId != null) {
+            return cloneProjectFromMirror(projectId, projectName, branch, workingFolder, cp, projectUrl, includeTags);
         }
-        Git git;
-        CloneCommand cloneCommand;
+
+        RefSnapshot refs = getRefSnapshot(cp, projectUrl);
+        boolean branchExists = refs.get(Constants.R_HEADS + branch) != null;
+        boolean tagExists = !branchExists && includeTags && refs.get(Constants.R_TAGS + branch) != null;
+
+        // exactly one ref is fetched: the branch, else the tag, else the default branch taken as the new branch
+        String source;
+        String fetchedRef;
         if (branchExists) {
-            cloneCommand = Git.cloneRepository()
-                    .setBranchesToClone(singleton("refs/heads/" + branch))
-                    .setBranch("refs/heads/" + branch)
-                    .setURI(projectUrl)
-                    .setDirectory(getGitFolderPath(workingFolder, projectName))
-                    .setCredentialsProvider(cp);
-            git = callWithRetries(cloneCommand);
+            source = Constants.R_HEADS + branch;
+            fetchedRef = Constants.R_REMOTES + GIT_REMOTE + "/" + branch;
         } else if (tagExists) {
-            cloneCommand = Git.cloneRepository()
-                    .setURI(projectUrl)
-                    .setDirectory(getGitFolderPath(workingFolder, projectName))
-                    .setCredentialsProvider(cp);
-            git = callWithRetries(cloneCommand);
-            git.checkout().setName(branch).call();
+            source = Constants.R_TAGS + branch;
+            fetchedRef = source;
         } else {
-            cloneCommand = Git.cloneRepository()
-                    .setURI(projectUrl)
-                    .setDirectory(getGitFolderPath(workingFolder, projectName))
-                    .setCredentialsProvider(cp);
-            git = callWithRetries(cloneCommand);
-            git.branchRename().setNewName(branch).call();
+            source = refs.getDefaultBranch();
+            fetchedRef = source == null ? null : Constants.R_REMOTES + GIT_REMOTE + "/" + Repository.shortenRefName(source);
+        }
+
+        Git git = Git.init().setDirectory(getGitFolderPath(workingFolder, projectName)).call();
+        try {
+            configureRemote(git.getRepository(), branch, projectUrl);
+            ObjectId commitId = null;
+            if (source != null) {
+                callWithRetries("clone", () -> git.fetch()
+                        .setRemote(GIT_REMOTE)
+                        .setRefSpecs(new RefSpec("+" + source + ":" + fetchedRef))
+                        .setTagOpt(TagOpt.NO_TAGS)
+                        .setCredentialsProvider(cp)
+                        .call());
+                try (RevWalk revWalk = new RevWalk(git.getRepository())) {
+                    commitId = revWalk.parseCommit(git.getRepository().resolve(fetchedRef));
+                }
+            }
+            checkout(git, branch, commitId, tagExists);
+            return git;
+        } catch (GitAPIException | InterruptedException | IOException | RuntimeException e) {
+            git.close();
+            throw e;
         }
-        return git;
     }
 
-    public File createWorkingFolder() throws IOException {
-        String sessionID = "KathraSourceManager_WorkingFolder_" + UUID.randomUUID().toString();
-        int i = 0;
-        File workingFolder = new File(currentWorkingDirectory + File.separator + sessionID);
-        while (i < 3) {
-            ++i;
-            if (!workingFolder.exists())
-                break;
-            workingFolder = new File(currentWorkingDirectory + File.separator + "KathraSourceManager_WorkingFolder_" + UUID.randomUUID().toString());
-            if ((i >= 3) && (workingFolder.exists())) {
-                FileUtils.deleteDirectory(workingFolder);
+    /**
+     * Fetch the changes into the project mirror, then build a worktree borrowing the mirror objects through alternates
+     */
+    private Git cloneProjectFromMirror(Integer projectId, String projectName, String branch, File workingFolder, CredentialsProvider cp, String projectUrl, Boolean includeTags) throws GitAPIException, InterruptedException, IOException {
+        Repository updatedMirror = updateMirror(projectId, cp, projectUrl);
+        try (Repository mirror = updatedMirror) {
+            Ref branchRef = mirror.exactRef(Constants.R_HEADS + branch);
+            Ref tagRef = includeTags ? mirror.exactRef(Constants.R_TAGS + branch) : null;
+
+            File worktree;
+            File gitFolder;
+            try (Git init = Git.init().setDirectory(getGitFolderPath(workingFolder, projectName)).call()) {
+                worktree = init.getRepository().getWorkTree();
+                gitFolder = init.getRepository().getDirectory();
+                FileUtils.writeStringToFile(new File(gitFolder, "objects/info/alternates"),
+                        new File(mirror.getDirectory(), "objects").getAbsolutePath() + "\n", StandardCharsets.UTF_8);
             }
+            mirrorCache.borrow(projectId, gitFolder);
+
+            // opened again, the objects of the mirror are read through the alternates
+            Git git = null;
+            try {
+                git = Git.open(worktree);
+                Repository repository = git.getRepository();
+                configureRemote(repository, branch, projectUrl);
+
+                for (Ref head : mirror.getRefDatabase().getRefs(Constants.R_HEADS).values()) {
+                    updateRef(repository, Constants.R_REMOTES + GIT_REMOTE + "/" + Repository.shortenRefName(head.getName()), head.getObjectId());
+                }
+
+                ObjectId commitId;
+                if (branchRef != null) {
+                    commitId = branchRef.getObjectId();
+                } else if (tagRef != null) {
+                    updateRef(repository, tagRef.getName(), tagRef.getObjectId());
+                    Ref peeled = mirror.peel(tagRef);
+                    commitId = peeled.getPeeledObjectId() != null ? peeled.getPeeledObjectId() : tagRef.getObjectId();
+                } else {
+                    // same as a clone of the default branch renamed to the requested one
+                    commitId = mirror.resolve(Constants.HEAD);
+                }
+
+                checkout(git, branch, commitId, tagRef != null && branchRef == null);
+                return git;
+            } catch (GitAPIException | IOException | RuntimeException e) {
+                if (git != null) {
+                    git.close();
+                }
+                mirrorCache.giveBack(projectId, gitFolder);
+                throw e;
+            }
+        } finally {
+            mirrorCache.unlock(projectId);
+        }
+    }
+
+    /**
+     * Track the branches of the project as the remote of the worktree, the branch following its remote counterpart
+     */
+    private void configureRemote(Repository repository, String branch, String projectUrl) throws IOException {
+        try {
+            StoredConfig gitConfig = repository.getConfig();
+            RemoteConfig remoteConfig = new RemoteConfig(gitConfig, GIT_REMOTE);
+            remoteConfig.addURI(new URIish(projectUrl));
+            remoteConfig.addFetchRefSpec(new RefSpec("+" + Constants.R_HEADS + "*:" + Constants.R_REMOTES + GIT_REMOTE + "/*"));
+            remoteConfig.update(gitConfig);
+            gitConfig.setString(ConfigConstants.CONFIG_BRANCH_SECTION, branch, ConfigConstants.CONFIG_KEY_REMOTE, GIT_REMOTE);
+            gitConfig.setString(ConfigConstants.CONFIG_BRANCH_SECTION, branch, ConfigConstants.CONFIG_KEY_MERGE, Constants.R_HEADS + branch);
+            gitConfig.save();
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid project url " + projectUrl, e);
         }
-        workingFolder.mkdirs();
-        return workingFolder;
+    }
+
+    /**
+     * Check the commit out on the branch, or on a detached HEAD for a tag, an empty project leaves an unborn branch
+     */
+    private void checkout(Git git, String branch, ObjectId commitId, boolean detached) throws GitAPIException, IOException {
+        Repository repository = git.getRepository();
+        if (detached) {
+            RefUpdate detachedHead = repository.updateRef(Constants.HEAD, true);
+            detachedHead.setNewObjectId(commitId);
+            detachedHead.forceUpdate();
+        } else {
+            repository.updateRef(Constants.HEAD).link(Constants.R_HEADS + branch);
+            if (commitId != null) {
+                updateRef(repository, Constants.R_HEADS + branch, commitId);
+            }
+        }
+        if (commitId != null) {
+            git.reset().setMode(ResetCommand.ResetType.HARD).call();
+        }
+    }
+
+    /**
+     * Create the project mirror on first use, otherwise only fetch what changed since the previous request.
+     * The mirror is returned locked, to be unlocked by the caller. The lock is only held during the attempts of the
+     * fetch, the other requests of the project don't wait for the backoff between them.
+     */
+    private Repository updateMirror(Integer projectId, CredentialsProvider cp, String projectUrl) throws GitAPIException, InterruptedException, IOException {
+        long start = System.nanoTime();
+        try {
+            return Retrier.call(GIT_TRANSPORT, () -> {
+                ReentrantLock lock = mirrorCache.lock(projectId);
+                try {
+                    return fetchMirror(projectId, cp, projectUrl);
+                } catch (Exception e) {
+                    lock.unlock();
+                    throw e;
+                }
+            }, GitService::isRetryable);
+        } catch (GitAPIException | InterruptedException | IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        } finally {
+            metrics.timer(Metrics.GIT_PHASE_SECONDS, "phase", "fetch").record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * A single attempt of the fetch of the mirror, the caller holds the lock of the mirror
+     */
+    private Repository fetchMirror(Integer projectId, CredentialsProvider cp, String projectUrl) throws GitAPIException, IOException {
+        File mirrorFolder = mirrorCache.getMirrorFolder(projectId);
+        Git mirror;
+        if (new File(mirrorFolder, Constants.HEAD).exists()) {
+            mirror = Git.open(mirrorFolder);
+        } else {
+            mirror = Git.init().setBare(true).setDirectory(mirrorFolder).call();
+        }
+        try {
+            FetchResult fetchResult = mirror.fetch()
+                    .setRemote(projectUrl)
+                    .setRefSpecs(MIRROR_HEADS, MIRROR_TAGS)
+                    .setTagOpt(TagOpt.NO_TAGS)
+                    .setRemoveDeletedRefs(true)
+                    .setCredentialsProvider(cp)
+                    .call();
+
+            String defaultBranch = findDefaultBranch(fetchResult.getAdvertisedRef(Constants.HEAD), fetchResult.getAdvertisedRefs());
+            putRefSnapshot(cp, projectUrl, fetchResult.getAdvertisedRefs(), defaultBranch);
+            if (defaultBranch != null) {
+                mirror.getRepository().updateRef(Constants.HEAD).link(defaultBranch);
+            }
+            mirrorCache.touch(projectId);
+            return mirror.getRepository();
+        } catch (GitAPIException | IOException | RuntimeException e) {
+            mirror.close();
+            throw e;
+        }
+    }
+
+    public static synchronized ExpiringCache<RefSnapshot> getRefSnapshotCache() {
+        if (refSnapshotCache == null) {
+            Config config = new Config();
+            refSnapshotCache = new ExpiringCache<>(config.getProjectCacheMaxEntries(), config.getRefSnapshotTtlSeconds(), 0);
+        }
+        return refSnapshotCache;
+    }
+
+    /**
+     * Heads and tags of the project as seen by the caller, listed in a single ls-remote then shared by the operations
+     * until the snapshot expires. The pushes of the service update the snapshots in place.
+     */
+    public RefSnapshot getRefSnapshot(CredentialsProvider cp, String projectUrl) throws GitAPIException, InterruptedException {
+        RefSnapshot snapshot = getCachedRefSnapshot(cp, projectUrl);
+        if (snapshot != null) {
+            return snapshot;
+        }
+        Map<String, Ref> remoteRefs = callWithRetries("ls-remote", () -> Git.lsRemoteRepository()
+                .setRemote(projectUrl)
+                .setCredentialsProvider(cp)
+                .callAsMap());
+        return putRefSnapshot(cp, projectUrl, remoteRefs.values(), findDefaultBranch(remoteRefs.get(Constants.HEAD), remoteRefs.values()));
+    }
+
+    /**
+     * @return the snapshot of the caller if one is cached, null otherwise
+     */
+    public RefSnapshot getCachedRefSnapshot(CredentialsProvider cp, String projectUrl) {
+        return getRefSnapshotCache().getIfPresent(refSnapshotKey(cp, projectUrl));
+    }
+
+    public void invalidateRefSnapshot(CredentialsProvider cp, String projectUrl) {
+        getRefSnapshotCache().invalidate(refSnapshotKey(cp, projectUrl));
+    }
+
+    private RefSnapshot putRefSnapshot(CredentialsProvider cp, String projectUrl, Collection<Ref> remoteRefs, String defaultBranch) {
+        Map<String, ObjectId> ids = new HashMap<>();
+        for (Ref remoteRef : remoteRefs) {
+            if (remoteRef.getObjectId() != null) {
+                ids.put(remoteRef.getName(), remoteRef.getObjectId());
+            }
+        }
+        RefSnapshot snapshot = new RefSnapshot(ids, defaultBranch);
+        getRefSnapshotCache().put(refSnapshotKey(cp, projectUrl), snapshot);
+        return snapshot;
+    }
+
+    /**
+     * Apply the refs pushed to the snapshots of the project, whoever the snapshots were listed for
+     */
+    private void updateRefSnapshots(String projectUrl, Iterable<PushResult> pushResults) {
+        if (projectUrl == null) {
+            return;
+        }
+        String suffix = '\u0000' + projectUrl;
+        for (PushResult pushResult : pushResults) {
+            for (RemoteRefUpdate update : pushResult.getRemoteUpdates()) {
+                if (update.getStatus() == RemoteRefUpdate.Status.OK) {
+                    getRefSnapshotCache().updateIf(key -> key.endsWith(suffix), snapshot -> snapshot.update(update.getRemoteName(), update.getNewObjectId()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Snapshots are kept by caller, a caller only sees the refs listed with its own credentials
+     */
+    private static String refSnapshotKey(CredentialsProvider cp, String projectUrl) {
+        CredentialItem.Username username = new CredentialItem.Username();
+        String user = cp != null && cp.supports(username) && cp.get(null, username) ? username.getValue() : "";
+        return user + '\u0000' + projectUrl;
+    }
+
+    /**
+     * Name of the branch the remote HEAD points to, master first when several branches share its commit
+     */
+    private String findDefaultBranch(Ref remoteHead, Collection<Ref> remoteRefs) {
+        if (remoteHead == null || remoteHead.getObjectId() == null) {
+            return null;
+        }
+        if (remoteHead.isSymbolic()) {
+            return remoteHead.getTarget().getName();
+        }
+        String defaultBranch = null;
+        for (Ref remoteRef : remoteRefs) {
+            if (remoteRef.getName().startsWith(Constants.R_HEADS) && remoteHead.getObjectId().equals(remoteRef.getObjectId())) {
+                if (remoteRef.getName().equals(Constants.R_HEADS + Constants.MASTER)) {
+                    return remoteRef.getName();
+                }
+                if (defaultBranch == null) {
+                    defaultBranch = remoteRef.getName();
+                }
+            }
+        }
+        return defaultBranch;
+    }
+
+    private void updateRef(Repository repository, String refName, ObjectId objectId) throws IOException {
+        RefUpdate refUpdate = repository.updateRef(refName);
+        refUpdate.setNewObjectId(objectId);
+        refUpdate.forceUpdate();
+    }
+
+    /**
+     * Lease a folder of the working area, to be given back with {@link #releaseWorkingFolder(File, boolean)}
+     */
+    public File createWorkingFolder() throws IOException, TooManyRequestsException {
+        return WorkingArea.getInstance().acquire();
+    }
+
+    /**
+     * @param delete false to keep the folder for inspection, until the janitor of the working area reclaims it
+     */
+    public void releaseWorkingFolder(File workingFolder, boolean delete) {
+        WorkingArea.getInstance().release(workingFolder, delete);
     }
 
     private File getGitFolderPath(File workingFolder, String projectName) {
         return new File(workingFolder.getAbsolutePath() + File.separator + projectName);
     }
 
-    public Iterable<PushResult> pushToGitRepoWithUserCredentials(CredentialsProvider cp, Git git) throws GitAPIException, InterruptedException {
-        PushCommand pushCommand = git.push();
-        pushCommand.setPushTags();
-        pushCommand.setPushAll();
-        pushCommand.setRemote(GIT_REMOTE);
-        pushCommand.setCredentialsProvider(cp);
+    /**
+     * Push the branch and, when given, the tag forced to its new target, in a single push: one negotiation and a pack
+     * of the new objects only. The push is atomic when the remote supports it.
+     *
+     * @throws PushRejectedException if a ref is refused, with the status of each ref
+     */
+    public Iterable<PushResult> pushBranchAndTag(CredentialsProvider cp, Git git, String branch, String tag) throws GitAPIException, InterruptedException, ApiException {
+        List<RefSpec> refSpecs = new ArrayList<>();
+        refSpecs.add(new RefSpec(Constants.R_HEADS + branch + ":" + Constants.R_HEADS + branch));
+        if (StringUtils.isNotEmpty(tag)) {
+            refSpecs.add(new RefSpec("+" + Constants.R_TAGS + tag + ":" + Constants.R_TAGS + tag));
+        }
+        Iterable<PushResult> pushResults = push(git, GIT_REMOTE, refSpecs, Collections.emptyList(), cp);
+        checkPushResults(pushResults);
+        updateRefSnapshots(git.getRepository().getConfig().getString(ConfigConstants.CONFIG_REMOTE_SECTION, GIT_REMOTE, ConfigConstants.CONFIG_KEY_URL), pushResults);
+        return pushResults;
+    }
 
-        return callWithRetries(pushCommand);
+    /**
+     * Push the ref specs atomically, or in a plain push to remotes not advertising atomic pushes
+     */
+    private Iterable<PushResult> push(Git git, String remote, List<RefSpec> refSpecs, List<RefLeaseSpec> leases, CredentialsProvider cp) throws GitAPIException, InterruptedException {
+        return callWithRetries("push", () -> {
+            if (!atomicPushUnsupported) {
+                try {
+                    return git.push().setRemote(remote).setRefSpecs(refSpecs).setRefLeaseSpecs(leases).setCredentialsProvider(cp).setAtomic(true).call();
+                } catch (org.eclipse.jgit.api.errors.TransportException e) {
+                    if (e.getMessage() == null || !e.getMessage().contains(JGitText.get().atomicPushNotSupported)) {
+                        throw e;
+                    }
+                    logger.info("Remote " + remote + " doesn't support atomic pushes, pushing refs without atomicity");
+                    atomicPushUnsupported = true;
+                }
+            }
+            return git.push().setRemote(remote).setRefSpecs(refSpecs).setRefLeaseSpecs(leases).setCredentialsProvider(cp).call();
+        });
     }
 
-    public Iterable<PushResult> pushTagOnlyToGitRepoWithUserCredentials(CredentialsProvider cp, Git git, boolean force) throws GitAPIException, InterruptedException {
-        PushCommand pushCommand = git.push();
-        pushCommand.setPushTags();
-        pushCommand.setRemote(GIT_REMOTE);
-        pushCommand.setCredentialsProvider(cp);
-        pushCommand.setForce(force);
-        return callWithRetries(pushCommand);
+    public boolean isMirrorEnabled() {
+        return mirrorCache != null;
+    }
+
+    /**
+     * Walk the history of the branch in the project mirror, newest commits first, giving each commit to the consumer
+     * as soon as it is read. The mirror is only fetched for the first page, so that the following pages read the
+     * same history, the access of the caller to the project is checked for each page.
+     *
+     * @param since only the commits made at or after this date, null for no bound
+     * @param until only the commits made at or before this date, null for no bound
+     * @param after cursor returned with the previous page, null for the first page
+     * @param limit maximum number of commits given, 0 for the whole history
+     * @param formatDate format of the dates of the commits given
+     * @return the cursor of the next page when more commits follow, null once the history is over: the id of the
+     * last commit given, followed by the ids of the branches merged before it and not listed yet
+     * @throws FileNotFoundException if the branch doesn't exist
+     * @throws ApiException          400 if the cursor isn't one of the mirror
+     */
+    public String walkCommits(Integer projectId, CredentialsProvider cp, String projectUrl, String branch, Date since, Date until, String after, int limit, Function<Date, String> formatDate, Consumer<SourceRepositoryCommit> consumer) throws GitAPIException, InterruptedException, IOException, ApiException {
+        File mirrorFolder = mirrorCache.getMirrorFolder(projectId);
+        if (after != null) {
+            // the mirror is shared by the callers, the refs are listed with the credentials of this one
+            getRefSnapshot(cp, projectUrl);
+        }
+        Repository mirror = null;
+        if (after != null) {
+            ReentrantLock lock = mirrorCache.lock(projectId);
+            try {
+                if (new File(mirrorFolder, Constants.HEAD).exists()) {
+                    mirror = Git.open(mirrorFolder).getRepository();
+                    mirrorCache.touch(projectId);
+                    mirrorCache.read(projectId);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (mirror == null) {
+            mirror = updateMirror(projectId, cp, projectUrl);
+            try {
+                mirrorCache.read(projectId);
+            } finally {
+                mirrorCache.unlock(projectId);
+            }
+        }
+        try (Repository repository = mirror; RevWalk revWalk = new RevWalk(repository)) {
+            ObjectId head = repository.resolve(Constants.R_HEADS + branch);
+            if (head == null) {
+                throw new FileNotFoundException("No branch " + branch);
+            }
+            revWalk.sort(RevSort.COMMIT_TIME_DESC);
+            // the walk goes on from the cursor, the commits of the previous pages aren't walked again
+            Set<RevCommit> pending = new LinkedHashSet<>();
+            RevCommit cursor = null;
+            if (after == null) {
+                pending.add(revWalk.parseCommit(head));
+            } else {
+                for (String id : after.split(",")) {
+                    RevCommit start = parseCursor(revWalk, id, after);
+                    cursor = cursor == null ? start : cursor;
+                    pending.add(start);
+                }
+            }
+            revWalk.markStart(pending);
+
+            long sinceTime = since != null ? since.getTime() / 1000 : Long.MIN_VALUE;
+            long untilTime = until != null ? until.getTime() / 1000 : Long.MAX_VALUE;
+            RevFlag walked = revWalk.newFlag("walked");
+            int given = 0;
+            RevCommit last = null;
+            for (RevCommit commit : revWalk) {
+                // the time bounds are checked here, the commits left out by a filter of the walk would be missing from the cursor
+                if (commit.getCommitTime() < sinceTime) {
+                    return null;
+                }
+                if (limit > 0 && given == limit && !commit.equals(cursor) && commit.getCommitTime() <= untilTime) {
+                    // the branches merged and still pending are given along the last commit, its parents follow it
+                    StringBuilder next = new StringBuilder(last.name());
+                    pending.removeAll(Arrays.asList(last.getParents()));
+                    pending.forEach(other -> next.append(',').append(other.name()));
+                    return next.toString();
+                }
+                commit.add(walked);
+                pending.remove(commit);
+                for (RevCommit parent : commit.getParents()) {
+                    if (!parent.has(walked)) {
+                        pending.add(parent);
+                    }
+                }
+                if (commit.equals(cursor) || commit.getCommitTime() > untilTime) {
+                    continue;
+                }
+                consumer.accept(toListedCommit(commit, formatDate));
+                last = commit;
+                given++;
+                // the bodies already given aren't needed anymore, the walk keeps the graph only
+                commit.disposeBody();
+            }
+            return null;
+        } finally {
+            mirrorCache.release(projectId);
+        }
+    }
+
+    private RevCommit parseCursor(RevWalk revWalk, String id, String after) throws IOException, ApiException {
+        if (!ObjectId.isId(id)) {
+            throw new ApiException(400, "Invalid cursor " + after);
+        }
+        try {
+            return revWalk.parseCommit(ObjectId.fromString(id));
+        } catch (MissingObjectException | IncorrectObjectTypeException e) {
+            throw new ApiException(400, "Unknown cursor " + after);
+        }
+    }
+
+    /**
+     * Read the blob ids of the files of a commit from the project mirror, without any fetch, the commit is read only
+     * if the mirror already holds it
+     *
+     * @param commitId id of the commit, as listed for the caller
+     * @param folder   folder of the files read, its sub folders excluded, null for every file of the commit
+     * @return the files by path, empty if the folder doesn't exist, null if no mirror holds the commit
+     */
+    public Map<String, ObjectId> readMirroredFiles(Integer projectId, ObjectId commitId, String folder) throws IOException {
+        if (mirrorCache == null || projectId == null) {
+            return null;
+        }
+        File mirrorFolder = mirrorCache.getMirrorFolder(projectId);
+        Repository mirror;
+        ReentrantLock lock = mirrorCache.lock(projectId);
+        try {
+            if (!new File(mirrorFolder, Constants.HEAD).exists()) {
+                return null;
+            }
+            mirror = Git.open(mirrorFolder).getRepository();
+            mirrorCache.read(projectId);
+        } finally {
+            lock.unlock();
+        }
+        try (Repository repository = mirror; RevWalk revWalk = new RevWalk(repository)) {
+            if (!repository.hasObject(commitId)) {
+                return null;
+            }
+            Map<String, ObjectId> files = new HashMap<>();
+            ObjectId treeId = revWalk.parseCommit(commitId).getTree();
+            String prefix = "";
+            if (StringUtils.isNotEmpty(folder)) {
+                try (TreeWalk folderWalk = TreeWalk.forPath(repository, folder, treeId)) {
+                    if (folderWalk == null || !folderWalk.isSubtree()) {
+                        return files;
+                    }
+                    treeId = folderWalk.getObjectId(0);
+                }
+                prefix = folder + "/";
+            }
+            try (TreeWalk treeWalk = new TreeWalk(repository)) {
+                treeWalk.addTree(treeId);
+                treeWalk.setRecursive(folder == null);
+                while (treeWalk.next()) {
+                    if (!treeWalk.isSubtree()) {
+                        files.put(prefix + treeWalk.getPathString(), treeWalk.getObjectId(0));
+                    }
+                }
+            }
+            return files;
+        } finally {
+            mirrorCache.release(projectId);
+        }
+    }
+
+    /**
+     * Same fields and formats as the commits listed through the GitLab API
+     */
+    private SourceRepositoryCommit toListedCommit(RevCommit commit, Function<Date, String> formatDate) {
+        SourceRepositoryCommit listed = new SourceRepositoryCommit()
+                .authorEmail(commit.getAuthorIdent().getEmailAddress())
+                .authorName(commit.getAuthorIdent().getName())
+                .createdAt(formatDate.apply(new Date(commit.getCommitTime() * 1000L)))
+                .message(commit.getFullMessage())
+                .shortId(commit.getId().abbreviate(8).name())
+                .title(commit.getShortMessage());
+        listed.id(commit.getName());
+        return listed;
+    }
+
+    /**
+     * Fetch the branch and reset the worktree on its remote head, dropping the local commits, so that a content
+     * refused on push can be applied again on top of the changes of other writers
+     */
+    public void resetToRemoteBranch(CredentialsProvider cp, Git git, String branch) throws GitAPIException, InterruptedException {
+        String remoteBranch = Constants.R_REMOTES + GIT_REMOTE + "/" + branch;
+        invalidateRefSnapshot(cp, git.getRepository().getConfig().getString(ConfigConstants.CONFIG_REMOTE_SECTION, GIT_REMOTE, ConfigConstants.CONFIG_KEY_URL));
+        callWithRetries("fetch", () -> git.fetch()
+                .setRemote(GIT_REMOTE)
+                .setRefSpecs(new RefSpec("+" + Constants.R_HEADS + branch + ":" + remoteBranch))
+                .setTagOpt(TagOpt.NO_TAGS)
+                .setCredentialsProvider(cp)
+                .call());
+        git.reset().setMode(ResetCommand.ResetType.HARD).setRef(remoteBranch).call();
     }
 
     public SourceRepositoryCommit createCommit(Git git, String username, String message) throws GitAPIException {
-        git.add().addFilepattern(".").call();
-        git.add().setUpdate(true).addFilepattern(".").call();
-        RevCommit call = git.commit()
+        return createCommit(git, username, message, Collections.singletonList("."));
+    }
+
+    /**
+     * Commit the given paths of the worktree only, added, changed or removed, the rest of the worktree isn't scanned
+     */
+    public SourceRepositoryCommit createCommit(Git git, String username, String message, Collection<String> paths) throws GitAPIException {
+        metrics.time(Metrics.GIT_PHASE_SECONDS, () -> {
+            AddCommand add = git.add();
+            AddCommand update = git.add().setUpdate(true);
+            for (String path : paths) {
+                add.addFilepattern(path);
+                update.addFilepattern(path);
+            }
+            add.call();
+            return update.call();
+        }, "phase", "stage");
+        RevCommit call = metrics.time(Metrics.GIT_PHASE_SECONDS, () -> git.commit()
                 .setAuthor(username, username + "@kathra.org")
                 .setMessage(message)
                 .setCommitter(username, username + "@kathra.org")
                 .setAllowEmpty(false)
-                .call();
+                .call(), "phase", "commit");
+        return toSourceRepositoryCommit(call);
+    }
+
+    private SourceRepositoryCommit toSourceRepositoryCommit(RevCommit call) {
         SourceRepositoryCommit sourceRepositoryCommit = new SourceRepositoryCommit();
         sourceRepositoryCommit.authorEmail(call.getAuthorIdent().getEmailAddress());
         sourceRepositoryCommit.authorName(call.getAuthorIdent().getName());
@@ -156,30 +696,299 @@ public class GitService {
         return sourceRepositoryCommit;
     }
 
-    public void createTag(Git git, String tag, boolean force) throws GitAPIException {
-        git.tag().setForceUpdate(force).setName(tag).call();
+    /**
+     * Commit the content on top of the remote branch head without checking out any worktree.
+     * Blobs and trees are written straight into the object database of the project mirror, or of a bare repository
+     * fetching the branch only when no mirror is available.
+     *
+     * @return the pushed commit, null when the content doesn't change the branch
+     */
+    public SourceRepositoryCommit createCommitWithoutWorktree(Integer projectId, String projectName, String branch, File workingFolder, CredentialsProvider cp, String projectUrl, CommitContent content, String username, String message, String tag) throws Exception {
+        CommitBatcher.PendingCommit pending = new CommitBatcher.PendingCommit(content, tag);
+        createCommitsWithoutWorktree(projectId, projectName, branch, workingFolder, cp, projectUrl, Collections.singletonList(pending), username, message);
+        pending.complete(null);
+        return pending.get();
     }
 
+    /**
+     * Commit each content on top of the previous one, starting from the remote branch head, then push the chain of
+     * commits and their tags at once. A content refused on its own fails alone, the unchanged ones are left pending.
+     */
+    public void createCommitsWithoutWorktree(Integer projectId, String projectName, String branch, File workingFolder, CredentialsProvider cp, String projectUrl, List<CommitBatcher.PendingCommit> pending, String username, String message) throws Exception {
+        for (int replay = 0; ; replay++) {
+            try {
+                commitsWithoutWorktree(projectId, projectName, branch, workingFolder, cp, projectUrl, pending, username, message);
+                return;
+            } catch (PushRejectedException e) {
+                if (!e.isStale() || replay >= pushReplays) {
+                    throw e;
+                }
+                // another writer moved the branch, the contents are committed again on its new head
+                invalidateRefSnapshot(cp, projectUrl);
+                logger.info("Branch " + branch + " of " + projectName + " moved while committing, replaying the content on its new head");
+            }
+        }
+    }
+
+    private void commitsWithoutWorktree(Integer projectId, String projectName, String branch, File workingFolder, CredentialsProvider cp, String projectUrl, List<CommitBatcher.PendingCommit> pending, String username, String message) throws Exception {
+        Repository repository = openObjectDatabase(projectId, projectName, branch, workingFolder, cp, projectUrl);
+        try {
+            ObjectId branchId = repository.resolve(Constants.R_HEADS + branch);
+            ObjectId parentId = branchId != null ? branchId : repository.resolve(Constants.HEAD);
+            PersonIdent ident = new PersonIdent(username, username + "@kathra.org");
+
+            Map<CommitBatcher.PendingCommit, RevCommit> commits = new LinkedHashMap<>();
+            // a tag given twice ends on the last of its commits
+            Map<String, ObjectId> tags = new LinkedHashMap<>();
+            for (CommitBatcher.PendingCommit commit : pending) {
+                if (commit.isDone()) {
+                    continue;
+                }
+                try {
+                    RevCommit created = commitContent(repository, parentId, commit.getContent(), ident, message);
+                    if (created != null) {
+                        commits.put(commit, created);
+                        parentId = created;
+                        if (StringUtils.isNotEmpty(commit.getTag())) {
+                            tags.put(commit.getTag(), createTag(repository, created, commit.getTag(), ident));
+                        }
+                    }
+                } catch (ApiException e) {
+                    commit.fail(e);
+                }
+            }
+            if (commits.isEmpty()) {
+                return;
+            }
 
+            List<RefSpec> refSpecs = new ArrayList<>();
+            refSpecs.add(new RefSpec(parentId.name() + ":" + Constants.R_HEADS + branch));
+            for (Map.Entry<String, ObjectId> tag : tags.entrySet()) {
+                refSpecs.add(new RefSpec("+" + tag.getValue().name() + ":" + Constants.R_TAGS + tag.getKey()));
+            }
+            // the push is refused if somebody else updated the branch since it was read
+            RefLeaseSpec lease = new RefLeaseSpec(Constants.R_HEADS + branch, (branchId != null ? branchId : ObjectId.zeroId()).name());
+            Iterable<PushResult> pushResults = push(Git.wrap(repository), projectUrl, refSpecs, Collections.singletonList(lease), cp);
+            checkPushResults(pushResults);
+            updateRefSnapshots(projectUrl, pushResults);
 
-    private <T> T callWithRetries(TransportCommand<? extends GitCommand,T> command) throws GitAPIException, InterruptedException {
-        return callWithRetries(command, 5, 1000);
+            updateRef(repository, Constants.R_HEADS + branch, parentId);
+            for (Map.Entry<String, ObjectId> tag : tags.entrySet()) {
+                updateRef(repository, Constants.R_TAGS + tag.getKey(), tag.getValue());
+            }
+            commits.forEach((commit, created) -> commit.complete(toSourceRepositoryCommit(created)));
+        } finally {
+            repository.close();
+            if (mirrorCache != null && projectId != null) {
+                mirrorCache.release(projectId);
+            }
+        }
     }
 
-    private <T> T callWithRetries(TransportCommand<? extends GitCommand,T> command, int nbMaxAttempts, int millisBetweenAttemps) throws GitAPIException, InterruptedException {
-        int attempt=1;
-        GitAPIException exception = null;
+    /**
+     * Commit the content as the first commit of a new project, then push it as master and dev in a single push,
+     * without any clone of the empty project. A master initialized by GitLab is kept as the parent of the commit.
+     *
+     * @param workingFolder folder of the repository holding the commit, null to build it in memory
+     * @return the pushed commit
+     */
+    public SourceRepositoryCommit seedProject(String projectName, File workingFolder, CredentialsProvider cp, String projectUrl, CommitContent content, String username, String message) throws Exception {
+        try (Repository repository = workingFolder == null
+                ? new InMemoryRepository(new DfsRepositoryDescription(projectName))
+                : Git.init().setBare(true).setDirectory(new File(workingFolder, projectName + Constants.DOT_GIT_EXT)).call().getRepository()) {
+            String master = Constants.R_HEADS + Constants.MASTER;
+            String dev = Constants.R_HEADS + "dev";
+            // listed again, a project of the same path may have been deleted since the last listing
+            invalidateRefSnapshot(cp, projectUrl);
+            ObjectId masterId = getRefSnapshot(cp, projectUrl).get(master);
+            if (masterId != null) {
+                callWithRetries("fetch", () -> Git.wrap(repository).fetch()
+                        .setRemote(projectUrl)
+                        .setRefSpecs(new RefSpec("+" + master + ":" + master))
+                        .setTagOpt(TagOpt.NO_TAGS)
+                        .setCredentialsProvider(cp)
+                        .call());
+            }
+
+            RevCommit commit = commitContent(repository, masterId, content, new PersonIdent(username, username + "@kathra.org"), message);
+            if (commit == null) {
+                if (masterId == null) {
+                    throw new ApiException(400, "The initial content of " + projectName + " is empty");
+                }
+                try (RevWalk revWalk = new RevWalk(repository)) {
+                    commit = revWalk.parseCommit(masterId);
+                }
+            }
 
-        while (attempt<=nbMaxAttempts){
+            // master first, GitLab takes the first branch pushed to an empty project as its default branch
+            List<RefSpec> refSpecs = Arrays.asList(
+                    new RefSpec(commit.name() + ":" + master),
+                    new RefSpec(commit.name() + ":" + dev));
+            List<RefLeaseSpec> leases = Arrays.asList(
+                    new RefLeaseSpec(master, (masterId != null ? masterId : ObjectId.zeroId()).name()),
+                    new RefLeaseSpec(dev, ObjectId.zeroId().name()));
+            Iterable<PushResult> pushResults = push(Git.wrap(repository), projectUrl, refSpecs, leases, cp);
+            checkPushResults(pushResults);
+            updateRefSnapshots(projectUrl, pushResults);
+            return toSourceRepositoryCommit(commit);
+        }
+    }
+
+    private Repository openObjectDatabase(Integer projectId, String projectName, String branch, File workingFolder, CredentialsProvider cp, String projectUrl) throws GitAPIException, InterruptedException, IOException {
+        if (mirrorCache != null && projectId != null) {
+            Repository mirror = updateMirror(projectId, cp, projectUrl);
             try {
-                return command.call();
-            } catch (GitAPIException e) {
-                logger.warn("Git command "+command.getClass().getName()+"failed ("+attempt+"/"+nbMaxAttempts+")");
-                Thread.sleep(millisBetweenAttemps);
-                exception = e;
-                attempt++;
+                // released by the caller once the commits are pushed
+                mirrorCache.read(projectId);
+                return mirror;
+            } finally {
+                mirrorCache.unlock(projectId);
+            }
+        }
+
+        Repository repository = Git.init().setBare(true).setDirectory(new File(workingFolder, projectName + Constants.DOT_GIT_EXT)).call().getRepository();
+        RefSnapshot refs = getRefSnapshot(cp, projectUrl);
+        String source = refs.get(Constants.R_HEADS + branch) != null ? Constants.R_HEADS + branch : refs.getDefaultBranch();
+        if (source != null) {
+            String fetchedRef = source;
+            callWithRetries("fetch", () -> Git.wrap(repository).fetch()
+                    .setRemote(projectUrl)
+                    .setRefSpecs(new RefSpec("+" + fetchedRef + ":" + fetchedRef))
+                    .setTagOpt(TagOpt.NO_TAGS)
+                    .setCredentialsProvider(cp)
+                    .call());
+            repository.updateRef(Constants.HEAD).link(source);
+        }
+        return repository;
+    }
+
+    /**
+     * Build the tree of the parent commit updated with the content, then the commit of this tree
+     *
+     * @return the new commit, null when the tree is unchanged
+     */
+    private RevCommit commitContent(Repository repository, ObjectId parentId, CommitContent content, PersonIdent ident, String message) throws IOException, ApiException {
+        try (ObjectInserter inserter = repository.newObjectInserter(); RevWalk revWalk = new RevWalk(repository)) {
+            RevCommit parent = parentId == null ? null : revWalk.parseCommit(parentId);
+            long start = System.nanoTime();
+            NavigableMap<String, ObjectId> blobs = content.insert(repository, inserter);
+            metrics.timer(Metrics.GIT_PHASE_SECONDS, "phase", "stage").record(System.nanoTime() - start);
+            start = System.nanoTime();
+
+            DirCache index = DirCache.newInCore();
+            DirCacheBuilder builder = index.builder();
+            Map<String, FileMode> existingModes = new HashMap<>();
+            if (parent != null && !content.isReplaceRepositoryContent()) {
+                try (TreeWalk treeWalk = new TreeWalk(repository)) {
+                    treeWalk.addTree(parent.getTree());
+                    treeWalk.setRecursive(true);
+                    while (treeWalk.next()) {
+                        String path = treeWalk.getPathString();
+                        if (blobs.containsKey(path)) {
+                            existingModes.put(path, treeWalk.getFileMode(0));
+                        } else if (!isReplacedByContent(path, blobs)) {
+                            DirCacheEntry entry = new DirCacheEntry(path);
+                            entry.setFileMode(treeWalk.getFileMode(0));
+                            entry.setObjectId(treeWalk.getObjectId(0));
+                            builder.add(entry);
+                        }
+                    }
+                }
+            }
+            for (Map.Entry<String, ObjectId> blob : blobs.entrySet()) {
+                DirCacheEntry entry = new DirCacheEntry(blob.getKey());
+                entry.setFileMode(FileMode.EXECUTABLE_FILE.equals(existingModes.get(blob.getKey())) ? FileMode.EXECUTABLE_FILE : FileMode.REGULAR_FILE);
+                entry.setObjectId(blob.getValue());
+                builder.add(entry);
+            }
+            builder.finish();
+
+            ObjectId treeId = index.writeTree(inserter);
+            if (parent != null ? treeId.equals(parent.getTree()) : index.getEntryCount() == 0) {
+                metrics.timer(Metrics.GIT_PHASE_SECONDS, "phase", "commit").record(System.nanoTime() - start);
+                return null;
+            }
+            CommitBuilder commitBuilder = new CommitBuilder();
+            commitBuilder.setTreeId(treeId);
+            if (parent != null) {
+                commitBuilder.setParentId(parent);
+            }
+            commitBuilder.setAuthor(ident);
+            commitBuilder.setCommitter(ident);
+            commitBuilder.setMessage(message);
+            ObjectId commitId = inserter.insert(commitBuilder);
+            inserter.flush();
+            metrics.timer(Metrics.GIT_PHASE_SECONDS, "phase", "commit").record(System.nanoTime() - start);
+            return revWalk.parseCommit(commitId);
+        }
+    }
+
+    /**
+     * A file of the content replaces a folder of the same name, and a folder of the content replaces a file
+     */
+    private boolean isReplacedByContent(String path, NavigableMap<String, ObjectId> blobs) {
+        String nextPath = blobs.ceilingKey(path + "/");
+        if (nextPath != null && nextPath.startsWith(path + "/")) {
+            return true;
+        }
+        for (int i = path.indexOf('/'); i != -1; i = path.indexOf('/', i + 1)) {
+            if (blobs.containsKey(path.substring(0, i))) {
+                return true;
             }
         }
-        throw exception;
+        return false;
+    }
+
+    private ObjectId createTag(Repository repository, ObjectId commitId, String tag, PersonIdent ident) throws IOException {
+        try (ObjectInserter inserter = repository.newObjectInserter()) {
+            TagBuilder tagBuilder = new TagBuilder();
+            tagBuilder.setObjectId(commitId, Constants.OBJ_COMMIT);
+            tagBuilder.setTag(tag);
+            tagBuilder.setTagger(ident);
+            ObjectId tagId = inserter.insert(tagBuilder);
+            inserter.flush();
+            return tagId;
+        }
+    }
+
+    private void checkPushResults(Iterable<PushResult> pushResults) throws ApiException {
+        PushRejectedException rejected = PushRejectedException.of(pushResults);
+        if (rejected != null) {
+            throw rejected;
+        }
+        if (logger.isDebugEnabled()) {
+            for (PushResult pushResult : pushResults) {
+                for (RemoteRefUpdate update : pushResult.getRemoteUpdates()) {
+                    logger.debug("Pushed " + update.getRemoteName() + " " + update.getStatus() + " to " + update.getNewObjectId().name());
+                }
+            }
+        }
+    }
+
+    public void createTag(Git git, String tag, boolean force) throws GitAPIException {
+        git.tag().setForceUpdate(force).setName(tag).call();
+    }
+
+
+
+    /**
+     * Run a git command built again for each attempt, retrying on git errors other than refused credentials.
+     * The command is timed as the given phase, retries included.
+     */
+    private <T> T callWithRetries(String phase, Callable<T> command) throws GitAPIException, InterruptedException {
+        long start = System.nanoTime();
+        try {
+            return Retrier.call(GIT_TRANSPORT, command, GitService::isRetryable);
+        } catch (GitAPIException | InterruptedException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        } finally {
+            metrics.timer(Metrics.GIT_PHASE_SECONDS, "phase", phase).record(System.nanoTime() - start);
+        }
+    }
+
+    private static boolean isRetryable(Exception e) {
+        return e instanceof GitAPIException && !String.valueOf(e.getMessage()).contains("not authorized");
     }
-}
\ No newline at end of file
+}
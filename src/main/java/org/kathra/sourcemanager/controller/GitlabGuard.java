@@ -0,0 +1,346 @@
+/*
+ * Copyright (c) 2020. The Kathra Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *    IRT SystemX (https://www.kathra.org/)
+ *
+ */
+
+package org.kathra.sourcemanager.controller;
+
+import com.mashape.unirest.http.HttpResponse;
+import org.apache.log4j.Logger;
+import org.gitlab.api.GitlabAPIException;
+import org.kathra.sourcemanager.Config;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.io.FileNotFoundException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gate in front of every call to GitLab.
+ * The number of calls in flight is bounded by a limit adapted to the GitLab latency: it shrinks when calls get slower
+ * than usual or fail, and grows while calls are fast and the limit is used. After consecutive server errors or timeouts
+ * the circuit opens and calls fail immediately, until a single probe call succeeds once the open period is over.
+ * Limit and circuit state are published as a JMX bean and as gauges, each call is timed by endpoint and status.
+ */
+public class GitlabGuard implements GitlabGuardMXBean {
+
+    public interface GitlabCall<T, E extends Exception> {
+        T call() throws E;
+    }
+
+    public enum State {CLOSED, OPEN, HALF_OPEN}
+
+    private static final Logger logger = Logger.getLogger(GitlabGuard.class.getName());
+
+    private static final int MIN_LIMIT = 2;
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final double SMOOTHING = 0.2;
+    // the baseline latency follows slow drifts of GitLab, the short term one reacts within a few calls
+    private static final double LONG_RTT_WEIGHT = 0.01;
+    private static final double SHORT_RTT_WEIGHT = 0.2;
+
+    // set while the thread holds a permit, calls made within a call (such as the token lookup of the caller's client) don't take another one
+    private static final ThreadLocal<Boolean> GUARDED = ThreadLocal.withInitial(() -> false);
+
+    private static GitlabGuard instance;
+
+    private final int maxLimit;
+    private final int failuresToOpen;
+    private final long openMs;
+
+    private double limit;
+    private int inFlight;
+    private double longRtt;
+    private double shortRtt;
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private boolean probing;
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong shortCircuited = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    public static synchronized GitlabGuard getInstance() {
+        if (instance == null) {
+            Config config = new Config();
+            instance = new GitlabGuard(config.getGitlabInitialConcurrency(), config.getGitlabMaxConcurrency(), config.getGitlabCircuitFailures(), config.getGitlabCircuitOpenSeconds());
+            register(instance);
+        }
+        return instance;
+    }
+
+    public GitlabGuard(int initialLimit, int maxLimit, int failuresToOpen, long openSeconds) {
+        this.limit = Math.max(MIN_LIMIT, Math.min(initialLimit, maxLimit));
+        this.maxLimit = maxLimit;
+        this.failuresToOpen = failuresToOpen;
+        this.openMs = TimeUnit.SECONDS.toMillis(openSeconds);
+    }
+
+    /**
+     * Call GitLab if the circuit is closed and the concurrency limit allows it.
+     * A call made by the thread within another call runs under the permit of the outer one, it is only timed.
+     *
+     * @param endpoint REST endpoint called, such as "GET /projects/:id", to time the calls by endpoint
+     * @throws GitlabUnavailableException if the call is refused
+     */
+    public <T, E extends Exception> T call(String endpoint, GitlabCall<T, E> call) throws E, GitlabUnavailableException {
+        if (GUARDED.get()) {
+            return nested(endpoint, call);
+        }
+        boolean probe = acquire();
+        long start = System.nanoTime();
+        boolean failed = false;
+        // the client library only tells the status of failed calls
+        String status = "2xx";
+        GUARDED.set(true);
+        try {
+            return call.call();
+        } catch (Exception e) {
+            failed = isGitlabFailure(e);
+            status = statusOf(e);
+            throw e;
+        } finally {
+            GUARDED.set(false);
+            release(probe, System.nanoTime() - start, failed);
+            record(endpoint, status, start);
+        }
+    }
+
+    /**
+     * Call GitLab as {@link #call}, responses with a server error status count as failures
+     */
+    public <T, E extends Exception> HttpResponse<T> callHttp(String endpoint, GitlabCall<HttpResponse<T>, E> call) throws E, GitlabUnavailableException {
+        if (GUARDED.get()) {
+            return nested(endpoint, call);
+        }
+        boolean probe = acquire();
+        long start = System.nanoTime();
+        boolean failed = true;
+        String status = "io_error";
+        GUARDED.set(true);
+        try {
+            HttpResponse<T> response = call.call();
+            failed = response.getStatus() >= 500;
+            status = String.valueOf(response.getStatus());
+            return response;
+        } catch (Exception e) {
+            failed = isGitlabFailure(e);
+            status = statusOf(e);
+            throw e;
+        } finally {
+            GUARDED.set(false);
+            release(probe, System.nanoTime() - start, failed);
+            record(endpoint, status, start);
+        }
+    }
+
+    /**
+     * Call made within another call, its outcome is left to the outer call
+     */
+    private <T, E extends Exception> T nested(String endpoint, GitlabCall<T, E> call) throws E {
+        long start = System.nanoTime();
+        String status = "2xx";
+        try {
+            T result = call.call();
+            if (result instanceof HttpResponse) {
+                status = String.valueOf(((HttpResponse<?>) result).getStatus());
+            }
+            return result;
+        } catch (Exception e) {
+            status = statusOf(e);
+            throw e;
+        } finally {
+            record(endpoint, status, start);
+        }
+    }
+
+    private void record(String endpoint, String status, long start) {
+        Metrics.getInstance().timer(Metrics.GITLAB_REQUEST_SECONDS, "endpoint", endpoint, "status", status).record(System.nanoTime() - start);
+    }
+
+    /**
+     * HTTP status of a failed call, io_error when GitLab didn't answer
+     */
+    static String statusOf(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof GitlabAPIException) {
+                return String.valueOf(((GitlabAPIException) cause).getResponseCode());
+            }
+            if (cause instanceof FileNotFoundException) {
+                return "404";
+            }
+        }
+        return "io_error";
+    }
+
+    /**
+     * @return true if the exception, or one of its causes, is a call refused by this guard
+     */
+    public static boolean isRejection(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof GitlabUnavailableException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Server errors, timeouts and refused connections, client errors don't tell anything about GitLab health
+     */
+    static boolean isGitlabFailure(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof GitlabAPIException && ((GitlabAPIException) cause).getResponseCode() >= 500) {
+                return true;
+            }
+            if (cause instanceof SocketTimeoutException || cause instanceof ConnectException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the call is the probe of a half open circuit
+     */
+    private synchronized boolean acquire() throws GitlabUnavailableException {
+        boolean probe = false;
+        if (state == State.OPEN) {
+            if (System.currentTimeMillis() - openedAt < openMs) {
+                shortCircuited.incrementAndGet();
+                throw new GitlabUnavailableException("GitLab is failing, calls are suspended for " + openMs / 1000 + " s");
+            }
+            state = State.HALF_OPEN;
+        }
+        if (state == State.HALF_OPEN) {
+            if (probing) {
+                shortCircuited.incrementAndGet();
+                throw new GitlabUnavailableException("GitLab is failing, waiting for a probe call to succeed");
+            }
+            probing = true;
+            probe = true;
+        }
+        if (inFlight >= (int) limit) {
+            rejected.incrementAndGet();
+            if (probe) {
+                probing = false;
+            }
+            throw new GitlabUnavailableException("GitLab is busy, " + inFlight + " calls in flight");
+        }
+        inFlight++;
+        return probe;
+    }
+
+    private synchronized void release(boolean probe, long rttNanos, boolean failed) {
+        int callsInFlight = inFlight;
+        inFlight--;
+        if (probe) {
+            probing = false;
+        }
+        if (failed) {
+            failures.incrementAndGet();
+            consecutiveFailures++;
+            limit = Math.max(MIN_LIMIT, limit * 0.9);
+            if (probe || (state == State.CLOSED && consecutiveFailures >= failuresToOpen)) {
+                open();
+            }
+            return;
+        }
+        consecutiveFailures = 0;
+        if (state == State.HALF_OPEN && probe) {
+            state = State.CLOSED;
+            logger.info("GitLab answers again, circuit closed");
+        }
+        adjustLimit(rttNanos, callsInFlight);
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+        logger.warn("GitLab is failing (" + consecutiveFailures + " consecutive failures), circuit open for " + openMs / 1000 + " s");
+    }
+
+    private void adjustLimit(long rttNanos, int callsInFlight) {
+        if (longRtt == 0) {
+            longRtt = rttNanos;
+            shortRtt = rttNanos;
+            return;
+        }
+        longRtt += (rttNanos - longRtt) * LONG_RTT_WEIGHT;
+        shortRtt += (rttNanos - shortRtt) * SHORT_RTT_WEIGHT;
+        double gradient = Math.max(0.5, Math.min(1.0, LATENCY_TOLERANCE * longRtt / shortRtt));
+        double newLimit = limit * gradient + Math.sqrt(limit);
+        if (callsInFlight < limit / 2) {
+            // the limit is not used, its latency has not been measured
+            newLimit = Math.min(newLimit, limit);
+        }
+        limit = Math.max(MIN_LIMIT, Math.min(maxLimit, limit * (1 - SMOOTHING) + newLimit * SMOOTHING));
+    }
+
+    @Override
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    @Override
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    @Override
+    public synchronized String getState() {
+        return state.name();
+    }
+
+    @Override
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    @Override
+    public long getShortCircuited() {
+        return shortCircuited.get();
+    }
+
+    @Override
+    public long getFailures() {
+        return failures.get();
+    }
+
+    private static void register(GitlabGuard guard) {
+        try {
+            ObjectName objectName = new ObjectName("org.kathra.sourcemanager:type=GitlabGuard");
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(objectName)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(guard, objectName);
+            }
+        } catch (JMException e) {
+            logger.warn("Unable to publish GitLab guard metrics: " + e.getMessage());
+        }
+        Metrics metrics = Metrics.getInstance();
+        metrics.gauge("sourcemanager_gitlab_concurrency_limit", guard::getLimit);
+        metrics.gauge("sourcemanager_gitlab_in_flight", guard::getInFlight);
+        metrics.gauge("sourcemanager_gitlab_circuit_open", () -> State.valueOf(guard.getState()) == State.CLOSED ? 0 : 1);
+        metrics.gauge("sourcemanager_gitlab_rejected", guard::getRejected);
+        metrics.gauge("sourcemanager_gitlab_short_circuited", guard::getShortCircuited);
+        metrics.gauge("sourcemanager_gitlab_failures", guard::getFailures);
+    }
+}
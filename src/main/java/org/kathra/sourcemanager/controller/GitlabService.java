@@ -25,22 +25,32 @@ import com.mashape.unirest.http.JsonNode;
 import com.mashape.unirest.http.Unirest;
 import com.mashape.unirest.http.exceptions.UnirestException;
 import org.kathra.core.model.Membership;
+import org.kathra.sourcemanager.Config;
 import org.kathra.utils.Session;
 import org.kathra.utils.KathraException;
 import org.kathra.utils.sanitizing.SanitizeUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
 import org.gitlab.api.GitlabAPI;
 import org.gitlab.api.GitlabAPIException;
+import org.gitlab.api.Pagination;
 import org.gitlab.api.TokenType;
 import org.gitlab.api.models.*;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Jérémy Guillemot <Jeremy.Guillemot@kathra.org>
@@ -49,41 +59,63 @@ public class GitlabService {
     public static final String PRIVATE_TOKEN = "PRIVATE-TOKEN";
     private String host;
     private String apiToken;
-    private GitlabAPI adminClient;
-    private GitlabAPI userClient;
+    GitlabAPI adminClient;
     protected Session session;
-    private String impersonationTokenForUser;
+    private GitlabGuard guard = GitlabGuard.getInstance();
+    private static ExpiringCache<GitlabProject> projectCache;
+    private static ExpiringCache<GitlabGroup> groupCache;
+    private static ExpiringCache<GitlabProject> projectAccessCache;
+    private static UserCredentialsCache userCredentialsCache;
     private Logger logger = Logger.getLogger(GitlabService.class.getName());
 
     public GitlabService(String host, String apiToken, Session session) throws Exception {
         this.host = host;
         this.apiToken = apiToken;
         this.session = session;
-        adminClient = GitlabAPI.connect(host, apiToken);
-        userClient = getGitlabClientForUser();
+        adminClient = withTimeouts(GitlabAPI.connect(host, apiToken));
     }
 
-    private GitlabAPI getGitlabClientForUser() throws UnirestException, IOException {
-        this.impersonationTokenForUser = retrieveImpersonationTokenForUser();
+    private UserCredentialsCache.UserCredentials getCredentialsForUser(String callerName) throws UnirestException, IOException {
+        String impersonationTokenForUser = retrieveImpersonationTokenForUser(callerName);
         if (impersonationTokenForUser == null) {
-            // User not found, use admin token
-            return GitlabAPI.connect(host, apiToken);
+            return UserCredentialsCache.UserCredentials.UNKNOWN_USER;
         }
-        return GitlabAPI.connect(host, impersonationTokenForUser, TokenType.PRIVATE_TOKEN);
+        return new UserCredentialsCache.UserCredentials(withTimeouts(GitlabAPI.connect(host, impersonationTokenForUser, TokenType.PRIVATE_TOKEN)), impersonationTokenForUser);
+    }
+
+    /**
+     * Bound GitLab calls in time, a stuck call is reported as a failure to the guard instead of holding a thread
+     */
+    private GitlabAPI withTimeouts(GitlabAPI client) {
+        int timeoutMs = (int) TimeUnit.SECONDS.toMillis(new Config().getGitlabTimeoutSeconds());
+        return client.setConnectionTimeout(timeoutMs).setRequestTimeout(timeoutMs).setResponseReadTimeout(timeoutMs);
     }
 
     public String retrieveImpersonationTokenForUser() throws UnirestException, IOException {
+        return retrieveImpersonationTokenForUser(session.getCallerName());
+    }
+
+    /**
+     * @return the impersonation token of the caller, null if GitLab doesn't know the caller
+     */
+    private String retrieveImpersonationTokenForUser(String callerName) throws UnirestException, IOException {
         // TODO manage technical user not registred in gitlab
         GitlabUser user;
         try {
-            user = adminClient.getUserViaSudo(session.getCallerName());
-        } catch(Exception e) {
+            user = guard.call("GET /user", () -> adminClient.getUserViaSudo(callerName));
+        } catch (FileNotFoundException e) {
             return null;
+        } catch (GitlabAPIException e) {
+            // sudo as an unknown user is refused as a forbidden access, any other failure isn't an answer
+            if (e.getResponseCode() == 403 || e.getResponseCode() == 404) {
+                return null;
+            }
+            throw e;
         }
-        HttpResponse<JsonNode> jsonNodeHttpResponse = Unirest.get(host + "/api/v4/users/{id}/impersonation_tokens")
+        HttpResponse<JsonNode> jsonNodeHttpResponse = guard.callHttp("GET /users/:id/impersonation_tokens", () -> Unirest.get(host + "/api/v4/users/{id}/impersonation_tokens")
                 .routeParam("id", user.getId().toString())
                 .header(PRIVATE_TOKEN, apiToken)
-                .asJson();
+                .asJson());
 
         JSONArray array = jsonNodeHttpResponse.getBody().getArray();
 
@@ -97,12 +129,12 @@ public class GitlabService {
             }
         }
 
-        jsonNodeHttpResponse = Unirest.post(host + "/api/v4/users/{id}/impersonation_tokens")
+        jsonNodeHttpResponse = guard.callHttp("POST /users/:id/impersonation_tokens", () -> Unirest.post(host + "/api/v4/users/{id}/impersonation_tokens")
                 .header(PRIVATE_TOKEN, apiToken)
                 .routeParam("id", user.getId().toString())
                 .queryString("name", "KathraGitlabSourceManager")
                 .queryString("scopes[]", Arrays.asList("api", "read_user"))
-                .asJson();
+                .asJson());
         return (String) jsonNodeHttpResponse.getBody().getObject().get("token");
     }
 
@@ -110,16 +142,101 @@ public class GitlabService {
         return adminClient;
     }
 
-    public GitlabAPI getUserClient() {
-        return userClient;
+    /**
+     * @return the client of the caller, the admin client if the caller is unknown from GitLab
+     */
+    public GitlabAPI getUserClient() throws IOException {
+        GitlabAPI client = getUserCredentialsCache().get(session.getCallerName(), this::getCredentialsForUser).getClient();
+        return client != null ? client : adminClient;
+    }
+
+    public String getImpersonationTokenForUser() throws IOException {
+        return getUserCredentialsCache().get(session.getCallerName(), this::getCredentialsForUser).getImpersonationToken();
+    }
+
+    /**
+     * Forget the caller credentials if GitLab refused them, so that the next call retrieves new ones
+     *
+     * @return true if the credentials have been invalidated
+     */
+    public boolean invalidateUserCredentialsIfUnauthorized(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            boolean unauthorized = (cause instanceof GitlabAPIException && ((GitlabAPIException) cause).getResponseCode() == 401)
+                    || (cause.getMessage() != null && cause.getMessage().contains("not authorized"));
+            if (unauthorized) {
+                logger.info("GitLab credentials of " + session.getCallerName() + " refused, they will be retrieved again");
+                getUserCredentialsCache().invalidate(session.getCallerName());
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static synchronized UserCredentialsCache getUserCredentialsCache() {
+        if (userCredentialsCache == null) {
+            Config config = new Config();
+            userCredentialsCache = new UserCredentialsCache(config.getUserCredentialsMaxEntries(), config.getUserCredentialsTtlSeconds(), config.getUserCredentialsNegativeTtlSeconds());
+        }
+        return userCredentialsCache;
+    }
+
+    public static synchronized ExpiringCache<GitlabProject> getProjectCache() {
+        if (projectCache == null) {
+            Config config = new Config();
+            projectCache = new ExpiringCache<>(config.getProjectCacheMaxEntries(), config.getProjectCacheTtlSeconds(), config.getProjectCacheNegativeTtlSeconds());
+        }
+        return projectCache;
+    }
+
+    public static synchronized ExpiringCache<GitlabGroup> getGroupCache() {
+        if (groupCache == null) {
+            Config config = new Config();
+            groupCache = new ExpiringCache<>(config.getProjectCacheMaxEntries(), config.getGroupCacheTtlSeconds(), 0);
+        }
+        return groupCache;
+    }
+
+    /**
+     * Projects as seen by each caller, keyed by project id then caller name, only the accessible ones are cached
+     */
+    public static synchronized ExpiringCache<GitlabProject> getProjectAccessCache() {
+        if (projectAccessCache == null) {
+            Config config = new Config();
+            projectAccessCache = new ExpiringCache<>(config.getProjectCacheMaxEntries(), config.getProjectAccessTtlSeconds(), 0);
+        }
+        return projectAccessCache;
+    }
+
+    static String toProjectAccessCacheKey(Integer projectId, String callerName) {
+        return projectId + "\u0000" + callerName;
     }
 
-    public String getImpersonationTokenForUser() {
-        return impersonationTokenForUser;
+    static String toPathCacheKey(String path) {
+        return StringUtils.strip(path, "/").toLowerCase(Locale.ROOT);
     }
 
+    /**
+     * Resolve a project from its path, through the project cache
+     *
+     * @throws FileNotFoundException if no project exists at this path
+     */
     public GitlabProject getProjectFromPath(String sourceRepositoryPath) throws IOException {
-        sourceRepositoryPath = SanitizeUtils.sanitizePathParameter(sourceRepositoryPath);
+        String sanitizedPath = SanitizeUtils.sanitizePathParameter(sourceRepositoryPath);
+        GitlabProject project = getProjectCache().get(toPathCacheKey(sanitizedPath), key -> loadProjectFromPath(sanitizedPath));
+        if (project == null) {
+            throw new FileNotFoundException("No project found at " + sanitizedPath);
+        }
+        return project;
+    }
+
+    /**
+     * Forget the project cached at this path, to be called once a project is created or deleted
+     */
+    public void invalidateProject(String sourceRepositoryPath) {
+        getProjectCache().invalidate(toPathCacheKey(SanitizeUtils.sanitizePathParameter(sourceRepositoryPath)));
+    }
+
+    private GitlabProject loadProjectFromPath(String sourceRepositoryPath) throws IOException {
         int i = sourceRepositoryPath.lastIndexOf('/');
         String sourceRespositoryName;
         String namespace;
@@ -131,14 +248,69 @@ public class GitlabService {
             sourceRespositoryName = sourceRepositoryPath;
         }
 
-        return adminClient.getProject(namespace, sourceRespositoryName);
+        try {
+            return guard.call("GET /projects/:id", () -> adminClient.getProject(namespace, sourceRespositoryName));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Download a single file through the repository files API, using the caller permissions
+     *
+     * @param projectId GitLab project id
+     * @param ref       Branch, tag or commit to read the file from
+     * @param filepath  Path of the file in the repository
+     * @return the downloaded file, deleted once read; null if the caller has no impersonation token, the admin token
+     * is never used on behalf of a caller
+     * @throws FileNotFoundException if the file doesn't exist at this ref
+     */
+    public File getRawFile(Integer projectId, String ref, String filepath) throws UnirestException, IOException {
+        String token = getImpersonationTokenForUser();
+        if (token == null) {
+            return null;
+        }
+        String url = host + "/api/v4/projects/" + projectId + "/repository/files/" + encodePath(filepath) + "/raw";
+        HttpResponse<InputStream> response = guard.callHttp("GET /projects/:id/repository/files/:file_path/raw", () -> Unirest.get(url)
+                .queryString("ref", ref)
+                .header(PRIVATE_TOKEN, token)
+                .asBinary());
+        if (response.getStatus() == 404) {
+            throw new FileNotFoundException("File " + filepath + " not found at " + ref);
+        } else if (response.getStatus() != 200) {
+            throw new IOException("Unable to download file " + filepath + " at " + ref + ", status " + response.getStatus());
+        }
+        File file = TemporaryFileDataSource.createTemporaryFile(filepath);
+        try (InputStream in = response.getRawBody()) {
+            FileUtils.copyInputStreamToFile(in, file);
+        }
+        return file;
+    }
+
+    /**
+     * List a single page of the files of a repository with the caller's client, the client library only lists all the
+     * pages at once
+     *
+     * @param path      Folder to list, the root of the repository if null
+     * @param recursive true to list the files of the sub folders too
+     */
+    public List<GitlabRepositoryTree> getRepositoryTree(GitlabProject project, String path, String ref, boolean recursive, Pagination pagination) throws IOException {
+        String tailUrl = GitlabProject.URL + "/" + project.getId() + "/repository" + GitlabRepositoryTree.URL + pagination.asQuery()
+                .appendIf("path", path)
+                .appendIf("ref", ref)
+                .appendIf("recursive", recursive);
+        return Arrays.asList(getUserClient().retrieve().to(tailUrl, GitlabRepositoryTree[].class));
+    }
+
+    private String encodePath(String path) throws UnsupportedEncodingException {
+        return URLEncoder.encode(StringUtils.removeStart(path, "/"), "UTF-8").replace("+", "%20");
     }
 
     public void addMemberships(List<Membership> memberships) throws Exception {
         for (Membership m : memberships) {
             GitlabUser user;
             try {
-                user = adminClient.getUserViaSudo(m.getMemberName());
+                user = guard.call("GET /user", () -> adminClient.getUserViaSudo(m.getMemberName()));
             } catch (FileNotFoundException e) {
                 logger.error("Unable to find member " + m.getMemberName());
                 break;
@@ -147,11 +319,17 @@ public class GitlabService {
             try {
                 GitlabProject project;
                 project = getProjectFromPath(m.getPath());
-                adminClient.addProjectMember(project, user, membershipRoleToGitlabAccessLevel(m.getRole(),false));
+                guard.call("POST /projects/:id/members", () -> {
+                    adminClient.addProjectMember(project, user, membershipRoleToGitlabAccessLevel(m.getRole(),false));
+                    return null;
+                });
             } catch (FileNotFoundException e) {
-                GitlabGroup group = adminClient.getGroup(SanitizeUtils.sanitizePathParameter(m.getPath()));
+                GitlabGroup group = guard.call("GET /groups/:id", () -> adminClient.getGroup(SanitizeUtils.sanitizePathParameter(m.getPath())));
                 try {
-                    adminClient.addGroupMember(group, user, membershipRoleToGitlabAccessLevel(m.getRole(),true));
+                    guard.call("POST /groups/:id/members", () -> {
+                        adminClient.addGroupMember(group, user, membershipRoleToGitlabAccessLevel(m.getRole(),true));
+                        return null;
+                    });
                 } catch (GitlabAPIException e2) {
                     if (e2.getResponseCode() == 409) break;
                     else throw e;
@@ -164,7 +342,11 @@ public class GitlabService {
     }
 
     public void createDeployKey(String keyName, String sshPublicKey, String sourceRepositoryPath) throws Exception {
-        adminClient.createDeployKey(getProjectFromPath(sourceRepositoryPath).getId(), keyName, sshPublicKey);
+        Integer projectId = getProjectFromPath(sourceRepositoryPath).getId();
+        guard.call("POST /projects/:id/deploy_keys", () -> {
+            adminClient.createDeployKey(projectId, keyName, sshPublicKey);
+            return null;
+        });
     }
 
     /**
@@ -175,14 +357,20 @@ public class GitlabService {
      */
     public void deleteMemberships(List<Membership> memberships) throws Exception {
         for (Membership m : memberships) {
-            GitlabUser user = adminClient.getUserViaSudo(m.getMemberName());
+            GitlabUser user = guard.call("GET /user", () -> adminClient.getUserViaSudo(m.getMemberName()));
             try {
                 GitlabProject project;
                 project = getProjectFromPath(m.getPath());
-                adminClient.deleteProjectMember(project, user);
+                guard.call("DELETE /projects/:id/members/:user_id", () -> {
+                    adminClient.deleteProjectMember(project, user);
+                    return null;
+                });
             } catch (FileNotFoundException e) {
-                GitlabGroup group = adminClient.getGroup(SanitizeUtils.sanitizePathParameter(m.getPath()));
-                adminClient.deleteGroupMember(group, user);
+                GitlabGroup group = guard.call("GET /groups/:id", () -> adminClient.getGroup(SanitizeUtils.sanitizePathParameter(m.getPath())));
+                guard.call("DELETE /groups/:id/members/:user_id", () -> {
+                    adminClient.deleteGroupMember(group, user);
+                    return null;
+                });
             }
         }
     }
@@ -199,7 +387,7 @@ public class GitlabService {
         GitlabProject project;
         try {
             project = getProjectFromPath(sourceRepositoryPath);
-            List<GitlabProjectMember> projectMembers = adminClient.getProjectMembers(project);
+            List<GitlabProjectMember> projectMembers = guard.call("GET /projects/:id/members", () -> adminClient.getProjectMembers(project));
             for (GitlabProjectMember m : projectMembers) {
                 memberships.add(new Membership()
                         .memberName(m.getUsername())
@@ -209,12 +397,12 @@ public class GitlabService {
         } catch (FileNotFoundException e) {
             GitlabGroup group;
             try {
-                group = adminClient.getGroup(SanitizeUtils.sanitizePathParameter(sourceRepositoryPath));
+                group = guard.call("GET /groups/:id", () -> adminClient.getGroup(SanitizeUtils.sanitizePathParameter(sourceRepositoryPath)));
             } catch (FileNotFoundException e2) {
                 throw new KathraException("Unable to find project or group " + sourceRepositoryPath, e2.getCause(), KathraException.ErrorCode.NOT_FOUND);
             }
 
-            List<GitlabGroupMember> groupMembers = adminClient.getGroupMembers(group);
+            List<GitlabGroupMember> groupMembers = guard.call("GET /groups/:id/members", () -> adminClient.getGroupMembers(group));
 
             for (GitlabGroupMember m : groupMembers) {
                 memberships.add(new Membership()
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2020. The Kathra Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *    IRT SystemX (https://www.kathra.org/)
+ *
+ */
+
+package org.kathra.sourcemanager.controller;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+import org.gitlab.api.models.GitlabGroup;
+import org.gitlab.api.models.GitlabProject;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Receive GitLab system hooks to forget cached projects and groups as soon as they are created, moved or deleted,
+ * and the project access of the callers as soon as a membership changes.
+ */
+public class GitlabSystemHook implements HttpHandler {
+
+    public static final String PATH = "/hooks/gitlab";
+    private static final String TOKEN_HEADER = "X-Gitlab-Token";
+
+    private static final Logger logger = Logger.getLogger(GitlabSystemHook.class.getName());
+
+    private final ExpiringCache<GitlabProject> projectCache;
+    private final ExpiringCache<GitlabGroup> groupCache;
+    private final ExpiringCache<GitlabProject> projectAccessCache;
+    private final String secretToken;
+
+    /**
+     * @param projectCache Cache of projects by path
+     * @param groupCache         Cache of groups by full path
+     * @param projectAccessCache Cache of the projects seen by each caller
+     * @param secretToken        Secret token configured on the system hook, no check when empty
+     */
+    public GitlabSystemHook(ExpiringCache<GitlabProject> projectCache, ExpiringCache<GitlabGroup> groupCache, ExpiringCache<GitlabProject> projectAccessCache, String secretToken) {
+        this.projectCache = projectCache;
+        this.groupCache = groupCache;
+        this.projectAccessCache = projectAccessCache;
+        this.secretToken = secretToken;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            if (StringUtils.isNotEmpty(secretToken) && !secretToken.equals(exchange.getRequestHeaders().getFirst(TOKEN_HEADER))) {
+                exchange.sendResponseHeaders(401, -1);
+                return;
+            }
+            String body;
+            try (InputStream in = exchange.getRequestBody()) {
+                body = IOUtils.toString(in, StandardCharsets.UTF_8);
+            }
+            try {
+                onEvent(new JSONObject(body));
+            } catch (JSONException e) {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(204, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    void onEvent(JSONObject event) {
+        String eventName = event.optString("event_name");
+        if (eventName.startsWith("project_")) {
+            invalidateProject(event.optString("path_with_namespace"));
+            invalidateProject(event.optString("old_path_with_namespace"));
+            invalidateProjectAccess(event.optString("project_id"));
+        } else if (eventName.startsWith("group_")) {
+            // every project under a renamed or deleted group changes path
+            invalidateNamespace(event.optString("full_path"));
+            invalidateNamespace(event.optString("old_full_path"));
+            projectAccessCache.invalidateAll();
+        } else if (eventName.endsWith("_team")) {
+            // user_add_to_team, user_update_for_team, user_remove_from_team: a project membership changed
+            invalidateProjectAccess(event.optString("project_id"));
+        } else if (eventName.endsWith("_group")) {
+            // a group membership changes the access to every project of the group and of its subgroups
+            projectAccessCache.invalidateAll();
+        }
+    }
+
+    private void invalidateProjectAccess(String projectId) {
+        if (StringUtils.isEmpty(projectId)) {
+            return;
+        }
+        String prefix = GitlabService.toProjectAccessCacheKey(Integer.valueOf(projectId), "");
+        projectAccessCache.invalidateIf(k -> k.startsWith(prefix));
+    }
+
+    private void invalidateProject(String path) {
+        if (StringUtils.isEmpty(path)) {
+            return;
+        }
+        logger.debug("Project " + path + " changed, removed from cache");
+        projectCache.invalidate(GitlabService.toPathCacheKey(path));
+    }
+
+    private void invalidateNamespace(String path) {
+        if (StringUtils.isEmpty(path)) {
+            return;
+        }
+        logger.debug("Group " + path + " changed, its projects are removed from cache");
+        String key = GitlabService.toPathCacheKey(path);
+        String prefix = key + "/";
+        projectCache.invalidateIf(k -> k.startsWith(prefix));
+        groupCache.invalidate(key);
+        groupCache.invalidateIf(k -> k.startsWith(prefix));
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2020. The Kathra Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *    IRT SystemX (https://www.kathra.org/)
+ *
+ */
+
+package org.kathra.sourcemanager.controller;
+
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.log4j.Logger;
+import org.kathra.sourcemanager.Config;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+
+/**
+ * Internal HTTP server, beside the service API, for endpoints called by GitLab or by the platform.
+ * Disabled unless KATHRA_SOURCEMANAGER_MANAGEMENT_PORT is set.
+ */
+public class ManagementServer {
+
+    private static final Logger logger = Logger.getLogger(ManagementServer.class.getName());
+
+    private static ManagementServer instance;
+
+    private final HttpServer server;
+    private final Set<String> paths = new HashSet<>();
+
+    public static synchronized ManagementServer getInstance() {
+        if (instance == null) {
+            instance = new ManagementServer(new Config().getManagementPort());
+        }
+        return instance;
+    }
+
+    private ManagementServer(int port) {
+        HttpServer httpServer = null;
+        if (port > 0) {
+            try {
+                httpServer = HttpServer.create(new InetSocketAddress(port), 0);
+                httpServer.setExecutor(Executors.newFixedThreadPool(2, runnable -> {
+                    Thread thread = new Thread(runnable, "ManagementServer");
+                    thread.setDaemon(true);
+                    return thread;
+                }));
+                httpServer.start();
+                logger.info("Management server listening on port " + port);
+            } catch (IOException e) {
+                logger.error("Unable to start management server on port " + port, e);
+                httpServer = null;
+            }
+        }
+        this.server = httpServer;
+    }
+
+    public boolean isEnabled() {
+        return server != null;
+    }
+
+    /**
+     * Serve a path with the handler, only the first handler registered for a path is kept
+     */
+    public synchronized void register(String path, HttpHandler handler) {
+        if (server == null || !paths.add(path)) {
+            return;
+        }
+        server.createContext(path, handler);
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright (c) 2020. The Kathra Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *    IRT SystemX (https://www.kathra.org/)
+ *
+ */
+
+package org.kathra.sourcemanager.controller;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.apache.log4j.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Timers and gauges of the service, published as JMX beans and in the Prometheus text format on {@link #PATH}
+ * of the management server. Meters are identified by a name and tags given as key, value pairs.
+ */
+public class Metrics implements HttpHandler {
+
+    public static final String PATH = "/metrics";
+
+    public static final String OPERATION_SECONDS = "sourcemanager_operation_seconds";
+    public static final String GIT_PHASE_SECONDS = "sourcemanager_git_phase_seconds";
+    public static final String GITLAB_REQUEST_SECONDS = "sourcemanager_gitlab_request_seconds";
+
+    private static final double[] BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+
+    private static final Logger logger = Logger.getLogger(Metrics.class.getName());
+
+    private static Metrics instance;
+
+    public interface TimerMXBean {
+        long getCount();
+
+        double getTotalSeconds();
+
+        double getMeanSeconds();
+
+        double getMaxSeconds();
+    }
+
+    public interface GaugeMXBean {
+        double getValue();
+    }
+
+    private abstract static class Meter {
+        final String name;
+        final String[] tags;
+
+        Meter(String name, String[] tags) {
+            this.name = name;
+            this.tags = tags;
+        }
+
+        abstract String getType();
+
+        abstract void write(StringBuilder out);
+
+        String labels(String extraKey, String extraValue) {
+            StringBuilder labels = new StringBuilder();
+            for (int i = 0; i + 1 < tags.length; i += 2) {
+                labels.append(labels.length() == 0 ? "{" : ",").append(tags[i]).append("=\"").append(escape(tags[i + 1])).append('"');
+            }
+            if (extraKey != null) {
+                labels.append(labels.length() == 0 ? "{" : ",").append(extraKey).append("=\"").append(extraValue).append('"');
+            }
+            return labels.length() == 0 ? "" : labels.append('}').toString();
+        }
+    }
+
+    public static class Timer extends Meter implements TimerMXBean {
+        private final LongAdder[] buckets = new LongAdder[BUCKETS.length];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        Timer(String name, String[] tags) {
+            super(name, tags);
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void record(long nanos) {
+            double seconds = nanos / 1e9;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                if (seconds <= BUCKETS[i]) {
+                    buckets[i].increment();
+                    break;
+                }
+            }
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        @Override
+        public long getCount() {
+            return count.sum();
+        }
+
+        @Override
+        public double getTotalSeconds() {
+            return totalNanos.sum() / 1e9;
+        }
+
+        @Override
+        public double getMeanSeconds() {
+            long calls = count.sum();
+            return calls == 0 ? 0 : getTotalSeconds() / calls;
+        }
+
+        @Override
+        public double getMaxSeconds() {
+            return maxNanos.get() / 1e9;
+        }
+
+        @Override
+        String getType() {
+            return "histogram";
+        }
+
+        @Override
+        void write(StringBuilder out) {
+            long cumulated = 0;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                cumulated += buckets[i].sum();
+                out.append(name).append("_bucket").append(labels("le", String.valueOf(BUCKETS[i]))).append(' ').append(cumulated).append('\n');
+            }
+            long calls = count.sum();
+            out.append(name).append("_bucket").append(labels("le", "+Inf")).append(' ').append(calls).append('\n');
+            out.append(name).append("_sum").append(labels(null, null)).append(' ').append(getTotalSeconds()).append('\n');
+            out.append(name).append("_count").append(labels(null, null)).append(' ').append(calls).append('\n');
+        }
+    }
+
+    public static class Gauge extends Meter implements GaugeMXBean {
+        private final Supplier<? extends Number> value;
+
+        Gauge(String name, String[] tags, Supplier<? extends Number> value) {
+            super(name, tags);
+            this.value = value;
+        }
+
+        @Override
+        public double getValue() {
+            try {
+                return value.get().doubleValue();
+            } catch (RuntimeException e) {
+                logger.debug("Unable to read gauge " + name + ": " + e.getMessage());
+                return Double.NaN;
+            }
+        }
+
+        @Override
+        String getType() {
+            return "gauge";
+        }
+
+        @Override
+        void write(StringBuilder out) {
+            out.append(name).append(labels(null, null)).append(' ').append(getValue()).append('\n');
+        }
+    }
+
+    public interface TimedCall<T, E extends Exception> {
+        T call() throws E;
+    }
+
+    // sorted by name then tags, so that the meters of a name are written together
+    private final ConcurrentSkipListMap<String, Meter> meters = new ConcurrentSkipListMap<>();
+    private final Map<String, String> descriptions = new ConcurrentHashMap<>();
+
+    public static synchronized Metrics getInstance() {
+        if (instance == null) {
+            instance = new Metrics();
+            instance.describe(OPERATION_SECONDS, "Duration of the source manager operations, by operation and outcome");
+            instance.describe(GIT_PHASE_SECONDS, "Duration of the git phases of the operations, retries included");
+            instance.describe(GITLAB_REQUEST_SECONDS, "Duration of the GitLab REST calls, by endpoint and status");
+        }
+        return instance;
+    }
+
+    public void describe(String name, String description) {
+        descriptions.put(name, description);
+    }
+
+    public Timer timer(String name, String... tags) {
+        Meter timer = meters.get(key(name, tags));
+        return (Timer) (timer != null ? timer : add(new Timer(name, tags)));
+    }
+
+    /**
+     * Publish a value read on demand, only the first gauge registered for a name and tags is kept
+     */
+    public void gauge(String name, Supplier<? extends Number> value, String... tags) {
+        if (!meters.containsKey(key(name, tags))) {
+            add(new Gauge(name, tags, value));
+        }
+    }
+
+    public <T, E extends Exception> T time(String name, TimedCall<T, E> call, String... tags) throws E {
+        long start = System.nanoTime();
+        try {
+            return call.call();
+        } finally {
+            timer(name, tags).record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * All meters in the Prometheus text exposition format
+     */
+    public String scrape() {
+        StringBuilder out = new StringBuilder();
+        String currentName = null;
+        for (Meter meter : meters.values()) {
+            if (!meter.name.equals(currentName)) {
+                currentName = meter.name;
+                String description = descriptions.get(currentName);
+                if (description != null) {
+                    out.append("# HELP ").append(currentName).append(' ').append(description).append('\n');
+                }
+                out.append("# TYPE ").append(currentName).append(' ').append(meter.getType()).append('\n');
+            }
+            meter.write(out);
+        }
+        return out.toString();
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static String key(String name, String[] tags) {
+        StringBuilder key = new StringBuilder(name).append('{');
+        for (String tag : tags) {
+            key.append(tag).append('\u0000');
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return the meter added, or the one added meanwhile by another thread
+     */
+    private Meter add(Meter meter) {
+        Meter existing = meters.putIfAbsent(key(meter.name, meter.tags), meter);
+        if (existing != null) {
+            return existing;
+        }
+        register(meter);
+        return meter;
+    }
+
+    private static void register(Meter meter) {
+        try {
+            StringBuilder objectName = new StringBuilder("org.kathra.sourcemanager:type=Metrics,name=").append(meter.name);
+            for (int i = 0; i + 1 < meter.tags.length; i += 2) {
+                objectName.append(',').append(meter.tags[i]).append('=').append(ObjectName.quote(meter.tags[i + 1]));
+            }
+            ObjectName name = new ObjectName(objectName.toString());
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(meter, name);
+            }
+        } catch (JMException e) {
+            logger.warn("Unable to publish metric " + meter.name + ": " + e.getMessage());
+        }
+    }
+
+    private static String escape(String value) {
+        return String.valueOf(value).replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
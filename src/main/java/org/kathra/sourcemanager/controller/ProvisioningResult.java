@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2020. The Kathra Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *    IRT SystemX (https://www.kathra.org/)
+ *
+ */
+
+
+package org.kathra.sourcemanager.controller;
+
+import org.kathra.core.model.SourceRepository;
+
+/**
+ * Outcome of one repository of a bulk creation: the repository created, or the error it was refused with
+ */
+public class ProvisioningResult {
+
+    private final SourceRepository sourceRepository;
+    private final Exception error;
+
+    private ProvisioningResult(SourceRepository sourceRepository, Exception error) {
+        this.sourceRepository = sourceRepository;
+        this.error = error;
+    }
+
+    public static ProvisioningResult created(SourceRepository sourceRepository) {
+        return new ProvisioningResult(sourceRepository, null);
+    }
+
+    public static ProvisioningResult failed(SourceRepository sourceRepository, Exception error) {
+        return new ProvisioningResult(sourceRepository, error);
+    }
+
+    /**
+     * @return the repository requested, completed with its urls and provider id once created
+     */
+    public SourceRepository getSourceRepository() {
+        return sourceRepository;
+    }
+
+    /**
+     * @return null if the repository was created
+     */
+    public Exception getError() {
+        return error;
+    }
+
+    public boolean isCreated() {
+        return error == null;
+    }
+}
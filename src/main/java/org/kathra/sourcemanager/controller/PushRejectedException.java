@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2020. The Kathra Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *    IRT SystemX (https://www.kathra.org/)
+ *
+ */
+
+
+package org.kathra.sourcemanager.controller;
+
+import org.eclipse.jgit.transport.PushResult;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.kathra.utils.ApiException;
+
+/**
+ * Push refused by the remote for at least one ref, answered with a 409. The message gives the status of every ref
+ * pushed, an atomic push leaves all of them unchanged.
+ */
+public class PushRejectedException extends ApiException {
+
+    public static final int STATUS = 409;
+
+    private final boolean stale;
+
+    public PushRejectedException(String message) {
+        this(message, false);
+    }
+
+    public PushRejectedException(String message, boolean stale) {
+        super(STATUS, message);
+        this.stale = stale;
+    }
+
+    /**
+     * @return true if a branch was refused because it moved since it was read, the same content can then be
+     * committed again on top of its new head
+     */
+    public boolean isStale() {
+        return stale;
+    }
+
+    /**
+     * @return null if every ref was updated or already up to date
+     */
+    public static PushRejectedException of(Iterable<PushResult> pushResults) {
+        StringBuilder statuses = new StringBuilder();
+        boolean rejected = false;
+        boolean stale = false;
+        for (PushResult pushResult : pushResults) {
+            for (RemoteRefUpdate update : pushResult.getRemoteUpdates()) {
+                rejected |= update.getStatus() != RemoteRefUpdate.Status.OK && update.getStatus() != RemoteRefUpdate.Status.UP_TO_DATE;
+                stale |= isStale(update);
+                statuses.append(statuses.length() == 0 ? "" : ", ").append(update.getRemoteName()).append(' ').append(update.getStatus());
+                if (update.getMessage() != null) {
+                    statuses.append(" (").append(update.getMessage()).append(')');
+                }
+            }
+        }
+        return rejected ? new PushRejectedException("Unable to push " + statuses, stale) : null;
+    }
+
+    private static boolean isStale(RemoteRefUpdate update) {
+        switch (update.getStatus()) {
+            case REJECTED_NONFASTFORWARD:
+            case REJECTED_REMOTE_CHANGED:
+                return true;
+            case REJECTED_OTHER_REASON:
+                // refused by the server itself, when it saw the branch move after its advertisement, JGit based
+                // servers spell non fast forward without the second hyphen
+                String message = String.valueOf(update.getMessage());
+                return message.contains("non-fast-forward") || message.contains("non-fast forward") || message.contains("fetch first") || message.contains("stale info");
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2020. The Kathra Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *    IRT SystemX (https://www.kathra.org/)
+ *
+ */
+
+
+package org.kathra.sourcemanager.controller;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Heads and tags of a project with their ids, as advertised by the remote at once, and the default branch.
+ * Snapshots are immutable, an update gives a new snapshot.
+ */
+public class RefSnapshot {
+
+    private final Map<String, ObjectId> refs;
+    private final String defaultBranch;
+
+    /**
+     * @param refs          ids by full ref name, only heads and tags are kept
+     * @param defaultBranch full name of the branch the remote HEAD points to, null for an empty project
+     */
+    public RefSnapshot(Map<String, ObjectId> refs, String defaultBranch) {
+        TreeMap<String, ObjectId> kept = new TreeMap<>();
+        refs.forEach((name, id) -> {
+            if (name.startsWith(Constants.R_HEADS) || name.startsWith(Constants.R_TAGS)) {
+                kept.put(name, id);
+            }
+        });
+        this.refs = Collections.unmodifiableMap(kept);
+        this.defaultBranch = defaultBranch;
+    }
+
+    /**
+     * @return the id of the ref, null if it doesn't exist
+     */
+    public ObjectId get(String refName) {
+        return refs.get(refName);
+    }
+
+    public String getDefaultBranch() {
+        return defaultBranch;
+    }
+
+    /**
+     * Short names of the branches, then of the tags
+     */
+    public List<String> getBranchesAndTags() {
+        List<String> names = new ArrayList<>();
+        for (String prefix : new String[]{Constants.R_HEADS, Constants.R_TAGS}) {
+            for (String name : refs.keySet()) {
+                if (name.startsWith(prefix)) {
+                    names.add(Repository.shortenRefName(name));
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @param id the new id of the ref, null or zero once deleted
+     */
+    public RefSnapshot update(String refName, ObjectId id) {
+        Map<String, ObjectId> updated = new TreeMap<>(refs);
+        if (id == null || ObjectId.zeroId().equals(id)) {
+            updated.remove(refName);
+        } else {
+            updated.put(refName, id.copy());
+        }
+        // the first branch pushed to an empty project becomes its default branch
+        String updatedDefault = defaultBranch == null && refName.startsWith(Constants.R_HEADS) && updated.containsKey(refName) ? refName : defaultBranch;
+        return new RefSnapshot(updated, updatedDefault);
+    }
+}
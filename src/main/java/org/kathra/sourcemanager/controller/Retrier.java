@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2020. The Kathra Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *    IRT SystemX (https://www.kathra.org/)
+ *
+ */
+
+package org.kathra.sourcemanager.controller;
+
+import org.apache.log4j.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Retry engine shared by the calls to GitLab.
+ * Attempts are spaced by a jittered exponential backoff waited on the calling thread, within the attempts, time and
+ * retry budgets of their operation. The caller keeps what it holds during the backoff: a lock shared by the requests
+ * of a project is taken by each attempt instead, as for the fetches of the git mirrors. Each operation publishes its
+ * counters as a JMX bean.
+ */
+public class Retrier {
+
+    public interface RetryStatsMXBean {
+        long getCalls();
+
+        long getRetries();
+
+        long getFailures();
+
+        long getRetriesDenied();
+
+        long getWaitMs();
+    }
+
+    /**
+     * Retry settings and counters of an operation
+     */
+    public static class Operation implements RetryStatsMXBean {
+        // every call earns a fifth of a retry, so that retries stay below a fifth of the calls during an outage
+        private static final double RETRY_RATIO = 0.2;
+        private static final double MAX_RETRY_TOKENS = 20;
+
+        private final String name;
+        private final int maxAttempts;
+        private final long baseDelayMs;
+        private final long maxDelayMs;
+        private final long maxElapsedMs;
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong retries = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong retriesDenied = new AtomicLong();
+        private final AtomicLong waitMs = new AtomicLong();
+        private double retryTokens = MAX_RETRY_TOKENS;
+
+        /**
+         * @param name         Operation name, used in logs and metrics
+         * @param maxAttempts  Attempts including the first one
+         * @param baseDelayMs  Wait before the first retry, doubled for each following one
+         * @param maxDelayMs   Longest wait between two attempts
+         * @param maxElapsedMs No retry is scheduled past this time since the first attempt
+         */
+        public Operation(String name, int maxAttempts, long baseDelayMs, long maxDelayMs, long maxElapsedMs) {
+            this.name = name;
+            this.maxAttempts = maxAttempts;
+            this.baseDelayMs = baseDelayMs;
+            this.maxDelayMs = maxDelayMs;
+            this.maxElapsedMs = maxElapsedMs;
+            registerMBean(this);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Half of the exponential delay, plus a random part up to the other half
+         */
+        long delayBeforeAttempt(int attempt) {
+            long delay = Math.min(maxDelayMs, baseDelayMs << Math.min(attempt - 2, 20));
+            return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        }
+
+        private synchronized void onCall() {
+            calls.incrementAndGet();
+            retryTokens = Math.min(MAX_RETRY_TOKENS, retryTokens + RETRY_RATIO);
+        }
+
+        private synchronized boolean tryRetry() {
+            if (retryTokens < 1) {
+                retriesDenied.incrementAndGet();
+                return false;
+            }
+            retryTokens--;
+            retries.incrementAndGet();
+            return true;
+        }
+
+        @Override
+        public long getCalls() {
+            return calls.get();
+        }
+
+        @Override
+        public long getRetries() {
+            return retries.get();
+        }
+
+        @Override
+        public long getFailures() {
+            return failures.get();
+        }
+
+        @Override
+        public long getRetriesDenied() {
+            return retriesDenied.get();
+        }
+
+        @Override
+        public long getWaitMs() {
+            return waitMs.get();
+        }
+    }
+
+    private static final Logger logger = Logger.getLogger(Retrier.class.getName());
+
+    private Retrier() {
+    }
+
+    /**
+     * Call until success, a non retryable exception or the exhaustion of the operation budgets.
+     * Every attempt runs on the calling thread, the exception of the last attempt is thrown as is.
+     */
+    public static <T> T call(Operation operation, Callable<T> call, Predicate<Exception> retryable) throws Exception {
+        operation.onCall();
+        long start = System.currentTimeMillis();
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return call.call();
+            } catch (Exception e) {
+                long delay = operation.delayBeforeAttempt(attempt + 1);
+                boolean retry = attempt < operation.maxAttempts
+                        && !(e instanceof InterruptedException)
+                        && retryable.test(e)
+                        && System.currentTimeMillis() - start + delay <= operation.maxElapsedMs
+                        && operation.tryRetry();
+                if (!retry) {
+                    operation.failures.incrementAndGet();
+                    throw e;
+                }
+                logger.warn(operation.name + " failed (" + attempt + "/" + operation.maxAttempts + "), retry in " + delay + " ms: " + e.getMessage());
+                operation.waitMs.addAndGet(delay);
+                Thread.sleep(delay);
+            }
+        }
+    }
+
+    private static void registerMBean(Operation operation) {
+        try {
+            ObjectName objectName = new ObjectName("org.kathra.sourcemanager:type=Retries,name=" + ObjectName.quote(operation.name));
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(objectName)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(operation, objectName);
+            }
+        } catch (JMException e) {
+            logger.warn("Unable to publish retry metrics of " + operation.name + ": " + e.getMessage());
+        }
+        Metrics metrics = Metrics.getInstance();
+        metrics.gauge("sourcemanager_retry_calls", operation::getCalls, "operation", operation.name);
+        metrics.gauge("sourcemanager_retry_retries", operation::getRetries, "operation", operation.name);
+        metrics.gauge("sourcemanager_retry_failures", operation::getFailures, "operation", operation.name);
+        metrics.gauge("sourcemanager_retry_denied", operation::getRetriesDenied, "operation", operation.name);
+        metrics.gauge("sourcemanager_retry_wait_seconds", () -> operation.getWaitMs() / 1000.0, "operation", operation.name);
+    }
+}
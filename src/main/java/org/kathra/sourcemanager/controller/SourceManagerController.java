@@ -31,6 +31,7 @@ import org.kathra.sourcemanager.service.SourceManagerService;
 import org.kathra.utils.ApiException;
 import org.kathra.utils.ApiResponse;
 import org.kathra.utils.KathraException;
+import org.kathra.utils.Session;
 import org.kathra.utils.ZipUtils;
 import org.kathra.utils.sanitizing.SanitizeUtils;
 import javassist.NotFoundException;
@@ -39,13 +40,14 @@ import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
 import org.eclipse.jgit.api.Git;
-import org.eclipse.jgit.api.Status;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.transport.CredentialsProvider;
 import org.eclipse.jgit.transport.UsernamePasswordCredentialsProvider;
 import org.gitlab.api.GitlabAPIException;
+import org.gitlab.api.Pagination;
 import org.gitlab.api.models.*;
-import org.json.JSONArray;
-import org.zeroturnaround.zip.ZipUtil;
 
 import javax.activation.FileDataSource;
 import javax.inject.Named;
@@ -56,7 +58,15 @@ import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
-import java.util.stream.IntStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * Authors: quentin.semanne, jeremy.guillemot
@@ -70,15 +80,38 @@ public class SourceManagerController implements SourceManagerService {
     private GitlabService gitlabService;
     protected GitService gitService;
     private Config config = new Config();
-
-    private int maxAttempt = 5;
-    private int attemptWaitMs = 250;
+    private ExpiringCache<GitlabGroup> groupCache = GitlabService.getGroupCache();
+    private ExpiringCache<GitlabProject> projectAccessCache = GitlabService.getProjectAccessCache();
+    private GitlabGuard gitlabGuard = GitlabGuard.getInstance();
+    private Metrics metrics = Metrics.getInstance();
+    private AdmissionController admission = AdmissionController.getInstance();
+    private BranchWriteQueue branchWriteQueue = BranchWriteQueue.getInstance();
+    private CommitBatcher commitBatcher = CommitBatcher.getInstance();
+    private final ConcurrentHashMap<String, CompletableFuture<GitlabGroup>> groupCreations = new ConcurrentHashMap<>();
+
+    // bulk creations run their repositories on this pool, whatever the number of bulk requests
+    private static final ExecutorService PROVISIONERS = Executors.newFixedThreadPool(Math.max(1, new Config().getProvisioningThreads()), runnable -> {
+        Thread thread = new Thread(runnable, "SourceManager-provision");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // deploy keys of all the repositories being created are enabled on this pool
+    private static final ExecutorService DEPLOY_KEY_ENABLERS = Executors.newFixedThreadPool(Math.max(1, new Config().getDeployKeyThreads()), runnable -> {
+        Thread thread = new Thread(runnable, "SourceManager-deploy-key");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final Retrier.Operation CREATE_DEFAULT_BRANCHES = new Retrier.Operation("gitlab-create-default-branches", 5, 500, 4000, 15000);
 
     Logger logger = Logger.getLogger(SourceManagerController.class.getName());
 
     public SourceManagerController() throws Exception {
         this.gitService = new GitService();
         this.gitlabService = new GitlabService(config.getGitlabUrl(), config.getGitlabApiToken(), getCurrentSession());
+        ManagementServer.getInstance().register(GitlabSystemHook.PATH, new GitlabSystemHook(GitlabService.getProjectCache(), GitlabService.getGroupCache(), GitlabService.getProjectAccessCache(), config.getGitlabSystemHookToken()));
+        ManagementServer.getInstance().register(Metrics.PATH, metrics);
     }
 
     public SourceManagerController(GitlabService gitlabService) throws Exception {
@@ -95,10 +128,18 @@ public class SourceManagerController implements SourceManagerService {
      * @return SourceRepositoryBranch
      */
     public String createBranch(String sourceRepositoryPath, String branch, String branchRef) throws Exception {
+        return serve("createBranch", admission.getRest(), () -> doCreateBranch(sourceRepositoryPath, branch, branchRef));
+    }
+
+    private String doCreateBranch(String sourceRepositoryPath, String branch, String branchRef) throws Exception {
         if (branchRef == null || branchRef.isEmpty()) branchRef = "master";
         GitlabProject projectFromPath = gitlabService.getProjectFromPath(sourceRepositoryPath);
-        gitlabService.getUserClient().createBranch(projectFromPath.getId(), branch, branchRef);
-        GitlabBranch gitlabBranch = gitlabService.getUserClient().getBranch(projectFromPath.getId(), branch);
+        final String ref = branchRef;
+        asUser("POST /projects/:id/repository/branches", () -> {
+            gitlabService.getUserClient().createBranch(projectFromPath.getId(), branch, ref);
+            return null;
+        });
+        GitlabBranch gitlabBranch = asUser("GET /projects/:id/repository/branches/:branch", () -> gitlabService.getUserClient().getBranch(projectFromPath.getId(), branch));
         //branch.commit(getSourceRepositoryCommitFromGitlabBranchCommit(gitlabBranch.getCommit()));
         return gitlabBranch.getName();
     }
@@ -114,11 +155,32 @@ public class SourceManagerController implements SourceManagerService {
      * @return SourceRepositoryCommit
      */
     public SourceRepositoryCommit createCommit(String sourceRepositoryPath, String branch, FileDataSource file, String filepath, Boolean uncompress, String tag, Boolean replaceRepositoryContent) throws Exception {
+        // every spelling of the repository path queues and batches its commits together
+        String repositoryKey = GitlabService.toPathCacheKey(SanitizeUtils.sanitizePathParameter(sourceRepositoryPath));
+        if (commitBatcher != null) {
+            // the commits of a caller to a branch within the batching window are written and pushed together
+            CommitContent content = newCommitContent(file, filepath, uncompress, replaceRepositoryContent);
+            SourceRepositoryCommit commit = commitBatcher.submit(repositoryKey + '\u0000' + branch + '\u0000' + gitlabService.session.getCallerName(),
+                    new CommitBatcher.PendingCommit(content, tag),
+                    batch -> branchWriteQueue.run(repositoryKey, branch, () ->
+                            serve("createCommitBatch", admission.getGit(), () -> doCreateCommits(sourceRepositoryPath, branch, batch))));
+            if (commit == null) {
+                throw new KathraException("No changes detected, aborting request.").errorCode(KathraException.ErrorCode.NOT_MODIFIED);
+            }
+            return commit;
+        }
+        // queued before the admission, a commit waiting for its branch doesn't hold a git slot
+        return branchWriteQueue.run(repositoryKey, branch, () ->
+                serve("createCommit", admission.getGit(), () -> doCreateCommit(sourceRepositoryPath, branch, file, filepath, uncompress, tag, replaceRepositoryContent)));
+    }
 
+    /**
+     * The upload is read in place, archives entry by entry, without any copy on disk
+     */
+    private CommitContent newCommitContent(FileDataSource file, String filepath, Boolean uncompress, Boolean replaceRepositoryContent) {
         String folderPath = "";
         String fileName = null;
 
-        if (uncompress == null) uncompress = false;
         if (filepath != null) {
             int index = filepath.lastIndexOf("/");
             if (index==-1)
@@ -131,9 +193,34 @@ public class SourceManagerController implements SourceManagerService {
                 fileName = filepath.substring(index+1);
             }
         }
+        return new CommitContent(file.getFile(), permanentFileName(file.getFile(), fileName), folderPath, uncompress != null && uncompress, replaceRepositoryContent != null && replaceRepositoryContent);
+    }
+
+    /**
+     * Write a batch of commits on top of each other in a single push, the batch was gathered for one caller
+     */
+    private Void doCreateCommits(String sourceRepositoryPath, String branch, List<CommitBatcher.PendingCommit> batch) throws Exception {
+        File workingFolder = gitService.createWorkingFolder();
+        try {
+            String username = gitlabService.session.getCallerName();
+            GitlabProject project = getGitlabProject(sourceRepositoryPath);
+            // in a batch, a content may differ from the branch head only once the previous ones are committed
+            if (batch.size() == 1 && isUnchanged(project, branch, batch.get(0).getContent())) {
+                return null;
+            }
+            gitService.createCommitsWithoutWorktree(project.getId(), project.getName(), branch, workingFolder, getCredentialProviders(), project.getHttpUrl(), batch, username, "Update autogenerated components");
+            return null;
+        } catch (Exception e) {
+            gitlabService.invalidateUserCredentialsIfUnauthorized(e);
+            throw e;
+        } finally {
+            gitService.releaseWorkingFolder(workingFolder, config.isDeleteFolderAfterGit());
+        }
+    }
 
-        File permFile = tmpFileToPermanentFile(file.getFile(),fileName);
-        File workingFolder = null;
+    private SourceRepositoryCommit doCreateCommit(String sourceRepositoryPath, String branch, FileDataSource file, String filepath, Boolean uncompress, String tag, Boolean replaceRepositoryContent) throws Exception {
+        CommitContent content = newCommitContent(file, filepath, uncompress, replaceRepositoryContent);
+        File workingFolder = gitService.createWorkingFolder();
         try {
             String username = gitlabService.session.getCallerName();
 
@@ -141,60 +228,110 @@ public class SourceManagerController implements SourceManagerService {
 
             String projectName = project.getName();
 
-            workingFolder = gitService.createWorkingFolder();
+            if (isUnchanged(project, branch, content)) {
+                throw new KathraException("No changes detected, aborting request.").errorCode(KathraException.ErrorCode.NOT_MODIFIED);
+            }
 
             final CredentialsProvider cp = getCredentialProviders();
 
-            Git git = gitService.cloneProject(projectName, branch, workingFolder, cp, project.getHttpUrl(), false);
+            if (config.isDirectCommitEnabled()) {
+                SourceRepositoryCommit commit = gitService.createCommitWithoutWorktree(project.getId(), projectName, branch, workingFolder, cp, project.getHttpUrl(), content, username, "Update autogenerated components", tag);
+                if (commit == null) {
+                    throw new KathraException("No changes detected, aborting request.").errorCode(KathraException.ErrorCode.NOT_MODIFIED);
+                }
+                return commit;
+            }
+
+            Git git = gitService.cloneProject(project.getId(), projectName, branch, workingFolder, cp, project.getHttpUrl(), false);
 
             File projectFolder = new File(workingFolder, projectName);
-            if (replaceRepositoryContent != null && replaceRepositoryContent) {
-                File[] files = projectFolder.listFiles();
-                for (File fileToDelete : files){
-                    if (!fileToDelete.getName().equals(".git"))
-                        FileUtils.forceDelete(fileToDelete);
+            for (int replay = 0; ; replay++) {
+                // only the paths differing from the branch head are written, removed and staged
+                long start = System.nanoTime();
+                List<String> changes = content.applyTo(git.getRepository(), projectFolder);
+                metrics.timer(Metrics.GIT_PHASE_SECONDS, "phase", content.isUncompress() ? "unpack" : "copy").record(System.nanoTime() - start);
+                if (changes.isEmpty()) {
+                    throw new KathraException("No changes detected, aborting request.").errorCode(KathraException.ErrorCode.NOT_MODIFIED);
                 }
-            }
-            if (uncompress != null && uncompress) {
-                ZipUtil.unpack(permFile, projectFolder);
-            } else {
-                File destPath;
-                if (!folderPath.isEmpty()) {
-                    destPath = new File(projectFolder, folderPath);
-                } else
-                    destPath = projectFolder;
-                FileUtils.copyFileToDirectory(permFile, destPath, true);
-            }
-
-            Status status = git.status().call();
-            SourceRepositoryCommit commit;
-            if (status.hasUncommittedChanges() || !status.getUntracked().isEmpty()) {
-                commit = gitService.createCommit(git, username, "Update autogenerated components");
-                gitService.pushToGitRepoWithUserCredentials(cp, git);
+
+                SourceRepositoryCommit commit = gitService.createCommit(git, username, "Update autogenerated components", changes);
                 // if tag exists, update and force
                 if (StringUtils.isNotEmpty(tag)) {
                     gitService.createTag(git, tag, true);
-                    gitService.pushTagOnlyToGitRepoWithUserCredentials(cp, git, true);
                 }
-            } else {
-                throw new KathraException("No changes detected, aborting request.").errorCode(KathraException.ErrorCode.NOT_MODIFIED);
+                try {
+                    gitService.pushBranchAndTag(cp, git, branch, tag);
+                    return commit;
+                } catch (PushRejectedException e) {
+                    if (!e.isStale() || replay >= config.getPushReplays()) {
+                        throw e;
+                    }
+                    // another writer moved the branch, the content is applied again on its new head
+                    logger.info("Branch " + branch + " of " + sourceRepositoryPath + " moved while committing, replaying the content on its new head");
+                    gitService.resetToRemoteBranch(cp, git, branch);
+                }
             }
-            return commit;
+        } catch (Exception e) {
+            gitlabService.invalidateUserCredentialsIfUnauthorized(e);
+            throw e;
         } finally {
-            try {
-                if (workingFolder == null && config.isDeleteFolderAfterGit()) {
-                    FileUtils.forceDelete(workingFolder);
-                    FileUtils.deleteDirectory(workingFolder);
-                }
-            } catch(Exception e) {
+            gitService.releaseWorkingFolder(workingFolder, config.isDeleteFolderAfterGit());
+        }
+    }
 
+    /**
+     * Compare the content with the blob ids of the branch files, so that a resubmitted content is answered without
+     * any clone. The files are read from the project mirror when it holds the branch head listed for the caller,
+     * otherwise they are listed through the API only if that precheck is enabled.
+     *
+     * @return false if the branch, or the folder of the content, doesn't exist or can't be read
+     */
+    private boolean isUnchanged(GitlabProject project, String branch, CommitContent content) throws Exception {
+        if (!gitService.isMirrorEnabled() && !config.isUnchangedPrecheckEnabled()) {
+            return false;
+        }
+        CredentialsProvider cp = getCredentialProviders();
+        RefSnapshot refs = gitService.isMirrorEnabled() ? gitService.getRefSnapshot(cp, project.getHttpUrl()) : gitService.getCachedRefSnapshot(cp, project.getHttpUrl());
+        ObjectId head = refs == null ? null : refs.get(Constants.R_HEADS + branch);
+        if (refs != null && head == null) {
+            // a branch yet to be created can't hold the content, no need to ask
+            return false;
+        }
+        String folder = content.getComparedFolder();
+        Map<String, ObjectId> branchFiles = head == null ? null : gitService.readMirroredFiles(project.getId(), head, folder);
+        if (branchFiles == null) {
+            if (!config.isUnchangedPrecheckEnabled()) {
+                return false;
             }
-            try {
-                FileUtils.deleteQuietly(permFile);
-            } catch(Exception e) {
+            branchFiles = listBranchFiles(project, branch, folder);
+            if (branchFiles == null) {
+                return false;
+            }
+        }
+        return content.isUnchanged(branchFiles);
+    }
 
+    /**
+     * @return blob ids by path of the branch files listed through the API, null if the branch or the folder doesn't
+     * exist or can't be listed
+     */
+    private Map<String, ObjectId> listBranchFiles(GitlabProject project, String branch, String folder) throws Exception {
+        List<GitlabRepositoryTree> tree;
+        try {
+            tree = asUserPages("GET /projects/:id/repository/tree", pagination -> gitlabService.getRepositoryTree(project, StringUtils.defaultIfEmpty(folder, null), branch, folder == null, pagination));
+        } catch (IOException e) {
+            if (!(e instanceof FileNotFoundException)) {
+                logger.warn("Unable to list the files of branch " + branch + " of project " + project.getId() + ", cloning it: " + e.getMessage());
             }
+            return null;
         }
+        Map<String, ObjectId> branchFiles = new HashMap<>();
+        for (GitlabRepositoryTree entry : tree) {
+            if (!"tree".equals(entry.getType())) {
+                branchFiles.put(entry.getPath(), ObjectId.fromString(entry.getId()));
+            }
+        }
+        return branchFiles;
     }
 
     /**
@@ -204,6 +341,10 @@ public class SourceManagerController implements SourceManagerService {
      * @return Folder
      */
     public Folder createFolder(Folder folder) throws Exception {
+        return serve("createFolder", admission.getRest(), () -> doCreateFolder(folder));
+    }
+
+    private Folder doCreateFolder(Folder folder) throws Exception {
 
         Path path = Paths.get(SanitizeUtils.sanitizePathParameter(folder.getPath()));
         Path parentPath = path.getParent();
@@ -214,18 +355,19 @@ public class SourceManagerController implements SourceManagerService {
             GitlabGroup parent = null;
             if (parentPath != null) {
                 try {
-                    parent = gitlabService.getAdminClient().getGroup(parentPath.toString());
+                    parent = gitlabGuard.call("GET /groups/:id", () -> gitlabService.getAdminClient().getGroup(parentPath.toString()));
                 } catch (FileNotFoundException e) {
                     parent = createFolderHierarchyIfNotExists(parentPath);
                 }
             }
             GitlabGroup existingGroup = null;
             try {
-                existingGroup = gitlabService.getUserClient().getGroup(path.toString());
+                existingGroup = asUser("GET /groups/:id", () -> gitlabService.getUserClient().getGroup(path.toString()));
             } catch (Exception e) {
 
             }
-            gitlabGroup = (existingGroup != null) ? existingGroup : gitlabService.getUserClient().createGroup(groupName, groupName, null, null, null, parent.getId());
+            final Integer parentId = parent.getId();
+            gitlabGroup = (existingGroup != null) ? existingGroup : asUser("POST /groups", () -> gitlabService.getUserClient().createGroup(groupName, groupName, null, null, null, parentId));
 
         } catch (GitlabAPIException e) {
             throw new ApiException(409, "A group with the same name already exists at the requested path");
@@ -237,14 +379,24 @@ public class SourceManagerController implements SourceManagerService {
 
     @Override
     public String deleteSourceRepository(String sourceRepositoryPath) throws Exception {
+        return serve("deleteSourceRepository", admission.getRest(), () -> doDeleteSourceRepository(sourceRepositoryPath));
+    }
+
+    private String doDeleteSourceRepository(String sourceRepositoryPath) throws Exception {
         try {
             GitlabProject project = gitlabService.getProjectFromPath(sourceRepositoryPath);
             if (project == null) {
                 throw new KathraException("No project found.").errorCode(KathraException.ErrorCode.NOT_FOUND);
             }
-            gitlabService.getUserClient().deleteProject(project.getId());
+            asUser("DELETE /projects/:id", () -> {
+                gitlabService.getUserClient().deleteProject(project.getId());
+                return null;
+            });
+            gitlabService.invalidateProject(sourceRepositoryPath);
         } catch(KathraException e) {
             throw e;
+        } catch(GitlabUnavailableException e) {
+            throw new KathraException(e.getMessage(), e, KathraException.ErrorCode.SERVICE_UNAVAILABLE);
         } catch(Exception e) {
             e.printStackTrace();
             throw new KathraException("Internal error.").errorCode(KathraException.ErrorCode.INTERNAL_SERVER_ERROR);
@@ -260,6 +412,29 @@ public class SourceManagerController implements SourceManagerService {
      * @return SourceRepository
      */
     public SourceRepository createSourceRepository(SourceRepository sourceRepository, List<String> deployKeys) throws Exception {
+        return serve("createSourceRepository", admission.getRest(), () -> doCreateSourceRepository(sourceRepository, deployKeys, null));
+    }
+
+    /**
+     * Create a new Source Repository seeded with an initial content, committed on master and dev in a single push
+     * instead of creating the default branches through the API
+     *
+     * @param sourceRepository SourceRepository object to be created (required)
+     * @param deployKeys       A list of deployKey Ids to enable in the created source repository (optional)
+     * @param file             Initial content (required)
+     * @param filepath         The location in which the file has to be commited (optional)
+     * @param uncompress       Boolean to indicate if provided file should be uncompressed before being commited (optional, default to false)
+     * @return SourceRepository
+     */
+    public SourceRepository createSourceRepository(SourceRepository sourceRepository, List<String> deployKeys, FileDataSource file, String filepath, Boolean uncompress) throws Exception {
+        CommitContent initialContent = newCommitContent(file, filepath, uncompress, false);
+        return serve("createSourceRepository", admission.getGit(), () -> doCreateSourceRepository(sourceRepository, deployKeys, initialContent));
+    }
+
+    /**
+     * @param initialContent content of the first commit, null to create the default branches through the API
+     */
+    private SourceRepository doCreateSourceRepository(SourceRepository sourceRepository, List<String> deployKeys, CommitContent initialContent) throws Exception {
 
         Path path = Paths.get(SanitizeUtils.sanitizePathParameter(sourceRepository.getPath()));
         Path parentPath = path.getParent();
@@ -274,9 +449,8 @@ public class SourceManagerController implements SourceManagerService {
             keysMap = new HashMap();
         }
 
-        try {
-            group = gitlabService.getUserClient().getGroup(parentPath.toString());
-        } catch (FileNotFoundException e) {
+        group = findGroup(parentPath.toString());
+        if (group == null) {
             group = createFolderHierarchyIfNotExists(parentPath);
         }
 
@@ -285,24 +459,34 @@ public class SourceManagerController implements SourceManagerService {
                     .errorCode(KathraException.ErrorCode.SERVICE_UNAVAILABLE);
 
         try {
-            GitlabProject gitlabProject = gitlabService.getUserClient().createProjectForGroup(sourceRepoName, group);
-            for (Integer keyId : keysMap.values()) {
-                enableDeployKeyForProject(gitlabProject, keyId);
-            }
+            final GitlabGroup parentGroup = group;
+            GitlabProject gitlabProject = asUser("POST /projects", () -> gitlabService.getUserClient().createProjectForGroup(sourceRepoName, parentGroup));
 
             if (gitlabProject == null)
                 throw new KathraException("Cannot create the project " + sourceRepository.getName() + " in the group path: (" + parentPath + ", " + group.getName() + ")").errorCode(KathraException.ErrorCode.SERVICE_UNAVAILABLE);
+            gitlabService.invalidateProject(gitlabProject.getPathWithNamespace());
+            enableDeployKeysForProject(gitlabProject, keysMap.values());
 
             sourceRepository = map(sourceRepository, gitlabProject);
 
-            createDefaultsBranches(gitlabProject);
+            if (initialContent != null) {
+                seedProject(gitlabProject, initialContent);
+            } else {
+                createDefaultsBranches(gitlabProject);
+            }
 
             return sourceRepository;
         } catch (Exception e) {
             if (e.getMessage().contains("has already been taken")) {
-                Optional<GitlabProject> existingProject = gitlabService.getUserClient().getGroupProjects(group).stream().filter(gitlabProject -> gitlabProject.getName().equals(sourceRepoName)).findFirst();
+                final GitlabGroup parentGroup = group;
+                Optional<GitlabProject> existingProject = asUser("GET /groups/:id/projects", () -> gitlabService.getUserClient().getGroupProjects(parentGroup)).stream().filter(gitlabProject -> gitlabProject.getName().equals(sourceRepoName)).findFirst();
                 if (existingProject.isPresent()) {
-                    createDefaultsBranches(existingProject.get());
+                    if (initialContent != null) {
+                        // a master already pushed is kept as the parent of the initial content
+                        seedProject(existingProject.get(), initialContent);
+                    } else {
+                        createDefaultsBranches(existingProject.get());
+                    }
                     return map(sourceRepository, existingProject.get());
                 }
                 throw new ApiException(409, "A source repository with the same name already exists at the requested path");
@@ -311,6 +495,94 @@ public class SourceManagerController implements SourceManagerService {
         }
     }
 
+    /**
+     * Create source repositories in bulk. Their parent folders are resolved or created once each, then the
+     * repositories are created in parallel on a bounded pool, each with its deploy keys and default branches.
+     *
+     * @param sourceRepositories SourceRepositories to create (required)
+     * @param deployKeys         Deploy keys enabled on every repository (optional)
+     * @return the result of each repository, in the order given
+     */
+    public List<ProvisioningResult> createSourceRepositories(List<SourceRepository> sourceRepositories, List<String> deployKeys) throws Exception {
+        long start = System.nanoTime();
+        String outcome = "success";
+        try {
+            if (deployKeys != null && !deployKeys.isEmpty()) {
+                // unknown keys would refuse every repository
+                checkDeployKeysExists(deployKeys);
+            }
+            Session session = getCurrentSession();
+
+            // shared parents first, so that their creation isn't raced by the repositories they hold
+            Map<Path, Future<GitlabGroup>> parents = new LinkedHashMap<>();
+            for (SourceRepository sourceRepository : sourceRepositories) {
+                Path parentPath = getParentPath(sourceRepository);
+                if (parentPath != null) {
+                    parents.computeIfAbsent(parentPath, path -> provision(session, () -> serve("createFolder", admission.getRest(), () -> {
+                        GitlabGroup group = findGroup(path.toString());
+                        return group != null ? group : createFolderHierarchyIfNotExists(path);
+                    })));
+                }
+            }
+            Map<Path, Exception> parentErrors = new HashMap<>();
+            for (Map.Entry<Path, Future<GitlabGroup>> parent : parents.entrySet()) {
+                try {
+                    parent.getValue().get();
+                } catch (ExecutionException e) {
+                    parentErrors.put(parent.getKey(), e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+                }
+            }
+
+            List<Future<SourceRepository>> creations = new ArrayList<>();
+            for (SourceRepository sourceRepository : sourceRepositories) {
+                Path parentPath = getParentPath(sourceRepository);
+                Exception parentError = parentPath != null ? parentErrors.get(parentPath) : null;
+                creations.add(provision(session, () -> {
+                    if (parentError != null) {
+                        throw parentError;
+                    }
+                    return serve("createSourceRepository", admission.getRest(), () -> doCreateSourceRepository(sourceRepository, deployKeys, null));
+                }));
+            }
+            List<ProvisioningResult> results = new ArrayList<>();
+            for (int i = 0; i < sourceRepositories.size(); i++) {
+                try {
+                    results.add(ProvisioningResult.created(creations.get(i).get()));
+                } catch (ExecutionException e) {
+                    outcome = "partial";
+                    results.add(ProvisioningResult.failed(sourceRepositories.get(i), e.getCause() instanceof Exception ? (Exception) e.getCause() : e));
+                }
+            }
+            return results;
+        } catch (Exception e) {
+            outcome = e.getClass().getSimpleName();
+            throw e;
+        } finally {
+            metrics.timer(Metrics.OPERATION_SECONDS, "operation", "createSourceRepositories", "outcome", outcome).record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return null if the path is invalid or has no parent, the repository then fails on its own
+     */
+    private Path getParentPath(SourceRepository sourceRepository) {
+        try {
+            return Paths.get(SanitizeUtils.sanitizePathParameter(sourceRepository.getPath())).getParent();
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Run the task on the provisioning pool, in the session of the caller
+     */
+    private <T> Future<T> provision(Session session, Callable<T> task) {
+        return PROVISIONERS.submit(() -> {
+            handleSession(session);
+            return task.call();
+        });
+    }
+
     private SourceRepository map(SourceRepository sourceRepository, GitlabProject gitlabProject) {
         sourceRepository
                 .httpUrl(gitlabProject.getHttpUrl())
@@ -321,72 +593,101 @@ public class SourceManagerController implements SourceManagerService {
         return sourceRepository;
     }
 
+    /**
+     * Push the first commit of the project as master and dev, built in memory unless the content is large
+     */
+    private void seedProject(GitlabProject gitlabProject, CommitContent initialContent) throws Exception {
+        boolean inMemory = initialContent.getFile().length() <= config.getSeedInMemoryMaxSizeMb() * FileUtils.ONE_MB;
+        File workingFolder = inMemory ? null : gitService.createWorkingFolder();
+        try {
+            SourceRepositoryCommit commit = gitService.seedProject(gitlabProject.getName(), workingFolder, getCredentialProviders(), gitlabProject.getHttpUrl(), initialContent, gitlabService.session.getCallerName(), "Initial content");
+            logger.info("Project " + gitlabProject.getPathWithNamespace() + " seeded with commit " + commit.getShortId());
+        } catch (Exception e) {
+            gitlabService.invalidateUserCredentialsIfUnauthorized(e);
+            throw e;
+        } finally {
+            if (workingFolder != null) {
+                gitService.releaseWorkingFolder(workingFolder, config.isDeleteFolderAfterGit());
+            }
+        }
+    }
+
     private void createDefaultsBranches(GitlabProject gitlabProject) throws Exception {
-        int attempt = 0;
-        Exception lastException;
-        do {
+        Retrier.call(CREATE_DEFAULT_BRANCHES, () -> {
             try {
-                gitlabService.getUserClient().createBranch(gitlabProject, "dev", "master");
-                lastException = null;
-                break;
+                asUser("POST /projects/:id/repository/branches", () -> {
+                    gitlabService.getUserClient().createBranch(gitlabProject, "dev", "master");
+                    return null;
+                });
             } catch (Exception e) {
-                long wait = (long) (attemptWaitMs * Math.pow(2, attempt));
                 // checking branch creation in spite of the error
                 try {
-                    GitlabBranch devBranch = gitlabService.getUserClient().getBranch(gitlabProject, "dev");
+                    GitlabBranch devBranch = asUser("GET /projects/:id/repository/branches/:branch", () -> gitlabService.getUserClient().getBranch(gitlabProject, "dev"));
                     if(devBranch !=null && devBranch.getCommit()!=null && devBranch.getCommit().getId()!=null) {
                         logger.info("Gitlab has thrown an exception, however the branches has been created ("+e.getMessage()+")");
-                        lastException = null;
-                        break;
+                        return null;
                     }
                 } catch (Exception e1){
                     logger.warn("Gitlab has thrown an exception, branches has not been created : "+e1.getMessage());
                 }
-
-                logger.warn("Unable to create branches for repository " + gitlabProject.getPath() + ", wait  " + wait + " ms and retry (" + attempt + "/" + maxAttempt + ")");
-                lastException = e;
-                Thread.sleep(wait);
-                attempt++;
-
+                throw e;
             }
-        } while(attempt < maxAttempt);
-        if (lastException != null) {
-            lastException.printStackTrace();
-            throw lastException;
-        }
-
+            return null;
+        }, e -> !GitlabGuard.isRejection(e));
     }
 
     private Map checkDeployKeysExists(List<String> deployKeys) throws Exception {
-        Map<String, Integer> keysMap = new HashMap();
-
-        JSONArray array = Unirest.get(config.getGitlabUrl() + "/api/v4/deploy_keys")
-                .queryString("per_page", "1000000")
-                .header(PRIVATE_TOKEN, config.getGitlabApiToken())
-                .asJson().getBody().getArray();
-
-        IntStream.range(0, array.length())
-                .mapToObj(array::getJSONObject)
-                .forEach(obj -> keysMap.put((String) obj.get("title"), (Integer) obj.get("id")));
-
         Map<String, Integer> keysMapToReturn = new HashMap();
 
         for (String title : deployKeys) {
-            if (!keysMap.containsKey(title)) {
+            Integer keyId = DeployKeyIndex.getInstance().getId(title);
+            if (keyId == null) {
                 throw new KathraException("Unable to find deploy key " + title).errorCode(KathraException.ErrorCode.NOT_FOUND);
             }
-            keysMapToReturn.put(title,keysMap.get(title));
+            keysMapToReturn.put(title, keyId);
         }
 
         return keysMapToReturn;
     }
 
-    private void enableDeployKeyForProject(GitlabProject p, Integer keyId) throws UnirestException {
-        Unirest.post(config.getGitlabUrl() + "/api/v4/projects/{projectId}/deploy_keys/{keyId}/enable")
+    /**
+     * Enable the keys in parallel, every key is tried and every failure reported
+     */
+    private void enableDeployKeysForProject(GitlabProject p, Collection<Integer> keyIds) throws Exception {
+        Map<Integer, Future<?>> enablings = new LinkedHashMap<>();
+        for (Integer keyId : keyIds) {
+            enablings.put(keyId, DEPLOY_KEY_ENABLERS.submit(() -> {
+                enableDeployKeyForProject(p, keyId);
+                return null;
+            }));
+        }
+        List<Integer> failedKeyIds = new ArrayList<>();
+        List<Throwable> failures = new ArrayList<>();
+        for (Map.Entry<Integer, Future<?>> enabling : enablings.entrySet()) {
+            try {
+                enabling.getValue().get();
+            } catch (ExecutionException e) {
+                failedKeyIds.add(enabling.getKey());
+                failures.add(e.getCause());
+            }
+        }
+        if (!failures.isEmpty()) {
+            StringBuilder message = new StringBuilder("Unable to enable deploy keys " + failedKeyIds + " on project " + p.getId() + ":");
+            for (Throwable failure : failures) {
+                message.append(" ").append(failure.getMessage()).append(";");
+            }
+            IOException exception = new IOException(message.toString(), failures.get(0));
+            failures.stream().skip(1).forEach(exception::addSuppressed);
+            throw exception;
+        }
+    }
+
+    private void enableDeployKeyForProject(GitlabProject p, Integer keyId) throws UnirestException, IOException {
+        gitlabGuard.callHttp("POST /projects/:id/deploy_keys/:key_id/enable", () -> Unirest.post(config.getGitlabUrl() + "/api/v4/projects/{projectId}/deploy_keys/{keyId}/enable")
                 .header(PRIVATE_TOKEN, config.getGitlabApiToken())
                 .routeParam("projectId", p.getId().toString())
                 .routeParam("keyId", keyId.toString())
-                .asJson();
+                .asJson());
     }
 
     /**
@@ -396,12 +697,26 @@ public class SourceManagerController implements SourceManagerService {
      * @return List<SourceRepositoryBranch>
      */
     public List<String> getBranches(String sourceRepositoryPath) throws Exception {
+        return serve("getBranches", admission.getRest(), () -> doGetBranches(sourceRepositoryPath));
+    }
+
+    private List<String> doGetBranches(String sourceRepositoryPath) throws Exception {
 
+        GitlabProject project = gitlabService.getProjectFromPath(sourceRepositoryPath);
+        try {
+            RefSnapshot refs = gitService.getRefSnapshot(getCredentialProviders(), project.getHttpUrl());
+            if (refs != null) {
+                return refs.getBranchesAndTags();
+            }
+        } catch (GitAPIException e) {
+            gitlabService.invalidateUserCredentialsIfUnauthorized(e);
+            logger.warn("Unable to list the refs of " + sourceRepositoryPath + ", listing them through the API: " + e.getMessage());
+        }
         List<String> branches = new ArrayList();
-        for (GitlabBranch gitlabBranch : gitlabService.getUserClient().getBranches(gitlabService.getProjectFromPath(sourceRepositoryPath))) {
+        for (GitlabBranch gitlabBranch : asUser("GET /projects/:id/repository/branches", () -> gitlabService.getUserClient().getBranches(project))) {
             branches.add(gitlabBranch.getName());
         }
-        for (GitlabTag tag : gitlabService.getUserClient().getTags(gitlabService.getProjectFromPath(sourceRepositoryPath))) {
+        for (GitlabTag tag : asUser("GET /projects/:id/repository/tags", () -> gitlabService.getUserClient().getTags(project))) {
             branches.add(tag.getName());
         }
         return branches;
@@ -415,36 +730,138 @@ public class SourceManagerController implements SourceManagerService {
      * @return List<SourceRepositoryCommit>
      */
     public List<SourceRepositoryCommit> getCommits(String sourceRepositoryPath, String branch) throws Exception {
+        if (gitService.isMirrorEnabled()) {
+            List<SourceRepositoryCommit> commits = new ArrayList<>();
+            walkCommits(sourceRepositoryPath, branch, null, null, null, 0, GitService.LEGACY_DATES, commits::add);
+            return commits;
+        }
+        return serve("getCommits", admission.getRest(), () -> doGetCommits(sourceRepositoryPath, branch));
+    }
+
+    /**
+     * Stream the commits of a branch, newest first, page by page. The history is walked in the project mirror,
+     * or listed through the API when mirrors are disabled.
+     *
+     * @param sourceRepositoryPath SourceRepository's Path (required)
+     * @param branch               SourceRepository's branch (required)
+     * @param since                only the commits made at or after this date (optional)
+     * @param until                only the commits made at or before this date (optional)
+     * @param after                cursor returned with the previous page (optional)
+     * @param limit                maximum number of commits of the page, 0 for all of them
+     * @param consumer             given each commit as soon as it is read, its date in ISO-8601
+     * @return the cursor of the next page, null once the history is over
+     */
+    public String getCommits(String sourceRepositoryPath, String branch, Date since, Date until, String after, int limit, Consumer<SourceRepositoryCommit> consumer) throws Exception {
+        if (!gitService.isMirrorEnabled()) {
+            return serve("getCommits", admission.getRest(), () -> doGetCommits(sourceRepositoryPath, branch, since, until, after, limit, consumer));
+        }
+        return walkCommits(sourceRepositoryPath, branch, since, until, after, limit, GitService.ISO_DATES, consumer);
+    }
+
+    private String walkCommits(String sourceRepositoryPath, String branch, Date since, Date until, String after, int limit, Function<Date, String> formatDate, Consumer<SourceRepositoryCommit> consumer) throws Exception {
+        return serve("getCommits", admission.getGit(), () -> {
+            GitlabProject project = getGitlabProject(sourceRepositoryPath);
+            try {
+                return gitService.walkCommits(project.getId(), getCredentialProviders(), project.getHttpUrl(), branch, since, until, after, limit, formatDate, consumer);
+            } catch (Exception e) {
+                gitlabService.invalidateUserCredentialsIfUnauthorized(e);
+                throw e;
+            }
+        });
+    }
+
+    private String doGetCommits(String sourceRepositoryPath, String branch, Date since, Date until, String after, int limit, Consumer<SourceRepositoryCommit> consumer) throws Exception {
+        // the API lists the whole history in order, the cursor is the last commit given, without the merged branches
+        String cursor = after != null ? after.split(",")[0] : null;
+        List<GitlabCommit> gitlabCommits = getGitlabCommits(sourceRepositoryPath, branch);
+        int start = 0;
+        if (cursor != null) {
+            while (start < gitlabCommits.size() && !gitlabCommits.get(start).getId().equals(cursor)) {
+                start++;
+            }
+            if (start == gitlabCommits.size()) {
+                throw new ApiException(400, "Unknown cursor " + after);
+            }
+            start++;
+        }
+        int given = 0;
+        String last = null;
+        for (GitlabCommit gitlabCommit : gitlabCommits.subList(start, gitlabCommits.size())) {
+            Date createdAt = gitlabCommit.getCreatedAt();
+            if ((since != null && createdAt.before(since)) || (until != null && createdAt.after(until))) {
+                continue;
+            }
+            if (limit > 0 && given == limit) {
+                return last;
+            }
+            consumer.accept(getSourceRepositoryCommitFromGitlabCommit(gitlabCommit, GitService.ISO_DATES));
+            last = gitlabCommit.getId();
+            given++;
+        }
+        return null;
+    }
+
+    private List<SourceRepositoryCommit> doGetCommits(String sourceRepositoryPath, String branch) throws Exception {
         List<SourceRepositoryCommit> commits = new ArrayList();
-        for (GitlabCommit gitlabCommit : gitlabService.getUserClient().getAllCommits(gitlabService.getProjectFromPath(sourceRepositoryPath).getId(), branch)) {
-            commits.add(getSourceRepositoryCommitFromGitlabCommit(gitlabCommit));
+        for (GitlabCommit gitlabCommit : getGitlabCommits(sourceRepositoryPath, branch)) {
+            commits.add(getSourceRepositoryCommitFromGitlabCommit(gitlabCommit, GitService.LEGACY_DATES));
         }
         return commits;
     }
 
+    private List<GitlabCommit> getGitlabCommits(String sourceRepositoryPath, String branch) throws Exception {
+        Integer projectId = gitlabService.getProjectFromPath(sourceRepositoryPath).getId();
+        return asUserPages("GET /projects/:id/repository/commits", pagination -> gitlabService.getUserClient().getCommits(projectId, pagination, branch));
+    }
+
     @Override
     public FileDataSource getFile(String sourceRepositoryPath, String branch, String filepath) throws Exception {
+        return serve("getFile", admission.getGit(), () -> doGetFile(sourceRepositoryPath, branch, filepath));
+    }
+
+    private FileDataSource doGetFile(String sourceRepositoryPath, String branch, String filepath) throws Exception {
         if (StringUtils.isEmpty(sourceRepositoryPath) || StringUtils.isEmpty(branch) || StringUtils.isEmpty(filepath))
             throw new IllegalArgumentException("sourceRepositoryPath, branch and filepath must be specified");
 
         GitlabProject project = getGitlabProject(sourceRepositoryPath);
         String projectName = project.getName();
 
-        File workingFolder = gitService.createWorkingFolder();
+        // only the requested file is transferred, the clone is a fallback if the files API is unavailable
+        try {
+            File rawFile = gitlabService.getRawFile(project.getId(), branch, filepath);
+            if (rawFile != null) {
+                return new TemporaryFileDataSource(rawFile);
+            }
+        } catch (FileNotFoundException e) {
+            throw new NotFoundException("File " + filepath + " not found in repository " + sourceRepositoryPath + " ,branch=" + branch);
+        } catch (IOException | UnirestException e) {
+            logger.warn("Unable to download file " + filepath + " from repository " + sourceRepositoryPath + ", cloning it instead: " + e.getMessage());
+        }
 
-        final CredentialsProvider cp = getCredentialProviders();
+        File workingFolder = gitService.createWorkingFolder();
+        try {
+            final CredentialsProvider cp = getCredentialProviders();
 
-        gitService.cloneProject(projectName, branch, workingFolder, cp, project.getHttpUrl(),true);
+            gitService.cloneProject(project.getId(), projectName, branch, workingFolder, cp, project.getHttpUrl(),true);
 
-        File file = new File(workingFolder, File.separator + projectName + File.separator + filepath);
-        if (file == null || !file.exists() || file.isDirectory())
-            throw new NotFoundException("File " + filepath + " not found in repository " + sourceRepositoryPath + " ,branch=" + branch);
+            File file = new File(workingFolder, File.separator + projectName + File.separator + filepath);
+            if (file == null || !file.exists() || file.isDirectory())
+                throw new NotFoundException("File " + filepath + " not found in repository " + sourceRepositoryPath + " ,branch=" + branch);
 
-        return new FileDataSource(file);
+            // the clone is kept until the caller has read the file
+            return new TemporaryFileDataSource(file, () -> gitService.releaseWorkingFolder(workingFolder, true));
+        } catch (Exception e) {
+            gitService.releaseWorkingFolder(workingFolder, true);
+            throw e;
+        }
     }
 
     @Override
     public Folder getFolder(String folderPath) throws Exception {
+        return serve("getFolder", admission.getRest(), () -> doGetFolder(folderPath));
+    }
+
+    private Folder doGetFolder(String folderPath) throws Exception {
         return null;
     }
 
@@ -454,8 +871,12 @@ public class SourceManagerController implements SourceManagerService {
      * @return List<Folder>
      */
     public List<Folder> getFolders() throws Exception {
+        return serve("getFolders", admission.getRest(), () -> doGetFolders());
+    }
+
+    private List<Folder> doGetFolders() throws Exception {
         List<Folder> folders = new ArrayList();
-        List<GitlabGroup> gitlabGroups = gitlabService.getUserClient().getGroups();
+        List<GitlabGroup> gitlabGroups = asUser("GET /groups", () -> gitlabService.getUserClient().getGroups());
         for (GitlabGroup g : gitlabGroups) {
             folders.add(new Folder().path(g.getFullPath()));
         }
@@ -470,9 +891,14 @@ public class SourceManagerController implements SourceManagerService {
      * @return List<SourceRepository>
      */
     public List<SourceRepository> getSourceRepositoriesInFolder(String folderPath) throws Exception {
+        return serve("getSourceRepositoriesInFolder", admission.getRest(), () -> doGetSourceRepositoriesInFolder(folderPath));
+    }
+
+    private List<SourceRepository> doGetSourceRepositoriesInFolder(String folderPath) throws Exception {
         List<GitlabProject> groupProjects;
         try {
-            groupProjects = gitlabService.getUserClient().getGroupProjects(gitlabService.getAdminClient().getGroup(folderPath).getId());
+            Integer groupId = gitlabGuard.call("GET /groups/:id", () -> gitlabService.getAdminClient().getGroup(folderPath)).getId();
+            groupProjects = asUser("GET /groups/:id/projects", () -> gitlabService.getUserClient().getGroupProjects(groupId));
         } catch (Error e) {
             throw new ApiException(404, "This group doesn't exists");
         }
@@ -499,6 +925,10 @@ public class SourceManagerController implements SourceManagerService {
      * @return List<Membership>
      */
     public ApiResponse addMemberships(List<Membership> memberships) throws Exception {
+        return serve("addMemberships", admission.getRest(), () -> doAddMemberships(memberships));
+    }
+
+    private ApiResponse doAddMemberships(List<Membership> memberships) throws Exception {
         gitlabService.addMemberships(memberships);
         return new ApiResponse(200, null, "Successfully added members");
     }
@@ -512,6 +942,10 @@ public class SourceManagerController implements SourceManagerService {
      * @return ApiResponse
      */
     public ApiResponse createDeployKey(String keyName, String sshPublicKey, String sourceRepositoryPath) throws Exception {
+        return serve("createDeployKey", admission.getRest(), () -> doCreateDeployKey(keyName, sshPublicKey, sourceRepositoryPath));
+    }
+
+    private ApiResponse doCreateDeployKey(String keyName, String sshPublicKey, String sourceRepositoryPath) throws Exception {
         try {
             gitlabService.createDeployKey(keyName, sshPublicKey, sourceRepositoryPath);
         } catch (GitlabAPIException e) {
@@ -527,6 +961,10 @@ public class SourceManagerController implements SourceManagerService {
      * @return List<Membership>
      */
     public ApiResponse deleteMemberships(List<Membership> memberships) throws Exception {
+        return serve("deleteMemberships", admission.getRest(), () -> doDeleteMemberships(memberships));
+    }
+
+    private ApiResponse doDeleteMemberships(List<Membership> memberships) throws Exception {
         gitlabService.deleteMemberships(memberships);
         return new ApiResponse(200, null, "Successfully removed members");
     }
@@ -540,14 +978,18 @@ public class SourceManagerController implements SourceManagerService {
      * @return List<Membership>
      */
     public List<Membership> getMemberships(String sourceRepositoryPath, String memberType) throws Exception {
+        return serve("getMemberships", admission.getRest(), () -> doGetMemberships(sourceRepositoryPath, memberType));
+    }
+
+    private List<Membership> doGetMemberships(String sourceRepositoryPath, String memberType) throws Exception {
         return gitlabService.getMemberships(sourceRepositoryPath, memberType);
     }
 
-    private SourceRepositoryCommit getSourceRepositoryCommitFromGitlabCommit(GitlabCommit gitlabCommit) {
+    private SourceRepositoryCommit getSourceRepositoryCommitFromGitlabCommit(GitlabCommit gitlabCommit, Function<Date, String> formatDate) {
         SourceRepositoryCommit commit = new SourceRepositoryCommit()
                 .authorEmail(gitlabCommit.getAuthorEmail())
                 .authorName(gitlabCommit.getAuthorName())
-                .createdAt(gitlabCommit.getCreatedAt().toString())
+                .createdAt(formatDate.apply(gitlabCommit.getCreatedAt()))
                 .message(gitlabCommit.getMessage())
                 .shortId(gitlabCommit.getShortId())
                 .title(gitlabCommit.getTitle());
@@ -596,8 +1038,11 @@ public class SourceManagerController implements SourceManagerService {
         while(pathToTest!=null && ret == null) {
 
             try {
-                ret = gitlabService.getUserClient().getGroup(pathToTest.toString());
-            } catch(IOException e) {
+                ret = findGroup(pathToTest.toString());
+            } catch(Exception e) {
+                ret = null;
+            }
+            if (ret == null) {
                 pathToTest = pathToTest.getParent();
             }
         }
@@ -606,23 +1051,78 @@ public class SourceManagerController implements SourceManagerService {
 
     }
 
-    private synchronized GitlabGroup createFolderIfNotExists(String folderName, GitlabGroup parentGroup) throws Exception {
+    /**
+     * Find a group from the groups already known, or from GitLab
+     *
+     * @return the group, null if it doesn't exist or the caller can't see it
+     */
+    private GitlabGroup findGroup(String fullPath) throws Exception {
+        String key = GitlabService.toPathCacheKey(fullPath);
+        GitlabGroup group = groupCache.getIfPresent(key);
+        if (group != null) {
+            return group;
+        }
+        try {
+            group = asUser("GET /groups/:id", () -> gitlabService.getUserClient().getGroup(fullPath));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        if (group != null) {
+            groupCache.put(key, group);
+        }
+        return group;
+    }
+
+    /**
+     * Create a folder, concurrent requests for the same folder share a single creation while other folders are created in parallel.
+     * Only a folder created is shared, a caller waiting for a creation that failed tries again with its own credentials.
+     */
+    private GitlabGroup createFolderIfNotExists(String folderName, GitlabGroup parentGroup) throws Exception {
+        String key = GitlabService.toPathCacheKey(parentGroup != null ? parentGroup.getFullPath() + "/" + folderName : folderName);
+        while (true) {
+            CompletableFuture<GitlabGroup> creation = new CompletableFuture<>();
+            CompletableFuture<GitlabGroup> pendingCreation = groupCreations.putIfAbsent(key, creation);
+            if (pendingCreation != null) {
+                try {
+                    GitlabGroup createdFolder = pendingCreation.get();
+                    if (createdFolder != null) {
+                        return createdFolder;
+                    }
+                } catch (ExecutionException e) {
+                    // the error of another caller, its rights aren't the ones of this caller
+                }
+                continue;
+            }
+            try {
+                GitlabGroup groupFolder = doCreateFolderIfNotExists(folderName, parentGroup);
+                if (groupFolder != null) {
+                    groupCache.put(key, groupFolder);
+                }
+                creation.complete(groupFolder);
+                return groupFolder;
+            } catch (Exception e) {
+                creation.completeExceptionally(e);
+                throw e;
+            } finally {
+                groupCreations.remove(key, creation);
+            }
+        }
+    }
+
+    private GitlabGroup doCreateFolderIfNotExists(String folderName, GitlabGroup parentGroup) throws Exception {
         GitlabGroup groupFolder = null;
         try {
             if (parentGroup != null) {
                 CreateGroupRequest groupRequest = new CreateGroupRequest(folderName).setParentId(parentGroup.getId());
-                groupFolder = gitlabService.getUserClient().createGroup(groupRequest, null);
+                groupFolder = asUser("POST /groups", () -> gitlabService.getUserClient().createGroup(groupRequest, null));
             } else {
-                groupFolder = gitlabService.getUserClient().createGroup(folderName);
+                groupFolder = asUser("POST /groups", () -> gitlabService.getUserClient().createGroup(folderName));
             }
         } catch (GitlabAPIException e) {
             if (e.getResponseCode() == 400) {
-                if (parentGroup != null) {
-                    groupFolder = gitlabService.getUserClient().getGroup(parentGroup.getFullPath() + "/" + folderName);
-                } else {
-                    groupFolder = gitlabService.getUserClient().getGroup(folderName);
-                }
-                return groupFolder;
+                // already created by somebody else
+                String fullPath = parentGroup != null ? parentGroup.getFullPath() + "/" + folderName : folderName;
+                return asUser("GET /groups/:id", () -> gitlabService.getUserClient().getGroup(fullPath));
             } else if (e.getResponseCode() == 403) {
                 if (parentGroup != null) {
                     throw new KathraException("Forbidden to create folder "+parentGroup.getFullPath() + "/" +folderName+", please verify you have the correct permissions in your source repository provider",e.getCause(), KathraException.ErrorCode.FORBIDDEN);
@@ -635,18 +1135,32 @@ public class SourceManagerController implements SourceManagerService {
         return groupFolder;
     }
 
-    private CredentialsProvider getCredentialProviders() {
+    private CredentialsProvider getCredentialProviders() throws IOException, KathraException {
         String username = gitlabService.session.getCallerName();
         String impersonationTokenForUser = gitlabService.getImpersonationTokenForUser();
+        if (impersonationTokenForUser == null) {
+            throw new KathraException("No GitLab credentials for " + username + ", the repository can't be read on its behalf").errorCode(KathraException.ErrorCode.UNAUTHORIZED);
+        }
         return new UsernamePasswordCredentialsProvider(username, impersonationTokenForUser);
     }
 
     private GitlabProject getGitlabProject(String sourceRepositoryPath) throws Exception {
 
-        GitlabProject projectFromPath = gitlabService.getProjectFromPath(sourceRepositoryPath);
+        GitlabProject projectFromPath;
+        try {
+            projectFromPath = gitlabService.getProjectFromPath(sourceRepositoryPath);
+        } catch (GitlabUnavailableException e) {
+            throw new KathraException(e.getMessage(), e, KathraException.ErrorCode.SERVICE_UNAVAILABLE);
+        }
 
         // TODO: Better permissions check
-        GitlabProject project = gitlabService.getUserClient().getProject(projectFromPath.getId());
+        // the caller must see the project with its own client, reads served from the mirror or the caches included
+        String accessKey = GitlabService.toProjectAccessCacheKey(projectFromPath.getId(), gitlabService.session.getCallerName());
+        GitlabProject project = projectAccessCache.getIfPresent(accessKey);
+        if (project == null) {
+            project = asUser("GET /projects/:id", () -> gitlabService.getUserClient().getProject(projectFromPath.getId()));
+            projectAccessCache.put(accessKey, project);
+        }
 
         // temporary work around to avoid unwanted pushes to non-kathra repos
         if (!project.getPathWithNamespace().startsWith(config.getKathraRootGroup())) {
@@ -655,13 +1169,69 @@ public class SourceManagerController implements SourceManagerService {
         return project;
     }
 
-    private File tmpFileToPermanentFile(File file, String fileName) throws IOException {
+    /**
+     * Serve a service operation once admitted in its pool, timed by outcome, the exception class name when it fails
+     */
+    private <T> T serve(String operation, AdmissionController.Pool pool, Callable<T> call) throws Exception {
+        long start = System.nanoTime();
+        String outcome = "success";
+        try (AdmissionController.Permit permit = pool.acquire()) {
+            return call.call();
+        } catch (Exception e) {
+            outcome = e.getClass().getSimpleName();
+            throw e;
+        } finally {
+            metrics.timer(Metrics.OPERATION_SECONDS, "operation", operation, "outcome", outcome).record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Call GitLab with the caller's client, once more with fresh credentials if the cached ones are no longer accepted.
+     * Calls refused by the GitLab guard fail with SERVICE_UNAVAILABLE.
+     */
+    private <T> T asUser(String endpoint, Callable<T> call) throws Exception {
+        try {
+            try {
+                return gitlabGuard.call(endpoint, call::call);
+            } catch (Exception e) {
+                if (GitlabGuard.isRejection(e) || !gitlabService.invalidateUserCredentialsIfUnauthorized(e)) {
+                    throw e;
+                }
+                return gitlabGuard.call(endpoint, call::call);
+            }
+        } catch (GitlabUnavailableException e) {
+            throw new KathraException(e.getMessage(), e, KathraException.ErrorCode.SERVICE_UNAVAILABLE);
+        }
+    }
+
+    /**
+     * Read every page of a GitLab listing with the caller's client, each page is admitted and timed by the GitLab guard
+     * as a call of its own so that a long listing doesn't hold a permit for its whole duration
+     */
+    private <T> List<T> asUserPages(String endpoint, PageCall<T> call) throws Exception {
+        List<T> items = new ArrayList<>();
+        for (int page = 1; ; page++) {
+            Pagination pagination = new Pagination().withPage(page).withPerPage(Pagination.MAX_ITEMS_PER_PAGE);
+            List<T> pageItems = asUser(endpoint, () -> call.call(pagination));
+            items.addAll(pageItems);
+            if (pageItems.size() < Pagination.MAX_ITEMS_PER_PAGE) {
+                return items;
+            }
+        }
+    }
+
+    private interface PageCall<T> {
+        List<T> call(Pagination pagination) throws Exception;
+    }
+
+    /**
+     * @return the requested file name, or the name of the upload without the prefix of its temporary file
+     */
+    static String permanentFileName(File file, String fileName) {
         if (StringUtils.isEmpty(fileName) || fileName.equals(".")) {
             String[] split = file.getName().split("_");
             fileName = split[split.length - 1];
         }
-        File tmpFile = new File(file.getParentFile().getPath()+File.separator+"SourceManager-Gitlab"+file.getName()+File.separator+fileName);
-        FileUtils.copyFile(file, tmpFile);
-        return tmpFile;
+        return fileName;
     }
 }
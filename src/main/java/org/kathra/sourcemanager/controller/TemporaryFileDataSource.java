@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2020. The Kathra Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *    IRT SystemX (https://www.kathra.org/)
+ *
+ */
+
+package org.kathra.sourcemanager.controller;
+
+import org.apache.commons.io.FileUtils;
+
+import javax.activation.FileDataSource;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+
+/**
+ * File data source deleting its file, and the folder holding it, once the content has been read.
+ */
+public class TemporaryFileDataSource extends FileDataSource {
+
+    private final Runnable cleanup;
+
+    public TemporaryFileDataSource(File file) {
+        this(file, () -> FileUtils.deleteQuietly(file.getParentFile()));
+        file.deleteOnExit();
+    }
+
+    /**
+     * @param cleanup run once the content has been read, instead of deleting the folder of the file
+     */
+    public TemporaryFileDataSource(File file, Runnable cleanup) {
+        super(file);
+        this.cleanup = cleanup;
+    }
+
+    /**
+     * Create a temporary folder to hold a file named after the requested one
+     */
+    public static File createTemporaryFile(String filepath) throws IOException {
+        File folder = Files.createTempDirectory(WorkingArea.getInstance().getRoot().toPath(), WorkingArea.FILE_FOLDER_PREFIX).toFile();
+        return new File(folder, new File(filepath).getName());
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return new FilterInputStream(new FileInputStream(getFile())) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                cleanup.run();
+            }
+        };
+    }
+}
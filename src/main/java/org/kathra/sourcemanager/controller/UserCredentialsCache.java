@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2020. The Kathra Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *    IRT SystemX (https://www.kathra.org/)
+ *
+ */
+
+package org.kathra.sourcemanager.controller;
+
+import org.apache.log4j.Logger;
+import org.gitlab.api.GitlabAPI;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * GitLab client and impersonation token of each caller, kept for a time to live.
+ * Entries are reloaded in background once past most of their time to live, so callers never wait for a refresh.
+ * A caller unknown from GitLab is remembered for a shorter time and never refreshed, failed loads aren't cached.
+ * Shared by the services of every request, the callers soonest to expire are dropped beyond its capacity.
+ */
+public class UserCredentialsCache {
+
+    public interface Loader {
+        UserCredentials load(String callerName) throws Exception;
+    }
+
+    public static class UserCredentials {
+        static final UserCredentials UNKNOWN_USER = new UserCredentials(null, null);
+
+        private final GitlabAPI client;
+        private final String impersonationToken;
+
+        public UserCredentials(GitlabAPI client, String impersonationToken) {
+            this.client = client;
+            this.impersonationToken = impersonationToken;
+        }
+
+        /**
+         * @return the client of the caller, null if the caller is unknown from GitLab
+         */
+        public GitlabAPI getClient() {
+            return client;
+        }
+
+        /**
+         * @return the impersonation token, null if the caller is unknown from GitLab
+         */
+        public String getImpersonationToken() {
+            return impersonationToken;
+        }
+    }
+
+    private static class Entry {
+        private final UserCredentials credentials;
+        // refreshed in background through the loader of the request that loaded the entry
+        private final Loader loader;
+        private final long refreshAt;
+        private final long expiresAt;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        private Entry(UserCredentials credentials, Loader loader, long ttlMs, long negativeTtlMs) {
+            long now = System.currentTimeMillis();
+            this.credentials = credentials;
+            this.loader = loader;
+            if (credentials.getImpersonationToken() == null) {
+                this.refreshAt = Long.MAX_VALUE;
+                this.expiresAt = now + negativeTtlMs;
+            } else {
+                this.refreshAt = now + ttlMs * 4 / 5;
+                this.expiresAt = now + ttlMs;
+            }
+        }
+    }
+
+    private static final ExecutorService REFRESHER = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "UserCredentialsCache-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Logger logger = Logger.getLogger(UserCredentialsCache.class.getName());
+
+    private final int maxEntries;
+    private final long ttlMs;
+    private final long negativeTtlMs;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    // loads in progress only, removed once done
+    private final ConcurrentHashMap<String, CompletableFuture<Entry>> loads = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxEntries         Number of callers kept
+     * @param ttlSeconds         Time to live of the credentials
+     * @param negativeTtlSeconds Time to live of an unknown caller
+     */
+    public UserCredentialsCache(int maxEntries, long ttlSeconds, long negativeTtlSeconds) {
+        this.maxEntries = maxEntries;
+        this.ttlMs = TimeUnit.SECONDS.toMillis(ttlSeconds);
+        this.negativeTtlMs = TimeUnit.SECONDS.toMillis(negativeTtlSeconds);
+    }
+
+    /**
+     * @param loader Loader of the credentials of the caller, UNKNOWN_USER only when GitLab confirmed the caller doesn't exist
+     */
+    public UserCredentials get(String callerName, Loader loader) throws IOException {
+        String key = callerName == null ? "" : callerName;
+        while (true) {
+            Entry cached = entries.get(key);
+            long now = System.currentTimeMillis();
+            if (cached != null && now < cached.expiresAt) {
+                if (now >= cached.refreshAt && cached.refreshing.compareAndSet(false, true)) {
+                    REFRESHER.execute(() -> refresh(key, cached));
+                }
+                return cached.credentials;
+            }
+            // a single load per caller, concurrent requests wait for it
+            CompletableFuture<Entry> load = new CompletableFuture<>();
+            CompletableFuture<Entry> pendingLoad = loads.putIfAbsent(key, load);
+            if (pendingLoad != null) {
+                try {
+                    return pendingLoad.get().credentials;
+                } catch (ExecutionException e) {
+                    // failed loads aren't shared, the caller tries again
+                    continue;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while loading GitLab credentials of " + key);
+                }
+            }
+            try {
+                Entry entry = new Entry(load(key, loader), loader, ttlMs, negativeTtlMs);
+                entries.put(key, entry);
+                if (entries.size() > maxEntries) {
+                    shrink();
+                }
+                load.complete(entry);
+                return entry.credentials;
+            } catch (IOException | RuntimeException e) {
+                load.completeExceptionally(e);
+                throw e;
+            } finally {
+                loads.remove(key, load);
+            }
+        }
+    }
+
+    public void invalidate(String callerName) {
+        entries.remove(callerName == null ? "" : callerName);
+    }
+
+    public void invalidateAll() {
+        entries.clear();
+    }
+
+    private void refresh(String key, Entry previous) {
+        try {
+            entries.replace(key, previous, new Entry(load(key, previous.loader), previous.loader, ttlMs, negativeTtlMs));
+        } catch (IOException e) {
+            logger.warn("Unable to refresh GitLab credentials of " + key + ", current ones are kept: " + e.getMessage());
+            previous.refreshing.set(false);
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Drop expired entries, then the soonest to expire ones until a tenth of the capacity is free again
+     */
+    private synchronized void shrink() {
+        long now = System.currentTimeMillis();
+        entries.values().removeIf(entry -> now >= entry.expiresAt);
+        int excess = entries.size() - maxEntries * 9 / 10;
+        if (excess <= 0) {
+            return;
+        }
+        entries.entrySet().stream()
+                .sorted((a, b) -> Long.compare(a.getValue().expiresAt, b.getValue().expiresAt))
+                .limit(excess)
+                .map(Map.Entry::getKey)
+                .forEach(entries::remove);
+    }
+
+    private UserCredentials load(String key, Loader loader) throws IOException {
+        try {
+            return loader.load(key);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Unable to retrieve GitLab credentials of " + key, e);
+        }
+    }
+}
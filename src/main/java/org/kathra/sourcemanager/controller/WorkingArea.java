@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2020. The Kathra Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *    IRT SystemX (https://www.kathra.org/)
+ *
+ */
+
+
+package org.kathra.sourcemanager.controller;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.kathra.sourcemanager.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Folders lent to the operations to clone, unpack or download into. Every folder handed out is leased until released,
+ * and no folder is lent while the leased ones exceed the byte quota, the caller is refused with a 429 instead.
+ * The usage of the leased folders is measured on a schedule, not by the operations asking for a folder.
+ * Each process works in a folder of its own under a dedicated folder of the configured one, owned as long as the
+ * process holds the lock of its owner file. A janitor deletes the folders of the processes gone, and the folders of
+ * this process left behind or leased for longer than the maximum lease. Nothing outside the dedicated folder is ever
+ * deleted.
+ */
+public class WorkingArea {
+
+    public static final String AREA_FOLDER = "KathraSourceManager_WorkingArea";
+    public static final String WORKING_FOLDER_PREFIX = "KathraSourceManager_WorkingFolder_";
+    public static final String FILE_FOLDER_PREFIX = "KathraSourceManager_File_";
+
+    private static final String OWNER_FILE = ".owner";
+    // a process folder is created before its owner file is locked, it is left alone meanwhile
+    private static final long OWNER_GRACE_MS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final Logger logger = Logger.getLogger(WorkingArea.class.getName());
+
+    private static WorkingArea instance;
+
+    private static class Lease {
+        private final long acquiredAt = System.currentTimeMillis();
+        // size when the usage was last measured
+        private volatile long bytes;
+    }
+
+    private final File area;
+    private final long maxBytes;
+    private final long maxLeaseMs;
+    private final Map<File, Lease> leases = new ConcurrentHashMap<>();
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong reclaimed = new AtomicLong();
+    private File root;
+    private FileChannel owner;
+
+    public static synchronized WorkingArea getInstance() {
+        if (instance == null) {
+            Config config = new Config();
+            instance = new WorkingArea(new File(config.getWorkingAreaFolder()), config.getWorkingAreaMaxSizeMb(), config.getWorkingAreaMaxLeaseMinutes());
+            instance.reclaim();
+        }
+        return instance;
+    }
+
+    /**
+     * @param folder folder holding the dedicated folder of the working area, shared with other processes or not
+     */
+    public WorkingArea(File folder, long maxSizeMb, long maxLeaseMinutes) {
+        this.area = new File(folder, AREA_FOLDER);
+        this.maxBytes = maxSizeMb * FileUtils.ONE_MB;
+        this.maxLeaseMs = TimeUnit.MINUTES.toMillis(maxLeaseMinutes);
+        Metrics metrics = Metrics.getInstance();
+        metrics.gauge("sourcemanager_working_folders", leases::size);
+        metrics.gauge("sourcemanager_working_folder_bytes", this::getUsedBytes);
+        metrics.gauge("sourcemanager_working_area_max_bytes", () -> maxBytes);
+        metrics.gauge("sourcemanager_working_area_rejected", rejected::get);
+        metrics.gauge("sourcemanager_working_area_reclaimed", reclaimed::get);
+    }
+
+    /**
+     * Lease a new empty folder, to be released once the operation is over
+     *
+     * @throws TooManyRequestsException if the leased folders already fill the quota
+     */
+    public File acquire() throws IOException, TooManyRequestsException {
+        if (usedBytes.get() >= maxBytes) {
+            rejected.incrementAndGet();
+            throw new TooManyRequestsException("Working area is full, " + leases.size() + " folders hold " + usedBytes.get() / FileUtils.ONE_MB + " MB", 5);
+        }
+        File folder = new File(getRoot(), WORKING_FOLDER_PREFIX + UUID.randomUUID().toString());
+        FileUtils.forceMkdir(folder);
+        leases.put(folder, new Lease());
+        return folder;
+    }
+
+    /**
+     * End the lease of a folder, deleting it
+     */
+    public void release(File folder) {
+        release(folder, true);
+    }
+
+    /**
+     * End the lease of a folder, a folder kept is deleted by the janitor once older than the maximum lease
+     */
+    public void release(File folder, boolean delete) {
+        if (folder == null) {
+            return;
+        }
+        Lease lease = leases.remove(folder);
+        if (lease != null) {
+            usedBytes.addAndGet(-lease.bytes);
+        }
+        if (delete) {
+            FileUtils.deleteQuietly(folder);
+        }
+    }
+
+    /**
+     * Measure the size of the leased folders, the quota is enforced against the last measure
+     *
+     * @return the bytes held by the leased folders
+     */
+    public long measureUsage() {
+        long size = 0;
+        for (Map.Entry<File, Lease> lease : leases.entrySet()) {
+            try {
+                lease.getValue().bytes = FileUtils.sizeOfDirectory(lease.getKey());
+                size += lease.getValue().bytes;
+            } catch (IllegalArgumentException e) {
+                // released meanwhile
+            }
+        }
+        usedBytes.set(size);
+        return size;
+    }
+
+    /**
+     * Delete the folders of the processes gone and the folders of this process not leased and older than the maximum
+     * lease, and release the leases held longer than the maximum lease
+     *
+     * @return the number of folders deleted
+     */
+    public int reclaim() {
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (Map.Entry<File, Lease> lease : leases.entrySet()) {
+            if (now - lease.getValue().acquiredAt > maxLeaseMs) {
+                logger.warn("Working folder " + lease.getKey() + " leased for more than " + maxLeaseMs / 60000 + " min, releasing it");
+                release(lease.getKey());
+                count++;
+            }
+        }
+        File own = getOwnFolder();
+        File[] processFolders = area.listFiles(File::isDirectory);
+        if (processFolders != null) {
+            for (File processFolder : processFolders) {
+                if (processFolder.equals(own)) {
+                    count += reclaimOrphans(processFolder, now);
+                } else if (isAbandoned(processFolder, now) && FileUtils.deleteQuietly(processFolder)) {
+                    count++;
+                }
+            }
+        }
+        if (count > 0) {
+            reclaimed.addAndGet(count);
+            logger.info("Reclaimed " + count + " folders of the working area " + area);
+        }
+        return count;
+    }
+
+    private int reclaimOrphans(File processFolder, long now) {
+        int count = 0;
+        File[] orphans = processFolder.listFiles(file -> !file.getName().equals(OWNER_FILE) && !leases.containsKey(file)
+                && now - file.lastModified() > maxLeaseMs);
+        if (orphans != null) {
+            for (File orphan : orphans) {
+                if (FileUtils.deleteQuietly(orphan)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return true if the process owning the folder is gone, its owner file is no longer locked
+     */
+    private boolean isAbandoned(File processFolder, long now) {
+        File ownerFile = new File(processFolder, OWNER_FILE);
+        if (!ownerFile.exists()) {
+            return now - processFolder.lastModified() > OWNER_GRACE_MS;
+        }
+        if (now - ownerFile.lastModified() <= OWNER_GRACE_MS) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(ownerFile.toPath(), StandardOpenOption.WRITE);
+             FileLock lock = channel.tryLock()) {
+            return lock != null;
+        } catch (OverlappingFileLockException e) {
+            // owned by another working area of this process
+            return false;
+        } catch (IOException e) {
+            logger.warn("Unable to tell whether working area " + processFolder + " is still used: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * @return the folder of this process, created and locked on first use
+     */
+    public synchronized File getRoot() throws IOException {
+        if (root == null) {
+            File folder = new File(area, UUID.randomUUID().toString());
+            FileUtils.forceMkdir(folder);
+            FileChannel channel = FileChannel.open(new File(folder, OWNER_FILE).toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            // held as long as the process runs, released by the operating system when it ends
+            channel.lock();
+            owner = channel;
+            root = folder;
+        }
+        return root;
+    }
+
+    private synchronized File getOwnFolder() {
+        return root;
+    }
+
+    public int getLeases() {
+        return leases.size();
+    }
+
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+}
@@ -0,0 +1,17 @@
+package org.kathra.sourcemanager.controller;
+
+import org.apache.camel.builder.RouteBuilder;
+import org.kathra.sourcemanager.Config;
+
+public class WorkingAreaJanitor extends RouteBuilder {
+
+    @Override
+    public void configure() {
+        Config config = new Config();
+        from("scheduler://workingAreaJanitor?delay=" + config.getWorkingAreaJanitorDelay())
+                .process(exchange -> WorkingArea.getInstance().reclaim());
+        from("scheduler://workingAreaUsage?delay=" + config.getWorkingAreaUsageDelay())
+                .process(exchange -> WorkingArea.getInstance().measureUsage());
+    }
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2020. The Kathra Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *    IRT SystemX (https://www.kathra.org/)
+ *
+ */
+package org.kathra.sourcemanager.controller;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class AdmissionControllerTest {
+
+    @Test
+    public void given_pool_and_queue_full_when_acquire_then_429_with_retry_after() throws Exception {
+        AdmissionController.Pool underTest = new AdmissionController.Pool("test-full", 1, 0, 10);
+        try (AdmissionController.Permit permit = underTest.acquire()) {
+            TooManyRequestsException e = assertThrows(TooManyRequestsException.class, underTest::acquire);
+            Assertions.assertEquals(429, e.getCode(), "Status");
+            Assertions.assertTrue(e.getRetryAfterSeconds() >= 1, "Retry after " + e.getRetryAfterSeconds() + " s");
+            Assertions.assertEquals(1, underTest.getRejected(), "Rejected");
+            Assertions.assertEquals(0, underTest.getQueued(), "Queued");
+        }
+        Assertions.assertEquals(0, underTest.getInUse(), "In use");
+    }
+
+    @Test
+    public void given_no_slot_freed_before_deadline_when_acquire_then_429() throws Exception {
+        AdmissionController.Pool underTest = new AdmissionController.Pool("test-deadline", 1, 1, 1);
+        try (AdmissionController.Permit permit = underTest.acquire()) {
+            long start = System.currentTimeMillis();
+            TooManyRequestsException e = assertThrows(TooManyRequestsException.class, underTest::acquire);
+            Assertions.assertEquals(429, e.getCode(), "Status");
+            Assertions.assertTrue(System.currentTimeMillis() - start >= 900, "Queued until the deadline");
+            Assertions.assertEquals(0, underTest.getQueued(), "Queued");
+        }
+    }
+
+    @Test
+    public void given_slot_freed_when_queued_then_admitted() throws Exception {
+        AdmissionController.Pool underTest = new AdmissionController.Pool("test-queued", 1, 1, 10);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            AdmissionController.Permit permit = underTest.acquire();
+            Future<AdmissionController.Permit> queued = executor.submit(underTest::acquire);
+            long deadline = System.currentTimeMillis() + 10000;
+            while (underTest.getQueued() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assertions.assertEquals(1, underTest.getQueued(), "Queued");
+            permit.close();
+            // closing twice doesn't free a second slot
+            permit.close();
+            queued.get(10, TimeUnit.SECONDS).close();
+            Assertions.assertEquals(0, underTest.getInUse(), "In use");
+            Assertions.assertEquals(0, underTest.getRejected(), "Rejected");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2020. The Kathra Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *    IRT SystemX (https://www.kathra.org/)
+ *
+ */
+package org.kathra.sourcemanager.controller;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class BranchWriteQueueTest {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(8);
+
+    @AfterEach
+    void tearDownEach() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void given_writes_to_same_branch_when_run_then_one_after_the_other_in_arrival_order() throws Exception {
+        BranchWriteQueue underTest = new BranchWriteQueue(10);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch firstStarted = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        List<Future<Integer>> writes = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            int write = i;
+            writes.add(executor.submit(() -> underTest.run("group/project", "dev", () -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                order.add(write);
+                if (write == 0) {
+                    firstStarted.countDown();
+                    release.await(10, TimeUnit.SECONDS);
+                }
+                Thread.sleep(5);
+                running.decrementAndGet();
+                return write;
+            })));
+            if (i == 0) {
+                Assertions.assertTrue(firstStarted.await(10, TimeUnit.SECONDS), "First write started");
+            }
+            // each write queued before the next one arrives
+            waitForWaiting(underTest, i);
+        }
+        release.countDown();
+        for (int i = 0; i < writes.size(); i++) {
+            Assertions.assertEquals(i, writes.get(i).get(10, TimeUnit.SECONDS).intValue(), "Result of write " + i);
+        }
+
+        Assertions.assertEquals(1, maxRunning.get(), "Writes running at once");
+        Assertions.assertEquals(Arrays.asList(0, 1, 2, 3, 4), order, "Order of the writes");
+        Assertions.assertEquals(0, underTest.getWaiting(), "Writes waiting");
+    }
+
+    @Test
+    public void given_writes_to_different_branches_when_run_then_in_parallel() throws Exception {
+        BranchWriteQueue underTest = new BranchWriteQueue(10);
+        CountDownLatch bothRunning = new CountDownLatch(2);
+
+        Future<Boolean> dev = executor.submit(() -> underTest.run("group/project", "dev", () -> {
+            bothRunning.countDown();
+            return bothRunning.await(10, TimeUnit.SECONDS);
+        }));
+        Future<Boolean> master = executor.submit(() -> underTest.run("group/project", "master", () -> {
+            bothRunning.countDown();
+            return bothRunning.await(10, TimeUnit.SECONDS);
+        }));
+
+        Assertions.assertTrue(dev.get(10, TimeUnit.SECONDS), "Write to dev ran along the write to master");
+        Assertions.assertTrue(master.get(10, TimeUnit.SECONDS), "Write to master ran along the write to dev");
+    }
+
+    @Test
+    public void given_previous_write_too_long_when_run_then_429() throws Exception {
+        BranchWriteQueue underTest = new BranchWriteQueue(1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<Boolean> first = executor.submit(() -> underTest.run("group/project", "dev", () -> {
+            started.countDown();
+            return release.await(10, TimeUnit.SECONDS);
+        }));
+        Assertions.assertTrue(started.await(10, TimeUnit.SECONDS), "First write started");
+
+        TooManyRequestsException e = assertThrows(TooManyRequestsException.class, () -> underTest.run("group/project", "dev", () -> "refused"));
+        Assertions.assertEquals(429, e.getCode(), "Status");
+
+        release.countDown();
+        Assertions.assertTrue(first.get(10, TimeUnit.SECONDS));
+        Assertions.assertEquals("admitted", underTest.run("group/project", "dev", () -> "admitted"), "Write once the queue is free");
+    }
+
+    @Test
+    public void given_failing_write_when_run_then_next_write_runs() throws Exception {
+        BranchWriteQueue underTest = new BranchWriteQueue(1);
+        ExecutionException e = assertThrows(ExecutionException.class, () -> executor.submit(() -> underTest.run("group/project", "dev", () -> {
+            throw new IllegalStateException("failed");
+        })).get(10, TimeUnit.SECONDS));
+        Assertions.assertTrue(e.getCause() instanceof IllegalStateException, "Failure of the write");
+
+        Assertions.assertEquals("next", underTest.run("group/project", "dev", () -> "next"), "Write after a failure");
+    }
+
+    private static void waitForWaiting(BranchWriteQueue queue, int waiting) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (queue.getWaiting() < waiting && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        Assertions.assertEquals(waiting, queue.getWaiting(), "Writes waiting");
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2020. The Kathra Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *    IRT SystemX (https://www.kathra.org/)
+ *
+ */
+package org.kathra.sourcemanager.controller;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.kathra.core.model.SourceRepositoryCommit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CommitBatcherTest {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(8);
+
+    @AfterEach
+    void tearDownEach() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void given_commits_to_same_branch_within_window_when_submit_then_written_in_one_batch() throws Exception {
+        CommitBatcher underTest = new CommitBatcher(1000, 10);
+        List<List<CommitBatcher.PendingCommit>> batches = Collections.synchronizedList(new ArrayList<>());
+        CommitBatcher.BatchWriter writer = batch -> {
+            batches.add(batch);
+            batch.forEach(pending -> pending.complete(new SourceRepositoryCommit().id(pending.getTag())));
+        };
+
+        Future<SourceRepositoryCommit> first = executor.submit(() -> underTest.submit("dev", new CommitBatcher.PendingCommit(null, "first"), writer));
+        Future<SourceRepositoryCommit> second = executor.submit(() -> underTest.submit("dev", new CommitBatcher.PendingCommit(null, "second"), writer));
+
+        Assertions.assertEquals("first", first.get(10, TimeUnit.SECONDS).getId(), "Commit of the first content");
+        Assertions.assertEquals("second", second.get(10, TimeUnit.SECONDS).getId(), "Commit of the second content");
+        Assertions.assertEquals(1, batches.size(), "Batches written");
+        Assertions.assertEquals(2, batches.get(0).size(), "Commits in the batch");
+    }
+
+    @Test
+    public void given_full_batch_when_submit_then_written_before_window_end() throws Exception {
+        CommitBatcher underTest = new CommitBatcher(60000, 2);
+        List<Integer> sizes = Collections.synchronizedList(new ArrayList<>());
+        CommitBatcher.BatchWriter writer = batch -> sizes.add(batch.size());
+
+        long start = System.currentTimeMillis();
+        Future<SourceRepositoryCommit> first = executor.submit(() -> underTest.submit("dev", new CommitBatcher.PendingCommit(null, null), writer));
+        Future<SourceRepositoryCommit> second = executor.submit(() -> underTest.submit("dev", new CommitBatcher.PendingCommit(null, null), writer));
+        first.get(10, TimeUnit.SECONDS);
+        second.get(10, TimeUnit.SECONDS);
+
+        Assertions.assertTrue(System.currentTimeMillis() - start < 10000, "Batch written once full");
+        Assertions.assertEquals(Collections.singletonList(2), sizes, "Batches written");
+    }
+
+    @Test
+    public void given_commits_to_different_branches_when_submit_then_written_in_separate_batches() throws Exception {
+        CommitBatcher underTest = new CommitBatcher(200, 10);
+        List<String> written = Collections.synchronizedList(new ArrayList<>());
+        CommitBatcher.BatchWriter writer = batch -> batch.forEach(pending -> written.add(pending.getTag()));
+
+        Future<SourceRepositoryCommit> dev = executor.submit(() -> underTest.submit("dev", new CommitBatcher.PendingCommit(null, "dev"), writer));
+        Future<SourceRepositoryCommit> master = executor.submit(() -> underTest.submit("master", new CommitBatcher.PendingCommit(null, "master"), writer));
+        dev.get(10, TimeUnit.SECONDS);
+        master.get(10, TimeUnit.SECONDS);
+
+        Assertions.assertEquals(2, written.size(), "Commits written");
+        Assertions.assertTrue(written.contains("dev") && written.contains("master"), "Commits of both branches written");
+    }
+
+    @Test
+    public void given_commit_not_completed_by_writer_when_submit_then_null() throws Exception {
+        CommitBatcher underTest = new CommitBatcher(1, 10);
+
+        Assertions.assertNull(underTest.submit("dev", new CommitBatcher.PendingCommit(null, null), batch -> {
+        }), "Content without changes");
+    }
+
+    @Test
+    public void given_failing_writer_when_submit_then_every_commit_fails() throws Exception {
+        CommitBatcher underTest = new CommitBatcher(1000, 2);
+        CommitBatcher.BatchWriter writer = batch -> {
+            throw new IllegalStateException("push failed");
+        };
+
+        Future<SourceRepositoryCommit> first = executor.submit(() -> underTest.submit("dev", new CommitBatcher.PendingCommit(null, null), writer));
+        Future<SourceRepositoryCommit> second = executor.submit(() -> underTest.submit("dev", new CommitBatcher.PendingCommit(null, null), writer));
+
+        for (Future<SourceRepositoryCommit> commit : Arrays.asList(first, second)) {
+            Exception e = assertThrows(Exception.class, () -> commit.get(10, TimeUnit.SECONDS));
+            Assertions.assertTrue(e.getCause() instanceof IllegalStateException, "Failure of the batch");
+        }
+    }
+
+    @Test
+    public void given_failure_of_one_content_when_submit_then_only_this_commit_fails() throws Exception {
+        CommitBatcher underTest = new CommitBatcher(1000, 2);
+        CommitBatcher.PendingCommit invalid = new CommitBatcher.PendingCommit(null, "invalid");
+        CommitBatcher.PendingCommit valid = new CommitBatcher.PendingCommit(null, "valid");
+        CommitBatcher.BatchWriter writer = batch -> {
+            Assertions.assertEquals(2, batch.size(), "Commits in the batch");
+            invalid.fail(new IllegalArgumentException("invalid content"));
+            valid.complete(new SourceRepositoryCommit().id("written"));
+        };
+
+        Future<SourceRepositoryCommit> first = executor.submit(() -> underTest.submit("dev", invalid, writer));
+        Future<SourceRepositoryCommit> second = executor.submit(() -> underTest.submit("dev", valid, writer));
+
+        Exception e = assertThrows(Exception.class, () -> first.get(10, TimeUnit.SECONDS));
+        Assertions.assertTrue(e.getCause() instanceof IllegalArgumentException, "Failure of the invalid content");
+        Assertions.assertEquals("written", second.get(10, TimeUnit.SECONDS).getId(), "Commit of the valid content");
+    }
+}
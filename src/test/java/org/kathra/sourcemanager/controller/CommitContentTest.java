@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2020. The Kathra Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *    IRT SystemX (https://www.kathra.org/)
+ *
+ */
+package org.kathra.sourcemanager.controller;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.kathra.sourcemanager.Config;
+import org.kathra.utils.ApiException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CommitContentTest {
+
+    private final GitService gitService = new GitService(new Config() {
+        @Override
+        public boolean isGitMirrorEnabled() {
+            return false;
+        }
+    });
+
+    private File folder;
+    private Git git;
+
+    @BeforeEach
+    public void setUpEach() throws Exception {
+        folder = Files.createTempDirectory("commit-content-test").toFile();
+        git = Git.init().setDirectory(new File(folder, "repository")).call();
+    }
+
+    @AfterEach
+    public void tearDownEach() {
+        git.close();
+        FileUtils.deleteQuietly(folder);
+    }
+
+    private File zip(Map<String, String> entries) throws IOException {
+        File archive = new File(folder, "content.zip");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(archive))) {
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                out.putNextEntry(new ZipEntry(entry.getKey()));
+                out.write(entry.getValue().getBytes(StandardCharsets.UTF_8));
+                out.closeEntry();
+            }
+        }
+        return archive;
+    }
+
+    private static Map<String, String> files(int count) {
+        Map<String, String> files = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            files.put("folder" + i % 7 + "/file" + i + ".txt", "content of file " + i);
+        }
+        return files;
+    }
+
+    @Test
+    public void given_large_archive_when_insert_then_every_entry_inserted_by_parallel_inserters() throws Exception {
+        Map<String, String> files = files(500);
+        CommitContent underTest = new CommitContent(zip(files), null, true, false);
+
+        NavigableMap<String, ObjectId> blobs;
+        try (ObjectInserter inserter = git.getRepository().newObjectInserter()) {
+            blobs = underTest.insert(git.getRepository(), inserter);
+            inserter.flush();
+        }
+
+        Assertions.assertEquals(files.keySet(), blobs.keySet(), "Inserted paths");
+        ObjectInserter.Formatter formatter = new ObjectInserter.Formatter();
+        for (Map.Entry<String, String> file : files.entrySet()) {
+            byte[] content = file.getValue().getBytes(StandardCharsets.UTF_8);
+            Assertions.assertEquals(formatter.idFor(Constants.OBJ_BLOB, content), blobs.get(file.getKey()), "Blob of " + file.getKey());
+            Assertions.assertArrayEquals(content, git.getRepository().open(blobs.get(file.getKey())).getBytes(), "Content of " + file.getKey());
+        }
+    }
+
+    @Test
+    public void given_single_file_when_insert_then_inserted_at_its_folder() throws Exception {
+        File file = new File(folder, "upload");
+        FileUtils.write(file, "single", StandardCharsets.UTF_8);
+        CommitContent underTest = new CommitContent(file, "README.md", "/docs/", false, false);
+
+        NavigableMap<String, ObjectId> blobs;
+        try (ObjectInserter inserter = git.getRepository().newObjectInserter()) {
+            blobs = underTest.insert(git.getRepository(), inserter);
+            inserter.flush();
+        }
+
+        Assertions.assertEquals(1, blobs.size(), "Inserted blobs");
+        Assertions.assertArrayEquals("single".getBytes(StandardCharsets.UTF_8), git.getRepository().open(blobs.get("docs/README.md")).getBytes());
+    }
+
+    @Test
+    public void given_too_many_entries_when_insert_then_413() throws Exception {
+        CommitContent underTest = new CommitContent(zip(files(20)), null, true, false).limits(10, FileUtils.ONE_MB);
+
+        try (ObjectInserter inserter = git.getRepository().newObjectInserter()) {
+            ApiException e = assertThrows(ApiException.class, () -> underTest.insert(git.getRepository(), inserter));
+            Assertions.assertEquals(CommitContent.PAYLOAD_TOO_LARGE, e.getCode(), "Status");
+        }
+    }
+
+    @Test
+    public void given_too_many_bytes_once_uncompressed_when_insert_then_413() throws Exception {
+        Map<String, String> files = new LinkedHashMap<>();
+        files.put("large.txt", new String(new char[4096]).replace('\0', 'a'));
+        CommitContent underTest = new CommitContent(zip(files), null, true, false).limits(10, 1024);
+
+        try (ObjectInserter inserter = git.getRepository().newObjectInserter()) {
+            ApiException e = assertThrows(ApiException.class, () -> underTest.insert(git.getRepository(), inserter));
+            Assertions.assertEquals(CommitContent.PAYLOAD_TOO_LARGE, e.getCode(), "Status");
+        }
+    }
+
+    @Test
+    public void given_many_entries_too_many_bytes_in_total_when_insert_then_413() throws Exception {
+        // each entry is below the bound, their sum read by the parallel inserters isn't
+        CommitContent underTest = new CommitContent(zip(files(500)), null, true, false).limits(1000, 4096);
+
+        try (ObjectInserter inserter = git.getRepository().newObjectInserter()) {
+            ApiException e = assertThrows(ApiException.class, () -> underTest.insert(git.getRepository(), inserter));
+            Assertions.assertEquals(CommitContent.PAYLOAD_TOO_LARGE, e.getCode(), "Status");
+        }
+    }
+
+    private File worktree() {
+        return git.getRepository().getWorkTree();
+    }
+
+    private void commitHead(Map<String, String> files) throws Exception {
+        for (Map.Entry<String, String> file : files.entrySet()) {
+            FileUtils.write(new File(worktree(), file.getKey()), file.getValue(), StandardCharsets.UTF_8);
+        }
+        gitService.createCommit(git, "user", "HEAD", Collections.singletonList("."));
+    }
+
+    private List<String> headPaths() throws IOException {
+        List<String> paths = new ArrayList<>();
+        try (TreeWalk treeWalk = new TreeWalk(git.getRepository())) {
+            treeWalk.addTree(git.getRepository().resolve("HEAD^{tree}"));
+            treeWalk.setRecursive(true);
+            while (treeWalk.next()) {
+                paths.add(treeWalk.getPathString());
+            }
+        }
+        return paths;
+    }
+
+    private List<String> indexPaths() throws IOException {
+        List<String> paths = new ArrayList<>();
+        DirCache index = git.getRepository().readDirCache();
+        for (int i = 0; i < index.getEntryCount(); i++) {
+            paths.add(index.getEntry(i).getPathString());
+        }
+        return paths;
+    }
+
+    @Test
+    public void given_file_replaced_by_folder_when_applyTo_then_file_removed_from_index() throws Exception {
+        Map<String, String> head = new LinkedHashMap<>();
+        head.put("a", "file a");
+        head.put("c.txt", "file c");
+        commitHead(head);
+        Map<String, String> content = new LinkedHashMap<>();
+        content.put("a/b", "file b");
+        content.put("c.txt", "file c");
+        CommitContent underTest = new CommitContent(zip(content), null, true, false);
+
+        List<String> changes = underTest.applyTo(git.getRepository(), worktree());
+        Assertions.assertEquals(Arrays.asList("a", "a/b"), changes, "Changes");
+        gitService.createCommit(git, "user", "Replace a", changes);
+
+        Assertions.assertEquals(Arrays.asList("a/b", "c.txt"), headPaths(), "Files of the commit");
+        Assertions.assertEquals(Arrays.asList("a/b", "c.txt"), indexPaths(), "Files of the index");
+    }
+
+    @Test
+    public void given_folder_replaced_by_file_when_applyTo_then_folder_files_removed_from_index() throws Exception {
+        Map<String, String> head = new LinkedHashMap<>();
+        head.put("a/b", "file b");
+        head.put("a/d/e", "file e");
+        head.put("c.txt", "file c");
+        commitHead(head);
+        File file = new File(folder, "upload");
+        FileUtils.write(file, "file a", StandardCharsets.UTF_8);
+        CommitContent underTest = new CommitContent(file, "a", "", false, false);
+
+        List<String> changes = underTest.applyTo(git.getRepository(), worktree());
+        Assertions.assertEquals(Arrays.asList("a", "a/b", "a/d/e"), changes, "Changes");
+        gitService.createCommit(git, "user", "Replace a", changes);
+
+        Assertions.assertEquals(Arrays.asList("a", "c.txt"), headPaths(), "Files of the commit");
+        Assertions.assertEquals(Arrays.asList("a", "c.txt"), indexPaths(), "Files of the index");
+    }
+
+    @Test
+    public void given_unchanged_content_when_applyTo_then_no_changes() throws Exception {
+        Map<String, String> head = new LinkedHashMap<>();
+        head.put("a/b", "file b");
+        commitHead(head);
+        CommitContent underTest = new CommitContent(zip(head), null, true, false);
+
+        Assertions.assertEquals(Collections.emptyList(), underTest.applyTo(git.getRepository(), worktree()), "Changes");
+    }
+
+    @Test
+    public void given_escaping_or_git_paths_when_toRepositoryPath_then_400() {
+        for (String entryName : new String[]{"../outside", "a/../../outside", "a/./b", ".git/config", "a/.GIT/hooks/pre-commit", "a//b"}) {
+            ApiException e = assertThrows(ApiException.class, () -> CommitContent.toRepositoryPath(entryName), entryName);
+            Assertions.assertEquals(400, e.getCode(), "Status for " + entryName);
+        }
+    }
+
+    @Test
+    public void given_relative_or_windows_paths_when_toRepositoryPath_then_normalized() throws Exception {
+        Assertions.assertEquals("a/b", CommitContent.toRepositoryPath("./a/b"));
+        Assertions.assertEquals("a/b", CommitContent.toRepositoryPath("/a/b"));
+        Assertions.assertEquals("a/b", CommitContent.toRepositoryPath("a\\b"));
+        Assertions.assertEquals("a/.gitignore", CommitContent.toRepositoryPath("a/.gitignore"));
+    }
+
+    @Test
+    public void given_archive_with_escaping_entry_when_applyTo_then_400_and_nothing_written() throws Exception {
+        Map<String, String> content = new LinkedHashMap<>();
+        content.put("ok.txt", "fine");
+        content.put("../escaped.txt", "outside");
+        CommitContent underTest = new CommitContent(zip(content), null, true, false);
+
+        ApiException e = assertThrows(ApiException.class, () -> underTest.applyTo(git.getRepository(), worktree()));
+        Assertions.assertEquals(400, e.getCode(), "Status");
+        Assertions.assertFalse(new File(worktree(), "ok.txt").exists(), "Entries written");
+        Assertions.assertFalse(new File(folder, "escaped.txt").exists(), "Entry written outside the worktree");
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2020. The Kathra Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *    IRT SystemX (https://www.kathra.org/)
+ *
+ */
+package org.kathra.sourcemanager.controller;
+
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class DeployKeyIndexTest {
+
+    private HttpServer server;
+    // deploy keys listed by id, as GitLab does
+    private final List<JSONObject> keys = new CopyOnWriteArrayList<>();
+    private final AtomicInteger pagesRead = new AtomicInteger();
+    private DeployKeyIndex underTest;
+
+    @BeforeEach
+    void setUpEach() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/api/v4/deploy_keys", exchange -> {
+            pagesRead.incrementAndGet();
+            int page = 1;
+            for (String parameter : exchange.getRequestURI().getQuery().split("&")) {
+                if (parameter.startsWith("page=")) {
+                    page = Integer.parseInt(parameter.substring("page=".length()));
+                }
+            }
+            JSONArray array = new JSONArray();
+            keys.stream().skip((page - 1) * DeployKeyIndex.PER_PAGE).limit(DeployKeyIndex.PER_PAGE).forEach(array::put);
+            byte[] body = array.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        underTest = new DeployKeyIndex("http://localhost:" + server.getAddress().getPort(), "adminToken", 60);
+    }
+
+    @AfterEach
+    void tearDownEach() {
+        server.stop(0);
+    }
+
+    @Test
+    public void given_warm_index_when_getId_then_gitlab_not_called() throws Exception {
+        addKeys(1, 150);
+        underTest.refresh();
+        Assertions.assertEquals(2, pagesRead.get(), "Pages read");
+        Assertions.assertEquals(Integer.valueOf(42), underTest.getId("key-42"));
+        Assertions.assertEquals(Integer.valueOf(150), underTest.getId("key-150"));
+        Assertions.assertEquals(2, pagesRead.get(), "Pages read");
+    }
+
+    @Test
+    public void given_new_key_shifted_to_earlier_page_when_getId_then_found() throws Exception {
+        addKeys(1, DeployKeyIndex.PER_PAGE);
+        underTest.refresh();
+        // once the first key deleted, the new key is on the first page which was complete
+        keys.remove(0);
+        addKeys(DeployKeyIndex.PER_PAGE + 1, DeployKeyIndex.PER_PAGE + 1);
+
+        Assertions.assertEquals(Integer.valueOf(DeployKeyIndex.PER_PAGE + 1), underTest.getId("key-" + (DeployKeyIndex.PER_PAGE + 1)));
+        Assertions.assertNull(underTest.getId("key-1"), "Deleted key dropped");
+    }
+
+    @Test
+    public void given_concurrent_misses_when_getId_then_single_reload() throws Exception {
+        addKeys(1, 10);
+        underTest.refresh();
+        addKeys(11, 11);
+        pagesRead.set(0);
+
+        Thread[] threads = new Thread[8];
+        AtomicInteger found = new AtomicInteger();
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                try {
+                    if (underTest.getId("key-11") != null) {
+                        found.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    Assertions.fail(e);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assertions.assertEquals(threads.length, found.get(), "Callers finding the new key");
+        Assertions.assertTrue(pagesRead.get() <= 2, "Reloads shared by concurrent misses, pages read: " + pagesRead.get());
+    }
+
+    @Test
+    public void given_unknown_title_when_getId_repeatedly_then_single_reload() throws Exception {
+        addKeys(1, 10);
+        underTest.refresh();
+        pagesRead.set(0);
+
+        for (int i = 0; i < 5; i++) {
+            Assertions.assertNull(underTest.getId("unknown"), "Unknown key");
+        }
+        Assertions.assertEquals(1, pagesRead.get(), "Pages read");
+
+        // another title still reloads the index
+        addKeys(11, 11);
+        Assertions.assertEquals(Integer.valueOf(11), underTest.getId("key-11"));
+        Assertions.assertEquals(2, pagesRead.get(), "Pages read");
+    }
+
+    @Test
+    public void given_unknown_title_expired_when_getId_then_reloaded() throws Exception {
+        underTest = new DeployKeyIndex("http://localhost:" + server.getAddress().getPort(), "adminToken", 0);
+        addKeys(1, 10);
+        underTest.refresh();
+        pagesRead.set(0);
+
+        Assertions.assertNull(underTest.getId("unknown"), "Unknown key");
+        Assertions.assertNull(underTest.getId("unknown"), "Unknown key");
+        Assertions.assertEquals(2, pagesRead.get(), "Pages read without remembering unknown titles");
+    }
+
+    @Test
+    public void given_keys_array_when_readKeys_then_titles_indexed() throws Exception {
+        Map<String, Integer> index = new HashMap<>();
+        Assertions.assertEquals(2, DeployKeyIndex.readKeys(new ByteArrayInputStream(" [ {\"id\":1,\"title\":\"a\",\"key\":\"x,]\"} , {\"id\":2,\"title\":\"b\"} ]".getBytes(StandardCharsets.UTF_8)), index));
+        Assertions.assertEquals(Integer.valueOf(2), index.get("b"));
+        Assertions.assertEquals(0, DeployKeyIndex.readKeys(new ByteArrayInputStream("[]".getBytes(StandardCharsets.UTF_8)), index));
+        assertThrows(IOException.class, () -> DeployKeyIndex.readKeys(new ByteArrayInputStream("{\"message\":1}".getBytes(StandardCharsets.UTF_8)), index));
+    }
+
+    private void addKeys(int firstId, int lastId) {
+        for (int id = firstId; id <= lastId; id++) {
+            keys.add(new JSONObject().put("id", id).put("title", "key-" + id));
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2020. The Kathra Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *    IRT SystemX (https://www.kathra.org/)
+ *
+ */
+package org.kathra.sourcemanager.controller;
+
+import org.gitlab.api.models.GitlabGroup;
+import org.gitlab.api.models.GitlabProject;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+class ExpiringCacheTest {
+
+    @Test
+    public void given_cached_value_when_get_then_not_loaded_again() throws Exception {
+        ExpiringCache<String> underTest = new ExpiringCache<>(10, 60, 60);
+        AtomicInteger loads = new AtomicInteger();
+        ExpiringCache.Loader<String> loader = key -> {
+            loads.incrementAndGet();
+            return "value";
+        };
+        Assertions.assertEquals("value", underTest.get("key", loader));
+        Assertions.assertEquals("value", underTest.get("key", loader));
+        Assertions.assertEquals(1, loads.get(), "Number of loads");
+    }
+
+    @Test
+    public void given_expired_value_when_get_then_loaded_again() throws Exception {
+        ExpiringCache<String> underTest = new ExpiringCache<>(10, 1, 1);
+        underTest.put("key", "old");
+        Thread.sleep(1100);
+        Assertions.assertNull(underTest.getIfPresent("key"), "Expired value");
+        Assertions.assertEquals("new", underTest.get("key", key -> "new"));
+    }
+
+    @Test
+    public void given_absent_value_when_get_then_cached_for_negative_ttl_only() throws Exception {
+        ExpiringCache<String> underTest = new ExpiringCache<>(10, 60, 60);
+        AtomicInteger loads = new AtomicInteger();
+        Assertions.assertNull(underTest.get("key", key -> {
+            loads.incrementAndGet();
+            return null;
+        }));
+        Assertions.assertNull(underTest.get("key", key -> "value"), "Absent value cached");
+        Assertions.assertEquals(1, loads.get(), "Number of loads");
+
+        ExpiringCache<String> withoutNegativeTtl = new ExpiringCache<>(10, 60, 0);
+        Assertions.assertNull(withoutNegativeTtl.get("key", key -> null));
+        Assertions.assertEquals("value", withoutNegativeTtl.get("key", key -> "value"), "Absent value not cached");
+    }
+
+    @Test
+    public void given_full_cache_when_put_then_soonest_to_expire_dropped() throws Exception {
+        ExpiringCache<String> underTest = new ExpiringCache<>(10, 60, 1);
+        underTest.put("absent", null);
+        for (int i = 0; i < 10; i++) {
+            underTest.put("key" + i, "value" + i);
+        }
+        Assertions.assertEquals(9, underTest.size(), "Entries once shrunk to 90% of the capacity");
+        Assertions.assertEquals("loaded", underTest.get("absent", key -> "loaded"), "Soonest to expire dropped first");
+    }
+
+    @Test
+    public void given_matching_keys_when_invalidateIf_or_updateIf_then_only_they_change() {
+        ExpiringCache<String> underTest = new ExpiringCache<>(10, 60, 60);
+        underTest.put("group/a", "a");
+        underTest.put("group/b", null);
+        underTest.put("other/c", "c");
+        underTest.updateIf(key -> key.startsWith("group/"), value -> value + "!");
+        Assertions.assertEquals("a!", underTest.getIfPresent("group/a"));
+        Assertions.assertNull(underTest.getIfPresent("group/b"), "Absent value not updated");
+        Assertions.assertEquals("c", underTest.getIfPresent("other/c"));
+
+        underTest.invalidateIf(key -> key.startsWith("group/"));
+        Assertions.assertEquals(1, underTest.size());
+        Assertions.assertEquals("c", underTest.getIfPresent("other/c"));
+    }
+
+    @Test
+    public void given_project_event_when_system_hook_then_project_invalidated() {
+        ExpiringCache<GitlabProject> projects = new ExpiringCache<>(10, 60, 60);
+        ExpiringCache<GitlabGroup> groups = new ExpiringCache<>(10, 60, 0);
+        ExpiringCache<GitlabProject> access = new ExpiringCache<>(10, 60, 0);
+        projects.put(GitlabService.toPathCacheKey("/Kathra-Projects/DT/old/"), new GitlabProject());
+        projects.put(GitlabService.toPathCacheKey("kathra-projects/dt/new"), null);
+        projects.put(GitlabService.toPathCacheKey("kathra-projects/dt/other"), new GitlabProject());
+
+        new GitlabSystemHook(projects, groups, access, "").onEvent(new JSONObject()
+                .put("event_name", "project_rename")
+                .put("path_with_namespace", "kathra-projects/DT/new")
+                .put("old_path_with_namespace", "kathra-projects/DT/old"));
+
+        Assertions.assertEquals(1, projects.size(), "Projects cached");
+        Assertions.assertNotNull(projects.getIfPresent("kathra-projects/dt/other"));
+    }
+
+    @Test
+    public void given_group_event_when_system_hook_then_group_and_its_content_invalidated() {
+        ExpiringCache<GitlabProject> projects = new ExpiringCache<>(10, 60, 60);
+        ExpiringCache<GitlabGroup> groups = new ExpiringCache<>(10, 60, 0);
+        ExpiringCache<GitlabProject> access = new ExpiringCache<>(10, 60, 0);
+        projects.put("kathra-projects/dt/project", new GitlabProject());
+        projects.put("kathra-projects/dtx/project", new GitlabProject());
+        groups.put("kathra-projects/dt", new GitlabGroup());
+        groups.put("kathra-projects/dt/sub", new GitlabGroup());
+        groups.put("kathra-projects", new GitlabGroup());
+
+        new GitlabSystemHook(projects, groups, access, "").onEvent(new JSONObject()
+                .put("event_name", "group_destroy")
+                .put("full_path", "kathra-projects/DT"));
+
+        Assertions.assertNull(projects.getIfPresent("kathra-projects/dt/project"), "Project of the group");
+        Assertions.assertNotNull(projects.getIfPresent("kathra-projects/dtx/project"), "Project of a group sharing the prefix");
+        Assertions.assertEquals(1, groups.size(), "Groups cached");
+        Assertions.assertNotNull(groups.getIfPresent("kathra-projects"));
+    }
+
+    @Test
+    public void given_membership_event_when_system_hook_then_project_access_invalidated() {
+        ExpiringCache<GitlabProject> projects = new ExpiringCache<>(10, 60, 60);
+        ExpiringCache<GitlabGroup> groups = new ExpiringCache<>(10, 60, 0);
+        ExpiringCache<GitlabProject> access = new ExpiringCache<>(10, 60, 0);
+        access.put(GitlabService.toProjectAccessCacheKey(7, "user"), new GitlabProject());
+        access.put(GitlabService.toProjectAccessCacheKey(7, "other"), new GitlabProject());
+        access.put(GitlabService.toProjectAccessCacheKey(70, "user"), new GitlabProject());
+        GitlabSystemHook underTest = new GitlabSystemHook(projects, groups, access, "");
+
+        underTest.onEvent(new JSONObject().put("event_name", "user_remove_from_team").put("project_id", 7));
+        Assertions.assertEquals(1, access.size(), "Project access cached");
+        Assertions.assertNotNull(access.getIfPresent(GitlabService.toProjectAccessCacheKey(70, "user")));
+
+        underTest.onEvent(new JSONObject().put("event_name", "user_remove_from_group").put("group_id", 1));
+        Assertions.assertEquals(0, access.size(), "Project access cached");
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2020. The Kathra Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *    IRT SystemX (https://www.kathra.org/)
+ *
+ */
+package org.kathra.sourcemanager.controller;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.locks.ReentrantLock;
+
+class GitMirrorCacheTest {
+
+    private File root;
+    private GitMirrorCache underTest;
+
+    @BeforeEach
+    void setUpEach() throws IOException {
+        root = Files.createTempDirectory("GitMirrorCacheTest").toFile();
+        // every mirror idle for more than 0 minutes is evicted
+        underTest = new GitMirrorCache(root, 1, 0);
+    }
+
+    @AfterEach
+    void tearDownEach() {
+        FileUtils.deleteQuietly(root);
+    }
+
+    @Test
+    public void given_idle_mirrors_when_evict_then_deleted_and_size_counted() throws Exception {
+        createMirror(1, 1000);
+        createMirror(2, 500);
+        underTest = new GitMirrorCache(root, 1, 60);
+        underTest.evict();
+        Assertions.assertEquals(1500, underTest.getSize(), "Bytes of the mirrors");
+
+        underTest = new GitMirrorCache(root, 1, 0);
+        underTest.evict();
+        Assertions.assertFalse(underTest.getMirrorFolder(1).exists(), "Idle mirror evicted");
+        Assertions.assertFalse(underTest.getMirrorFolder(2).exists(), "Idle mirror evicted");
+        Assertions.assertEquals(0, underTest.getSize(), "Bytes of the mirrors");
+        Assertions.assertEquals(0, underTest.getMirrors(), "Locks of the evicted mirrors");
+    }
+
+    @Test
+    public void given_mirror_borrowed_by_worktree_when_evict_then_kept_until_worktree_deleted() throws Exception {
+        createMirror(1, 10);
+        File worktree = new File(root, "worktree/.git");
+        FileUtils.forceMkdir(worktree);
+        ReentrantLock lock = underTest.lock(1);
+        try {
+            underTest.borrow(1, worktree);
+        } finally {
+            lock.unlock();
+        }
+
+        underTest.evict();
+        Assertions.assertTrue(underTest.getMirrorFolder(1).exists(), "Borrowed mirror kept");
+
+        FileUtils.deleteDirectory(worktree);
+        underTest.evict();
+        Assertions.assertFalse(underTest.getMirrorFolder(1).exists(), "Mirror evicted once the worktree deleted");
+    }
+
+    @Test
+    public void given_mirror_read_when_evict_then_kept_until_released() throws Exception {
+        createMirror(1, 10);
+        ReentrantLock lock = underTest.lock(1);
+        try {
+            underTest.read(1);
+        } finally {
+            lock.unlock();
+        }
+
+        underTest.evict();
+        Assertions.assertTrue(underTest.getMirrorFolder(1).exists(), "Mirror read kept");
+
+        underTest.release(1);
+        underTest.evict();
+        Assertions.assertFalse(underTest.getMirrorFolder(1).exists(), "Mirror evicted once released");
+    }
+
+    @Test
+    public void given_mirror_locked_when_evict_then_kept() throws Exception {
+        createMirror(1, 10);
+        ReentrantLock lock = underTest.lock(1);
+        try {
+            // evicted by the janitor thread, not by the operation holding the lock
+            Thread janitor = new Thread(underTest::evict);
+            janitor.start();
+            janitor.join();
+            Assertions.assertTrue(underTest.getMirrorFolder(1).exists(), "Locked mirror kept");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Test
+    public void given_lock_of_project_without_mirror_when_evict_then_pruned() throws Exception {
+        underTest.lock(3).unlock();
+        Assertions.assertEquals(1, underTest.getMirrors(), "Lock of the project");
+        underTest.evict();
+        Assertions.assertEquals(0, underTest.getMirrors(), "Lock of the project without mirror");
+    }
+
+    private void createMirror(Integer projectId, int bytes) throws IOException {
+        File mirror = underTest.getMirrorFolder(projectId);
+        FileUtils.writeByteArrayToFile(new File(mirror, "objects/pack"), new byte[bytes]);
+        underTest.touch(projectId);
+        new File(mirror, "kathra-last-access").setLastModified(System.currentTimeMillis() - 60000);
+    }
+}
@@ -0,0 +1,819 @@
+/*
+ * Copyright (c) 2020. The Kathra Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *    IRT SystemX (https://www.kathra.org/)
+ *
+ */
+package org.kathra.sourcemanager.controller;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.errors.NotSupportedException;
+import org.eclipse.jgit.errors.TransportException;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.ConfigConstants;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.CredentialsProvider;
+import org.eclipse.jgit.transport.PreReceiveHook;
+import org.eclipse.jgit.transport.ReceiveCommand;
+import org.eclipse.jgit.transport.ReceivePack;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.resolver.ServiceNotAuthorizedException;
+import org.eclipse.jgit.transport.resolver.ServiceNotEnabledException;
+import org.eclipse.jgit.transport.TestProtocol;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.transport.UploadPack;
+import org.eclipse.jgit.transport.UsernamePasswordCredentialsProvider;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.kathra.core.model.SourceRepositoryCommit;
+import org.kathra.sourcemanager.Config;
+import org.kathra.utils.ApiException;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+class GitServiceTest {
+
+    private static final Integer PROJECT_ID = 1;
+
+    private final CredentialsProvider cp = new UsernamePasswordCredentialsProvider("user", "token");
+
+    private File folder;
+    private Git remote;
+    private String remoteUrl;
+    private GitService underTest;
+
+    @BeforeEach
+    void setUpEach() throws Exception {
+        folder = Files.createTempDirectory("GitServiceTest").toFile();
+        remote = Git.init().setDirectory(new File(folder, "remote")).call();
+        remoteUrl = remote.getRepository().getDirectory().toURI().toString();
+        File mirrorFolder = new File(folder, "mirrors");
+        underTest = new GitService(new Config() {
+            @Override
+            public boolean isGitMirrorEnabled() {
+                return true;
+            }
+
+            @Override
+            public String getGitMirrorFolder() {
+                return mirrorFolder.getAbsolutePath();
+            }
+        });
+    }
+
+    @AfterEach
+    void tearDownEach() {
+        remote.close();
+        FileUtils.deleteQuietly(folder);
+    }
+
+    private RevCommit commit(String... paths) throws Exception {
+        for (String path : paths) {
+            FileUtils.write(new File(remote.getRepository().getWorkTree(), path), "content of " + path, StandardCharsets.UTF_8);
+        }
+        remote.add().addFilepattern(".").call();
+        return remote.commit().setMessage("Add " + String.join(", ", paths)).call();
+    }
+
+    private void fetchMirror() throws Exception {
+        underTest.walkCommits(PROJECT_ID, cp, remoteUrl, "master", null, null, null, 1, GitService.ISO_DATES, commit -> {
+        });
+    }
+
+    private GitMirrorCache mirrorCache() {
+        return GitMirrorCache.getInstance(new File(folder, "mirrors"), 0, 0);
+    }
+
+    @Test
+    public void given_branch_when_cloneProject_from_mirror_then_objects_borrowed_and_remote_branches_tracked() throws Exception {
+        RevCommit master = commit("a.txt");
+        remote.checkout().setCreateBranch(true).setName("dev").call();
+        RevCommit dev = commit("b.txt");
+
+        try (Git git = underTest.cloneProject(PROJECT_ID, "project", "dev", new File(folder, "working"), cp, remoteUrl, false)) {
+            Repository repository = git.getRepository();
+            File objects = new File(repository.getDirectory(), "objects");
+            Assertions.assertEquals(new File(mirrorCache().getMirrorFolder(PROJECT_ID), "objects").getAbsolutePath(),
+                    FileUtils.readFileToString(new File(objects, "info/alternates"), StandardCharsets.UTF_8).trim(), "Alternates");
+            Assertions.assertEquals(Collections.singletonList("alternates"), FileUtils.listFiles(objects, null, true).stream().map(File::getName).collect(Collectors.toList()), "Objects of the worktree");
+            Assertions.assertTrue(mirrorCache().isBorrowed(PROJECT_ID), "Mirror borrowed");
+
+            Assertions.assertEquals(master, repository.resolve("refs/remotes/origin/master"), "Remote-tracking master");
+            Assertions.assertEquals(dev, repository.resolve("refs/remotes/origin/dev"), "Remote-tracking dev");
+            Assertions.assertEquals("refs/heads/dev", repository.getFullBranch(), "Branch checked out");
+            Assertions.assertEquals(dev, repository.resolve(Constants.HEAD), "Head");
+            Assertions.assertEquals(GitService.GIT_REMOTE, repository.getConfig().getString(ConfigConstants.CONFIG_BRANCH_SECTION, "dev", ConfigConstants.CONFIG_KEY_REMOTE), "Remote of the branch");
+            Assertions.assertTrue(new File(repository.getWorkTree(), "b.txt").exists(), "File of the branch");
+        }
+    }
+
+    @Test
+    public void given_tag_when_cloneProject_from_mirror_then_tag_checked_out_detached() throws Exception {
+        RevCommit tagged = commit("a.txt");
+        remote.tag().setName("v1").setMessage("Version 1").call();
+        commit("b.txt");
+
+        try (Git git = underTest.cloneProject(PROJECT_ID, "project", "v1", new File(folder, "working"), cp, remoteUrl, true)) {
+            Repository repository = git.getRepository();
+            Assertions.assertEquals(tagged.name(), repository.getFullBranch(), "Detached head");
+            Assertions.assertNotNull(repository.exactRef(Constants.R_TAGS + "v1"), "Tag");
+            Assertions.assertTrue(new File(repository.getWorkTree(), "a.txt").exists(), "File of the tag");
+            Assertions.assertFalse(new File(repository.getWorkTree(), "b.txt").exists(), "File committed after the tag");
+        }
+    }
+
+    @Test
+    public void given_missing_branch_when_cloneProject_from_mirror_then_default_branch_checked_out_as_branch() throws Exception {
+        RevCommit head = commit("a.txt");
+        remote.branchRename().setNewName("main").call();
+
+        try (Git git = underTest.cloneProject(PROJECT_ID, "project", "feature", new File(folder, "working"), cp, remoteUrl, false)) {
+            Repository repository = git.getRepository();
+            Assertions.assertEquals("refs/heads/feature", repository.getFullBranch(), "Branch checked out");
+            Assertions.assertEquals(head, repository.resolve(Constants.HEAD), "Head of the default branch");
+            Assertions.assertEquals(head, repository.resolve("refs/remotes/origin/main"), "Remote-tracking default branch");
+            Assertions.assertTrue(new File(repository.getWorkTree(), "a.txt").exists(), "File of the default branch");
+        }
+    }
+
+    @Test
+    public void given_worktree_failing_to_be_checked_out_when_cloneProject_from_mirror_then_mirror_given_back() throws Exception {
+        commit("a.txt");
+        // a tag of a file, that no worktree can check out
+        RefUpdate tag = remote.getRepository().updateRef(Constants.R_TAGS + "file");
+        tag.setNewObjectId(remote.getRepository().resolve("HEAD:a.txt"));
+        Assertions.assertEquals(RefUpdate.Result.NEW, tag.update(), "Tag of the file");
+        File working = new File(folder, "working");
+
+        Assertions.assertThrows(RuntimeException.class, () -> underTest.cloneProject(PROJECT_ID, "project", "file", working, cp, remoteUrl, true));
+
+        Assertions.assertTrue(new File(working, "project/.git").exists(), "Git folder of the worktree");
+        Assertions.assertFalse(mirrorCache().isBorrowed(PROJECT_ID), "Mirror borrowed");
+    }
+
+    private GitService withoutMirror() {
+        return new GitService(new Config() {
+            @Override
+            public boolean isGitMirrorEnabled() {
+                return false;
+            }
+        });
+    }
+
+    @Test
+    public void given_branch_when_cloneProject_without_mirror_then_branch_fetched_alone() throws Exception {
+        commit("a.txt");
+        remote.checkout().setCreateBranch(true).setName("dev").call();
+        RevCommit dev = commit("b.txt");
+        remote.checkout().setName("master").call();
+        RevCommit master = commit("c.txt");
+
+        try (Git git = withoutMirror().cloneProject(PROJECT_ID, "project", "dev", new File(folder, "working"), cp, remoteUrl, false)) {
+            Repository repository = git.getRepository();
+            Assertions.assertEquals("refs/heads/dev", repository.getFullBranch(), "Branch checked out");
+            Assertions.assertEquals(dev, repository.resolve(Constants.HEAD), "Head");
+            Assertions.assertEquals(dev, repository.resolve("refs/remotes/origin/dev"), "Remote-tracking dev");
+            Assertions.assertNull(repository.exactRef("refs/remotes/origin/master"), "Remote-tracking master");
+            Assertions.assertFalse(repository.hasObject(master), "Commit of master fetched");
+            Assertions.assertEquals(GitService.GIT_REMOTE, repository.getConfig().getString(ConfigConstants.CONFIG_BRANCH_SECTION, "dev", ConfigConstants.CONFIG_KEY_REMOTE), "Remote of the branch");
+            Assertions.assertTrue(new File(repository.getWorkTree(), "b.txt").exists(), "File of the branch");
+        }
+    }
+
+    @Test
+    public void given_tag_when_cloneProject_without_mirror_then_tag_fetched_alone_and_checked_out_detached() throws Exception {
+        RevCommit tagged = commit("a.txt");
+        remote.tag().setName("v1").setMessage("Version 1").call();
+        RevCommit master = commit("b.txt");
+
+        try (Git git = withoutMirror().cloneProject(PROJECT_ID, "project", "v1", new File(folder, "working"), cp, remoteUrl, true)) {
+            Repository repository = git.getRepository();
+            Assertions.assertEquals(tagged.name(), repository.getFullBranch(), "Detached head");
+            Assertions.assertNotNull(repository.exactRef(Constants.R_TAGS + "v1"), "Tag");
+            Assertions.assertTrue(repository.getRefDatabase().getRefs(Constants.R_REMOTES).isEmpty(), "Remote-tracking branches");
+            Assertions.assertFalse(repository.hasObject(master), "Commit after the tag fetched");
+            Assertions.assertTrue(new File(repository.getWorkTree(), "a.txt").exists(), "File of the tag");
+        }
+    }
+
+    @Test
+    public void given_missing_branch_when_cloneProject_without_mirror_then_default_branch_fetched_as_branch() throws Exception {
+        RevCommit head = commit("a.txt");
+        remote.branchRename().setNewName("main").call();
+        remote.checkout().setCreateBranch(true).setName("other").call();
+        RevCommit other = commit("b.txt");
+        remote.checkout().setName("main").call();
+
+        try (Git git = withoutMirror().cloneProject(PROJECT_ID, "project", "feature", new File(folder, "working"), cp, remoteUrl, false)) {
+            Repository repository = git.getRepository();
+            Assertions.assertEquals("refs/heads/feature", repository.getFullBranch(), "Branch checked out");
+            Assertions.assertEquals(head, repository.resolve(Constants.HEAD), "Head of the default branch");
+            Assertions.assertEquals(head, repository.resolve("refs/remotes/origin/main"), "Remote-tracking default branch");
+            Assertions.assertFalse(repository.hasObject(other), "Commit of another branch fetched");
+            Assertions.assertTrue(new File(repository.getWorkTree(), "a.txt").exists(), "File of the default branch");
+        }
+    }
+
+    @Test
+    public void given_no_mirror_when_readMirroredFiles_then_null() throws Exception {
+        RevCommit head = commit("a.txt");
+        Assertions.assertNull(underTest.readMirroredFiles(PROJECT_ID, head, ""), "Files without a mirror");
+    }
+
+    @Test
+    public void given_commit_in_mirror_when_readMirroredFiles_then_files_of_folder_only() throws Exception {
+        RevCommit head = commit("a.txt", "folder/b.txt", "folder/sub/c.txt");
+        fetchMirror();
+
+        Map<String, ObjectId> root = underTest.readMirroredFiles(PROJECT_ID, head, "");
+        Assertions.assertEquals(new HashSet<>(Arrays.asList("a.txt")), root.keySet(), "Files of the root folder");
+        Map<String, ObjectId> inFolder = underTest.readMirroredFiles(PROJECT_ID, head, "folder");
+        Assertions.assertEquals(new HashSet<>(Arrays.asList("folder/b.txt")), inFolder.keySet(), "Files of the folder");
+        Map<String, ObjectId> all = underTest.readMirroredFiles(PROJECT_ID, head, null);
+        Assertions.assertEquals(new HashSet<>(Arrays.asList("a.txt", "folder/b.txt", "folder/sub/c.txt")), all.keySet(), "Files of the commit");
+        Assertions.assertEquals(remote.getRepository().resolve(head.name() + ":a.txt"), all.get("a.txt"), "Blob id");
+
+        Assertions.assertTrue(underTest.readMirroredFiles(PROJECT_ID, head, "missing").isEmpty(), "Files of a missing folder");
+        Assertions.assertTrue(underTest.readMirroredFiles(PROJECT_ID, head, "a.txt").isEmpty(), "Files of a file");
+    }
+
+    @Test
+    public void given_commit_not_yet_fetched_when_readMirroredFiles_then_null() throws Exception {
+        commit("a.txt");
+        fetchMirror();
+        RevCommit head = commit("b.txt");
+
+        Assertions.assertNull(underTest.readMirroredFiles(PROJECT_ID, head, ""), "Files of a commit missing from the mirror");
+    }
+
+    @Test
+    public void given_remote_without_atomic_push_when_pushBranchAndTag_then_pushed_without_atomicity() throws Exception {
+        InMemoryRepository server = new InMemoryRepository(new DfsRepositoryDescription("server"));
+        server.setPerformsAtomicTransactions(false);
+        TestProtocol<Object> protocol = new TestProtocol<>((request, db) -> new UploadPack(db), (request, db) -> new ReceivePack(db));
+        Transport.register(protocol);
+        GitService.atomicPushUnsupported = false;
+        try (Git local = Git.init().setDirectory(new File(folder, "local")).call()) {
+            StoredConfig config = local.getRepository().getConfig();
+            config.setString(ConfigConstants.CONFIG_REMOTE_SECTION, GitService.GIT_REMOTE, ConfigConstants.CONFIG_KEY_URL, protocol.register(new Object(), server).toString());
+            config.save();
+            FileUtils.write(new File(local.getRepository().getWorkTree(), "a.txt"), "a", StandardCharsets.UTF_8);
+            local.add().addFilepattern("a.txt").call();
+            RevCommit pushed = local.commit().setMessage("Add a.txt").call();
+            local.tag().setName("v1").call();
+
+            underTest.pushBranchAndTag(cp, local, "master", "v1");
+
+            Assertions.assertTrue(GitService.atomicPushUnsupported, "Atomic pushes marked as unsupported");
+            Assertions.assertEquals(pushed, server.exactRef("refs/heads/master").getObjectId(), "Pushed branch");
+            Assertions.assertNotNull(server.exactRef("refs/tags/v1"), "Pushed tag");
+        } finally {
+            GitService.atomicPushUnsupported = false;
+            Transport.unregister(protocol);
+        }
+    }
+
+    @Test
+    public void given_remote_with_atomic_push_when_pushBranchAndTag_then_pushed_atomically() throws Exception {
+        commit("a.txt");
+        GitService.atomicPushUnsupported = false;
+        try (Git clone = Git.cloneRepository().setURI(remoteUrl).setDirectory(new File(folder, "clone")).call()) {
+            FileUtils.write(new File(clone.getRepository().getWorkTree(), "b.txt"), "b", StandardCharsets.UTF_8);
+            clone.add().addFilepattern("b.txt").call();
+            RevCommit pushed = clone.commit().setMessage("Add b.txt").call();
+            clone.tag().setName("v1").call();
+
+            underTest.pushBranchAndTag(cp, clone, "master", "v1");
+
+            Assertions.assertFalse(GitService.atomicPushUnsupported, "Atomic pushes marked as unsupported");
+            Assertions.assertEquals(pushed, remote.getRepository().exactRef("refs/heads/master").getObjectId(), "Pushed branch");
+            Assertions.assertNotNull(remote.getRepository().exactRef("refs/tags/v1"), "Pushed tag");
+        }
+    }
+
+    @Test
+    public void given_ref_snapshots_listed_when_pushBranchAndTag_then_snapshots_of_every_caller_updated() throws Exception {
+        RevCommit listed = commit("a.txt");
+        CredentialsProvider otherCp = new UsernamePasswordCredentialsProvider("other", "token");
+        try (Git clone = Git.cloneRepository().setURI(remoteUrl).setDirectory(new File(folder, "clone")).call()) {
+            // snapshots are kept by the url of the remote of the clone
+            String url = clone.getRepository().getConfig().getString(ConfigConstants.CONFIG_REMOTE_SECTION, GitService.GIT_REMOTE, ConfigConstants.CONFIG_KEY_URL);
+            Assertions.assertEquals(listed, underTest.getRefSnapshot(cp, url).get("refs/heads/master"), "Listed branch");
+            Assertions.assertEquals(listed, underTest.getRefSnapshot(otherCp, url).get("refs/heads/master"), "Branch listed by another caller");
+            FileUtils.write(new File(clone.getRepository().getWorkTree(), "b.txt"), "b", StandardCharsets.UTF_8);
+            clone.add().addFilepattern("b.txt").call();
+            RevCommit pushed = clone.commit().setMessage("Add b.txt").call();
+            clone.tag().setName("v1").call();
+
+            underTest.pushBranchAndTag(cp, clone, "master", "v1");
+
+            for (CredentialsProvider caller : Arrays.asList(cp, otherCp)) {
+                RefSnapshot refs = underTest.getCachedRefSnapshot(caller, url);
+                Assertions.assertEquals(pushed, refs.get("refs/heads/master"), "Pushed branch in the snapshot");
+                Assertions.assertEquals(Arrays.asList("master", "v1"), refs.getBranchesAndTags(), "Branches and tags in the snapshot");
+            }
+        }
+    }
+
+    @Test
+    public void given_branch_moved_since_clone_when_pushBranchAndTag_then_rejected_as_stale() throws Exception {
+        commit("a.txt");
+        try (Git clone = Git.cloneRepository().setURI(remoteUrl).setDirectory(new File(folder, "clone")).call()) {
+            commit("other.txt");
+            FileUtils.write(new File(clone.getRepository().getWorkTree(), "b.txt"), "b", StandardCharsets.UTF_8);
+            clone.add().addFilepattern("b.txt").call();
+            clone.commit().setMessage("Add b.txt").call();
+
+            PushRejectedException e = Assertions.assertThrows(PushRejectedException.class, () -> underTest.pushBranchAndTag(cp, clone, "master", null));
+            Assertions.assertEquals(PushRejectedException.STATUS, e.getCode(), "Status");
+            Assertions.assertTrue(e.isStale(), "Rejected because the branch moved");
+        }
+    }
+
+    /**
+     * Push the commits of the local repository to a new in memory server, whose pushes then go through the hook
+     */
+    private URIish serve(InMemoryRepository server, TestProtocol<Object>[] protocol, AtomicReference<PreReceiveHook> hook) throws Exception {
+        protocol[0] = new TestProtocol<>((request, db) -> new UploadPack(db), (request, db) -> {
+            ReceivePack receivePack = new ReceivePack(db);
+            receivePack.setPreReceiveHook((rp, commands) -> hook.get().onPreReceive(rp, commands));
+            return receivePack;
+        });
+        Transport.register(protocol[0]);
+        URIish uri = protocol[0].register(new Object(), server);
+        commit("a.txt");
+        remote.push().setRemote(uri.toString()).setRefSpecs(new RefSpec("refs/heads/master:refs/heads/master")).call();
+        return uri;
+    }
+
+    /**
+     * Move the branch of the server as another writer would
+     */
+    private static ObjectId moveBranch(Repository server, String branch) {
+        try (ObjectInserter inserter = server.newObjectInserter(); RevWalk revWalk = new RevWalk(server)) {
+            RevCommit head = revWalk.parseCommit(server.resolve(Constants.R_HEADS + branch));
+            CommitBuilder commitBuilder = new CommitBuilder();
+            commitBuilder.setTreeId(head.getTree());
+            commitBuilder.setParentId(head);
+            PersonIdent ident = new PersonIdent("other", "other@kathra.org");
+            commitBuilder.setAuthor(ident);
+            commitBuilder.setCommitter(ident);
+            commitBuilder.setMessage("Commit of another writer");
+            ObjectId moved = inserter.insert(commitBuilder);
+            inserter.flush();
+            RefUpdate refUpdate = server.updateRef(Constants.R_HEADS + branch);
+            refUpdate.setExpectedOldObjectId(head);
+            refUpdate.setNewObjectId(moved);
+            Assertions.assertEquals(RefUpdate.Result.FAST_FORWARD, refUpdate.update(), "Branch moved");
+            return moved;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private CommitContent content(String name) throws IOException {
+        File file = new File(folder, name);
+        FileUtils.write(file, "content of " + name, StandardCharsets.UTF_8);
+        return new CommitContent(file, "", false, false);
+    }
+
+    @Test
+    public void given_branch_moved_during_push_when_createCommitWithoutWorktree_then_replayed_on_new_head() throws Exception {
+        InMemoryRepository server = new InMemoryRepository(new DfsRepositoryDescription("server"));
+        TestProtocol<Object>[] protocol = new TestProtocol[1];
+        AtomicReference<PreReceiveHook> hook = new AtomicReference<>(PreReceiveHook.NULL);
+        URIish uri = serve(server, protocol, hook);
+        AtomicInteger pushes = new AtomicInteger();
+        AtomicReference<ObjectId> moved = new AtomicReference<>();
+        hook.set((receivePack, commands) -> {
+            if (pushes.incrementAndGet() == 1) {
+                moved.set(moveBranch(server, "master"));
+                commands.forEach(command -> command.setResult(ReceiveCommand.Result.REJECTED_NONFASTFORWARD));
+            }
+        });
+        try {
+            SourceRepositoryCommit commit = underTest.createCommitWithoutWorktree(PROJECT_ID, "project", "master", new File(folder, "working"), cp, uri.toString(), content("b.txt"), "user", "Add b.txt", null);
+
+            Assertions.assertEquals(2, pushes.get(), "Pushes");
+            ObjectId head = server.resolve(Constants.R_HEADS + "master");
+            Assertions.assertEquals(commit.getId(), head.name(), "Commit pushed");
+            try (RevWalk revWalk = new RevWalk(server)) {
+                Assertions.assertEquals(moved.get(), revWalk.parseCommit(head).getParent(0), "Parent of the replayed commit");
+            }
+            Assertions.assertNotNull(server.resolve(head.name() + ":b.txt"), "Committed file");
+        } finally {
+            Transport.unregister(protocol[0]);
+        }
+    }
+
+    @Test
+    public void given_push_refused_for_other_reason_when_createCommitWithoutWorktree_then_not_replayed() throws Exception {
+        InMemoryRepository server = new InMemoryRepository(new DfsRepositoryDescription("server"));
+        TestProtocol<Object>[] protocol = new TestProtocol[1];
+        AtomicReference<PreReceiveHook> hook = new AtomicReference<>(PreReceiveHook.NULL);
+        URIish uri = serve(server, protocol, hook);
+        AtomicInteger pushes = new AtomicInteger();
+        hook.set((receivePack, commands) -> {
+            pushes.incrementAndGet();
+            commands.forEach(command -> command.setResult(ReceiveCommand.Result.REJECTED_OTHER_REASON, "pre-receive hook declined"));
+        });
+        try {
+            PushRejectedException e = Assertions.assertThrows(PushRejectedException.class, () -> underTest.createCommitWithoutWorktree(PROJECT_ID, "project", "master", new File(folder, "working"), cp, uri.toString(), content("b.txt"), "user", "Add b.txt", null));
+            Assertions.assertFalse(e.isStale(), "Stale");
+            Assertions.assertEquals(1, pushes.get(), "Pushes");
+        } finally {
+            Transport.unregister(protocol[0]);
+        }
+    }
+
+    @Test
+    public void given_branch_always_moving_when_createCommitWithoutWorktree_then_replays_bounded() throws Exception {
+        InMemoryRepository server = new InMemoryRepository(new DfsRepositoryDescription("server"));
+        TestProtocol<Object>[] protocol = new TestProtocol[1];
+        AtomicReference<PreReceiveHook> hook = new AtomicReference<>(PreReceiveHook.NULL);
+        URIish uri = serve(server, protocol, hook);
+        AtomicInteger pushes = new AtomicInteger();
+        hook.set((receivePack, commands) -> {
+            pushes.incrementAndGet();
+            moveBranch(server, "master");
+            commands.forEach(command -> command.setResult(ReceiveCommand.Result.REJECTED_NONFASTFORWARD));
+        });
+        try {
+            PushRejectedException e = Assertions.assertThrows(PushRejectedException.class, () -> underTest.createCommitWithoutWorktree(PROJECT_ID, "project", "master", new File(folder, "working"), cp, uri.toString(), content("b.txt"), "user", "Add b.txt", null));
+            Assertions.assertTrue(e.isStale(), "Stale");
+            Assertions.assertEquals(new Config().getPushReplays() + 1, pushes.get(), "Pushes");
+        } finally {
+            Transport.unregister(protocol[0]);
+        }
+    }
+
+    /**
+     * Bare origin holding a.txt, run.sh executable, dir/b.txt and dir/sub/c.txt on master
+     */
+    private String origin() throws Exception {
+        commit("a.txt", "dir/b.txt", "dir/sub/c.txt");
+        File script = new File(remote.getRepository().getWorkTree(), "run.sh");
+        FileUtils.write(script, "#!/bin/sh", StandardCharsets.UTF_8);
+        Assertions.assertTrue(script.setExecutable(true), "Executable script");
+        commit("run.sh");
+        File origin = new File(folder, "origin.git");
+        Git.init().setBare(true).setDirectory(origin).call().close();
+        String originUrl = origin.toURI().toString();
+        remote.push().setRemote(originUrl).setRefSpecs(new RefSpec("refs/heads/master:refs/heads/master")).call();
+        return originUrl;
+    }
+
+    private File zip(Map<String, String> entries) throws IOException {
+        File archive = Files.createTempFile(folder.toPath(), "content", ".zip").toFile();
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(archive))) {
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                out.putNextEntry(new ZipEntry(entry.getKey()));
+                out.write(entry.getValue().getBytes(StandardCharsets.UTF_8));
+                out.closeEntry();
+            }
+        }
+        return archive;
+    }
+
+    /**
+     * Commit the content in a worktree cloned from the origin, without pushing it, then without worktree,
+     * and compare the trees of both commits
+     */
+    private void assertSameTreeAsWorktreeCommit(Integer projectId, String originUrl, CommitContent content) throws Exception {
+        ObjectId worktreeTree;
+        try (Git clone = Git.cloneRepository().setURI(originUrl).setDirectory(Files.createTempDirectory(folder.toPath(), "worktree").toFile()).call()) {
+            List<String> changes = content.applyTo(clone.getRepository(), clone.getRepository().getWorkTree());
+            SourceRepositoryCommit commit = underTest.createCommit(clone, "user", "Update", changes);
+            worktreeTree = clone.getRepository().resolve(commit.getId() + "^{tree}");
+        }
+
+        SourceRepositoryCommit commit = underTest.createCommitWithoutWorktree(projectId, "project", "master", Files.createTempDirectory(folder.toPath(), "working").toFile(), cp, originUrl, content, "user", "Update", null);
+
+        try (Git origin = Git.open(new File(new URIish(originUrl).getPath()))) {
+            Assertions.assertEquals(commit.getId(), origin.getRepository().resolve(Constants.R_HEADS + "master").name(), "Commit pushed");
+            Assertions.assertEquals(worktreeTree, origin.getRepository().resolve(commit.getId() + "^{tree}"), "Tree of the commit");
+        }
+    }
+
+    @Test
+    public void given_added_files_when_createCommitWithoutWorktree_then_same_tree_as_worktree_commit() throws Exception {
+        String originUrl = origin();
+        File file = new File(folder, "upload");
+        FileUtils.write(file, "new file", StandardCharsets.UTF_8);
+        assertSameTreeAsWorktreeCommit(PROJECT_ID, originUrl, new CommitContent(file, "new.txt", "dir/sub", false, false));
+
+        Map<String, String> entries = new LinkedHashMap<>();
+        entries.put("dir/d.txt", "file d");
+        entries.put("e/f/g.txt", "file g");
+        assertSameTreeAsWorktreeCommit(PROJECT_ID, originUrl, new CommitContent(zip(entries), null, true, false));
+    }
+
+    @Test
+    public void given_replaced_files_when_createCommitWithoutWorktree_then_same_tree_as_worktree_commit() throws Exception {
+        String originUrl = origin();
+        File file = new File(folder, "upload");
+        FileUtils.write(file, "new content of b", StandardCharsets.UTF_8);
+        assertSameTreeAsWorktreeCommit(PROJECT_ID, originUrl, new CommitContent(file, "b.txt", "dir", false, false));
+
+        // the script stays executable, a file replaces a folder and a folder replaces a file
+        Map<String, String> entries = new LinkedHashMap<>();
+        entries.put("run.sh", "#!/bin/sh\nexit 0");
+        entries.put("dir/sub", "file replacing a folder");
+        entries.put("a.txt/h.txt", "folder replacing a file");
+        assertSameTreeAsWorktreeCommit(PROJECT_ID, originUrl, new CommitContent(zip(entries), null, true, false));
+    }
+
+    @Test
+    public void given_content_replacing_repository_when_createCommitWithoutWorktree_then_same_tree_as_worktree_commit() throws Exception {
+        String originUrl = origin();
+        Map<String, String> entries = new LinkedHashMap<>();
+        entries.put("a.txt", "new content of a");
+        entries.put("dir/sub/c.txt", "content of dir/sub/c.txt");
+        entries.put("i/j.txt", "file j");
+        // without mirror, the branch is fetched alone into a bare repository
+        assertSameTreeAsWorktreeCommit(null, originUrl, new CommitContent(zip(entries), null, true, true));
+
+        File file = new File(folder, "upload");
+        FileUtils.write(file, "only file", StandardCharsets.UTF_8);
+        assertSameTreeAsWorktreeCommit(PROJECT_ID, originUrl, new CommitContent(file, "README.md", "docs", false, true));
+    }
+
+    /**
+     * Commit to the branch of the remote at the given time, in seconds
+     */
+    private RevCommit commitAt(String branch, int time, RevCommit... parents) throws IOException {
+        Repository repository = remote.getRepository();
+        try (ObjectInserter inserter = repository.newObjectInserter(); RevWalk revWalk = new RevWalk(repository)) {
+            CommitBuilder commitBuilder = new CommitBuilder();
+            commitBuilder.setTreeId(inserter.insert(new TreeFormatter()));
+            commitBuilder.setParentIds(parents);
+            PersonIdent ident = new PersonIdent(new PersonIdent("user", "user@kathra.org"), time * 1000L, 0);
+            commitBuilder.setAuthor(ident);
+            commitBuilder.setCommitter(ident);
+            commitBuilder.setMessage("Commit at " + time);
+            ObjectId id = inserter.insert(commitBuilder);
+            inserter.flush();
+            RefUpdate refUpdate = repository.updateRef(Constants.R_HEADS + branch);
+            refUpdate.setNewObjectId(id);
+            refUpdate.forceUpdate();
+            return revWalk.parseCommit(id);
+        }
+    }
+
+    private String walk(List<String> ids, Date since, Date until, String after, int limit) throws Exception {
+        return underTest.walkCommits(PROJECT_ID, cp, remoteUrl, "master", since, until, after, limit, GitService.ISO_DATES, commit -> ids.add(commit.getId()));
+    }
+
+    @Test
+    public void given_history_when_walkCommits_by_pages_then_each_commit_once_newest_first() throws Exception {
+        List<RevCommit> history = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            history.add(commitAt("master", 1500000000 + i * 60, history.isEmpty() ? new RevCommit[0] : new RevCommit[]{history.get(i - 1)}));
+        }
+        List<SourceRepositoryCommit> first = new ArrayList<>();
+
+        String cursor = underTest.walkCommits(PROJECT_ID, cp, remoteUrl, "master", null, null, null, 2, GitService.ISO_DATES, first::add);
+
+        Assertions.assertEquals(Arrays.asList(history.get(4).name(), history.get(3).name()), first.stream().map(SourceRepositoryCommit::getId).collect(Collectors.toList()), "First page");
+        Assertions.assertEquals("2017-07-14T02:44:00.000Z", first.get(0).getCreatedAt(), "Date of the commit");
+        Assertions.assertEquals(history.get(3).name(), cursor, "Cursor of the second page");
+        List<String> ids = new ArrayList<>();
+        cursor = walk(ids, null, null, cursor, 2);
+        Assertions.assertEquals(Arrays.asList(history.get(2).name(), history.get(1).name()), ids, "Second page");
+        Assertions.assertEquals(history.get(1).name(), cursor, "Cursor of the third page");
+        ids.clear();
+        Assertions.assertNull(walk(ids, null, null, cursor, 2), "Cursor after the last page");
+        Assertions.assertEquals(Collections.singletonList(history.get(0).name()), ids, "Last page");
+    }
+
+    @Test
+    public void given_merged_branch_when_walkCommits_by_pages_then_commits_of_merged_branch_listed() throws Exception {
+        RevCommit c1 = commitAt("master", 1000);
+        RevCommit c2 = commitAt("master", 2000, c1);
+        RevCommit s1 = commitAt("side", 3000, c1);
+        RevCommit c3 = commitAt("master", 4000, c2);
+        RevCommit merge = commitAt("master", 5000, c3, s1);
+        List<String> ids = new ArrayList<>();
+
+        String cursor = walk(ids, null, null, null, 2);
+        Assertions.assertEquals(c3.name() + "," + s1.name(), cursor, "Cursor with the merged branch pending");
+        cursor = walk(ids, null, null, cursor, 2);
+        Assertions.assertEquals(c2.name(), cursor, "Cursor once the merged branch is listed");
+        Assertions.assertNull(walk(ids, null, null, cursor, 2), "Cursor after the last page");
+
+        Assertions.assertEquals(Arrays.asList(merge.name(), c3.name(), s1.name(), c2.name(), c1.name()), ids, "Commits of every page");
+    }
+
+    @Test
+    public void given_time_bounds_when_walkCommits_then_commits_between_bounds_only() throws Exception {
+        List<RevCommit> history = new ArrayList<>();
+        for (int i = 1; i <= 5; i++) {
+            history.add(commitAt("master", i * 1000, history.isEmpty() ? new RevCommit[0] : new RevCommit[]{history.get(i - 2)}));
+        }
+        Date since = new Date(2000 * 1000L);
+        Date until = new Date(4000 * 1000L);
+        List<String> ids = new ArrayList<>();
+
+        Assertions.assertNull(walk(ids, since, until, null, 0), "Cursor of the whole history");
+        Assertions.assertEquals(Arrays.asList(history.get(3).name(), history.get(2).name(), history.get(1).name()), ids, "Commits between the bounds");
+
+        List<String> paged = new ArrayList<>();
+        String cursor = walk(paged, since, until, null, 1);
+        Assertions.assertEquals(history.get(3).name(), cursor, "Cursor of the first page");
+        cursor = walk(paged, since, until, cursor, 1);
+        cursor = walk(paged, since, until, cursor, 1);
+        Assertions.assertNull(cursor, "Cursor after the last commit between the bounds");
+        Assertions.assertEquals(ids, paged, "Commits of every page");
+    }
+
+    @Test
+    public void given_invalid_or_unknown_cursor_when_walkCommits_then_400() throws Exception {
+        commitAt("master", 1000);
+
+        for (String cursor : Arrays.asList("not a commit", "1111111111111111111111111111111111111111")) {
+            ApiException e = Assertions.assertThrows(ApiException.class, () -> walk(new ArrayList<>(), null, null, cursor, 1));
+            Assertions.assertEquals(400, e.getCode(), "Status of cursor " + cursor);
+        }
+    }
+
+    @Test
+    public void given_caller_without_access_when_walkCommits_next_page_then_refused() throws Exception {
+        RevCommit c1 = commitAt("master", 1000);
+        commitAt("master", 2000, c1);
+        InMemoryRepository server = new InMemoryRepository(new DfsRepositoryDescription("server"));
+        AtomicBoolean authorized = new AtomicBoolean(true);
+        TestProtocol<Object> protocol = new TestProtocol<>((request, db) -> {
+            if (!authorized.get()) {
+                throw new ServiceNotAuthorizedException();
+            }
+            return new UploadPack(db);
+        }, (request, db) -> new ReceivePack(db));
+        Transport.register(protocol);
+        try {
+            String url = protocol.register(new Object(), server).toString();
+            remote.push().setRemote(url).setRefSpecs(new RefSpec("refs/heads/master:refs/heads/master")).call();
+            String cursor = underTest.walkCommits(PROJECT_ID, cp, url, "master", null, null, null, 1, GitService.ISO_DATES, commit -> {
+            });
+            // the server now refuses everyone, the caller of the first page keeps the refs listed for it
+            authorized.set(false);
+            CredentialsProvider otherCp = new UsernamePasswordCredentialsProvider("other", "token");
+
+            Assertions.assertThrows(Exception.class, () -> underTest.walkCommits(PROJECT_ID, otherCp, url, "master", null, null, cursor, 1, GitService.ISO_DATES, commit -> {
+            }), "Page read by another caller");
+            List<String> ids = new ArrayList<>();
+            Assertions.assertNull(underTest.walkCommits(PROJECT_ID, cp, url, "master", null, null, cursor, 1, GitService.ISO_DATES, commit -> ids.add(commit.getId())), "Cursor of the last page");
+            Assertions.assertEquals(Collections.singletonList(c1.name()), ids, "Page read by the caller of the first page, with its listed refs");
+        } finally {
+            Transport.unregister(protocol);
+        }
+    }
+
+    @Test
+    public void given_empty_project_when_seedProject_then_master_pushed_first_with_dev() throws Exception {
+        InMemoryRepository server = new InMemoryRepository(new DfsRepositoryDescription("server"));
+        List<String> pushedRefs = new ArrayList<>();
+        TestProtocol<Object> protocol = new TestProtocol<Object>((request, db) -> new UploadPack(db), (request, db) -> {
+            ReceivePack receivePack = new ReceivePack(db);
+            receivePack.setPreReceiveHook((rp, commands) -> commands.forEach(command -> pushedRefs.add(command.getRefName())));
+            return receivePack;
+        }) {
+            @Override
+            public Transport open(URIish uri) throws NotSupportedException, TransportException {
+                // the refs are listed without any local repository
+                return open(uri, new InMemoryRepository(new DfsRepositoryDescription("ls-remote")), null);
+            }
+        };
+        Transport.register(protocol);
+        try {
+            String url = protocol.register(new Object(), server).toString();
+
+            SourceRepositoryCommit seeded = underTest.seedProject("project", null, cp, url, content("README.md"), "user", "Initial content");
+
+            Assertions.assertEquals(Arrays.asList("refs/heads/master", "refs/heads/dev"), pushedRefs, "Branches pushed, master first");
+            Assertions.assertEquals(seeded.getId(), server.exactRef("refs/heads/master").getObjectId().name(), "Seeded master");
+            Assertions.assertEquals(seeded.getId(), server.exactRef("refs/heads/dev").getObjectId().name(), "Seeded dev");
+            try (RevWalk revWalk = new RevWalk(server)) {
+                RevCommit commit = revWalk.parseCommit(ObjectId.fromString(seeded.getId()));
+                Assertions.assertEquals(0, commit.getParentCount(), "Parents of the first commit");
+                Assertions.assertNotNull(TreeWalk.forPath(server, "README.md", commit.getTree()), "Initial content");
+            }
+            Assertions.assertEquals("refs/heads/master", underTest.getCachedRefSnapshot(cp, url).getDefaultBranch(), "Default branch of the snapshot");
+        } finally {
+            Transport.unregister(protocol);
+        }
+    }
+
+    @Test
+    public void given_master_initialized_when_seedProject_then_committed_on_master_and_dev_created() throws Exception {
+        RevCommit initialized = commit("README.md");
+        File workingFolder = new File(folder, "seed");
+
+        SourceRepositoryCommit seeded = underTest.seedProject("project", workingFolder, cp, remoteUrl, content("a.txt"), "user", "Initial content");
+
+        Repository repository = remote.getRepository();
+        Assertions.assertEquals(seeded.getId(), repository.exactRef("refs/heads/master").getObjectId().name(), "Seeded master");
+        Assertions.assertEquals(seeded.getId(), repository.exactRef("refs/heads/dev").getObjectId().name(), "Seeded dev");
+        try (RevWalk revWalk = new RevWalk(repository)) {
+            RevCommit commit = revWalk.parseCommit(ObjectId.fromString(seeded.getId()));
+            Assertions.assertEquals(initialized, commit.getParent(0), "Parent of the seeded commit");
+            Assertions.assertNotNull(TreeWalk.forPath(repository, "README.md", commit.getTree()), "Content of master kept");
+            Assertions.assertNotNull(TreeWalk.forPath(repository, "a.txt", commit.getTree()), "Initial content");
+        }
+    }
+
+    @Test
+    public void given_dev_created_meanwhile_when_seedProject_then_rejected_without_moving_master() throws Exception {
+        RevCommit initialized = commit("README.md");
+        remote.branchCreate().setName("dev").call();
+
+        Assertions.assertThrows(PushRejectedException.class, () -> underTest.seedProject("project", new File(folder, "seed"), cp, remoteUrl, content("a.txt"), "user", "Initial content"));
+
+        Assertions.assertEquals(initialized, remote.getRepository().exactRef("refs/heads/master").getObjectId(), "Master untouched");
+        Assertions.assertEquals(initialized, remote.getRepository().exactRef("refs/heads/dev").getObjectId(), "Dev untouched");
+    }
+
+    @Test
+    public void given_fetch_failing_once_when_walkCommits_then_mirror_unlocked_during_backoff() throws Exception {
+        RevCommit head = commitAt("master", 1000);
+        InMemoryRepository server = new InMemoryRepository(new DfsRepositoryDescription("server"));
+        CountDownLatch failing = new CountDownLatch(1);
+        TestProtocol<Object> protocol = new TestProtocol<>((request, db) -> {
+            if (failing.getCount() > 0) {
+                failing.countDown();
+                throw new ServiceNotEnabledException();
+            }
+            return new UploadPack(db);
+        }, (request, db) -> new ReceivePack(db));
+        Transport.register(protocol);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            String url = protocol.register(new Object(), server).toString();
+            remote.push().setRemote(url).setRefSpecs(new RefSpec("refs/heads/master:refs/heads/master")).call();
+            List<String> ids = Collections.synchronizedList(new ArrayList<>());
+            Future<String> walk = executor.submit(() -> underTest.walkCommits(PROJECT_ID, cp, url, "master", null, null, null, 0, GitService.ISO_DATES, commit -> ids.add(commit.getId())));
+            Assertions.assertTrue(failing.await(10, TimeUnit.SECONDS), "First fetch attempted");
+
+            // read while the walk waits before its next attempt
+            Assertions.assertNull(underTest.readMirroredFiles(PROJECT_ID, head, null), "Files of the mirror not fetched yet");
+            Assertions.assertFalse(walk.isDone(), "Walk waiting for its next attempt");
+
+            Assertions.assertNull(walk.get(10, TimeUnit.SECONDS), "Cursor of the whole history");
+            Assertions.assertEquals(Collections.singletonList(head.name()), ids, "Commits walked once fetched");
+        } finally {
+            executor.shutdownNow();
+            Transport.unregister(protocol);
+        }
+    }
+}
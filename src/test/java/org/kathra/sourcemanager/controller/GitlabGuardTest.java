@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2020. The Kathra Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *    IRT SystemX (https://www.kathra.org/)
+ *
+ */
+package org.kathra.sourcemanager.controller;
+
+import org.gitlab.api.GitlabAPIException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class GitlabGuardTest {
+
+    private static String fail() throws IOException {
+        throw new GitlabAPIException("Internal Server Error", 500, null);
+    }
+
+    @Test
+    public void given_limit_reached_when_call_then_rejected_until_a_permit_is_released() throws Exception {
+        GitlabGuard underTest = new GitlabGuard(2, 2, 5, 60);
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch done = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> first = executor.submit(() -> underTest.call("GET /test", () -> {
+                started.countDown();
+                return done.await(10, TimeUnit.SECONDS);
+            }));
+            Future<?> second = executor.submit(() -> underTest.call("GET /test", () -> {
+                started.countDown();
+                return done.await(10, TimeUnit.SECONDS);
+            }));
+            Assertions.assertTrue(started.await(10, TimeUnit.SECONDS), "Calls in flight");
+            Assertions.assertEquals(2, underTest.getInFlight(), "In flight");
+
+            assertThrows(GitlabUnavailableException.class, () -> underTest.call("GET /test", () -> "refused"));
+            Assertions.assertEquals(1, underTest.getRejected(), "Rejected");
+
+            done.countDown();
+            first.get(10, TimeUnit.SECONDS);
+            second.get(10, TimeUnit.SECONDS);
+            Assertions.assertEquals(0, underTest.getInFlight(), "In flight");
+            Assertions.assertEquals("ok", underTest.call("GET /test", () -> "ok"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void given_nested_call_when_call_then_single_permit_taken() throws Exception {
+        GitlabGuard underTest = new GitlabGuard(2, 2, 5, 60);
+        String result = underTest.call("GET /outer", () -> {
+            Assertions.assertEquals(1, underTest.getInFlight(), "In flight within the outer call");
+            return underTest.call("GET /inner", () -> {
+                Assertions.assertEquals(1, underTest.getInFlight(), "In flight within the nested call");
+                return "ok";
+            });
+        });
+        Assertions.assertEquals("ok", result);
+        Assertions.assertEquals(0, underTest.getInFlight(), "In flight");
+        Assertions.assertEquals(0, underTest.getRejected(), "Rejected");
+        // the thread holds no permit anymore, the next call takes one again
+        underTest.call("GET /next", () -> {
+            Assertions.assertEquals(1, underTest.getInFlight(), "In flight within the next call");
+            return null;
+        });
+    }
+
+    @Test
+    public void given_consecutive_failures_when_call_then_circuit_opens_and_short_circuits() throws Exception {
+        GitlabGuard underTest = new GitlabGuard(4, 4, 3, 60);
+        for (int i = 0; i < 2; i++) {
+            assertThrows(GitlabAPIException.class, () -> underTest.call("GET /test", GitlabGuardTest::fail));
+        }
+        Assertions.assertEquals("CLOSED", underTest.getState(), "State before the last failure");
+        assertThrows(GitlabAPIException.class, () -> underTest.call("GET /test", GitlabGuardTest::fail));
+        Assertions.assertEquals("OPEN", underTest.getState(), "State");
+        Assertions.assertEquals(3, underTest.getFailures(), "Failures");
+
+        assertThrows(GitlabUnavailableException.class, () -> underTest.call("GET /test", () -> "suspended"));
+        Assertions.assertEquals(1, underTest.getShortCircuited(), "Short circuited");
+    }
+
+    @Test
+    public void given_client_errors_when_call_then_circuit_stays_closed() throws Exception {
+        GitlabGuard underTest = new GitlabGuard(4, 4, 2, 60);
+        for (int i = 0; i < 3; i++) {
+            assertThrows(FileNotFoundException.class, () -> underTest.call("GET /test", () -> {
+                throw new FileNotFoundException("/projects/1");
+            }));
+        }
+        Assertions.assertEquals("CLOSED", underTest.getState(), "State");
+        Assertions.assertEquals(0, underTest.getFailures(), "Failures");
+    }
+
+    @Test
+    public void given_open_period_over_when_probe_succeeds_then_circuit_closes() throws Exception {
+        GitlabGuard underTest = new GitlabGuard(4, 4, 1, 0);
+        assertThrows(GitlabAPIException.class, () -> underTest.call("GET /test", GitlabGuardTest::fail));
+        Assertions.assertEquals("OPEN", underTest.getState(), "State");
+
+        String result = underTest.call("GET /test", () -> {
+            Assertions.assertEquals("HALF_OPEN", underTest.getState(), "State during the probe");
+            // a single probe at a time, other threads are refused meanwhile
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            try {
+                ExecutionException e = assertThrows(ExecutionException.class, () -> executor.submit(() -> underTest.call("GET /other", () -> "refused")).get(10, TimeUnit.SECONDS));
+                Assertions.assertTrue(e.getCause() instanceof GitlabUnavailableException, "Other call refused");
+            } finally {
+                executor.shutdownNow();
+            }
+            return "ok";
+        });
+        Assertions.assertEquals("ok", result);
+        Assertions.assertEquals("CLOSED", underTest.getState(), "State");
+    }
+
+    @Test
+    public void given_open_period_over_when_probe_fails_then_circuit_opens_again() throws Exception {
+        GitlabGuard underTest = new GitlabGuard(4, 4, 1, 1);
+        assertThrows(GitlabAPIException.class, () -> underTest.call("GET /test", GitlabGuardTest::fail));
+        assertThrows(GitlabUnavailableException.class, () -> underTest.call("GET /test", () -> "suspended"));
+
+        Thread.sleep(1100);
+        assertThrows(GitlabAPIException.class, () -> underTest.call("GET /test", GitlabGuardTest::fail));
+        Assertions.assertEquals("OPEN", underTest.getState(), "State");
+        assertThrows(GitlabUnavailableException.class, () -> underTest.call("GET /test", () -> "suspended"));
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2020. The Kathra Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *    IRT SystemX (https://www.kathra.org/)
+ *
+ */
+package org.kathra.sourcemanager.controller;
+
+import org.gitlab.api.GitlabAPI;
+import org.gitlab.api.GitlabAPIException;
+import org.gitlab.api.models.GitlabProject;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.kathra.utils.Session;
+import org.mockito.Mockito;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class GitlabServiceTest {
+
+    public static final String FOLDER = "kathra-projects/GitlabServiceTest";
+
+    private GitlabService underTest;
+    private GitlabAPI adminClient;
+
+    @BeforeEach
+    void setUpEach() throws Exception {
+        underTest = new GitlabService("http://localhost:1", "adminToken", new Session().callerName("testUser").id("testSessionId"));
+        adminClient = Mockito.mock(GitlabAPI.class);
+        underTest.adminClient = adminClient;
+        GitlabService.getProjectCache().invalidateIf(key -> key.startsWith(GitlabService.toPathCacheKey(FOLDER)));
+        GitlabService.getUserCredentialsCache().invalidate("testUser");
+    }
+
+    @Test
+    public void given_project_resolved_when_getProjectFromPath_then_served_from_cache() throws Exception {
+        GitlabProject project = new GitlabProject();
+        project.setId(7);
+        Mockito.when(adminClient.getProject(FOLDER, "cached")).thenReturn(project);
+
+        Assertions.assertSame(project, underTest.getProjectFromPath(FOLDER + "/cached"));
+        Assertions.assertSame(project, underTest.getProjectFromPath("/" + FOLDER.toLowerCase() + "/CACHED/"));
+        Mockito.verify(adminClient, Mockito.times(1)).getProject(FOLDER, "cached");
+
+        underTest.invalidateProject(FOLDER + "/cached");
+        Assertions.assertSame(project, underTest.getProjectFromPath(FOLDER + "/cached"));
+        Mockito.verify(adminClient, Mockito.times(2)).getProject(FOLDER, "cached");
+    }
+
+    @Test
+    public void given_missing_project_when_getProjectFromPath_then_absence_cached() throws Exception {
+        Mockito.when(adminClient.getProject(FOLDER, "missing")).thenThrow(new FileNotFoundException());
+
+        assertThrows(FileNotFoundException.class, () -> underTest.getProjectFromPath(FOLDER + "/missing"));
+        assertThrows(FileNotFoundException.class, () -> underTest.getProjectFromPath(FOLDER + "/missing"));
+        Mockito.verify(adminClient, Mockito.times(1)).getProject(FOLDER, "missing");
+    }
+
+    @Test
+    public void given_caller_without_impersonation_token_when_getRawFile_then_not_downloaded_with_admin_token() throws Exception {
+        Mockito.when(adminClient.getUserViaSudo("testUser")).thenThrow(new FileNotFoundException());
+
+        // the GitLab url is unreachable, any download attempt would fail
+        Assertions.assertNull(underTest.getRawFile(7, "dev", "testFolder/testFile"), "No file downloaded");
+    }
+
+    @Test
+    public void given_failed_user_lookup_when_getUserClient_then_neither_admin_client_nor_failure_cached() throws Exception {
+        Mockito.when(adminClient.getUserViaSudo("testUser"))
+                .thenThrow(new GitlabAPIException("Internal Server Error", 500, null))
+                .thenThrow(new FileNotFoundException());
+
+        assertThrows(IOException.class, () -> underTest.getUserClient());
+        Assertions.assertSame(adminClient, underTest.getUserClient(), "Unknown user served with the admin client");
+        Assertions.assertNull(underTest.getImpersonationTokenForUser());
+        Mockito.verify(adminClient, Mockito.times(2)).getUserViaSudo("testUser");
+    }
+
+    @Test
+    public void given_credentials_loaded_by_a_request_when_getUserClient_by_another_then_shared() throws Exception {
+        Mockito.when(adminClient.getUserViaSudo("testUser")).thenThrow(new FileNotFoundException());
+        GitlabService otherRequest = new GitlabService("http://localhost:1", "adminToken", new Session().callerName("testUser").id("otherSessionId"));
+        otherRequest.adminClient = Mockito.mock(GitlabAPI.class);
+
+        Assertions.assertSame(adminClient, underTest.getUserClient(), "Unknown user served with the admin client");
+        Assertions.assertNull(otherRequest.getImpersonationTokenForUser(), "Unknown user of the other request");
+        Mockito.verify(adminClient, Mockito.times(1)).getUserViaSudo("testUser");
+        Mockito.verifyZeroInteractions(otherRequest.adminClient);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2020. The Kathra Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *    IRT SystemX (https://www.kathra.org/)
+ *
+ */
+package org.kathra.sourcemanager.controller;
+
+import org.eclipse.jgit.transport.PushResult;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+class PushRejectedExceptionTest {
+
+    private static RemoteRefUpdate update(String ref, RemoteRefUpdate.Status status, String message) {
+        RemoteRefUpdate update = Mockito.mock(RemoteRefUpdate.class);
+        Mockito.when(update.getRemoteName()).thenReturn(ref);
+        Mockito.when(update.getStatus()).thenReturn(status);
+        Mockito.when(update.getMessage()).thenReturn(message);
+        return update;
+    }
+
+    private static PushRejectedException of(RemoteRefUpdate... updates) {
+        PushResult pushResult = Mockito.mock(PushResult.class);
+        Mockito.when(pushResult.getRemoteUpdates()).thenReturn(Arrays.asList(updates));
+        return PushRejectedException.of(Collections.singletonList(pushResult));
+    }
+
+    @Test
+    public void given_refs_updated_or_up_to_date_when_of_then_null() {
+        Assertions.assertNull(of(update("refs/heads/dev", RemoteRefUpdate.Status.OK, null),
+                update("refs/tags/v1", RemoteRefUpdate.Status.UP_TO_DATE, null)));
+    }
+
+    @Test
+    public void given_branch_moved_when_of_then_stale() {
+        for (RemoteRefUpdate.Status status : new RemoteRefUpdate.Status[]{RemoteRefUpdate.Status.REJECTED_NONFASTFORWARD, RemoteRefUpdate.Status.REJECTED_REMOTE_CHANGED}) {
+            PushRejectedException e = of(update("refs/heads/dev", status, null));
+            Assertions.assertNotNull(e, "Rejection for " + status);
+            Assertions.assertTrue(e.isStale(), "Stale for " + status);
+            Assertions.assertEquals(PushRejectedException.STATUS, e.getCode(), "Status");
+        }
+    }
+
+    @Test
+    public void given_server_refusing_a_moved_branch_when_of_then_stale() {
+        for (String message : new String[]{"non-fast-forward", "non-fast forward", "failed to update ref, fetch first", "stale info"}) {
+            PushRejectedException e = of(update("refs/heads/dev", RemoteRefUpdate.Status.REJECTED_OTHER_REASON, message));
+            Assertions.assertTrue(e.isStale(), "Stale for " + message);
+        }
+    }
+
+    @Test
+    public void given_other_refusals_when_of_then_not_stale() {
+        PushRejectedException e = of(update("refs/heads/dev", RemoteRefUpdate.Status.REJECTED_OTHER_REASON, "pre-receive hook declined"));
+        Assertions.assertFalse(e.isStale(), "Stale for a hook refusal");
+        Assertions.assertTrue(e.getMessage().contains("refs/heads/dev REJECTED_OTHER_REASON (pre-receive hook declined)"), e.getMessage());
+
+        Assertions.assertFalse(of(update("refs/heads/dev", RemoteRefUpdate.Status.REJECTED_OTHER_REASON, null)).isStale(), "Stale without a message");
+        Assertions.assertFalse(of(update("refs/heads/dev", RemoteRefUpdate.Status.REJECTED_NODELETE, null)).isStale(), "Stale for a refused deletion");
+    }
+
+    @Test
+    public void given_atomic_push_refused_when_of_then_every_ref_reported() {
+        PushRejectedException e = of(update("refs/heads/dev", RemoteRefUpdate.Status.REJECTED_NONFASTFORWARD, null),
+                update("refs/tags/v1", RemoteRefUpdate.Status.REJECTED_OTHER_REASON, "transaction aborted"));
+        Assertions.assertTrue(e.isStale(), "Stale");
+        Assertions.assertTrue(e.getMessage().contains("refs/heads/dev REJECTED_NONFASTFORWARD"), e.getMessage());
+        Assertions.assertTrue(e.getMessage().contains("refs/tags/v1 REJECTED_OTHER_REASON (transaction aborted)"), e.getMessage());
+    }
+}
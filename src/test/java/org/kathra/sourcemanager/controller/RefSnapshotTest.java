@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2020. The Kathra Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *    IRT SystemX (https://www.kathra.org/)
+ *
+ */
+package org.kathra.sourcemanager.controller;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+class RefSnapshotTest {
+
+    private static final ObjectId FIRST = ObjectId.fromString("1111111111111111111111111111111111111111");
+    private static final ObjectId SECOND = ObjectId.fromString("2222222222222222222222222222222222222222");
+
+    private RefSnapshot snapshot() {
+        Map<String, ObjectId> refs = new HashMap<>();
+        refs.put("refs/heads/master", FIRST);
+        refs.put("refs/heads/dev", FIRST);
+        refs.put("refs/tags/v1", FIRST);
+        refs.put("refs/merge-requests/1/head", FIRST);
+        return new RefSnapshot(refs, "refs/heads/master");
+    }
+
+    @Test
+    public void given_advertised_refs_when_new_snapshot_then_heads_and_tags_only() {
+        RefSnapshot underTest = snapshot();
+
+        Assertions.assertEquals(Arrays.asList("dev", "master", "v1"), underTest.getBranchesAndTags(), "Branches then tags");
+        Assertions.assertNull(underTest.get("refs/merge-requests/1/head"), "Other refs not kept");
+    }
+
+    @Test
+    public void given_ref_moved_when_update_then_new_snapshot_with_new_id() {
+        RefSnapshot underTest = snapshot();
+
+        RefSnapshot updated = underTest.update("refs/heads/dev", SECOND);
+
+        Assertions.assertEquals(SECOND, updated.get("refs/heads/dev"), "Updated ref");
+        Assertions.assertEquals(FIRST, updated.get("refs/heads/master"), "Other ref");
+        Assertions.assertEquals(FIRST, underTest.get("refs/heads/dev"), "Ref of the previous snapshot");
+        Assertions.assertEquals("refs/heads/master", updated.getDefaultBranch(), "Default branch");
+    }
+
+    @Test
+    public void given_new_ref_when_update_then_added() {
+        RefSnapshot updated = snapshot().update("refs/tags/v2", SECOND);
+
+        Assertions.assertEquals(SECOND, updated.get("refs/tags/v2"), "Added tag");
+        Assertions.assertEquals(Arrays.asList("dev", "master", "v1", "v2"), updated.getBranchesAndTags(), "Branches then tags");
+    }
+
+    @Test
+    public void given_ref_deleted_when_update_then_removed() {
+        RefSnapshot underTest = snapshot();
+
+        Assertions.assertNull(underTest.update("refs/heads/dev", ObjectId.zeroId()).get("refs/heads/dev"), "Ref deleted with zero id");
+        Assertions.assertNull(underTest.update("refs/tags/v1", null).get("refs/tags/v1"), "Ref deleted without id");
+    }
+
+    @Test
+    public void given_empty_project_when_update_branch_then_default_branch() {
+        RefSnapshot empty = new RefSnapshot(Collections.emptyMap(), null);
+
+        Assertions.assertNull(empty.update("refs/tags/v1", FIRST).getDefaultBranch(), "Default branch after a tag");
+        RefSnapshot updated = empty.update("refs/heads/dev", FIRST).update("refs/heads/master", SECOND);
+        Assertions.assertEquals("refs/heads/dev", updated.getDefaultBranch(), "First branch pushed");
+        Assertions.assertNull(empty.update("refs/heads/dev", ObjectId.zeroId()).getDefaultBranch(), "Default branch after a deletion");
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2020. The Kathra Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *    IRT SystemX (https://www.kathra.org/)
+ *
+ */
+package org.kathra.sourcemanager.controller;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class RetrierTest {
+
+    private final AtomicInteger attempts = new AtomicInteger();
+
+    private String failUntil(int successfulAttempt) throws IOException {
+        if (attempts.incrementAndGet() < successfulAttempt) {
+            throw new IOException("Attempt " + attempts.get() + " failed");
+        }
+        return "ok";
+    }
+
+    @Test
+    public void given_transient_failures_when_call_then_retried_on_calling_thread() throws Exception {
+        Retrier.Operation operation = new Retrier.Operation("test-transient", 4, 10, 40, 5000);
+        Thread caller = Thread.currentThread();
+        Assertions.assertEquals("ok", Retrier.call(operation, () -> {
+            Assertions.assertSame(caller, Thread.currentThread(), "Attempt thread");
+            return failUntil(3);
+        }, e -> true));
+        Assertions.assertEquals(3, attempts.get(), "Attempts");
+        Assertions.assertEquals(2, operation.getRetries(), "Retries");
+        Assertions.assertEquals(0, operation.getFailures(), "Failures");
+    }
+
+    @Test
+    public void given_non_retryable_failure_when_call_then_thrown_at_once() {
+        Retrier.Operation operation = new Retrier.Operation("test-non-retryable", 4, 10, 40, 5000);
+        assertThrows(IllegalArgumentException.class, () -> Retrier.call(operation, () -> {
+            attempts.incrementAndGet();
+            throw new IllegalArgumentException();
+        }, e -> !(e instanceof IllegalArgumentException)));
+        Assertions.assertEquals(1, attempts.get(), "Attempts");
+        Assertions.assertEquals(1, operation.getFailures(), "Failures");
+    }
+
+    @Test
+    public void given_persistent_failure_when_call_then_stops_after_max_attempts() {
+        Retrier.Operation operation = new Retrier.Operation("test-max-attempts", 4, 10, 40, 5000);
+        IOException e = assertThrows(IOException.class, () -> Retrier.call(operation, () -> failUntil(Integer.MAX_VALUE), ex -> true));
+        Assertions.assertEquals("Attempt 4 failed", e.getMessage(), "Exception of the last attempt");
+        Assertions.assertEquals(4, attempts.get(), "Attempts");
+    }
+
+    @Test
+    public void given_persistent_failure_when_call_then_stops_before_max_elapsed_time() {
+        Retrier.Operation operation = new Retrier.Operation("test-max-elapsed", 100, 100, 100, 300);
+        long start = System.currentTimeMillis();
+        assertThrows(IOException.class, () -> Retrier.call(operation, () -> failUntil(Integer.MAX_VALUE), e -> true));
+        long elapsed = System.currentTimeMillis() - start;
+        Assertions.assertTrue(elapsed <= 300 + 100, "No retry scheduled past the maximum elapsed time, elapsed " + elapsed + " ms");
+        // waits are between 50 and 100 ms
+        Assertions.assertTrue(attempts.get() >= 4 && attempts.get() <= 7, "Attempts within the elapsed time: " + attempts.get());
+    }
+
+    @Test
+    public void given_failures_of_many_calls_when_call_then_retries_bounded_by_budget() {
+        Retrier.Operation operation = new Retrier.Operation("test-budget", 2, 0, 0, 5000);
+        int calls = 50;
+        for (int i = 0; i < calls; i++) {
+            assertThrows(IOException.class, () -> Retrier.call(operation, () -> failUntil(Integer.MAX_VALUE), e -> true));
+        }
+        // 20 retry tokens at first, then a fifth of a token per call
+        Assertions.assertTrue(operation.getRetries() <= 20 + calls / 5, "Retries: " + operation.getRetries());
+        Assertions.assertTrue(operation.getRetriesDenied() > 0, "Retries denied once the budget is spent");
+        Assertions.assertEquals(calls, operation.getRetries() + operation.getRetriesDenied(), "One retry wanted per call");
+        Assertions.assertEquals(calls, operation.getFailures(), "Failures");
+    }
+}
@@ -21,16 +21,26 @@ package org.kathra.sourcemanager.controller;
 
 import org.junit.Assert;
 import org.kathra.core.model.SourceRepository;
+import org.kathra.core.model.SourceRepositoryCommit;
 import org.kathra.sourcemanager.model.Folder;
 import org.kathra.utils.KathraException;
+import org.kathra.utils.ApiException;
 import org.kathra.utils.Session;
 import javassist.NotFoundException;
 import org.apache.commons.io.FileUtils;
 import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.ResetCommand;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.transport.CredentialsProvider;
 import org.gitlab.api.GitlabAPI;
+import org.gitlab.api.GitlabAPIException;
+import org.gitlab.api.Pagination;
 import org.gitlab.api.models.GitlabBranch;
+import org.gitlab.api.models.CreateGroupRequest;
+import org.gitlab.api.models.GitlabCommit;
 import org.gitlab.api.models.GitlabGroup;
 import org.gitlab.api.models.GitlabProject;
 import org.junit.jupiter.api.*;
@@ -44,9 +54,24 @@ import org.zeroturnaround.zip.ZipUtil;
 
 import javax.activation.FileDataSource;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.ArgumentMatchers.eq;
@@ -135,13 +160,13 @@ class SourceManagerControllerTest {
         }).when(gitService).createWorkingFolder();
 
         Mockito.when(gitService.createCommit(Mockito.any(Git.class), Mockito.any(String.class), Mockito.any(String.class))).thenCallRealMethod();
+        Mockito.when(gitService.createCommit(Mockito.any(Git.class), Mockito.any(String.class), Mockito.any(String.class), Mockito.anyCollection())).thenCallRealMethod();
         Mockito.doCallRealMethod().when(gitService).createTag(Mockito.any(), Mockito.any(), Mockito.anyBoolean());
-        Mockito.when(gitService.pushToGitRepoWithUserCredentials(Mockito.any(CredentialsProvider.class), Mockito.any(Git.class))).thenReturn(null);
 
         Mockito.doAnswer(invocationOnMock -> {
             ZipUtil.unpack(new File("src/test/resources/repo.zip"), new File(workingFolder + File.separator + gitlabProjects.get(0).getName()));
             return Git.open(new File(workingFolder + File.separator + gitlabProjects.get(0).getName() + File.separator + ".git"));
-        }).when(gitService).cloneProject(eq(gitlabProjects.get(0).getName()), eq("dev"), eq(workingFolder), Mockito.any(CredentialsProvider.class), eq(gitlabProjects.get(0).getHttpUrl()),Mockito.anyBoolean());
+        }).when(gitService).cloneProject(eq(gitlabProjects.get(0).getId()), eq(gitlabProjects.get(0).getName()), eq("dev"), eq(workingFolder), Mockito.any(CredentialsProvider.class), eq(gitlabProjects.get(0).getHttpUrl()),Mockito.anyBoolean());
 
         Mockito.when(gitlabService.getImpersonationTokenForUser())
                 .thenReturn("testImpersonationTokenForUser");
@@ -227,6 +252,98 @@ class SourceManagerControllerTest {
         Assertions.assertEquals(session.getCallerName(), commit.getAuthorIdent().getName(), "Commit author");
     }
 
+    @Test
+    public void given_branch_moved_during_push_when_createCommit_then_content_replayed_on_new_head() throws Exception {
+        String projectName = gitlabProjects.get(0).getName();
+        Mockito.when(gitService.pushBranchAndTag(Mockito.any(CredentialsProvider.class), Mockito.any(Git.class), eq("dev"), Mockito.any()))
+                .thenThrow(new PushRejectedException("Unable to push refs/heads/dev REJECTED_NONFASTFORWARD", true))
+                .thenReturn(null);
+        // the new head of the branch is the previous one, the commit refused is dropped
+        AtomicReference<ObjectId> head = new AtomicReference<>();
+        Mockito.doAnswer(invocationOnMock -> {
+            Git clone = invocationOnMock.getArgument(1);
+            clone.reset().setMode(ResetCommand.ResetType.HARD).setRef("HEAD~1").call();
+            head.set(clone.getRepository().resolve(Constants.HEAD));
+            return null;
+        }).when(gitService).resetToRemoteBranch(Mockito.any(CredentialsProvider.class), Mockito.any(Git.class), eq("dev"));
+
+        underTest.createCommit(KATHRA_PROJECTS_DT + File.separator + projectName, "dev", new FileDataSource(new File("src/test/resources/swagger.yml")), null, null, null, false);
+
+        Mockito.verify(gitService, Mockito.times(2)).pushBranchAndTag(Mockito.any(CredentialsProvider.class), Mockito.any(Git.class), eq("dev"), Mockito.any());
+        Mockito.verify(gitService, Mockito.times(1)).resetToRemoteBranch(Mockito.any(CredentialsProvider.class), Mockito.any(Git.class), eq("dev"));
+        RevCommit commit = git.log().call().iterator().next();
+        Assertions.assertEquals(head.get(), commit.getParent(0), "Parent of the replayed commit");
+    }
+
+    @Test
+    public void given_same_repository_spelled_differently_when_createCommit_concurrently_then_queued_one_at_a_time() throws Exception {
+        String sourceRepositoryPath = KATHRA_PROJECTS_DT + "/queued";
+        AtomicInteger writes = new AtomicInteger();
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Mockito.when(gitlabService.getProjectFromPath(Mockito.anyString())).thenAnswer(invocation -> {
+            if (writes.incrementAndGet() == 1) {
+                writing.countDown();
+                release.await(10, TimeUnit.SECONDS);
+            }
+            throw new FileNotFoundException();
+        });
+        FileDataSource fileSource = new FileDataSource(new File("src/test/resources/swagger.yml"));
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> first = executor.submit(() -> underTest.createCommit(sourceRepositoryPath, "dev", fileSource, null, null, null, false));
+            Assertions.assertTrue(writing.await(10, TimeUnit.SECONDS), "First commit written");
+            Future<?> second = executor.submit(() -> underTest.createCommit("/" + sourceRepositoryPath.toUpperCase() + "/", "dev", fileSource, null, null, null, false));
+            Thread.sleep(200);
+            Assertions.assertEquals(1, writes.get(), "Commits written while the first one holds the branch");
+
+            release.countDown();
+            Assertions.assertThrows(ExecutionException.class, () -> first.get(10, TimeUnit.SECONDS));
+            Assertions.assertThrows(ExecutionException.class, () -> second.get(10, TimeUnit.SECONDS));
+            Assertions.assertEquals(2, writes.get(), "Commits written");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void given_push_refused_for_other_reason_when_createCommit_then_not_replayed() throws Exception {
+        String projectName = gitlabProjects.get(0).getName();
+        Mockito.when(gitService.pushBranchAndTag(Mockito.any(CredentialsProvider.class), Mockito.any(Git.class), eq("dev"), Mockito.any()))
+                .thenThrow(new PushRejectedException("Unable to push refs/heads/dev REJECTED_OTHER_REASON (pre-receive hook declined)", false));
+
+        PushRejectedException e = assertThrows(PushRejectedException.class, () -> {
+            underTest.createCommit(KATHRA_PROJECTS_DT + File.separator + projectName, "dev", new FileDataSource(new File("src/test/resources/swagger.yml")), null, null, null, false);
+        });
+        Assertions.assertEquals(PushRejectedException.STATUS, e.getCode(), "Status");
+        Mockito.verify(gitService, Mockito.times(1)).pushBranchAndTag(Mockito.any(CredentialsProvider.class), Mockito.any(Git.class), eq("dev"), Mockito.any());
+        Mockito.verify(gitService, Mockito.never()).resetToRemoteBranch(Mockito.any(), Mockito.any(), Mockito.any());
+    }
+
+    @Test
+    public void given_unchanged_content_when_createCommit_then_not_modified_without_clone() throws Exception {
+        String projectName = gitlabProjects.get(0).getName();
+        Integer projectId = gitlabProjects.get(0).getId();
+        File file = new File("src/test/resources/swagger.yml");
+        ObjectId headId = ObjectId.fromString("0123456789012345678901234567890123456789");
+        ObjectId blobId;
+        try (InputStream in = new FileInputStream(file)) {
+            blobId = new ObjectInserter.Formatter().idFor(Constants.OBJ_BLOB, file.length(), in);
+        }
+        Mockito.when(gitService.isMirrorEnabled()).thenReturn(true);
+        Mockito.when(gitService.getRefSnapshot(Mockito.any(CredentialsProvider.class), eq(gitlabProjects.get(0).getHttpUrl())))
+                .thenReturn(new RefSnapshot(Collections.singletonMap(Constants.R_HEADS + "dev", headId), Constants.R_HEADS + "dev"));
+        Mockito.when(gitService.readMirroredFiles(projectId, headId, "")).thenReturn(Collections.singletonMap("swagger.yml", blobId));
+
+        KathraException e = assertThrows(KathraException.class, () -> {
+            underTest.createCommit(KATHRA_PROJECTS_DT + File.separator + projectName, "dev", new FileDataSource(file), null, null, null, false);
+        });
+        Assert.assertEquals(KathraException.ErrorCode.NOT_MODIFIED, e.getErrorCode());
+        Mockito.verify(gitService, Mockito.never()).cloneProject(Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any());
+        Mockito.verify(gitService, Mockito.never()).createCommitWithoutWorktree(Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any());
+        Mockito.verify(gitlabService, Mockito.never()).getRepositoryTree(Mockito.any(), Mockito.any(), Mockito.any(), Mockito.anyBoolean(), Mockito.any());
+    }
+
     @Test
     public void given_nominal_args_when_getFile_then_works() throws Exception {
         String projectName = gitlabProjects.get(0).getName();
@@ -237,6 +354,55 @@ class SourceManagerControllerTest {
         Assertions.assertEquals("testFile",result.getName());
     }
 
+    @Test
+    public void given_raw_file_available_when_getFile_then_does_not_clone() throws Exception {
+        String projectName = gitlabProjects.get(0).getName();
+        File rawFile = TemporaryFileDataSource.createTemporaryFile("testFolder/testFile");
+        FileUtils.copyFile(new File("src/test/resources/testProject/testFolder/testFile"), rawFile);
+        Mockito.when(gitlabService.getRawFile(gitlabProjects.get(0).getId(), "dev", "testFolder/testFile")).thenReturn(rawFile);
+        FileDataSource result = underTest.getFile(KATHRA_PROJECTS_DT + File.separator + projectName, "dev", "testFolder/testFile");
+        Assertions.assertEquals("testFile", result.getName());
+        result.getInputStream().close();
+        Assertions.assertFalse(rawFile.getParentFile().exists(), "Downloaded file deleted once read");
+        Mockito.verify(gitService, Mockito.never()).cloneProject(Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any());
+    }
+
+    @Test
+    public void given_caller_when_getFile_then_project_access_checked_with_its_client_once() throws Exception {
+        String projectName = gitlabProjects.get(0).getName();
+        Integer projectId = gitlabProjects.get(0).getId();
+        GitlabService.getProjectAccessCache().invalidateAll();
+        for (int i = 0; i < 2; i++) {
+            File rawFile = TemporaryFileDataSource.createTemporaryFile("testFolder/testFile");
+            FileUtils.copyFile(new File("src/test/resources/testProject/testFolder/testFile"), rawFile);
+            Mockito.when(gitlabService.getRawFile(projectId, "dev", "testFolder/testFile")).thenReturn(rawFile);
+            underTest.getFile(KATHRA_PROJECTS_DT + File.separator + projectName, "dev", "testFolder/testFile").getInputStream().close();
+        }
+        Mockito.verify(userClient, Mockito.times(1)).getProject(projectId);
+
+        gitlabService.session = new Session().callerName("otherUser").id("otherSessionId");
+        try {
+            Mockito.when(userClient.getProject(projectId)).thenThrow(new FileNotFoundException());
+            assertThrows(FileNotFoundException.class, () -> {
+                underTest.getFile(KATHRA_PROJECTS_DT + File.separator + projectName, "dev", "testFolder/testFile");
+            });
+        } finally {
+            gitlabService.session = session;
+        }
+    }
+
+    @Test
+    public void given_no_impersonation_token_when_getFile_then_neither_downloads_nor_clones() throws Exception {
+        String projectName = gitlabProjects.get(0).getName();
+        Mockito.when(gitlabService.getImpersonationTokenForUser()).thenReturn(null);
+        Mockito.when(gitlabService.getRawFile(gitlabProjects.get(0).getId(), "dev", "testFolder/testFile")).thenReturn(null);
+        KathraException e = assertThrows(KathraException.class, () -> {
+            underTest.getFile(KATHRA_PROJECTS_DT + File.separator + projectName, "dev", "testFolder/testFile");
+        });
+        Assert.assertEquals(KathraException.ErrorCode.UNAUTHORIZED, e.getErrorCode());
+        Mockito.verify(gitService, Mockito.never()).cloneProject(Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any());
+    }
+
     @Test
     public void missing_args_when_getFile_then_throws_exception() throws Exception {
         String projectName = gitlabProjects.get(0).getName();
@@ -308,4 +474,249 @@ class SourceManagerControllerTest {
         });
         Assert.assertEquals(KathraException.ErrorCode.INTERNAL_SERVER_ERROR, e.getErrorCode());
     }
+
+    private List<GitlabCommit> mockGitlabCommits(String sourceRepositoryPath, String branch, int count) throws Exception {
+        GitlabProject gitlabProject = Mockito.mock(GitlabProject.class);
+        Mockito.when(gitlabProject.getId()).thenReturn(7);
+        Mockito.when(gitlabService.getProjectFromPath(sourceRepositoryPath)).thenReturn(gitlabProject);
+        List<GitlabCommit> gitlabCommits = new ArrayList<>();
+        for (int i = count; i > 0; i--) {
+            GitlabCommit gitlabCommit = new GitlabCommit();
+            gitlabCommit.setId("commit" + i);
+            gitlabCommit.setCreatedAt(new Date(i * 1000000L));
+            gitlabCommits.add(gitlabCommit);
+        }
+        Mockito.when(userClient.getCommits(eq(7), Mockito.any(Pagination.class), eq(branch))).thenReturn(gitlabCommits);
+        return gitlabCommits;
+    }
+
+    @Test
+    public void given_mirror_disabled_when_getCommits_by_pages_then_commits_after_cursor_between_bounds() throws Exception {
+        String sourceRepositoryPath = KATHRA_PROJECTS_DT + "/an-example";
+        mockGitlabCommits(sourceRepositoryPath, "dev", 5);
+        Date since = new Date(2000000L);
+        Date until = new Date(4000000L);
+        List<SourceRepositoryCommit> commits = new ArrayList<>();
+
+        String cursor = underTest.getCommits(sourceRepositoryPath, "dev", since, until, null, 2, commits::add);
+        Assertions.assertEquals("commit3", cursor, "Cursor of the second page");
+        Assertions.assertNull(underTest.getCommits(sourceRepositoryPath, "dev", since, until, cursor, 2, commits::add), "Cursor after the last page");
+
+        Assertions.assertEquals(Arrays.asList("commit4", "commit3", "commit2"), commits.stream().map(SourceRepositoryCommit::getId).collect(Collectors.toList()), "Commits of every page");
+        Assertions.assertEquals("1970-01-01T01:06:40.000Z", commits.get(0).getCreatedAt(), "Date of the commit");
+    }
+
+    @Test
+    public void given_mirror_disabled_when_getCommits_of_branch_then_dates_unchanged() throws Exception {
+        String sourceRepositoryPath = KATHRA_PROJECTS_DT + "/an-example";
+        List<GitlabCommit> gitlabCommits = mockGitlabCommits(sourceRepositoryPath, "dev", 2);
+
+        List<SourceRepositoryCommit> commits = underTest.getCommits(sourceRepositoryPath, "dev");
+
+        Assertions.assertEquals(gitlabCommits.get(0).getCreatedAt().toString(), commits.get(0).getCreatedAt(), "Date of the commit");
+    }
+
+    @Test
+    public void given_mirror_disabled_and_unknown_cursor_when_getCommits_then_400() throws Exception {
+        String sourceRepositoryPath = KATHRA_PROJECTS_DT + "/an-example";
+        mockGitlabCommits(sourceRepositoryPath, "dev", 2);
+
+        ApiException e = assertThrows(ApiException.class, () -> underTest.getCommits(sourceRepositoryPath, "dev", null, null, "unknown", 1, commit -> {
+        }));
+        Assert.assertEquals(400, e.getCode());
+    }
+
+    private GitlabGroup mockGroup(String fullPath) throws Exception {
+        GitlabGroup group = new GitlabGroup();
+        group.setFullPath(fullPath);
+        group.setName(fullPath.substring(fullPath.lastIndexOf('/') + 1));
+        Mockito.when(userClient.getGroup(fullPath)).thenReturn(group);
+        return group;
+    }
+
+    private GitlabProject mockProjectCreation(String name, GitlabGroup group, int id) throws Exception {
+        GitlabProject project = new GitlabProject();
+        project.setId(id);
+        project.setName(name);
+        project.setHttpUrl("httpUrl/" + name);
+        project.setPathWithNamespace(group.getFullPath() + "/" + name);
+        Mockito.when(userClient.createProjectForGroup(name, group)).thenReturn(project);
+        return project;
+    }
+
+    @Test
+    public void given_repositories_of_same_folder_when_createSourceRepositories_then_folder_resolved_once_and_results_in_order() throws Exception {
+        GitlabGroup group = mockGroup("kathra-projects/bulk-created");
+        List<SourceRepository> sourceRepositories = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            GitlabProject project = mockProjectCreation("repository" + i, group, 100 + i);
+            sourceRepositories.add(new SourceRepository().name(project.getName()).path(project.getPathWithNamespace()));
+        }
+
+        List<ProvisioningResult> results = underTest.createSourceRepositories(sourceRepositories, null);
+
+        Assertions.assertEquals(4, results.size(), "Results");
+        for (int i = 0; i < 4; i++) {
+            Assertions.assertNull(results.get(i).getError(), "Error of repository " + i);
+            Assertions.assertSame(sourceRepositories.get(i), results.get(i).getSourceRepository(), "Repository of result " + i);
+            Assertions.assertEquals(String.valueOf(100 + i), results.get(i).getSourceRepository().getProviderId(), "Provider id of repository " + i);
+            Assertions.assertEquals("httpUrl/repository" + i, results.get(i).getSourceRepository().getHttpUrl(), "Url of repository " + i);
+        }
+        Mockito.verify(userClient, Mockito.times(1)).getGroup("kathra-projects/bulk-created");
+        Mockito.verify(userClient, Mockito.times(4)).createBranch(Mockito.any(GitlabProject.class), eq("dev"), eq("master"));
+    }
+
+    @Test
+    public void given_creation_failing_for_one_repository_when_createSourceRepositories_then_others_created() throws Exception {
+        GitlabGroup group = mockGroup("kathra-projects/bulk-partial");
+        mockProjectCreation("created", group, 110);
+        Mockito.when(userClient.createProjectForGroup("refused", group)).thenThrow(new IOException("refused by GitLab"));
+        List<SourceRepository> sourceRepositories = Arrays.asList(
+                new SourceRepository().name("refused").path("kathra-projects/bulk-partial/refused"),
+                new SourceRepository().name("created").path("kathra-projects/bulk-partial/created"));
+
+        List<ProvisioningResult> results = underTest.createSourceRepositories(sourceRepositories, null);
+
+        KathraException error = (KathraException) results.get(0).getError();
+        Assertions.assertEquals(KathraException.ErrorCode.SERVICE_UNAVAILABLE, error.getErrorCode(), "Error of the refused repository");
+        Assertions.assertSame(sourceRepositories.get(0), results.get(0).getSourceRepository(), "Refused repository");
+        Assertions.assertNull(results.get(1).getError(), "Error of the created repository");
+        Assertions.assertEquals("110", results.get(1).getSourceRepository().getProviderId(), "Created repository");
+    }
+
+    @Test
+    public void given_folder_failing_when_createSourceRepositories_then_only_its_repositories_fail() throws Exception {
+        GitlabGroup group = mockGroup("kathra-projects/bulk-available");
+        mockProjectCreation("created", group, 120);
+        Mockito.when(userClient.getGroup("kathra-projects/bulk-unavailable")).thenThrow(new IOException("group unavailable"));
+        List<SourceRepository> sourceRepositories = Arrays.asList(
+                new SourceRepository().name("orphan").path("kathra-projects/bulk-unavailable/orphan"),
+                new SourceRepository().name("created").path("kathra-projects/bulk-available/created"));
+
+        List<ProvisioningResult> results = underTest.createSourceRepositories(sourceRepositories, null);
+
+        Assertions.assertEquals("group unavailable", results.get(0).getError().getMessage(), "Error of the repository of the failing folder");
+        Assertions.assertNull(results.get(1).getError(), "Error of the repository of the available folder");
+        Mockito.verify(userClient, Mockito.never()).createProjectForGroup(eq("orphan"), Mockito.any(GitlabGroup.class));
+    }
+
+    @Test
+    public void given_existing_project_and_initial_content_when_createSourceRepository_then_content_seeded() throws Exception {
+        GitlabGroup group = mockGroup("kathra-projects/seeded");
+        GitlabProject existing = new GitlabProject();
+        existing.setId(130);
+        existing.setName("existing");
+        existing.setHttpUrl("httpUrl/existing");
+        existing.setPathWithNamespace("kathra-projects/seeded/existing");
+        Mockito.when(userClient.createProjectForGroup("existing", group)).thenThrow(new IOException("{\"message\":{\"name\":[\"has already been taken\"]}}"));
+        Mockito.when(userClient.getGroupProjects(group)).thenReturn(Collections.singletonList(existing));
+        Mockito.when(gitService.seedProject(eq("existing"), Mockito.any(), Mockito.any(CredentialsProvider.class), eq("httpUrl/existing"), Mockito.any(CommitContent.class), eq("testUser"), Mockito.anyString()))
+                .thenReturn(new SourceRepositoryCommit().id("seeded").shortId("seeded"));
+        File file = new File(workingFolder, "README.md");
+        FileUtils.write(file, "readme", "UTF-8");
+
+        SourceRepository created = underTest.createSourceRepository(new SourceRepository().name("existing").path("kathra-projects/seeded/existing"), null, new FileDataSource(file), "README.md", false);
+
+        Assertions.assertEquals("130", created.getProviderId(), "Existing project");
+        Mockito.verify(gitService).seedProject(eq("existing"), Mockito.any(), Mockito.any(CredentialsProvider.class), eq("httpUrl/existing"), Mockito.any(CommitContent.class), eq("testUser"), Mockito.anyString());
+        Mockito.verify(userClient, Mockito.never()).createBranch(Mockito.any(GitlabProject.class), Mockito.anyString(), Mockito.anyString());
+    }
+
+    /**
+     * A client seeing the parent folder, but not yet the folder created in it, creating any project asked
+     */
+    private GitlabAPI mockFolderClient(String missingFolder, CountDownLatch lookups) throws Exception {
+        GitlabAPI client = Mockito.mock(GitlabAPI.class);
+        GitlabGroup parent = new GitlabGroup();
+        parent.setId(1);
+        parent.setFullPath(KATHRA_PROJECTS);
+        Mockito.when(client.getGroup(KATHRA_PROJECTS)).thenReturn(parent);
+        Mockito.when(client.getGroup(missingFolder)).thenAnswer(invocation -> {
+            lookups.countDown();
+            throw new FileNotFoundException(missingFolder);
+        });
+        Mockito.when(client.createProjectForGroup(Mockito.anyString(), Mockito.any(GitlabGroup.class))).thenAnswer(invocation -> {
+            GitlabProject project = new GitlabProject();
+            project.setId(140);
+            project.setName(invocation.getArgument(0));
+            project.setPathWithNamespace(missingFolder + "/" + project.getName());
+            return project;
+        });
+        return client;
+    }
+
+    private GitlabGroup folder(String fullPath) {
+        GitlabGroup folder = new GitlabGroup();
+        folder.setId(2);
+        folder.setFullPath(fullPath);
+        folder.setName(fullPath.substring(fullPath.lastIndexOf('/') + 1));
+        return folder;
+    }
+
+    @Test
+    public void given_folder_refused_to_first_caller_when_createSourceRepository_then_other_caller_creates_it() throws Exception {
+        String path = KATHRA_PROJECTS + "/race-refused";
+        CountDownLatch creating = new CountDownLatch(1);
+        CountDownLatch otherLookups = new CountDownLatch(1);
+        GitlabAPI refusedClient = mockFolderClient(path, new CountDownLatch(0));
+        Mockito.when(refusedClient.createGroup(Mockito.any(CreateGroupRequest.class), Mockito.isNull())).thenAnswer(invocation -> {
+            creating.countDown();
+            otherLookups.await(10, TimeUnit.SECONDS);
+            // the other caller is left the time to wait for this creation
+            Thread.sleep(200);
+            throw new GitlabAPIException("Forbidden", 403, null);
+        });
+        GitlabAPI allowedClient = mockFolderClient(path, otherLookups);
+        Mockito.when(allowedClient.createGroup(Mockito.any(CreateGroupRequest.class), Mockito.isNull())).thenReturn(folder(path));
+        ThreadLocal<GitlabAPI> callerClient = new ThreadLocal<>();
+        Mockito.when(gitlabService.getUserClient()).thenAnswer(invocation -> callerClient.get());
+        ExecutorService callers = Executors.newFixedThreadPool(2);
+        try {
+            Future<SourceRepository> refused = callers.submit(() -> {
+                callerClient.set(refusedClient);
+                return underTest.createSourceRepository(new SourceRepository().name("refused").path(path + "/refused"), null);
+            });
+            Assertions.assertTrue(creating.await(10, TimeUnit.SECONDS), "Folder created by the first caller");
+            Future<SourceRepository> allowed = callers.submit(() -> {
+                callerClient.set(allowedClient);
+                return underTest.createSourceRepository(new SourceRepository().name("allowed").path(path + "/allowed"), null);
+            });
+
+            ExecutionException e = assertThrows(ExecutionException.class, () -> refused.get(10, TimeUnit.SECONDS));
+            Assertions.assertEquals(KathraException.ErrorCode.FORBIDDEN, ((KathraException) e.getCause()).getErrorCode(), "Error of the refused caller");
+            Assertions.assertEquals("140", allowed.get(10, TimeUnit.SECONDS).getProviderId(), "Repository of the allowed caller");
+            Mockito.verify(allowedClient, Mockito.times(1)).createGroup(Mockito.any(CreateGroupRequest.class), Mockito.isNull());
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void given_concurrent_creations_of_same_folder_when_createSourceRepository_then_folder_created_once_and_cached() throws Exception {
+        String path = KATHRA_PROJECTS + "/race-shared";
+        // each creation looks the folder up twice before creating it
+        CountDownLatch lookups = new CountDownLatch(4);
+        GitlabAPI client = mockFolderClient(path, lookups);
+        Mockito.when(client.createGroup(Mockito.any(CreateGroupRequest.class), Mockito.isNull())).thenAnswer(invocation -> {
+            lookups.await(10, TimeUnit.SECONDS);
+            Thread.sleep(200);
+            return folder(path);
+        });
+        Mockito.when(gitlabService.getUserClient()).thenReturn(client);
+        ExecutorService callers = Executors.newFixedThreadPool(2);
+        try {
+            Future<SourceRepository> first = callers.submit(() -> underTest.createSourceRepository(new SourceRepository().name("first").path(path + "/first"), null));
+            Future<SourceRepository> second = callers.submit(() -> underTest.createSourceRepository(new SourceRepository().name("second").path(path + "/second"), null));
+
+            Assertions.assertEquals("140", first.get(10, TimeUnit.SECONDS).getProviderId(), "Repository of the first caller");
+            Assertions.assertEquals("140", second.get(10, TimeUnit.SECONDS).getProviderId(), "Repository of the second caller");
+            underTest.createSourceRepository(new SourceRepository().name("third").path(path + "/third"), null);
+
+            Mockito.verify(client, Mockito.times(1)).createGroup(Mockito.any(CreateGroupRequest.class), Mockito.isNull());
+            Mockito.verify(client, Mockito.times(4)).getGroup(path);
+            Mockito.verify(client, Mockito.times(3)).createProjectForGroup(Mockito.anyString(), Mockito.any(GitlabGroup.class));
+        } finally {
+            callers.shutdownNow();
+        }
+    }
 }
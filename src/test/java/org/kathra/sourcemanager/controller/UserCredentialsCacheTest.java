@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2020. The Kathra Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *    IRT SystemX (https://www.kathra.org/)
+ *
+ */
+package org.kathra.sourcemanager.controller;
+
+import org.gitlab.api.GitlabAPI;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class UserCredentialsCacheTest {
+
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private UserCredentialsCache.UserCredentials load(String callerName) {
+        return new UserCredentialsCache.UserCredentials(Mockito.mock(GitlabAPI.class), callerName + "-token-" + loads.incrementAndGet());
+    }
+
+    @Test
+    public void given_cached_credentials_when_get_then_loaded_once_until_invalidated() throws Exception {
+        UserCredentialsCache underTest = new UserCredentialsCache(100, 1, 1);
+        Assertions.assertEquals("user-token-1", underTest.get("user", this::load).getImpersonationToken());
+        Assertions.assertEquals("user-token-1", underTest.get("user", this::load).getImpersonationToken());
+        Assertions.assertEquals("other-token-2", underTest.get("other", this::load).getImpersonationToken());
+
+        underTest.invalidate("user");
+        Assertions.assertEquals("user-token-3", underTest.get("user", this::load).getImpersonationToken());
+        Assertions.assertEquals(3, loads.get(), "Number of loads");
+    }
+
+    @Test
+    public void given_credentials_past_most_of_their_ttl_when_get_then_refreshed_in_background() throws Exception {
+        UserCredentialsCache underTest = new UserCredentialsCache(100, 1, 1);
+        Assertions.assertEquals("user-token-1", underTest.get("user", this::load).getImpersonationToken());
+        Thread.sleep(850);
+        // the caller doesn't wait for the refresh
+        Assertions.assertEquals("user-token-1", underTest.get("user", this::load).getImpersonationToken());
+        for (int i = 0; i < 100 && loads.get() < 2; i++) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(50);
+        Assertions.assertEquals("user-token-2", underTest.get("user", this::load).getImpersonationToken(), "Refreshed credentials");
+        Assertions.assertEquals(2, loads.get(), "Number of loads");
+    }
+
+    @Test
+    public void given_expired_credentials_when_get_then_loaded_again() throws Exception {
+        UserCredentialsCache underTest = new UserCredentialsCache(100, 1, 1);
+        underTest.get("user", this::load);
+        Thread.sleep(1100);
+        Assertions.assertEquals("user-token-2", underTest.get("user", this::load).getImpersonationToken());
+    }
+
+    @Test
+    public void given_failed_load_when_get_then_not_cached() throws Exception {
+        UserCredentialsCache underTest = new UserCredentialsCache(100, 60, 60);
+        UserCredentialsCache.Loader loader = callerName -> {
+            if (loads.incrementAndGet() == 1) {
+                throw new IOException("GitLab unavailable");
+            }
+            return new UserCredentialsCache.UserCredentials(Mockito.mock(GitlabAPI.class), "token");
+        };
+        assertThrows(IOException.class, () -> underTest.get("user", loader));
+        Assertions.assertEquals("token", underTest.get("user", loader).getImpersonationToken(), "Loaded again after a failure");
+        Assertions.assertEquals(2, loads.get(), "Number of loads");
+    }
+
+    @Test
+    public void given_unknown_user_when_get_then_cached_for_negative_ttl_without_refresh() throws Exception {
+        UserCredentialsCache underTest = new UserCredentialsCache(100, 60, 1);
+        UserCredentialsCache.Loader loader = callerName -> {
+            loads.incrementAndGet();
+            return UserCredentialsCache.UserCredentials.UNKNOWN_USER;
+        };
+        Assertions.assertNull(underTest.get("unknown", loader).getClient());
+        Thread.sleep(850);
+        Assertions.assertNull(underTest.get("unknown", loader).getImpersonationToken());
+        Thread.sleep(100);
+        Assertions.assertEquals(1, loads.get(), "Unknown user neither loaded again nor refreshed");
+        Thread.sleep(200);
+        underTest.get("unknown", loader);
+        Assertions.assertEquals(2, loads.get(), "Unknown user loaded again after the negative ttl");
+    }
+
+    @Test
+    public void given_concurrent_gets_when_loading_then_single_load_shared() throws Exception {
+        UserCredentialsCache underTest = new UserCredentialsCache(100, 60, 60);
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch waiting = new CountDownLatch(1);
+        UserCredentialsCache.Loader loader = callerName -> {
+            loading.countDown();
+            waiting.await();
+            return load(callerName);
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<UserCredentialsCache.UserCredentials> first = executor.submit(() -> underTest.get("user", loader));
+            Assertions.assertTrue(loading.await(10, TimeUnit.SECONDS), "First load started");
+            Future<UserCredentialsCache.UserCredentials> second = executor.submit(() -> underTest.get("user", loader));
+            Thread.sleep(100);
+            Assertions.assertFalse(second.isDone(), "Second caller waiting for the first load");
+            waiting.countDown();
+
+            Assertions.assertSame(first.get(10, TimeUnit.SECONDS), second.get(10, TimeUnit.SECONDS), "Credentials shared");
+            Assertions.assertEquals(1, loads.get(), "Number of loads");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void given_more_callers_than_capacity_when_get_then_soonest_to_expire_dropped() throws Exception {
+        UserCredentialsCache underTest = new UserCredentialsCache(10, 60, 30);
+        UserCredentialsCache.Loader unknown = callerName -> {
+            loads.incrementAndGet();
+            return UserCredentialsCache.UserCredentials.UNKNOWN_USER;
+        };
+        underTest.get("unknown", unknown);
+        for (int i = 0; i < 1000; i++) {
+            underTest.get("user" + i, this::load);
+        }
+        Assertions.assertTrue(underTest.size() <= 10, "Callers kept");
+
+        underTest.get("unknown", unknown);
+        Assertions.assertEquals(1002, loads.get(), "Unknown user, the soonest to expire, loaded again");
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2020. The Kathra Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *    IRT SystemX (https://www.kathra.org/)
+ *
+ */
+package org.kathra.sourcemanager.controller;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class WorkingAreaTest {
+
+    private static final long LONG_AGO = System.currentTimeMillis() - 3_600_000L * 24 * 365;
+
+    private File folder;
+
+    @BeforeEach
+    public void setUpEach() throws IOException {
+        folder = Files.createTempDirectory("working-area-test").toFile();
+    }
+
+    @AfterEach
+    public void tearDownEach() {
+        FileUtils.deleteQuietly(folder);
+    }
+
+    @Test
+    public void given_quota_filled_when_acquire_then_refused_until_released() throws Exception {
+        WorkingArea underTest = new WorkingArea(folder, 1, 60);
+        File leased = underTest.acquire();
+        FileUtils.writeByteArrayToFile(new File(leased, "big"), new byte[2 * 1024 * 1024]);
+        // usage is only known once measured
+        Assertions.assertNotNull(underTest.acquire(), "Folder lent before the usage is measured");
+        Assertions.assertTrue(underTest.measureUsage() >= 2 * 1024 * 1024, "Measured usage");
+
+        TooManyRequestsException e = assertThrows(TooManyRequestsException.class, underTest::acquire);
+        Assertions.assertEquals(429, e.getCode(), "Status");
+
+        underTest.release(leased);
+        Assertions.assertFalse(leased.exists(), "Released folder deleted");
+        Assertions.assertEquals(0, underTest.getUsedBytes(), "Usage once released");
+        Assertions.assertNotNull(underTest.acquire(), "Folder lent once released");
+    }
+
+    @Test
+    public void given_files_outside_dedicated_folder_when_reclaim_then_kept() throws Exception {
+        File lookalike = new File(folder, WorkingArea.WORKING_FOLDER_PREFIX + "of-another-program");
+        FileUtils.forceMkdir(lookalike);
+        lookalike.setLastModified(LONG_AGO);
+        WorkingArea underTest = new WorkingArea(folder, 10, 60);
+        underTest.acquire();
+
+        underTest.reclaim();
+        Assertions.assertTrue(lookalike.exists(), "Folder outside the working area kept");
+    }
+
+    @Test
+    public void given_orphans_of_this_process_when_reclaim_then_only_expired_ones_deleted() throws Exception {
+        WorkingArea underTest = new WorkingArea(folder, 10, 60);
+        File leased = underTest.acquire();
+        leased.setLastModified(LONG_AGO);
+        File kept = underTest.acquire();
+        underTest.release(kept, false);
+        Assertions.assertEquals(0, underTest.reclaim(), "Reclaimed while recent or leased");
+        Assertions.assertTrue(kept.exists(), "Recent folder kept");
+
+        kept.setLastModified(LONG_AGO);
+        Assertions.assertEquals(1, underTest.reclaim(), "Reclaimed");
+        Assertions.assertFalse(kept.exists(), "Expired folder deleted");
+        Assertions.assertTrue(leased.exists(), "Leased folder kept");
+    }
+
+    @Test
+    public void given_other_processes_when_reclaim_then_only_folders_of_the_gone_ones_deleted() throws Exception {
+        WorkingArea other = new WorkingArea(folder, 10, 60);
+        File otherFolder = other.acquire();
+        File otherRoot = other.getRoot();
+        otherRoot.setLastModified(LONG_AGO);
+        new File(otherRoot, ".owner").setLastModified(LONG_AGO);
+
+        File gone = new File(folder, WorkingArea.AREA_FOLDER + File.separator + "gone");
+        FileUtils.forceMkdir(new File(gone, WorkingArea.WORKING_FOLDER_PREFIX + "left"));
+        FileUtils.touch(new File(gone, ".owner"));
+        new File(gone, ".owner").setLastModified(LONG_AGO);
+
+        WorkingArea underTest = new WorkingArea(folder, 10, 60);
+        underTest.acquire();
+        Assertions.assertEquals(1, underTest.reclaim(), "Reclaimed");
+        Assertions.assertFalse(gone.exists(), "Folder of a process gone deleted");
+        Assertions.assertTrue(otherFolder.exists(), "Folder of a running process kept");
+    }
+
+    @Test
+    public void given_lease_held_too_long_when_reclaim_then_released() throws Exception {
+        WorkingArea underTest = new WorkingArea(folder, 10, 0);
+        File leased = underTest.acquire();
+        Thread.sleep(5);
+        Assertions.assertEquals(1, underTest.reclaim(), "Reclaimed");
+        Assertions.assertFalse(leased.exists(), "Folder deleted");
+        Assertions.assertEquals(0, underTest.getLeases(), "Leases");
+    }
+}